@@ -15,21 +15,25 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Clone redis-benchmark
  */
 public class Benchmark {
   private static final String help = "" +
-      "Usage: redis-benchmark [-h <host>] [-p <port>] [-c <clients>] [-n <requests]> [-P <pipelined>] [-d <data size>]\n" +
+      "Usage: redis-benchmark [-h <host>] [-p <port>] [-c <clients>] [-n <requests]> [-P <pipelined>] [-d <data size>] [-B <micros>]\n" +
       "\n" +
       " -h <hostname>      Server hostname (default 127.0.0.1)\n" +
       " -p <port>          Server port (default 6379)\n" +
       " -c <clients>       Number of parallel connections (default 50)\n" +
       " -n <requests>      Total number of requests (default 10000)\n" +
       " -P <outstanding>   Number of outstanding pipeline requests (defaults 1)\n" +
-      " -d <size>          Data size of SET/GET value in bytes (default 3)\n";
+      " -d <size>          Data size of SET/GET value in bytes (default 3)\n" +
+      " -B <micros>        Batch pipelined requests, flushing at the latest this long\n" +
+      "                    after the first, 0 for no timer (default no batching)\n";
 
   @Argument
   private static String h = "127.0.0.1";
@@ -43,6 +47,8 @@ public class Benchmark {
   private static Integer d = 3;
   @Argument
   private static Integer P = 1;
+  @Argument
+  private static Integer B = -1;
 
   private static final long NANOS_PER_MILLI = 1000000l;
   private static final int MILLIS_PER_SECOND = 1000;
@@ -62,12 +68,17 @@ public class Benchmark {
         return super.get(index);
       }
     };
+    final AtomicLong writes = new AtomicLong();
+    final AtomicLong reads = new AtomicLong();
     List<Callable<Void>> benchmarks = new ArrayList<Callable<Void>>(c);
     for (int j = 0; j < c; j++) {
       benchmarks.add(new Callable<Void>() {
         @Override
         public Void call() throws IOException, InterruptedException {
           RedisClient redisClient = new RedisClient(h, p);
+          if (B >= 0) {
+            redisClient.setBatching(B, TimeUnit.MICROSECONDS);
+          }
           final Semaphore semaphore = new Semaphore(P);
           for (int i = 0; i < n / c; i++) {
             final long commandstart = System.nanoTime();
@@ -91,6 +102,8 @@ public class Benchmark {
             }
           }
           semaphore.acquire(P);
+          writes.addAndGet(redisClient.getRedisProtocol().getWrites());
+          reads.addAndGet(redisClient.getRedisProtocol().getReads());
           redisClient.close();
           return null;
         }
@@ -108,6 +121,11 @@ public class Benchmark {
     System.out.printf("  %d parallel clients\n", c);
     System.out.printf("  %d outstanding requests\n", P);
     System.out.printf("  %d bytes payload\n", d);
+    if (B >= 0) {
+      System.out.printf("  batched, flushed within %d microseconds\n", B);
+    }
+    System.out.printf("  %.2f writes and %.2f reads on the sockets per request\n",
+        (double) writes.get() / n, (double) reads.get() / n);
     System.out.println();
     double total = 0;
     int milli = 0;
@@ -0,0 +1,391 @@
+package redis.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ListenableFuture;
+import redis.Command;
+import redis.reply.BulkReply;
+import redis.reply.ErrorReply;
+import redis.reply.IntegerReply;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+import redis.reply.StatusReply;
+import redis.util.CRC16;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import static redis.util.CRC16.SLOTS;
+
+/**
+ * A client for a Redis Cluster. The slot of a key is computed locally with
+ * CRC16 and its command borrows from the pool of the node serving the slot,
+ * from a map bootstrapped with CLUSTER SLOTS. A MOVED reply refreshes the map
+ * and retries on the new owner. An ASK reply retries once on the node it
+ * names after ASKING, leaving the map alone while the slot migrates.
+ * <p/>
+ * A batch of commands goes out as one pipeline per node.
+ */
+public class ClusterRedisClient {
+  private static final int MAX_REDIRECTS = 5;
+  private static final Command ASKING = new Command("ASKING");
+
+  private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+  // Replaced rather than changed, so a caller can tell whether it is stale
+  private volatile Node[] slots = new Node[SLOTS];
+  private volatile int maxTotal = 8;
+
+  /**
+   * Bootstrap from any node of the cluster.
+   */
+  public ClusterRedisClient(String host, int port) throws RedisException {
+    node(host, port);
+    refresh(slots, null);
+  }
+
+  /**
+   * The most connections to each node, for nodes connected to from now on.
+   */
+  public ClusterRedisClient maxTotal(int maxTotal) {
+    this.maxTotal = maxTotal;
+    return this;
+  }
+
+  /**
+   * @return the pool of the node serving the slot of the key
+   */
+  public RedisClientPool node(Object key) throws RedisException {
+    return owner(CRC16.slot(bytes(key))).pool;
+  }
+
+  private Node owner(int slot) throws RedisException {
+    Node[] slots = this.slots;
+    Node node = slots[slot];
+    if (node == null) {
+      refresh(slots, null);
+      node = this.slots[slot];
+      if (node == null) {
+        throw new RedisException("Slot " + slot + " is not served");
+      }
+    }
+    return node;
+  }
+
+  private Node node(String host, int port) {
+    String address = host + ":" + port;
+    Node node = nodes.get(address);
+    if (node == null) {
+      Node created = new Node(host, port, new RedisClientPool(host, port).maxTotal(maxTotal));
+      node = nodes.putIfAbsent(address, created);
+      if (node == null) {
+        node = created;
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Reload the slot map unless it has already changed from the one seen,
+   * asking the node that redirected first since it knows best.
+   */
+  private synchronized void refresh(Node[] seen, Node first) throws RedisException {
+    if (slots != seen) {
+      return;
+    }
+    List<Node> candidates = new ArrayList<Node>(nodes.values());
+    if (first != null) {
+      candidates.remove(first);
+      candidates.add(0, first);
+    }
+    RedisException failure = null;
+    for (Node node : candidates) {
+      RedisClient client;
+      try {
+        client = node.pool.borrow();
+      } catch (RedisException e) {
+        failure = e;
+        continue;
+      }
+      Reply reply;
+      try {
+        reply = client.execute("CLUSTER", new Command("CLUSTER", "SLOTS"));
+        node.pool.release(client);
+      } catch (RedisException e) {
+        node.pool.release(client, e);
+        failure = e;
+        continue;
+      }
+      Node[] slots = new Node[SLOTS];
+      for (Reply range : ((MultiBulkReply) reply).data()) {
+        Reply[] parts = ((MultiBulkReply) range).data();
+        Reply[] master = ((MultiBulkReply) parts[2]).data();
+        String host = new String((byte[]) master[0].data(), Charsets.UTF_8);
+        Node owner = node(host.isEmpty() ? node.host : host, ((Number) master[1].data()).intValue());
+        int end = ((Number) parts[1].data()).intValue();
+        for (int slot = ((Number) parts[0].data()).intValue(); slot <= end; slot++) {
+          slots[slot] = owner;
+        }
+      }
+      this.slots = slots;
+      return;
+    }
+    throw new RedisException("No node could be asked for the slots", failure);
+  }
+
+  /**
+   * Execute a command on the node serving the key, following redirections.
+   */
+  public Reply execute(String name, Object key, Command command) throws RedisException {
+    Node node = owner(CRC16.slot(bytes(key)));
+    boolean asking = false;
+    for (int redirects = 0; ; redirects++) {
+      Node[] seen = slots;
+      RedisClient client = node.pool.borrow();
+      try {
+        if (asking) {
+          client.execute("ASKING", ASKING);
+        }
+        Reply reply = client.execute(name, command);
+        node.pool.release(client);
+        return reply;
+      } catch (RedisException e) {
+        node.pool.release(client, e);
+        Redirect redirect = Redirect.parse(e);
+        if (redirect == null) {
+          throw e;
+        }
+        if (redirects == MAX_REDIRECTS) {
+          throw new RedisException("Too many redirections: " + name, e);
+        }
+        node = node(redirect.host, redirect.port);
+        asking = redirect.ask;
+        if (!asking) {
+          refresh(seen, node);
+        }
+      }
+    }
+  }
+
+  public BulkReply get(Object key) throws RedisException {
+    return (BulkReply) execute("GET", key, new Command("GET", key));
+  }
+
+  public StatusReply set(Object key, Object value) throws RedisException {
+    return (StatusReply) execute("SET", key, new Command("SET", key, value));
+  }
+
+  public IntegerReply del(Object key) throws RedisException {
+    return (IntegerReply) execute("DEL", key, new Command("DEL", key));
+  }
+
+  public Batch batch() {
+    return new Batch();
+  }
+
+  /**
+   * Close the pools of all the nodes.
+   */
+  public void close() {
+    for (Node node : nodes.values()) {
+      node.pool.close();
+    }
+  }
+
+  /**
+   * Commands sent together as one pipeline per node and answered in the
+   * order they were added. An error reply takes the place of its reply
+   * rather than failing the batch. Redirected commands are sent again, the
+   * ones that were moved after the map is refreshed.
+   */
+  public class Batch {
+    private final List<String> names = new ArrayList<String>();
+    private final List<Object> keys = new ArrayList<Object>();
+    private final List<Command> commands = new ArrayList<Command>();
+
+    private Batch() {
+    }
+
+    public Batch add(String name, Object key, Command command) {
+      names.add(name);
+      keys.add(key);
+      commands.add(command);
+      return this;
+    }
+
+    public Reply[] execute() throws RedisException {
+      Reply[] replies = new Reply[commands.size()];
+      List<Integer> pending = new ArrayList<Integer>();
+      for (int i = 0; i < replies.length; i++) {
+        pending.add(i);
+      }
+      // Where the commands that were asked about have to go
+      Map<Integer, Node> asked = new HashMap<Integer, Node>();
+      for (int round = 0; !pending.isEmpty(); round++) {
+        if (round > MAX_REDIRECTS) {
+          throw new RedisException("Too many redirections");
+        }
+        Node[] seen = slots;
+        // Borrowed in address order so concurrent batches can't deadlock
+        Map<String, Group> groups = new TreeMap<String, Group>();
+        for (int i : pending) {
+          Node node = asked.get(i);
+          if (node == null) {
+            node = owner(CRC16.slot(bytes(keys.get(i))));
+          }
+          Group group = groups.get(node.address);
+          if (group == null) {
+            groups.put(node.address, group = new Group(node));
+          }
+          group.indexes.add(i);
+        }
+        pending = new ArrayList<Integer>();
+        Node movedTo = null;
+        RedisException failure = null;
+        try {
+          for (Group group : groups.values()) {
+            group.client = group.node.pool.borrow();
+          }
+          for (Group group : groups.values()) {
+            for (int i : group.indexes) {
+              if (asked.containsKey(i)) {
+                group.client.pipeline("ASKING", ASKING);
+              }
+              group.replies.add(group.client.pipeline(names.get(i), commands.get(i)));
+            }
+          }
+          asked.clear();
+          for (Group group : groups.values()) {
+            for (int j = 0; j < group.indexes.size(); j++) {
+              int i = group.indexes.get(j);
+              try {
+                replies[i] = group.replies.get(j).get();
+              } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (!(cause instanceof RedisException) || cause.getCause() != null) {
+                  group.failed = true;
+                  failure = new RedisException("Failed on " + group.node.address, cause);
+                  continue;
+                }
+                Redirect redirect = Redirect.parse((RedisException) cause);
+                if (redirect == null) {
+                  replies[i] = new ErrorReply(cause.getMessage());
+                  continue;
+                }
+                Node node = node(redirect.host, redirect.port);
+                if (redirect.ask) {
+                  asked.put(i, node);
+                } else {
+                  movedTo = node;
+                }
+                pending.add(i);
+              }
+            }
+          }
+        } catch (RedisException e) {
+          failure = e;
+        } catch (InterruptedException e) {
+          failure = new RedisException("Interrupted", e);
+        } finally {
+          // Clients left with replies outstanding are closed by the pool
+          for (Group group : groups.values()) {
+            if (group.client != null) {
+              if (group.failed) {
+                group.node.pool.invalidate(group.client);
+              } else {
+                group.node.pool.release(group.client);
+              }
+            }
+          }
+        }
+        if (failure != null) {
+          throw failure;
+        }
+        if (movedTo != null) {
+          refresh(seen, movedTo);
+        }
+      }
+      return replies;
+    }
+  }
+
+  /**
+   * The commands of a batch going to one node.
+   */
+  private static class Group {
+    final Node node;
+    final List<Integer> indexes = new ArrayList<Integer>();
+    final List<ListenableFuture<? extends Reply>> replies = new ArrayList<ListenableFuture<? extends Reply>>();
+    RedisClient client;
+    boolean failed;
+
+    Group(Node node) {
+      this.node = node;
+    }
+  }
+
+  private static class Node {
+    final String host;
+    final int port;
+    final String address;
+    final RedisClientPool pool;
+
+    Node(String host, int port, RedisClientPool pool) {
+      this.host = host;
+      this.port = port;
+      this.pool = pool;
+      address = host + ":" + port;
+    }
+  }
+
+  /**
+   * A MOVED or ASK error: the slot and the node to try instead.
+   */
+  private static class Redirect {
+    final boolean ask;
+    final String host;
+    final int port;
+
+    Redirect(boolean ask, String host, int port) {
+      this.ask = ask;
+      this.host = host;
+      this.port = port;
+    }
+
+    static Redirect parse(RedisException e) {
+      String message = e.getMessage();
+      if (e.getCause() != null || message == null) {
+        return null;
+      }
+      boolean ask = message.startsWith("ASK ");
+      if (!ask && !message.startsWith("MOVED ")) {
+        return null;
+      }
+      // MOVED slot host:port, anything else is an ordinary error
+      String[] parts = message.split(" ");
+      if (parts.length != 3) {
+        return null;
+      }
+      int colon = parts[2].lastIndexOf(':');
+      if (colon <= 0) {
+        return null;
+      }
+      try {
+        return new Redirect(ask, parts[2].substring(0, colon), Integer.parseInt(parts[2].substring(colon + 1)));
+      } catch (NumberFormatException nfe) {
+        return null;
+      }
+    }
+  }
+
+  private static byte[] bytes(Object key) {
+    if (key instanceof byte[]) {
+      return (byte[]) key;
+    }
+    return key.toString().getBytes(Charsets.UTF_8);
+  }
+}
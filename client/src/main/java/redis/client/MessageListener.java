@@ -1,5 +1,7 @@
 package redis.client;
 
+import java.io.IOException;
+
 /**
  * Convenience when you don't care about the subscriptions.
  */
@@ -19,4 +21,11 @@ public abstract class MessageListener implements ReplyListener {
   @Override
   public void punsubscribed(byte[] name, int channels) {
   }
+
+  /**
+   * The subscribed connection broke rather than being closed, no more
+   * messages arrive on it.
+   */
+  public void lost(IOException cause) {
+  }
 }
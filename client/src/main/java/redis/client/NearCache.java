@@ -0,0 +1,375 @@
+package redis.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.SettableFuture;
+import redis.reply.BulkReply;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local cache of the values of GET in front of a pool, for keys that are
+ * read far more often than they change. Only GET is cached; other read
+ * commands go to the pool as usual. Entries are dropped when the server
+ * publishes a keyspace notification for their key on a connection of their
+ * own, when they have been cached for longer than the time to live and, the
+ * least recently used first, when the bytes cached pass the maximum.
+ * <p/>
+ * The server has to have notify-keyspace-events set to include K and the
+ * events that change values, KA for all of them. FLUSHDB and FLUSHALL don't
+ * notify so invalidateAll has to be called after them.
+ * <p/>
+ * Should the connection of the notifications break, everything cached is
+ * dropped and reads go to the server without being cached until a new one
+ * has subscribed, which is retried in the background.
+ * <p/>
+ * Concurrent misses on a key wait for the one GET that the first of them
+ * sends rather than each sending their own.
+ */
+public class NearCache {
+  private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+  private static final long RETRY = TimeUnit.SECONDS.toMillis(1);
+  // Of an entry besides its key and value
+  private static final int OVERHEAD = 64;
+
+  private final RedisClientPool pool;
+  private final Cache<ByteBuffer, BulkReply> cache;
+  private final ConcurrentMap<ByteBuffer, Load> loading = new ConcurrentHashMap<ByteBuffer, Load>();
+  // Runs the reader of the notifications and resubscribes
+  private final ExecutorService es = Executors.newCachedThreadPool();
+  private volatile RedisClient subscriber;
+  // Whether notifications are coming, values are only cached while they are
+  private volatile boolean subscribed;
+  private volatile boolean closed;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong disconnects = new AtomicLong();
+
+  /**
+   * Subscribe to the notifications of the database of the pool, returning
+   * once they are coming.
+   *
+   * @param maxBytes the most bytes of keys and values to cache
+   * @param ttl      the longest a value is cached for
+   */
+  public NearCache(RedisClientPool pool, long maxBytes, long ttl, TimeUnit unit) throws RedisException {
+    this.pool = pool;
+    cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher(new Weigher<ByteBuffer, BulkReply>() {
+              @Override
+              public int weigh(ByteBuffer key, BulkReply value) {
+                byte[] bytes = value.data();
+                return OVERHEAD + key.remaining() + (bytes == null ? 0 : bytes.length);
+              }
+            })
+            .expireAfterWrite(ttl, unit)
+            .recordStats()
+            .build();
+    try {
+      subscribe();
+    } catch (RedisException e) {
+      close();
+      throw e;
+    }
+  }
+
+  private void subscribe() throws RedisException {
+    final RedisClient client = pool.connect(es);
+    final byte[] prefix = ("__keyspace@" + client.db() + "__:").getBytes(Charsets.UTF_8);
+    final CountDownLatch psubscribed = new CountDownLatch(1);
+    client.addListener(new MessageListener() {
+      @Override
+      public void psubscribed(byte[] name, int channels) {
+        psubscribed.countDown();
+      }
+
+      @Override
+      public void message(byte[] channel, byte[] message) {
+      }
+
+      @Override
+      public void pmessage(byte[] pattern, byte[] channel, byte[] message) {
+        invalidate(ByteBuffer.wrap(channel, prefix.length, channel.length - prefix.length).slice());
+      }
+
+      @Override
+      public void lost(IOException cause) {
+        NearCache.this.lost(client);
+      }
+    });
+    synchronized (this) {
+      if (closed) {
+        closeQuietly(client);
+        throw new RedisException("Closed");
+      }
+      subscriber = client;
+    }
+    try {
+      client.psubscribe(new String(prefix, Charsets.UTF_8) + "*");
+      if (!psubscribed.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+        throw new RedisException("Not subscribed to the keyspace notifications");
+      }
+    } catch (InterruptedException e) {
+      closeQuietly(client);
+      throw new RedisException("Interrupted", e);
+    } catch (RedisException e) {
+      closeQuietly(client);
+      throw e;
+    }
+    synchronized (this) {
+      if (subscriber != client) {
+        throw new RedisException("Lost the keyspace notifications while subscribing");
+      }
+      subscribed = true;
+    }
+  }
+
+  /**
+   * Nothing cached can be trusted once notifications may have been missed.
+   * Whoever was still subscribing retries on their own.
+   */
+  private synchronized void lost(RedisClient client) {
+    if (closed || client != subscriber) return;
+    subscriber = null;
+    boolean resubscribe = subscribed;
+    subscribed = false;
+    disconnects.incrementAndGet();
+    invalidateAll();
+    if (!resubscribe) return;
+    es.execute(new Runnable() {
+      @Override
+      public void run() {
+        while (!closed) {
+          try {
+            subscribe();
+            return;
+          } catch (RedisException e) {
+            try {
+              Thread.sleep(RETRY);
+            } catch (InterruptedException ie) {
+              return;
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the cached value of the key, otherwise the value from the server
+   */
+  public BulkReply get(Object key) throws RedisException {
+    if (!subscribed) {
+      misses.incrementAndGet();
+      RedisClient client = pool.borrow();
+      try {
+        BulkReply reply = client.get(key);
+        pool.release(client);
+        return reply;
+      } catch (RedisException e) {
+        pool.release(client, e);
+        throw e;
+      }
+    }
+    ByteBuffer cached = ByteBuffer.wrap(bytes(key));
+    BulkReply reply = cache.getIfPresent(cached);
+    if (reply != null) {
+      hits.incrementAndGet();
+      return reply;
+    }
+    if (key instanceof byte[]) {
+      // Kept by the cache so it can't be the caller's
+      cached = ByteBuffer.wrap(((byte[]) key).clone());
+    }
+    Load load = new Load();
+    Load existing = loading.putIfAbsent(cached, load);
+    if (existing != null) {
+      misses.incrementAndGet();
+      return existing.await();
+    }
+    // Stored just before the load that was in the way finished
+    reply = cache.getIfPresent(cached);
+    if (reply != null) {
+      loading.remove(cached, load);
+      load.set(reply);
+      hits.incrementAndGet();
+      return reply;
+    }
+    misses.incrementAndGet();
+    RedisClient client = pool.borrow();
+    try {
+      reply = client.get(key);
+      pool.release(client);
+    } catch (RedisException e) {
+      pool.release(client, e);
+      loading.remove(cached, load);
+      load.setException(e);
+      throw e;
+    }
+    // An invalidation is either seen by the load before it is taken out or
+    // finds the value already cached
+    cache.put(cached, reply);
+    loading.remove(cached, load);
+    if (load.stale) {
+      cache.invalidate(cached);
+    }
+    load.set(reply);
+    return reply;
+  }
+
+  /**
+   * Drop the cached value of the key.
+   */
+  public void invalidate(Object key) {
+    invalidate(ByteBuffer.wrap(bytes(key)));
+  }
+
+  private void invalidate(ByteBuffer key) {
+    Load load = loading.get(key);
+    if (load != null) {
+      // Its value may be from before the change
+      load.stale = true;
+    }
+    if (cache.asMap().remove(key) != null) {
+      invalidations.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drop every cached value.
+   */
+  public void invalidateAll() {
+    for (Load load : loading.values()) {
+      load.stale = true;
+    }
+    cache.invalidateAll();
+  }
+
+  /**
+   * Stop listening for notifications and drop the cache. The pool is left
+   * open.
+   */
+  public void close() {
+    RedisClient client;
+    synchronized (this) {
+      closed = true;
+      subscribed = false;
+      client = subscriber;
+      subscriber = null;
+    }
+    try {
+      if (client != null) {
+        closeQuietly(client);
+      }
+    } finally {
+      es.shutdownNow();
+      cache.invalidateAll();
+    }
+  }
+
+  private static void closeQuietly(RedisClient client) {
+    try {
+      client.close();
+    } catch (IOException e) {
+      // Already broken
+    }
+  }
+
+  /**
+   * @return the reads answered from the cache
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the reads that had to wait for the server, including the ones
+   *         that waited on a read of the same key
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the cached values dropped by a notification or invalidate
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  /**
+   * @return whether the notifications are coming and values are cached
+   */
+  public boolean isSubscribed() {
+    return subscribed;
+  }
+
+  /**
+   * @return the times the connection of the notifications broke
+   */
+  public long getDisconnects() {
+    return disconnects.get();
+  }
+
+  /**
+   * @return the cached values dropped for room or for being too old
+   */
+  public long getEvictions() {
+    return cache.stats().evictionCount();
+  }
+
+  /**
+   * @return the values cached
+   */
+  public long getSize() {
+    return cache.size();
+  }
+
+  /**
+   * A GET on its way, shared by the misses on its key.
+   */
+  private static class Load {
+    private final SettableFuture<BulkReply> reply = SettableFuture.create();
+    volatile boolean stale;
+
+    void set(BulkReply value) {
+      reply.set(value);
+    }
+
+    void setException(Throwable throwable) {
+      reply.setException(throwable);
+    }
+
+    BulkReply await() throws RedisException {
+      try {
+        return reply.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RedisException("Interrupted", e);
+      } catch (ExecutionException e) {
+        throw (RedisException) e.getCause();
+      }
+    }
+  }
+
+  private static byte[] bytes(Object key) {
+    if (key instanceof byte[]) {
+      return (byte[]) key;
+    }
+    return key.toString().getBytes(Charsets.UTF_8);
+  }
+}
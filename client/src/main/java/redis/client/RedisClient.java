@@ -1,5 +1,6 @@
 package redis.client;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -32,6 +33,14 @@ public class RedisClient extends RedisClientBase {
     super(host, port, db, passwd, es);
   }
 
+  public RedisClient(File unixSocket) throws IOException {
+    this(unixSocket, 0, null, Executors.newSingleThreadExecutor());
+  }
+
+  public RedisClient(File unixSocket, int db, String passwd, ExecutorService es) throws IOException {
+    super(unixSocket, db, passwd, es);
+  }
+
   public Pipeline pipeline() {
     return pipeline;
   }
@@ -1,24 +1,36 @@
 package redis.client;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Function;
 import com.google.common.primitives.SignedBytes;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
-import com.google.common.util.concurrent.SettableFuture;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
 import redis.Command;
 import redis.RedisProtocol;
+import redis.ReplyVisitor;
 import redis.reply.*;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -45,20 +57,35 @@ public class RedisClientBase {
   // Needed for reconnection
   private final String host;
   private final int port;
+  private final File unixSocket;
 	private int db = 0;
 	private String passwd = null;
+  // Asked for with HELLO, again after reconnecting
+  private int protocol = 2;
 
-  // Single threaded pipelining
+  // Runs the reader
   private ListeningExecutorService es;
-  protected RedisProtocol redisProtocol;
+  protected volatile RedisProtocol redisProtocol;
   private static final Pattern versionMatcher = Pattern.compile(
           "([0-9]+)\\.([0-9]+)(\\.([0-9]+))?");
   protected AtomicInteger pipelined = new AtomicInteger(0);
   protected int version = 9999999;
 
   protected RedisClientBase(String host, int port, int db, String passwd, ExecutorService executorService) throws RedisException {
+    this(host, port, null, db, passwd, executorService);
+  }
+
+  /**
+   * Connect through the Unix domain socket of a server on the same host.
+   */
+  protected RedisClientBase(File unixSocket, int db, String passwd, ExecutorService executorService) throws RedisException {
+    this(null, 0, unixSocket, db, passwd, executorService);
+  }
+
+  private RedisClientBase(String host, int port, File unixSocket, int db, String passwd, ExecutorService executorService) throws RedisException {
     this.host = host;
     this.port = port;
+    this.unixSocket = unixSocket;
     this.db = db;
     this.passwd = passwd;
     es = MoreExecutors.listeningDecorator(executorService);
@@ -67,15 +94,37 @@ public class RedisClientBase {
 
   private boolean connect() throws RedisException {
     try {
+      if (closed) {
+        throw new RedisException("Client is closed");
+      }
       if (subscribed || tx) {
         return false;
       }
-      redisProtocol = new RedisProtocol(new Socket(host, port));
+      if (redisProtocol != null) {
+        try {
+          // Replies still expected from it fail
+          redisProtocol.close();
+        } catch (IOException e) {
+          // Already broken
+        }
+      }
+      Socket socket;
+      if (unixSocket == null) {
+        socket = new Socket(host, port);
+      } else {
+        socket = UnixSocketChannel.open(new UnixSocketAddress(unixSocket)).socket();
+      }
+      redisProtocol = new RedisProtocol(socket);
+      if (batching >= 0) {
+        redisProtocol.setBatching(batching, TimeUnit.NANOSECONDS);
+      }
       parseInfo();
       if (passwd != null)
       	auth(passwd);
       if (db != 0)
       	select(db);
+      if (protocol != 2)
+        negotiate();
       return true;
     } catch (IOException e) {
       throw new RedisException("Could not connect", e);
@@ -136,59 +185,72 @@ public class RedisClientBase {
     return version;
   }
 
-  private Queue<SettableFuture<Reply>> txReplies = new ConcurrentLinkedQueue<SettableFuture<Reply>>();
-
   public synchronized ListenableFuture<? extends Reply> pipeline(String name, Command command) throws RedisException {
+    return send(name, command, tx ? QUEUEING : REPLY);
+  }
+
+  // What the reader does with a reply besides completing its future
+  private static final int REPLY = 0;
+  private static final int QUEUEING = 1;
+  private static final int EXEC_REPLIES = 2;
+  private static final int DISCARD_REPLIES = 3;
+
+  // Commands waiting for their reply in the order they were sent, linked
+  // through the futures themselves
+  private final ReentrantLock queueLock = new ReentrantLock();
+  private Pending head;
+  private Pending tail;
+  private boolean reading;
+
+  // Queued in a transaction, only touched by the reader
+  private final Queue<Pending> txReplies = new ArrayDeque<Pending>();
+
+  /**
+   * Called with the client locked.
+   */
+  private Pending send(String name, Command command, int kind) throws RedisException {
     if (subscribed) {
       throw new RedisException("You are subscribed and cannot create a pipeline");
     }
+    RedisProtocol protocol = redisProtocol;
     try {
-      redisProtocol.sendAsync(command);
+      protocol.sendAsync(command);
     } catch (IOException e) {
       connect();
       throw new RedisException("Failed to execute: " + name, e);
     }
     pipelined.incrementAndGet();
-    if (tx) {
-      final SettableFuture<Reply> set = SettableFuture.create();
-      es.submit(new Runnable() {
-        @Override
-        public void run() {
-          try {
-            Reply reply = redisProtocol.receiveAsync();
-            if (reply instanceof ErrorReply) {
-              set.setException(new RedisException(((ErrorReply) reply).data()));
-            } else if (reply instanceof StatusReply) {
-              if ("QUEUED".equals(((StatusReply) reply).data())) {
-                txReplies.offer(set);
-              }
-            } else {
-              set.set(reply);
-            }
-          } catch (IOException e) {
-            throw new RedisException("Failed to receive queueing result");
-          } finally {
-            pipelined.decrementAndGet();
-          }
-        }
-      });
-      return set;
-    } else {
-      return es.submit(new Callable<Reply>() {
-        @Override
-        public Reply call() throws Exception {
-          try {
-            Reply reply = redisProtocol.receiveAsync();
-            if (reply instanceof ErrorReply) {
-              throw new RedisException(((ErrorReply) reply).data());
-            }
-            return reply;
-          } finally {
-            pipelined.decrementAndGet();
-          }
-        }
-      });
+    Pending pending = new Pending(protocol, kind);
+    boolean start = false;
+    queueLock.lock();
+    try {
+      if (tail == null) {
+        head = pending;
+      } else {
+        tail.next = pending;
+      }
+      tail = pending;
+      start = wakeReader();
+    } finally {
+      queueLock.unlock();
+    }
+    if (start) {
+      es.execute(new Reader());
+    }
+    return pending;
+  }
+
+  /**
+   * Called with the queue locked.
+   *
+   * @return whether a reader has to be started
+   */
+  private boolean wakeReader() {
+    if (!reading) {
+      reading = true;
+      return true;
     }
+    return false;
   }
 
   private boolean retrying = false;
@@ -203,7 +265,7 @@ public class RedisClientBase {
     try {
       if (pipelined.get() == 0) {
         redisProtocol.sendAsync(command);
-        Reply reply = redisProtocol.receiveAsync();
+        Reply reply = redisProtocol.receive();
         if (reply instanceof ErrorReply) {
           throw new RedisException(((ErrorReply) reply).data());
         }
@@ -214,7 +276,11 @@ public class RedisClientBase {
     } catch (IOException e) {
       if (!retrying && connect()) {
         retrying = true;
-        execute(name, command);
+        try {
+          return execute(name, command);
+        } finally {
+          retrying = false;
+        }
       }
       throw new RedisException("I/O Failure: " + name, e);
     } catch (InterruptedException e) {
@@ -224,11 +290,215 @@ public class RedisClientBase {
     }
   }
 
+  /**
+   * Execute a command and stream its reply to the visitor as it comes off
+   * the socket, so a huge multi-bulk reply is never held in memory. Waits
+   * for the replies already pipelined. An error reply to the command itself
+   * is thrown rather than visited.
+   */
+  public synchronized void execute(String name, Command command, ReplyVisitor visitor) throws RedisException {
+    checkDirect(name);
+    ErrorCheck check = new ErrorCheck(visitor);
+    try {
+      redisProtocol.sendAsync(command);
+      redisProtocol.receive(check);
+    } catch (IOException e) {
+      // Part of the reply may have been visited so it isn't retried
+      connect();
+      throw new RedisException("I/O Failure: " + name, e);
+    }
+    if (check.error != null) {
+      throw new RedisException(check.error);
+    }
+  }
+
+  /**
+   * Get a value into the stream as it comes off the socket, a window at a
+   * time, rather than allocating all of it.
+   *
+   * @return the length of the value, -1 if there is none
+   */
+  public synchronized long get(Object key, OutputStream os) throws RedisException {
+    checkDirect("GET");
+    Reply reply;
+    try {
+      redisProtocol.sendAsync(new Command(GET, key));
+      reply = redisProtocol.receive(os);
+    } catch (IOException e) {
+      // Part of the value may have been written so it isn't retried
+      connect();
+      throw new RedisException("I/O Failure: GET", e);
+    }
+    if (reply instanceof ErrorReply) {
+      throw new RedisException(((ErrorReply) reply).data());
+    }
+    return ((IntegerReply) reply).data();
+  }
+
+  /**
+   * @see #get(Object, OutputStream)
+   */
+  public long get(Object key, WritableByteChannel channel) throws RedisException {
+    return get(key, Channels.newOutputStream(channel));
+  }
+
+  /**
+   * Set a value copied from the stream to the socket as it is read.
+   *
+   * @param length exactly what the stream holds
+   */
+  public synchronized StatusReply set(Object key, InputStream value, long length) throws RedisException {
+    return (StatusReply) executeStreamed("SET", new Command("SET", key, new Command.Streamed(value, length)));
+  }
+
+  /**
+   * Append a value copied from the stream to the socket as it is read.
+   *
+   * @param length exactly what the stream holds
+   */
+  public synchronized IntegerReply append(Object key, InputStream value, long length) throws RedisException {
+    return (IntegerReply) executeStreamed("APPEND", new Command("APPEND", key, new Command.Streamed(value, length)));
+  }
+
+  /**
+   * Called with the client locked. The stream can only be read once so a
+   * failure isn't retried.
+   */
+  private Reply executeStreamed(String name, Command command) throws RedisException {
+    checkDirect(name);
+    Reply reply;
+    try {
+      redisProtocol.sendAsync(command);
+      reply = redisProtocol.receive();
+    } catch (IOException e) {
+      // The server may have a partial command
+      connect();
+      throw new RedisException("I/O Failure: " + name, e);
+    }
+    if (reply instanceof ErrorReply) {
+      throw new RedisException(((ErrorReply) reply).data());
+    }
+    return reply;
+  }
+
+  /**
+   * Called with the client locked before reading a reply directly, which
+   * has to wait for the replies already pipelined.
+   */
+  private void checkDirect(String name) throws RedisException {
+    if (tx) {
+      throw new RedisException("Use the pipeline API when using transactions");
+    }
+    if (subscribed) {
+      throw new RedisException("You are subscribed and must use the original pipeline to execute commands");
+    }
+    Pending last;
+    queueLock.lock();
+    try {
+      last = tail;
+    } finally {
+      queueLock.unlock();
+    }
+    if (last != null) {
+      try {
+        last.get();
+      } catch (InterruptedException e) {
+        throw new RedisException("Interrupted: " + name, e);
+      } catch (ExecutionException e) {
+        // Its own caller sees the failure
+      }
+    }
+  }
+
+  /**
+   * Keeps an error reply to the command from the visitor.
+   */
+  private static class ErrorCheck implements ReplyVisitor {
+    private final ReplyVisitor visitor;
+    private int depth;
+    String error;
+
+    ErrorCheck(ReplyVisitor visitor) {
+      this.visitor = visitor;
+    }
+
+    @Override
+    public void status(String status) throws IOException {
+      visitor.status(status);
+    }
+
+    @Override
+    public void error(String error) throws IOException {
+      if (depth == 0) {
+        this.error = error;
+      } else {
+        visitor.error(error);
+      }
+    }
+
+    @Override
+    public void integer(long integer) throws IOException {
+      visitor.integer(integer);
+    }
+
+    @Override
+    public void bulk(byte[] bytes, int offset, int length) throws IOException {
+      visitor.bulk(bytes, offset, length);
+    }
+
+    @Override
+    public void arrayStart(int size) throws IOException {
+      depth++;
+      visitor.arrayStart(size);
+    }
+
+    @Override
+    public void arrayEnd() throws IOException {
+      depth--;
+      visitor.arrayEnd();
+    }
+  }
+
+  /**
+   * Whether the connection can be handed to another user: not in a
+   * transaction, not subscribed and with no replies outstanding.
+   */
+  synchronized boolean reusable() {
+    return !tx && !subscribed && pipelined.get() == 0;
+  }
+
+  /**
+   * The database selected, which a reconnection selects again.
+   */
+  int db() {
+    return db;
+  }
+
+  private long batching = -1;
+
+  /**
+   * Batch pipelined commands into fewer writes. They are sent once the reply
+   * to one of them is needed or, with a positive delay, at most that long
+   * after the first. A negative delay sends every command as it comes.
+   */
+  public synchronized void setBatching(long delay, TimeUnit unit) throws RedisException {
+    batching = delay < 0 ? -1 : unit.toNanos(delay);
+    try {
+      redisProtocol.setBatching(delay, unit);
+    } catch (IOException e) {
+      connect();
+      throw new RedisException("Failed to flush", e);
+    }
+  }
+
   public RedisProtocol getRedisProtocol() {
     return redisProtocol;
   }
 
+  private volatile boolean closed;
+
   public void close() throws IOException {
+    closed = true;
     redisProtocol.close();
   }
 
@@ -255,74 +525,39 @@ public class RedisClientBase {
   }
 
   public StatusReply discard() {
-    ListenableFuture<StatusReply> discard;
+    ListenableFuture<Reply> discard;
     synchronized (this) {
       if (subscribed) {
         throw new RedisException("You can only issue subscription commands once subscribed");
       }
       if (tx) {
         tx = false;
-        discard = es.submit(new Callable<StatusReply>() {
-          @Override
-          public StatusReply call() {
-            synchronized (RedisClientBase.this) {
-              SettableFuture<Reply> txReply;
-              while ((txReply = txReplies.poll()) != null) {
-                txReply.setException(new RedisException("Discarded"));
-              }
-              return (StatusReply) execute("DISCARD", DISCARD);
-            }
-          }
-        });
+        discard = send("DISCARD", DISCARD, DISCARD_REPLIES);
       } else {
         throw new RedisException("Not in a transaction");
       }
     }
     try {
-      return discard.get();
+      return (StatusReply) discard.get();
     } catch (Exception e) {
       throw new RedisException("Failed to discard the transaction", e);
     }
   }
 
+  private static final Function<Reply, Boolean> EXECUTED = new Function<Reply, Boolean>() {
+    @Override
+    public Boolean apply(Reply reply) {
+      return ((MultiBulkReply) reply).data() != null;
+    }
+  };
+
   public synchronized Future<Boolean> exec() {
     if (subscribed) {
       throw new RedisException("You can only issue subscription commands once subscribed");
     }
     if (tx) {
       tx = false;
-      try {
-        redisProtocol.sendAsync(EXEC);
-        return es.submit(new Callable<Boolean>() {
-          @Override
-          public Boolean call() throws Exception {
-            Reply maybeReply = redisProtocol.receiveAsync();
-            if (maybeReply instanceof ErrorReply) {
-              ErrorReply errorReply = (ErrorReply) maybeReply;
-              throw new RedisException(errorReply.data());
-            }
-            MultiBulkReply execReply = (MultiBulkReply) maybeReply;
-            if (execReply.data() == null) {
-              for (SettableFuture<Reply> txReply : txReplies) {
-                txReply.setException(new RedisException("Transaction failed"));
-              }
-              return false;
-            }
-            for (Reply reply : execReply.data()) {
-              SettableFuture<Reply> poll = txReplies.poll();
-              if (reply instanceof ErrorReply) {
-                poll.setException(new RedisException((String) reply.data()));
-              } else {
-                poll.set(reply);
-              }
-            }
-            return true;
-          }
-        });
-      } catch (IOException e) {
-        connect();
-        throw new RedisException(e);
-      }
+      return Futures.transform(send("EXEC", EXEC, EXEC_REPLIES), EXECUTED);
     } else {
       throw new RedisException("Not in a transaction");
     }
@@ -364,6 +599,7 @@ public class RedisClientBase {
     subscribe();
     try {
       redisProtocol.sendAsync(new Command(SUBSCRIBE, subscriptions));
+      redisProtocol.flush();
     } catch (IOException e) {
       connect();
       throw new RedisException("Failed to subscribe", e);
@@ -379,6 +615,7 @@ public class RedisClientBase {
     subscribe();
     try {
       redisProtocol.sendAsync(new Command(PSUBSCRIBE, subscriptions));
+      redisProtocol.flush();
     } catch (IOException e) {
       connect();
       throw new RedisException("Failed to subscribe", e);
@@ -394,6 +631,7 @@ public class RedisClientBase {
     subscribe();
     try {
       redisProtocol.sendAsync(new Command(UNSUBSCRIBE, subscriptions));
+      redisProtocol.flush();
     } catch (IOException e) {
       connect();
       throw new RedisException("Failed to subscribe", e);
@@ -409,6 +647,7 @@ public class RedisClientBase {
     subscribe();
     try {
       redisProtocol.sendAsync(new Command(PUNSUBSCRIBE, subscriptions));
+      redisProtocol.flush();
     } catch (IOException e) {
       connect();
       throw new RedisException("Failed to subscribe", e);
@@ -418,9 +657,18 @@ public class RedisClientBase {
   private void subscribe() {
     if (!subscribed) {
       subscribed = true;
-      // Start up the listener, only subscription commands
-      // are accepted past this point
-      es.submit(new SubscriptionsDispatcher());
+      // The reader turns into the listener once the replies it is waiting for
+      // have arrived, only subscription commands are accepted past this point
+      boolean start;
+      queueLock.lock();
+      try {
+        start = wakeReader();
+      } finally {
+        queueLock.unlock();
+      }
+      if (start) {
+        es.execute(new Reader());
+      }
     }
   }
 
@@ -436,11 +684,45 @@ public class RedisClientBase {
    */
   public StatusReply auth(Object password0) throws RedisException {
     StatusReply statusReply = (StatusReply) execute(AUTH, new Command(AUTH_BYTES, password0));
+    // Reconnections authenticate with it too
+    passwd = string(password0);
     // Now that we are successful, parse the info
     parseInfo();
     return statusReply;
   }
   
+  /**
+   * Switch the connection to a version of the protocol, which reconnections
+   * ask for again. A server older than Redis 6 answers with an error and the
+   * connection stays on version 2. The typed command methods expect the
+   * replies of version 2, so with version 3 use {@link #execute}.
+   *
+   * @param protocol 2 or 3
+   * @return the properties of the server or the error
+   */
+  public synchronized Reply hello(int protocol) throws RedisException {
+    if (pipelined.get() != 0 || subscribed || tx) {
+      throw new RedisException("HELLO has to be sent before anything is pipelined");
+    }
+    this.protocol = protocol;
+    return negotiate();
+  }
+
+  /**
+   * @return the version of the protocol spoken, 3 once HELLO 3 succeeds
+   */
+  public int getProtocol() {
+    return redisProtocol.getVersion();
+  }
+
+  private Reply negotiate() throws RedisException {
+    try {
+      return redisProtocol.hello(protocol);
+    } catch (IOException e) {
+      throw new RedisException("I/O Failure: HELLO", e);
+    }
+  }
+
   protected static final String SELECT = "SELECT";
   protected static final byte[] SELECT_BYTES = SELECT.getBytes(Charsets.US_ASCII);
   protected static final int SELECT_VERSION = parseVersion("1.0.0");
@@ -454,15 +736,125 @@ public class RedisClientBase {
    */
   public StatusReply select(Object index0) throws RedisException {
     if (version < SELECT_VERSION) throw new RedisException("Server does not support SELECT");
-    return (StatusReply) execute(SELECT, new Command(SELECT_BYTES, index0));
+    StatusReply statusReply = (StatusReply) execute(SELECT, new Command(SELECT_BYTES, index0));
+    db = Integer.parseInt(string(index0));
+    return statusReply;
+  }
+
+  private static String string(Object argument) {
+    return argument instanceof byte[] ? new String((byte[]) argument, Charsets.UTF_8) : argument.toString();
   }
 
-  private class SubscriptionsDispatcher implements Runnable {
+  /**
+   * The future of a command, completed by the reader.
+   */
+  private static class Pending extends AbstractFuture<Reply> {
+    final RedisProtocol protocol;
+    final int kind;
+    Pending next;
+
+    Pending(RedisProtocol protocol, int kind) {
+      this.protocol = protocol;
+      this.kind = kind;
+    }
+
+    void complete(Reply reply) {
+      if (reply instanceof ErrorReply) {
+        setException(new RedisException(((ErrorReply) reply).data()));
+      } else {
+        set(reply);
+      }
+    }
+
+    void fail(Throwable throwable) {
+      setException(throwable);
+    }
+  }
+
+  /**
+   * Reads the replies to pipelined commands as long as any are expected and
+   * then gives its thread back, the next pipelined command starting another.
+   * Once subscribed it dispatches messages instead. Only the
+   * reader and execute without anything pipelined read from the connection,
+   * never at the same time, so the stream isn't locked.
+   */
+  private class Reader implements Runnable {
     @Override
     public void run() {
+      Pending pending;
+      while ((pending = take()) != null) {
+        Reply reply;
+        try {
+          reply = pending.protocol.receive();
+        } catch (IOException e) {
+          // The rest of the replies on a broken connection fail the same way
+          pipelined.decrementAndGet();
+          pending.fail(new RedisException("Failed to receive the reply", e));
+          continue;
+        }
+        pipelined.decrementAndGet();
+        switch (pending.kind) {
+          case QUEUEING:
+            if (reply instanceof StatusReply && "QUEUED".equals(reply.data())) {
+              // Completed by the EXEC reply
+              txReplies.offer(pending);
+              continue;
+            }
+            break;
+          case EXEC_REPLIES:
+            if (reply instanceof MultiBulkReply) {
+              Reply[] replies = ((MultiBulkReply) reply).data();
+              Pending txReply;
+              for (int i = 0; (txReply = txReplies.poll()) != null; i++) {
+                if (replies == null || i >= replies.length) {
+                  txReply.fail(new RedisException("Transaction failed"));
+                } else {
+                  txReply.complete(replies[i]);
+                }
+              }
+            }
+            break;
+          case DISCARD_REPLIES:
+            Pending txReply;
+            while ((txReply = txReplies.poll()) != null) {
+              txReply.fail(new RedisException("Discarded"));
+            }
+            break;
+        }
+        pending.complete(reply);
+      }
+      if (subscribed && !closed) {
+        dispatch();
+      }
+    }
+
+    /**
+     * @return the next command or null when the reader should stop
+     */
+    private Pending take() {
+      queueLock.lock();
+      try {
+        if (head == null) {
+          // Parking here would hold on to a thread of a shared executor
+          reading = false;
+          return null;
+        }
+        Pending pending = head;
+        head = pending.next;
+        if (head == null) {
+          tail = null;
+        }
+        pending.next = null;
+        return pending;
+      } finally {
+        queueLock.unlock();
+      }
+    }
+
+    private void dispatch() {
       try {
         while (true) {
-          MultiBulkReply reply = (MultiBulkReply) redisProtocol.receiveAsync();
+          MultiBulkReply reply = (MultiBulkReply) redisProtocol.receive();
           Reply[] data = reply.data();
           if (data.length != 3 && data.length != 4) {
             throw new RedisException("Invalid subscription messsage");
@@ -508,7 +900,13 @@ public class RedisClientBase {
           }
         }
       } catch (IOException e) {
-        // Ignore, probably closed
+        if (!closed) {
+          for (ReplyListener replyListener : replyListeners) {
+            if (replyListener instanceof MessageListener) {
+              ((MessageListener) replyListener).lost(e);
+            }
+          }
+        }
       }
     }
   }
@@ -0,0 +1,651 @@
+package redis.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of blocking clients so that threads don't serialize on the single
+ * connection of a shared RedisClient.
+ * <p/>
+ * Every connection is opened with the pool's database and password and gets
+ * them back when it reconnects. A client is released to the pool in the
+ * database it was borrowed in, and one that is left in a transaction,
+ * subscribed or with replies outstanding is closed instead. A client that
+ * failed should be invalidated rather than released.
+ * <p/>
+ * Idle connections are handed out most recently used first so that the
+ * surplus ages out when the idle test closes connections idle for longer than
+ * the idle timeout.
+ */
+public class RedisClientPool {
+  // Needed for every new connection
+  private final String host;
+  private final int port;
+  private final File unixSocket;
+  private final int db;
+  private final String passwd;
+
+  private volatile int maxTotal = 8;
+  private volatile int maxIdle = 8;
+  private volatile int minIdle = 0;
+  private volatile long borrowTimeout = -1;
+  private volatile long idleTimeout = TimeUnit.MINUTES.toNanos(5);
+  private volatile boolean testOnBorrow;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  // Most recently used first
+  private final Deque<Pooled> idle = new ArrayDeque<Pooled>();
+  private final Map<RedisClient, Pooled> active = new IdentityHashMap<RedisClient, Pooled>();
+  // Idle, active and being opened or tested
+  private int total;
+  // Idle but taken out by the idle test
+  private int testing;
+  private boolean closed;
+
+  private ScheduledExecutorService idleTester;
+  private ScheduledFuture<?> idleTest;
+
+  // Metrics, guarded by the lock
+  private final long started = System.nanoTime();
+  private long borrows;
+  private long timeouts;
+  private long created;
+  private long destroyed;
+  private long waitTime;
+  private long maxWaitTime;
+  private long activeTime;
+  private long lastChange = started;
+
+  public RedisClientPool(String host, int port) {
+    this(host, port, 0, null);
+  }
+
+  public RedisClientPool(String host, int port, int db, String passwd) {
+    this(host, port, null, db, passwd);
+  }
+
+  public RedisClientPool(File unixSocket, int db, String passwd) {
+    this(null, 0, unixSocket, db, passwd);
+  }
+
+  private RedisClientPool(String host, int port, File unixSocket, int db, String passwd) {
+    this.host = host;
+    this.port = port;
+    this.unixSocket = unixSocket;
+    this.db = db;
+    this.passwd = passwd;
+  }
+
+  /**
+   * The most connections open at once, idle or borrowed.
+   */
+  public RedisClientPool maxTotal(int maxTotal) {
+    this.maxTotal = maxTotal;
+    return this;
+  }
+
+  /**
+   * The most idle connections kept, the rest are closed when released.
+   */
+  public RedisClientPool maxIdle(int maxIdle) {
+    this.maxIdle = maxIdle;
+    return this;
+  }
+
+  /**
+   * The idle connections kept open even past the idle timeout. Opens them now
+   * and the idle test replaces those that are lost.
+   */
+  public RedisClientPool minIdle(int minIdle) throws RedisException {
+    this.minIdle = minIdle;
+    fill();
+    return this;
+  }
+
+  /**
+   * How long borrow waits for a connection when all are in use, negative to
+   * wait as long as it takes.
+   */
+  public RedisClientPool borrowTimeout(long timeout, TimeUnit unit) {
+    this.borrowTimeout = timeout < 0 ? -1 : unit.toNanos(timeout);
+    return this;
+  }
+
+  /**
+   * PING idle connections before handing them out.
+   */
+  public RedisClientPool testOnBorrow(boolean testOnBorrow) {
+    this.testOnBorrow = testOnBorrow;
+    return this;
+  }
+
+  /**
+   * How long a connection beyond the minimum may be idle before the idle test
+   * closes it.
+   */
+  public RedisClientPool idleTimeout(long timeout, TimeUnit unit) {
+    this.idleTimeout = unit.toNanos(timeout);
+    return this;
+  }
+
+  /**
+   * PING the idle connections on a background thread every period, closing
+   * the ones that fail or have timed out and opening new ones up to the
+   * minimum. Zero stops the test.
+   */
+  public RedisClientPool idleTest(long period, TimeUnit unit) {
+    lock.lock();
+    try {
+      if (idleTest != null) {
+        idleTest.cancel(false);
+        idleTest = null;
+      }
+      if (period > 0 && !closed) {
+        if (idleTester == null) {
+          idleTester = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "redis-pool-idle-test");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+        }
+        idleTest = idleTester.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              testIdle();
+            } catch (RuntimeException e) {
+              // Try again next period
+            }
+          }
+        }, period, period, unit);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+  /**
+   * Take a connection, opening one if there is room or waiting for one to be
+   * released.
+   *
+   * @throws RedisException if the borrow timeout passes, the pool is closed or
+   *                        a connection couldn't be opened
+   */
+  public RedisClient borrow() throws RedisException {
+    long start = System.nanoTime();
+    while (true) {
+      Pooled pooled;
+      lock.lock();
+      try {
+        pooled = take(start);
+      } finally {
+        lock.unlock();
+      }
+      if (pooled == null) {
+        // A slot was reserved for a new connection
+        try {
+          pooled = open();
+        } catch (RedisException e) {
+          discarded(false);
+          throw e;
+        }
+      } else if (testOnBorrow && !valid(pooled)) {
+        destroy(pooled);
+        continue;
+      }
+      lock.lock();
+      try {
+        if (!closed) {
+          long wait = System.nanoTime() - start;
+          borrows++;
+          waitTime += wait;
+          maxWaitTime = Math.max(maxWaitTime, wait);
+          activeChanged();
+          active.put(pooled.client, pooled);
+          return pooled.client;
+        }
+      } finally {
+        lock.unlock();
+      }
+      destroy(pooled);
+      throw new RedisException("Pool is closed");
+    }
+  }
+
+  /**
+   * Give back a borrowed connection.
+   */
+  public void release(RedisClient client) throws RedisException {
+    Pooled pooled = remove(client);
+    if (!client.reusable()) {
+      destroy(pooled);
+      return;
+    }
+    if (client.db() != db) {
+      try {
+        client.select(db);
+      } catch (RedisException e) {
+        destroy(pooled);
+        return;
+      }
+    }
+    lock.lock();
+    try {
+      if (!closed && idle.size() < maxIdle) {
+        pooled.released = System.nanoTime();
+        idle.offerFirst(pooled);
+        available.signal();
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    destroy(pooled);
+  }
+
+  /**
+   * Give back a borrowed connection that failed. It is closed and the next
+   * borrow opens a new one.
+   */
+  public void invalidate(RedisClient client) throws RedisException {
+    destroy(remove(client));
+  }
+
+  /**
+   * Give back a connection after a command on it failed. An error reply
+   * leaves it usable, anything else doesn't.
+   */
+  void release(RedisClient client, RedisException failure) throws RedisException {
+    if (failure.getCause() == null) {
+      release(client);
+    } else {
+      invalidate(client);
+    }
+  }
+
+  /**
+   * Close the idle connections and refuse to lend any more. Borrowed
+   * connections are closed as they are released.
+   */
+  public void close() {
+    List<Pooled> closing;
+    lock.lock();
+    try {
+      closed = true;
+      if (idleTester != null) {
+        idleTester.shutdownNow();
+      }
+      closing = new ArrayList<Pooled>(idle);
+      idle.clear();
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    for (Pooled pooled : closing) {
+      destroy(pooled);
+    }
+  }
+
+  /**
+   * @return connections lent out
+   */
+  public int getActive() {
+    lock.lock();
+    try {
+      return active.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return connections waiting to be borrowed
+   */
+  public int getIdle() {
+    lock.lock();
+    try {
+      return idle.size() + testing;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getBorrows() {
+    lock.lock();
+    try {
+      return borrows;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return borrows that gave up after the borrow timeout
+   */
+  public long getTimeouts() {
+    lock.lock();
+    try {
+      return timeouts;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return connections opened and closed over the life of the pool
+   */
+  public long getCreated() {
+    lock.lock();
+    try {
+      return created;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getDestroyed() {
+    lock.lock();
+    try {
+      return destroyed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return average time a successful borrow waited, including opening and
+   *         testing the connection
+   */
+  public long getAverageWait(TimeUnit unit) {
+    lock.lock();
+    try {
+      return borrows == 0 ? 0 : unit.convert(waitTime / borrows, TimeUnit.NANOSECONDS);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getMaxWait(TimeUnit unit) {
+    lock.lock();
+    try {
+      return unit.convert(maxWaitTime, TimeUnit.NANOSECONDS);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the fraction of maxTotal lent out, averaged over the life of the
+   *         pool
+   */
+  public double getUtilization() {
+    lock.lock();
+    try {
+      activeChanged();
+      long elapsed = lastChange - started;
+      return elapsed == 0 ? 0 : (double) activeTime / elapsed / maxTotal;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Where the connections go, which also names a shard.
+   */
+  @Override
+  public String toString() {
+    String address = unixSocket == null ? host + ":" + port : unixSocket.getPath();
+    return db == 0 ? address : address + "/" + db;
+  }
+
+  /**
+   * Called with the lock held.
+   *
+   * @return an idle connection or null if a slot was reserved to open one
+   */
+  private Pooled take(long start) throws RedisException {
+    while (true) {
+      if (closed) {
+        throw new RedisException("Pool is closed");
+      }
+      Pooled pooled = idle.pollFirst();
+      if (pooled != null) {
+        return pooled;
+      }
+      if (total < maxTotal) {
+        total++;
+        return null;
+      }
+      try {
+        if (borrowTimeout < 0) {
+          available.await();
+        } else {
+          long remaining = borrowTimeout - (System.nanoTime() - start);
+          if (remaining <= 0) {
+            timeouts++;
+            throw new RedisException("Timed out waiting for a connection");
+          }
+          available.awaitNanos(remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RedisException("Interrupted waiting for a connection", e);
+      }
+    }
+  }
+
+  private Pooled remove(RedisClient client) throws RedisException {
+    lock.lock();
+    try {
+      Pooled pooled = active.remove(client);
+      if (pooled == null) {
+        throw new RedisException("Not borrowed from this pool");
+      }
+      activeChanged();
+      return pooled;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Open a connection in the slot already counted in total.
+   */
+  private Pooled open() throws RedisException {
+    // The pipelining executor of a client has to be its own to keep replies
+    // in order
+    ExecutorService es = Executors.newSingleThreadExecutor();
+    try {
+      RedisClient client = connect(es);
+      lock.lock();
+      try {
+        created++;
+      } finally {
+        lock.unlock();
+      }
+      return new Pooled(client, es);
+    } catch (RedisException e) {
+      es.shutdownNow();
+      throw e;
+    }
+  }
+
+  /**
+   * Open a connection with the database and password of the pool that the
+   * pool doesn't keep track of.
+   */
+  RedisClient connect(ExecutorService es) throws RedisException {
+    try {
+      if (unixSocket == null) {
+        return new RedisClient(host, port, db, passwd, es);
+      } else {
+        return new RedisClient(unixSocket, db, passwd, es);
+      }
+    } catch (IOException e) {
+      throw new RedisException("Could not connect", e);
+    }
+  }
+
+  private boolean valid(Pooled pooled) {
+    try {
+      return "PONG".equals(pooled.client.ping().data());
+    } catch (RedisException e) {
+      return false;
+    }
+  }
+
+  private void destroy(Pooled pooled) {
+    pooled.close();
+    discarded(true);
+  }
+
+  private void discarded(boolean opened) {
+    lock.lock();
+    try {
+      total--;
+      if (opened) {
+        destroyed++;
+      }
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void activeChanged() {
+    long now = System.nanoTime();
+    activeTime += active.size() * (now - lastChange);
+    lastChange = now;
+  }
+
+  /**
+   * Test each connection that is idle now, oldest first, then top up to the
+   * minimum.
+   */
+  private void testIdle() throws RedisException {
+    List<Pooled> kept = new ArrayList<Pooled>();
+    int count;
+    lock.lock();
+    try {
+      count = idle.size();
+    } finally {
+      lock.unlock();
+    }
+    for (int i = 0; i < count; i++) {
+      Pooled pooled;
+      boolean expired;
+      lock.lock();
+      try {
+        pooled = idle.pollLast();
+        if (pooled == null) break;
+        testing++;
+        expired = idle.size() + kept.size() >= minIdle && System.nanoTime() - pooled.released > idleTimeout;
+      } finally {
+        lock.unlock();
+      }
+      if (expired || !valid(pooled)) {
+        lock.lock();
+        try {
+          testing--;
+        } finally {
+          lock.unlock();
+        }
+        destroy(pooled);
+      } else {
+        kept.add(pooled);
+      }
+    }
+    List<Pooled> surplus = new ArrayList<Pooled>();
+    lock.lock();
+    try {
+      testing -= kept.size();
+      // Back behind anything released meanwhile, oldest last
+      for (int i = kept.size() - 1; i >= 0; i--) {
+        if (closed || idle.size() >= maxIdle) {
+          surplus.add(kept.get(i));
+        } else {
+          idle.offerLast(kept.get(i));
+          available.signal();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    for (Pooled pooled : surplus) {
+      destroy(pooled);
+    }
+    fill();
+  }
+
+  /**
+   * Open connections until minIdle are idle or maxTotal are open.
+   */
+  private void fill() throws RedisException {
+    while (true) {
+      lock.lock();
+      try {
+        if (closed || idle.size() >= minIdle || total >= maxTotal) {
+          return;
+        }
+        total++;
+      } finally {
+        lock.unlock();
+      }
+      Pooled pooled;
+      try {
+        pooled = open();
+      } catch (RedisException e) {
+        discarded(false);
+        throw e;
+      }
+      lock.lock();
+      try {
+        pooled.released = System.nanoTime();
+        idle.offerLast(pooled);
+        available.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private static class Pooled {
+    final RedisClient client;
+    final ExecutorService es;
+    long released = System.nanoTime();
+
+    Pooled(RedisClient client, ExecutorService es) {
+      this.client = client;
+      this.es = es;
+    }
+
+    void close() {
+      try {
+        client.close();
+      } catch (IOException e) {
+        // Already gone
+      } finally {
+        es.shutdownNow();
+      }
+    }
+  }
+}
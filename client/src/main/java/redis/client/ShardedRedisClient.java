@@ -0,0 +1,315 @@
+package redis.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ListenableFuture;
+import redis.reply.BulkReply;
+import redis.reply.IntegerReply;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+import redis.reply.StatusReply;
+import redis.util.CRC16;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Spreads keys over several servers, each behind its own pool, on a
+ * ketama consistent hash ring. Every shard has 160 points on the ring so
+ * adding or removing one of N moves only about 1/N of the keys. Only the
+ * part of a key between the first { and the } after it is hashed if it isn't
+ * empty, so keys sharing a {hashtag} share a shard.
+ * <p/>
+ * Multi-key commands are split by shard, sent to all of them before any
+ * reply is waited for and merged back in the order of the keys. Anything
+ * else can borrow from the pool of a key's shard.
+ */
+public class ShardedRedisClient {
+  private static final int POINTS = 160;
+
+  private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
+  // Replaced rather than changed so lookups don't lock
+  private volatile Map<String, RedisClientPool> shards = new LinkedHashMap<String, RedisClientPool>();
+  private volatile TreeMap<Long, RedisClientPool> ring = new TreeMap<Long, RedisClientPool>();
+
+  /**
+   * @param pools named on the ring by where they connect
+   */
+  public ShardedRedisClient(RedisClientPool... pools) {
+    for (RedisClientPool pool : pools) {
+      addShard(pool.toString(), pool);
+    }
+  }
+
+  /**
+   * @param name where the shard sits on the ring, which has to stay the same
+   *             for its keys to stay on it
+   */
+  public synchronized ShardedRedisClient addShard(String name, RedisClientPool pool) {
+    Map<String, RedisClientPool> shards = new LinkedHashMap<String, RedisClientPool>(this.shards);
+    shards.put(name, pool);
+    setShards(shards);
+    return this;
+  }
+
+  /**
+   * Take the shard off the ring, its keys going to the others. The pool is
+   * left open.
+   */
+  public synchronized RedisClientPool removeShard(String name) {
+    Map<String, RedisClientPool> shards = new LinkedHashMap<String, RedisClientPool>(this.shards);
+    RedisClientPool pool = shards.remove(name);
+    setShards(shards);
+    return pool;
+  }
+
+  private void setShards(Map<String, RedisClientPool> shards) {
+    TreeMap<Long, RedisClientPool> ring = new TreeMap<Long, RedisClientPool>();
+    for (Map.Entry<String, RedisClientPool> entry : shards.entrySet()) {
+      // Four points from each digest
+      for (int i = 0; i < POINTS / 4; i++) {
+        byte[] digest = md5((entry.getKey() + "-" + i).getBytes(Charsets.UTF_8));
+        for (int h = 0; h < 4; h++) {
+          ring.put(point(digest, h), entry.getValue());
+        }
+      }
+    }
+    this.shards = shards;
+    this.ring = ring;
+  }
+
+  /**
+   * @return the pool of the shard that holds the key
+   */
+  public RedisClientPool shard(Object key) {
+    TreeMap<Long, RedisClientPool> ring = this.ring;
+    if (ring.isEmpty()) {
+      throw new IllegalStateException("No shards");
+    }
+    Map.Entry<Long, RedisClientPool> entry = ring.ceilingEntry(point(md5(CRC16.hashed(bytes(key))), 0));
+    // Past the last point wraps around
+    return (entry == null ? ring.firstEntry() : entry).getValue();
+  }
+
+  /**
+   * Close the pools of all the shards.
+   */
+  public void close() {
+    for (RedisClientPool pool : shards.values()) {
+      pool.close();
+    }
+  }
+
+  public BulkReply get(Object key) throws RedisException {
+    RedisClientPool pool = shard(key);
+    RedisClient client = pool.borrow();
+    try {
+      BulkReply reply = client.get(key);
+      pool.release(client);
+      return reply;
+    } catch (RedisException e) {
+      pool.release(client, e);
+      throw e;
+    }
+  }
+
+  public StatusReply set(Object key, Object value) throws RedisException {
+    RedisClientPool pool = shard(key);
+    RedisClient client = pool.borrow();
+    try {
+      StatusReply reply = client.set(key, value);
+      pool.release(client);
+      return reply;
+    } catch (RedisException e) {
+      pool.release(client, e);
+      throw e;
+    }
+  }
+
+  /**
+   * @return the values in the order of the keys
+   */
+  public MultiBulkReply mget(Object... keys) throws RedisException {
+    Collection<Group> groups = group(keys, 1);
+    try {
+      for (Group group : groups) {
+        group.reply = group.client.pipeline().mget(group.arguments.toArray());
+      }
+      Reply[] replies = new Reply[keys.length];
+      for (Group group : groups) {
+        Reply[] values = ((MultiBulkReply) group.get()).data();
+        for (int i = 0; i < values.length; i++) {
+          replies[group.indexes.get(i)] = values[i];
+        }
+      }
+      return new MultiBulkReply(replies);
+    } finally {
+      release(groups);
+    }
+  }
+
+  /**
+   * Not atomic across shards.
+   */
+  public StatusReply mset(Object... keysAndValues) throws RedisException {
+    if (keysAndValues.length % 2 != 0) {
+      throw new IllegalArgumentException("Keys and values have to be paired");
+    }
+    Collection<Group> groups = group(keysAndValues, 2);
+    try {
+      for (Group group : groups) {
+        group.reply = group.client.pipeline().mset(group.arguments.toArray());
+      }
+      StatusReply reply = null;
+      for (Group group : groups) {
+        reply = (StatusReply) group.get();
+      }
+      return reply;
+    } finally {
+      release(groups);
+    }
+  }
+
+  /**
+   * @return the keys deleted across all the shards
+   */
+  public IntegerReply del(Object... keys) throws RedisException {
+    Collection<Group> groups = group(keys, 1);
+    try {
+      for (Group group : groups) {
+        group.reply = group.client.pipeline().del(group.arguments.toArray());
+      }
+      long deleted = 0;
+      for (Group group : groups) {
+        deleted += ((IntegerReply) group.get()).data();
+      }
+      return new IntegerReply(deleted);
+    } finally {
+      release(groups);
+    }
+  }
+
+  /**
+   * Split the arguments by the shard of the key that starts each stride and
+   * borrow a client for each shard. Shards are borrowed from in the order
+   * they were added so that concurrent calls can't deadlock on full pools.
+   */
+  private Collection<Group> group(Object[] arguments, int stride) throws RedisException {
+    Map<RedisClientPool, Group> byShard = new LinkedHashMap<RedisClientPool, Group>();
+    for (RedisClientPool pool : shards.values()) {
+      byShard.put(pool, null);
+    }
+    for (int i = 0; i < arguments.length; i += stride) {
+      RedisClientPool pool = shard(arguments[i]);
+      Group group = byShard.get(pool);
+      if (group == null) {
+        group = new Group(pool);
+        byShard.put(pool, group);
+      }
+      group.indexes.add(i / stride);
+      for (int j = i; j < i + stride; j++) {
+        group.arguments.add(arguments[j]);
+      }
+    }
+    List<Group> groups = new ArrayList<Group>();
+    for (Group group : byShard.values()) {
+      if (group != null) {
+        groups.add(group);
+      }
+    }
+    try {
+      for (Group group : groups) {
+        group.client = group.pool.borrow();
+      }
+    } catch (RedisException e) {
+      release(groups);
+      throw e;
+    }
+    return groups;
+  }
+
+  private void release(Collection<Group> groups) throws RedisException {
+    for (Group group : groups) {
+      if (group.client != null) {
+        if (group.failed) {
+          group.pool.invalidate(group.client);
+        } else {
+          group.pool.release(group.client);
+        }
+      }
+    }
+  }
+
+  /**
+   * The part of a command that goes to one shard.
+   */
+  private static class Group {
+    final RedisClientPool pool;
+    // Of the keys in the whole command
+    final List<Integer> indexes = new ArrayList<Integer>();
+    final List<Object> arguments = new ArrayList<Object>();
+    RedisClient client;
+    ListenableFuture<? extends Reply> reply;
+    boolean failed;
+
+    Group(RedisClientPool pool) {
+      this.pool = pool;
+    }
+
+    Reply get() throws RedisException {
+      try {
+        return reply.get();
+      } catch (InterruptedException e) {
+        failed = true;
+        throw new RedisException("Interrupted", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RedisException && cause.getCause() == null) {
+          // An error reply leaves the connection usable
+          throw (RedisException) cause;
+        }
+        failed = true;
+        throw new RedisException("Failed on " + pool, cause);
+      }
+    }
+  }
+
+  private static byte[] bytes(Object key) {
+    if (key instanceof byte[]) {
+      return (byte[]) key;
+    }
+    return key.toString().getBytes(Charsets.UTF_8);
+  }
+
+  private static byte[] md5(byte[] bytes) {
+    MessageDigest md5 = MD5.get();
+    md5.reset();
+    return md5.digest(bytes);
+  }
+
+  /**
+   * The ketama point made of the four digest bytes from 4 * h, little endian.
+   */
+  private static long point(byte[] digest, int h) {
+    return ((long) (digest[3 + h * 4] & 0xFF) << 24)
+            | ((long) (digest[2 + h * 4] & 0xFF) << 16)
+            | ((long) (digest[1 + h * 4] & 0xFF) << 8)
+            | (digest[h * 4] & 0xFF);
+  }
+}
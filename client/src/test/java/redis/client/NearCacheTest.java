@@ -0,0 +1,177 @@
+package redis.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.reply.BulkReply;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Invalidated by the keyspace notifications of database 5.
+ */
+public class NearCacheTest {
+  private RedisClient client;
+  private String events;
+
+  @Before
+  public void setUp() throws Exception {
+    client = new RedisClient("localhost", 6379);
+    client.select(5);
+    Reply[] config = ((MultiBulkReply) client.config_get("notify-keyspace-events")).data();
+    events = new String((byte[]) config[1].data());
+    client.config_set("notify-keyspace-events", "KA");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.config_set("notify-keyspace-events", events);
+    client.close();
+  }
+
+  @Test
+  public void testInvalidation() throws Exception {
+    RedisClientPool pool = new RedisClientPool("localhost", 6379, 5, null);
+    // Written before the notifications are subscribed to
+    client.set("near", "before");
+    client.del("nearmissing");
+    NearCache cache = new NearCache(pool, 1024 * 1024, 1, TimeUnit.MINUTES);
+    assertEquals("before", cache.get("near").asAsciiString());
+    long borrows = pool.getBorrows();
+    for (int i = 0; i < 100; i++) {
+      assertEquals("before", cache.get("near").asAsciiString());
+      assertNull(cache.get("nearmissing").data());
+    }
+    assertEquals(1, pool.getBorrows() - borrows);
+    assertEquals(199, cache.getHits());
+    assertEquals(2, cache.getMisses());
+
+    // Changed by another connection
+    client.set("near", "after");
+    awaitInvalidations(cache, 1);
+    assertEquals("after", cache.get("near").asAsciiString());
+    client.set("nearmissing", "found");
+    awaitInvalidations(cache, 2);
+    assertEquals("found", cache.get("nearmissing").asAsciiString());
+    client.del("nearmissing");
+    awaitInvalidations(cache, 3);
+    assertNull(cache.get("nearmissing").data());
+    cache.close();
+    pool.close();
+  }
+
+  @Test
+  public void testStampede() throws Exception {
+    RedisClientPool pool = new RedisClientPool("localhost", 6379, 5, null).maxTotal(16);
+    client.set("nearhot", new byte[100000]);
+    final NearCache cache = new NearCache(pool, 1024 * 1024, 1, TimeUnit.MINUTES);
+    long borrows = pool.getBorrows();
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 16; i++) {
+      futures.add(executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          start.await();
+          return cache.get("nearhot").data().length;
+        }
+      }));
+    }
+    start.countDown();
+    for (Future<Integer> future : futures) {
+      assertEquals(100000, (int) future.get());
+    }
+    executor.shutdown();
+    // Only the first miss went to the server
+    assertEquals(1, pool.getBorrows() - borrows);
+    assertEquals(16, cache.getHits() + cache.getMisses());
+    cache.close();
+    pool.close();
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    RedisClientPool pool = new RedisClientPool("localhost", 6379, 5, null);
+    NearCache cache = new NearCache(pool, 10000, 200, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 100; i++) {
+      client.set("nearbig" + i, new byte[1000]);
+    }
+    client.set("nearold", "value");
+    // Past the notifications of the writes
+    Thread.sleep(100);
+    for (int i = 0; i < 100; i++) {
+      cache.get("nearbig" + i);
+    }
+    // Only about ten fit
+    assertTrue(cache.getSize() <= 10);
+    assertTrue(cache.getEvictions() >= 90);
+
+    cache.get("nearold");
+    cache.get("nearold");
+    assertEquals(1, cache.getHits());
+    Thread.sleep(300);
+    cache.get("nearold");
+    assertEquals(1, cache.getHits());
+    for (int i = 0; i < 100; i++) {
+      client.del("nearbig" + i);
+    }
+    cache.close();
+    pool.close();
+  }
+
+  @Test
+  public void testLostNotifications() throws Exception {
+    RedisClientPool pool = new RedisClientPool("localhost", 6379, 5, null);
+    client.set("nearlost", "before");
+    NearCache cache = new NearCache(pool, 1024 * 1024, 1, TimeUnit.MINUTES);
+    assertEquals("before", cache.get("nearlost").asAsciiString());
+    assertEquals(1, cache.getSize());
+
+    // Cut off the notifications, nothing cached survives
+    for (String line : ((BulkReply) client.client_list()).asUTF8String().split("\n")) {
+      if (line.contains("cmd=psubscribe")) {
+        int addr = line.indexOf("addr=") + 5;
+        client.client_kill(line.substring(addr, line.indexOf(' ', addr)));
+      }
+    }
+    for (int i = 0; i < 500 && cache.getDisconnects() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, cache.getDisconnects());
+    assertEquals(0, cache.getSize());
+
+    // Subscribed again in the background
+    for (int i = 0; i < 500 && !cache.isSubscribed(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(cache.isSubscribed());
+    client.set("nearlost", "after");
+    assertEquals("after", cache.get("nearlost").asAsciiString());
+    client.set("nearlost", "again");
+    awaitInvalidations(cache, 1);
+    assertEquals("again", cache.get("nearlost").asAsciiString());
+    cache.close();
+    pool.close();
+  }
+
+  private static void awaitInvalidations(NearCache cache, long invalidations) throws InterruptedException {
+    for (int i = 0; i < 500 && cache.getInvalidations() < invalidations; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(invalidations, cache.getInvalidations());
+  }
+}
@@ -0,0 +1,162 @@
+package redis.client;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class RedisClientPoolTest {
+
+  @Test
+  public void testBorrowTimeout() throws Exception {
+    RedisClientPool pool = new RedisClientPool("localhost", 6379).maxTotal(2).borrowTimeout(100, TimeUnit.MILLISECONDS);
+    RedisClient first = pool.borrow();
+    RedisClient second = pool.borrow();
+    try {
+      pool.borrow();
+      fail("Should have timed out");
+    } catch (RedisException e) {
+      assertEquals("Timed out waiting for a connection", e.getMessage());
+    }
+    assertTrue(pool.getMaxWait(TimeUnit.MILLISECONDS) < 100);
+    pool.release(second);
+    // The most recently used comes back
+    assertSame(second, pool.borrow());
+    assertEquals(3, pool.getBorrows());
+    assertEquals(1, pool.getTimeouts());
+    assertEquals(2, pool.getCreated());
+    assertEquals(2, pool.getActive());
+    pool.invalidate(first);
+    pool.borrow();
+    assertEquals(3, pool.getCreated());
+    pool.close();
+  }
+
+  @Test
+  public void testConnectionState() throws Exception {
+    RedisClientPool pool = new RedisClientPool("localhost", 6379).maxTotal(1).testOnBorrow(true);
+    RedisClient client = pool.borrow();
+    client.select(1);
+    client.set("pooldb", "1");
+    pool.release(client);
+    client = pool.borrow();
+    // Released in the database it was borrowed in
+    assertEquals(0, client.db());
+    assertNull(client.get("pooldb").data());
+    client.select(1);
+    client.del("pooldb");
+
+    // Left in a transaction
+    client.multi();
+    client.pipeline().set("pooltx", "1");
+    pool.release(client);
+    assertEquals(1, pool.getDestroyed());
+    client = pool.borrow();
+    assertNull(client.get("pooltx").data());
+
+    // The connection drops while idle and is reconnected when tested
+    client.getRedisProtocol().close();
+    pool.release(client);
+    assertSame(client, pool.borrow());
+    assertEquals(0, client.db());
+    assertEquals("PONG", client.ping().data());
+    pool.close();
+  }
+
+  @Test
+  public void testIdle() throws Exception {
+    RedisClientPool pool = new RedisClientPool("localhost", 6379).maxTotal(4).minIdle(2);
+    assertEquals(2, pool.getIdle());
+    List<RedisClient> clients = new ArrayList<RedisClient>();
+    for (int i = 0; i < 4; i++) {
+      clients.add(pool.borrow());
+    }
+    for (RedisClient client : clients) {
+      pool.release(client);
+    }
+    assertEquals(4, pool.getIdle());
+    // The surplus times out and the minimum is kept
+    pool.idleTimeout(0, TimeUnit.MILLISECONDS).idleTest(10, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 100 && pool.getIdle() > 2; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, pool.getIdle());
+    assertEquals(2, pool.getDestroyed());
+    pool.close();
+    assertEquals(0, pool.getIdle());
+  }
+
+  @Test
+  public void benchmarkSharedClient() throws Exception {
+    final RedisClient shared = new RedisClient("localhost", 6379);
+    final RedisClientPool pool = new RedisClientPool("localhost", 6379).maxTotal(16);
+    for (int round = 0; round < 2; round++) {
+      shared.del("poolcounter");
+      long start = System.nanoTime();
+      run(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          shared.incr("poolcounter");
+          return null;
+        }
+      });
+      long single = System.nanoTime() - start;
+      assertEquals("20000", new String(shared.get("poolcounter").data()));
+
+      shared.del("poolcounter");
+      start = System.nanoTime();
+      run(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          RedisClient client = pool.borrow();
+          try {
+            client.incr("poolcounter");
+          } finally {
+            pool.release(client);
+          }
+          return null;
+        }
+      });
+      long pooled = System.nanoTime() - start;
+      assertEquals("20000", new String(shared.get("poolcounter").data()));
+      System.out.println("200 threads, 20000 INCRs: " + single / 1000000 + " ms on one client, " +
+              pooled / 1000000 + " ms on a pool of 16, average wait " +
+              pool.getAverageWait(TimeUnit.MICROSECONDS) + " us, utilization " +
+              Math.round(pool.getUtilization() * 100) + "%");
+    }
+    shared.del("poolcounter");
+    shared.close();
+    pool.close();
+  }
+
+  private static void run(final Callable<Void> operation) throws Exception {
+    ExecutorService es = Executors.newFixedThreadPool(200);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 200; i++) {
+      futures.add(es.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int j = 0; j < 100; j++) {
+            operation.call();
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    es.shutdown();
+  }
+}
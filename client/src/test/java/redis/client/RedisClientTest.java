@@ -1,22 +1,36 @@
 package redis.client;
 
 import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.junit.Test;
 import redis.Command;
+import redis.ReplyVisitor;
 import redis.reply.BulkReply;
+import redis.reply.ErrorReply;
 import redis.reply.IntegerReply;
 import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
 import redis.reply.StatusReply;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 import static redis.util.Encoding.numToBytes;
 
@@ -65,6 +79,16 @@ public class RedisClientTest {
     assertEquals("value2", strings.get(1));
   }
 
+  @Test
+  public void testHello() throws IOException {
+    RedisClient redisClient = new RedisClient("localhost", 6379);
+    // Servers before 6 don't know HELLO and stay on RESP2
+    Reply hello = redisClient.hello(3);
+    assertEquals(hello instanceof ErrorReply ? 2 : 3, redisClient.getProtocol());
+    redisClient.set("test", "value");
+    assertEquals("value", redisClient.get("test").asAsciiString());
+  }
+
   @Test
   public void testTx() throws IOException, ExecutionException, InterruptedException {
     RedisClient redisClient1 = new RedisClient("localhost", 6379);
@@ -100,6 +124,184 @@ public class RedisClientTest {
     redisClient2.close();
   }
 
+  @Test
+  public void testConcurrentPipelines() throws Exception {
+    final RedisClient redisClient = new RedisClient("localhost", 6379);
+    ExecutorService es = Executors.newFixedThreadPool(8);
+    List<Future<Void>> threads = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 8; i++) {
+      final String prefix = "thread" + i;
+      threads.add(es.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          RedisClient.Pipeline p = redisClient.pipeline();
+          List<ListenableFuture<BulkReply>> echoes = new ArrayList<ListenableFuture<BulkReply>>();
+          for (int j = 0; j < 1000; j++) {
+            echoes.add(p.echo(prefix + j));
+            if (j % 100 == 0) {
+              // Blocking calls in between wait their turn
+              assertEquals(prefix, redisClient.echo(prefix).asUTF8String());
+            }
+          }
+          for (int j = 0; j < 1000; j++) {
+            assertEquals(prefix + j, echoes.get(j).get().asUTF8String());
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> thread : threads) {
+      thread.get();
+    }
+    es.shutdown();
+
+    // Errors fail their own future only
+    RedisClient.Pipeline p = redisClient.pipeline();
+    redisClient.set("pipelinestring", "value");
+    ListenableFuture<IntegerReply> incr = p.incr("pipelinestring");
+    ListenableFuture<BulkReply> get = p.get("pipelinestring");
+    try {
+      incr.get();
+      fail("Should have failed");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RedisException);
+    }
+    assertEquals("value", get.get().asUTF8String());
+
+    // A discarded transaction fails what was queued
+    redisClient.multi();
+    ListenableFuture<IntegerReply> queued = p.incr("pipelinecounter");
+    assertEquals("OK", redisClient.discard().data());
+    try {
+      queued.get();
+      fail("Should have failed");
+    } catch (ExecutionException e) {
+      assertEquals("Discarded", e.getCause().getMessage());
+    }
+    redisClient.close();
+  }
+
+  @Test
+  public void testSharedExecutor() throws Exception {
+    // Each client's reader gives the thread back once its replies are in
+    ExecutorService es = Executors.newFixedThreadPool(1);
+    RedisClient redisClient1 = new RedisClient("localhost", 6379, 0, null, es);
+    RedisClient redisClient2 = new RedisClient("localhost", 6379, 0, null, es);
+    try {
+      assertEquals("PONG", redisClient1.pipeline().ping().get(5, TimeUnit.SECONDS).data());
+      assertEquals("PONG", redisClient2.pipeline().ping().get(5, TimeUnit.SECONDS).data());
+      assertEquals("PONG", redisClient1.pipeline().ping().get(5, TimeUnit.SECONDS).data());
+    } finally {
+      redisClient1.close();
+      redisClient2.close();
+      es.shutdown();
+    }
+  }
+
+  @Test
+  public void testBatching() throws Exception {
+    RedisClient redisClient = new RedisClient("localhost", 6379);
+    redisClient.setBatching(0, TimeUnit.MILLISECONDS);
+    redisClient.del("batchcounter");
+    long writes = redisClient.getRedisProtocol().getWrites();
+    RedisClient.Pipeline p = redisClient.pipeline();
+    ListenableFuture<IntegerReply> last = null;
+    for (int i = 0; i < 1000; i++) {
+      last = p.incr("batchcounter");
+    }
+    assertEquals(1000L, (long) last.get().data());
+    assertTrue(redisClient.getRedisProtocol().getWrites() - writes < 1000);
+    assertEquals("1000", redisClient.get("batchcounter").asAsciiString());
+    redisClient.del("batchcounter");
+    redisClient.close();
+  }
+
+  @Test
+  public void testVisitor() throws Exception {
+    RedisClient redisClient = new RedisClient("localhost", 6379);
+    redisClient.del("visitlist");
+    RedisClient.Pipeline p = redisClient.pipeline();
+    for (int i = 0; i < 10000; i++) {
+      p.rpush("visitlist", new Object[] { i });
+    }
+    // Waits for the pipelined pushes
+    final long[] visited = new long[3];
+    redisClient.execute("LRANGE", new Command("LRANGE", "visitlist", 0, -1), new ReplyVisitor() {
+      public void status(String status) {
+      }
+      public void error(String error) {
+      }
+      public void integer(long integer) {
+      }
+      public void bulk(byte[] bytes, int offset, int length) {
+        visited[0]++;
+        visited[1] += Long.parseLong(new String(bytes, offset, length));
+      }
+      public void arrayStart(int size) {
+        visited[2] = size;
+      }
+      public void arrayEnd() {
+      }
+    });
+    assertEquals(10000, visited[2]);
+    assertEquals(10000, visited[0]);
+    assertEquals(49995000, visited[1]);
+    try {
+      redisClient.execute("INCR", new Command("INCR", "visitlist"), new ReplyVisitor() {
+        public void status(String status) {
+        }
+        public void error(String error) {
+          fail("Thrown instead");
+        }
+        public void integer(long integer) {
+        }
+        public void bulk(byte[] bytes, int offset, int length) {
+        }
+        public void arrayStart(int size) {
+        }
+        public void arrayEnd() {
+        }
+      });
+      fail("Should have failed");
+    } catch (RedisException e) {
+      assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+    }
+    assertEquals(10000, (long) redisClient.llen("visitlist").data());
+    redisClient.del("visitlist");
+    redisClient.close();
+  }
+
+  @Test
+  public void testStreamedValues() throws Exception {
+    RedisClient redisClient = new RedisClient("localhost", 6379);
+    byte[] value = new byte[10 * 1024 * 1024];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = (byte) i;
+    }
+    assertEquals("OK", redisClient.set("streamed", new ByteArrayInputStream(value), value.length).data());
+    assertEquals(value.length + 3, (long) redisClient.append("streamed", new ByteArrayInputStream("end".getBytes()), 3).data());
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    assertEquals(value.length + 3, redisClient.get("streamed", os));
+    byte[] bytes = os.toByteArray();
+    assertEquals(value.length + 3, bytes.length);
+    assertTrue(Arrays.equals(value, Arrays.copyOf(bytes, value.length)));
+    assertEquals("end", new String(bytes, value.length, 3));
+    os.reset();
+    assertEquals(value.length + 3, redisClient.get("streamed", Channels.newChannel(os)));
+    assertEquals(value.length + 3, os.size());
+    redisClient.del(new Object[] { "streamed" });
+    assertEquals(-1, redisClient.get("streamed", os));
+    // A short stream leaves a partial command so the connection is replaced
+    try {
+      redisClient.set("streamed", new ByteArrayInputStream(value, 0, 10), 11);
+      fail("Stream is short");
+    } catch (RedisException e) {
+      // Expected
+    }
+    assertEquals(null, redisClient.get("streamed").data());
+    redisClient.close();
+  }
+
   @Test
   public void testSubscriptions() throws IOException, ExecutionException, InterruptedException {
     RedisClient redisClient1 = new RedisClient("localhost", 6379);
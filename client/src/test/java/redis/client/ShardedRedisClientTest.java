@@ -0,0 +1,120 @@
+package redis.client;
+
+import org.junit.Test;
+import redis.reply.Reply;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Placing keys on the ring and fanning multi-key commands out to the shards.
+ */
+public class ShardedRedisClientTest {
+  private static final int KEYS = 100000;
+
+  @Test
+  public void testRing() {
+    ShardedRedisClient sharded = new ShardedRedisClient();
+    for (int i = 0; i < 8; i++) {
+      sharded.addShard("shard" + i, new RedisClientPool("localhost", 7000 + i));
+    }
+    Map<String, RedisClientPool> placed = new HashMap<String, RedisClientPool>();
+    Map<RedisClientPool, Integer> counts = new HashMap<RedisClientPool, Integer>();
+    for (int i = 0; i < KEYS; i++) {
+      RedisClientPool pool = sharded.shard("key" + i);
+      placed.put("key" + i, pool);
+      Integer count = counts.get(pool);
+      counts.put(pool, count == null ? 1 : count + 1);
+    }
+    assertEquals(8, counts.size());
+    for (int count : counts.values()) {
+      assertTrue("Unbalanced: " + count, count > KEYS / 8 / 2 && count < KEYS / 8 * 3 / 2);
+    }
+
+    // Only the keys taken by a new shard move
+    RedisClientPool added = new RedisClientPool("localhost", 7008);
+    sharded.addShard("shard8", added);
+    int moved = 0;
+    for (int i = 0; i < KEYS; i++) {
+      RedisClientPool pool = sharded.shard("key" + i);
+      if (pool != placed.get("key" + i)) {
+        assertSame(added, pool);
+        moved++;
+      }
+    }
+    assertTrue("Moved " + moved, moved > KEYS / 9 / 2 && moved < KEYS / 9 * 3 / 2);
+
+    // And go back when it is removed
+    assertSame(added, sharded.removeShard("shard8"));
+    for (int i = 0; i < KEYS; i++) {
+      assertSame(placed.get("key" + i), sharded.shard("key" + i));
+    }
+  }
+
+  @Test
+  public void testHashtag() {
+    ShardedRedisClient sharded = new ShardedRedisClient();
+    for (int i = 0; i < 8; i++) {
+      sharded.addShard("shard" + i, new RedisClientPool("localhost", 7000 + i));
+    }
+    for (int i = 0; i < 100; i++) {
+      assertSame(sharded.shard("{user" + i + "}"), sharded.shard("{user" + i + "}.name"));
+      assertSame(sharded.shard("user" + i), sharded.shard("{user" + i + "}.email"));
+    }
+  }
+
+  @Test
+  public void testFanOut() throws RedisException {
+    // Databases of one server stand in for the servers
+    RedisClientPool[] pools = new RedisClientPool[4];
+    for (int i = 0; i < pools.length; i++) {
+      pools[i] = new RedisClientPool("localhost", 6379, i + 1, null);
+    }
+    ShardedRedisClient sharded = new ShardedRedisClient(pools);
+    Object[] keysAndValues = new Object[200];
+    Object[] keys = new Object[101];
+    for (int i = 0; i < 100; i++) {
+      keysAndValues[i * 2] = keys[i] = "sharded" + i;
+      keysAndValues[i * 2 + 1] = "value" + i;
+    }
+    keys[100] = "shardedmissing";
+    sharded.del(keys);
+    assertEquals("OK", sharded.mset(keysAndValues).data());
+
+    Reply[] values = sharded.mget(keys).data();
+    assertEquals(101, values.length);
+    for (int i = 0; i < 100; i++) {
+      assertEquals("value" + i, new String((byte[]) values[i].data()));
+      assertEquals("value" + i, sharded.get("sharded" + i).asAsciiString());
+    }
+    assertNull(values[100].data());
+
+    // Each key is only on the server of its shard
+    Map<RedisClientPool, Integer> counts = new HashMap<RedisClientPool, Integer>();
+    for (RedisClientPool pool : pools) {
+      RedisClient client = pool.borrow();
+      int count = 0;
+      for (int i = 0; i < 100; i++) {
+        if (client.exists("sharded" + i).data() == 1) {
+          assertSame(pool, sharded.shard("sharded" + i));
+          count++;
+        }
+      }
+      pool.release(client);
+      counts.put(pool, count);
+    }
+    int total = 0;
+    for (int count : counts.values()) {
+      total += count;
+    }
+    assertEquals(100, total);
+
+    assertEquals(100, (long) sharded.del(keys).data());
+    sharded.close();
+  }
+}
@@ -0,0 +1,35 @@
+package redis.netty;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * A RESP3 integer too large for a long.
+ */
+public class BigNumberReply implements Reply<BigInteger> {
+  public static final char MARKER = '(';
+  private final BigInteger value;
+
+  public BigNumberReply(BigInteger value) {
+    this.value = value;
+  }
+
+  @Override
+  public BigInteger data() {
+    return value;
+  }
+
+  @Override
+  public void write(ChannelBuffer os) throws IOException {
+    os.writeByte(MARKER);
+    os.writeBytes(value.toString().getBytes(Charsets.US_ASCII));
+    os.writeBytes(CRLF);
+  }
+
+  public String toString() {
+    return value.toString();
+  }
+}
@@ -8,6 +8,8 @@ import org.jboss.netty.buffer.ChannelBuffer;
 
 public class ErrorReply implements Reply<String> {
   public static final char MARKER = '-';
+  // A RESP3 error sent like a bulk value
+  public static final char BLOB_MARKER = '!';
   private final String error;
 
   public ErrorReply(String error) {
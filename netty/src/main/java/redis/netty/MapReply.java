@@ -0,0 +1,40 @@
+package redis.netty;
+
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * A RESP3 map. Its keys and values alternate in data() as they would in the
+ * array a RESP2 server sends instead.
+ */
+public class MapReply extends MultiBulkReply {
+  public static final char MARKER = '%';
+
+  public MapReply() {
+  }
+
+  public MapReply(Reply[] keysAndValues) {
+    super(keysAndValues);
+    if (keysAndValues.length % 2 != 0) {
+      throw new IllegalArgumentException("Odd number of replies");
+    }
+  }
+
+  @Override
+  protected long elements(long size) {
+    return size * 2;
+  }
+
+  /**
+   * @return the number of entries
+   */
+  public int size() {
+    return data().length / 2;
+  }
+
+  @Override
+  public void write(ChannelBuffer os) throws IOException {
+    write(os, MARKER, size());
+  }
+}
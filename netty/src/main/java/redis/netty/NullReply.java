@@ -0,0 +1,31 @@
+package redis.netty;
+
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * The null of RESP3, which takes the place of a missing bulk value or array.
+ */
+public class NullReply implements Reply<Object> {
+  public static final char MARKER = '_';
+  public static final NullReply NULL = new NullReply();
+
+  private NullReply() {
+  }
+
+  @Override
+  public Object data() {
+    return null;
+  }
+
+  @Override
+  public void write(ChannelBuffer os) throws IOException {
+    os.writeByte(MARKER);
+    os.writeBytes(CRLF);
+  }
+
+  public String toString() {
+    return "null";
+  }
+}
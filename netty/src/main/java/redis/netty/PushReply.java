@@ -0,0 +1,34 @@
+package redis.netty;
+
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Data the server pushes outside of the replies to commands, such as
+ * messages and invalidations. The first element says what kind it is.
+ */
+public class PushReply extends MultiBulkReply {
+  public static final char MARKER = '>';
+
+  public PushReply() {
+  }
+
+  public PushReply(Reply[] replies) {
+    super(replies);
+  }
+
+  /**
+   * @return what kind of push it is, such as message or invalidate
+   */
+  public String kind() {
+    Reply kind = data()[0];
+    return kind instanceof BulkReply ? ((BulkReply) kind).asString(Charsets.UTF_8) : String.valueOf(kind.data());
+  }
+
+  @Override
+  public void write(ChannelBuffer os) throws IOException {
+    write(os, MARKER, data().length);
+  }
+}
@@ -9,6 +9,9 @@ import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
 import org.jboss.netty.handler.codec.replay.VoidEnum;
 
 import java.io.IOException;
+import java.math.BigInteger;
+
+import static redis.util.Encoding.bytesToDouble;
 
 /**
  * Netty codec for Redis
@@ -71,7 +74,7 @@ public class RedisDecoder extends ReplayingDecoder<VoidEnum> {
   public Reply receive(final ChannelBuffer is) throws IOException {
     // We may be in the middle of a large multibulk reply
     if (reply != null) {
-      return decodeMultiBulkReply(is);
+      return decode(null, is);
     }
     return readReply(is);
   }
@@ -96,12 +99,54 @@ public class RedisDecoder extends ReplayingDecoder<VoidEnum> {
         return new BulkReply(readBytes(is));
       }
       case MultiBulkReply.MARKER: {
-        if (reply == null) {
-          return decodeMultiBulkReply(is);
-        } else {
-          // This is an internal MBR in an MBR.
-          return new RedisDecoder().decodeMultiBulkReply(is);
+        return aggregate(new MultiBulkReply(), is);
+      }
+      case NullReply.MARKER: {
+        is.skipBytes(2);
+        return NullReply.NULL;
+      }
+      case BooleanReply.MARKER: {
+        byte value = is.readByte();
+        is.skipBytes(2);
+        if (value != 't' && value != 'f') {
+          throw new IOException("Invalid boolean: " + value);
         }
+        return BooleanReply.valueOf(value == 't');
+      }
+      case DoubleReply.MARKER: {
+        byte[] bytes = new byte[is.bytesBefore(ChannelBufferIndexFinder.CRLF)];
+        is.readBytes(bytes);
+        is.skipBytes(2);
+        return new DoubleReply(bytesToDouble(bytes, 0, bytes.length));
+      }
+      case BigNumberReply.MARKER: {
+        String value = is.readBytes(is.bytesBefore(ChannelBufferIndexFinder.CRLF)).toString(Charsets.US_ASCII);
+        is.skipBytes(2);
+        return new BigNumberReply(new BigInteger(value));
+      }
+      case ErrorReply.BLOB_MARKER: {
+        return new ErrorReply(readBytes(is).toString(Charsets.UTF_8));
+      }
+      case VerbatimReply.MARKER: {
+        ChannelBuffer bytes = readBytes(is);
+        if (bytes.capacity() < 4 || bytes.getByte(3) != ':') {
+          throw new IOException("Invalid verbatim string format");
+        }
+        return new VerbatimReply(bytes.toString(0, 3, Charsets.US_ASCII), bytes.slice(4, bytes.capacity() - 4));
+      }
+      case MapReply.MARKER: {
+        return aggregate(new MapReply(), is);
+      }
+      case SetReply.MARKER: {
+        return aggregate(new SetReply(), is);
+      }
+      case PushReply.MARKER: {
+        return aggregate(new PushReply(), is);
+      }
+      case AttributeReply.MARKER: {
+        // Small, so read again from the start if it is incomplete
+        MapReply attributes = (MapReply) new RedisDecoder().decode(new MapReply(), is);
+        return new AttributeReply(attributes, new RedisDecoder().readReply(is));
       }
       default: {
         throw new IOException("Unexpected character in stream: " + code);
@@ -119,10 +164,26 @@ public class RedisDecoder extends ReplayingDecoder<VoidEnum> {
     return receive(channelBuffer);
   }
 
+  private MultiBulkReply aggregate(MultiBulkReply created, ChannelBuffer is) throws IOException {
+    if (reply == null) {
+      return decode(created, is);
+    } else {
+      // This is an internal MBR in an MBR.
+      return new RedisDecoder().decode(created, is);
+    }
+  }
+
   public MultiBulkReply decodeMultiBulkReply(ChannelBuffer is) throws IOException {
+    return decode(reply == null ? new MultiBulkReply() : null, is);
+  }
+
+  /**
+   * Continue the aggregate being read or start the one created.
+   */
+  private MultiBulkReply decode(MultiBulkReply created, ChannelBuffer is) throws IOException {
     try {
       if (reply == null) {
-        reply = new MultiBulkReply();
+        reply = created;
         checkpoint();
       }
       reply.read(this, is);
@@ -0,0 +1,40 @@
+package redis.netty;
+
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import static redis.util.Encoding.numToBytes;
+
+/**
+ * A RESP3 bulk value that comes with its format, txt or mkd, so it can be
+ * shown as it is. The format isn't part of the value.
+ */
+public class VerbatimReply extends BulkReply {
+  public static final char MARKER = '=';
+  private final String format;
+
+  public VerbatimReply(String format, ChannelBuffer bytes) {
+    super(bytes);
+    if (format.length() != 3) {
+      throw new IllegalArgumentException("Invalid format: " + format);
+    }
+    this.format = format;
+  }
+
+  public String format() {
+    return format;
+  }
+
+  @Override
+  public void write(ChannelBuffer os) throws IOException {
+    ChannelBuffer bytes = data();
+    os.writeByte(MARKER);
+    os.writeBytes(numToBytes(bytes.capacity() + 4, true));
+    os.writeBytes(format.getBytes(Charsets.US_ASCII));
+    os.writeByte(':');
+    os.writeBytes(bytes, 0, bytes.capacity());
+    os.writeBytes(CRLF);
+  }
+}
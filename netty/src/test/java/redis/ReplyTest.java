@@ -1,21 +1,32 @@
 package redis;
 
 import java.io.IOException;
+import java.math.BigInteger;
 
 import com.google.common.base.Charsets;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.junit.Test;
+import redis.netty.AttributeReply;
+import redis.netty.BigNumberReply;
+import redis.netty.BooleanReply;
+import redis.netty.DoubleReply;
+import redis.netty.MapReply;
+import redis.netty.NullReply;
+import redis.netty.PushReply;
 import redis.netty.Reply;
 import redis.netty.RedisDecoder;
 import redis.netty.BulkReply;
 import redis.netty.ErrorReply;
 import redis.netty.IntegerReply;
 import redis.netty.MultiBulkReply;
+import redis.netty.SetReply;
 import redis.netty.StatusReply;
+import redis.netty.VerbatimReply;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -81,4 +92,37 @@ public class ReplyTest {
       assertEquals(integer, data[4].data());
     }
   }
+
+  @Test
+  public void testResp3() throws IOException {
+    ChannelBuffer os = ChannelBuffers.dynamicBuffer();
+    RedisDecoder redisDecoder = new RedisDecoder();
+    NullReply.NULL.write(os);
+    BooleanReply.FALSE.write(os);
+    new DoubleReply(3.14).write(os);
+    new BigNumberReply(new BigInteger("-3492890328409238509324850943850943825024385")).write(os);
+    new VerbatimReply("mkd", ChannelBuffers.wrappedBuffer("# title".getBytes())).write(os);
+    new MapReply(new Reply[] {
+            new StatusReply("proto"), new IntegerReply(3),
+            new StatusReply("modules"), new SetReply(new Reply[] { BooleanReply.TRUE })}).write(os);
+    new PushReply(new Reply[] { new BulkReply(ChannelBuffers.wrappedBuffer("message".getBytes())) }).write(os);
+    new AttributeReply(new MapReply(new Reply[] { new StatusReply("popularity"), new DoubleReply(0.5) }),
+            new IntegerReply(7)).write(os);
+
+    assertSame(NullReply.NULL, redisDecoder.receive(os));
+    assertSame(BooleanReply.FALSE, redisDecoder.receive(os));
+    assertEquals(3.14, ((DoubleReply) redisDecoder.receive(os)).value(), 0);
+    assertEquals(new BigInteger("-3492890328409238509324850943850943825024385"), redisDecoder.receive(os).data());
+    VerbatimReply verbatim = (VerbatimReply) redisDecoder.receive(os);
+    assertEquals("mkd", verbatim.format());
+    assertEquals("# title", verbatim.data().toString(Charsets.US_ASCII));
+    MapReply map = (MapReply) redisDecoder.receive(os);
+    assertEquals(2, map.size());
+    assertEquals(3L, map.data()[1].data());
+    assertTrue(((BooleanReply) ((SetReply) map.data()[3]).data()[0]).value());
+    assertEquals("message", ((PushReply) redisDecoder.receive(os)).kind());
+    AttributeReply attribute = (AttributeReply) redisDecoder.receive(os);
+    assertEquals(0.5, ((DoubleReply) attribute.attributes().data()[1]).value(), 0);
+    assertEquals(7L, attribute.data().data());
+  }
 }
@@ -1,13 +1,21 @@
 package redis.netty4;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
 import spullara.util.concurrent.Promise;
+import spullara.util.functions.Block;
+import spullara.util.functions.Mapper;
 
+import java.io.File;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.LinkedList;
 import java.util.Queue;
 
@@ -17,23 +25,70 @@ import java.util.Queue;
 public class RedisClientBase {
 
   private final static NioEventLoopGroup group = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors());
-  private final SocketChannel socketChannel;
+  private static EpollEventLoopGroup epollGroup;
+  private final Channel socketChannel;
   private final Queue<Promise<Reply>> queue;
+  private volatile int version = 2;
+  private volatile Block<PushReply> pushListener;
 
-  protected RedisClientBase(SocketChannel socketChannel, Queue<Promise<Reply>> queue) {
+  protected RedisClientBase(Channel socketChannel, Queue<Promise<Reply>> queue) {
     this.socketChannel = socketChannel;
     this.queue = queue;
-    group.register(socketChannel);
   }
 
   public static Promise<RedisClientBase> connect(String host, int port) {
+    return connect(group, new NioSocketChannel(), new InetSocketAddress(host, port));
+  }
+
+  /**
+   * Connect and switch to the version of the protocol with HELLO. A server
+   * that doesn't know HELLO is left speaking RESP2.
+   */
+  public static Promise<RedisClientBase> connect(String host, int port, final int protocol) {
+    return connect(host, port).flatMap(new Mapper<RedisClientBase, Promise<RedisClientBase>>() {
+      @Override
+      public Promise<RedisClientBase> map(final RedisClientBase client) {
+        return client.hello(protocol).map(new Mapper<Reply, RedisClientBase>() {
+          @Override
+          public RedisClientBase map(Reply reply) {
+            return client;
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Connect to a server on the same host through its Unix domain socket. Needs
+   * the native epoll transport.
+   */
+  public static Promise<RedisClientBase> connect(File socket) {
+    return connect(epollGroup(), new EpollDomainSocketChannel(), new DomainSocketAddress(socket));
+  }
+
+  private static synchronized EventLoopGroup epollGroup() {
+    if (epollGroup == null) {
+      epollGroup = new EpollEventLoopGroup(Runtime.getRuntime().availableProcessors());
+    }
+    return epollGroup;
+  }
+
+  private static Promise<RedisClientBase> connect(EventLoopGroup group, Channel socketChannel, SocketAddress address) {
     final Queue<Promise<Reply>> queue = new LinkedList<>();
-    SocketChannel socketChannel = new NioSocketChannel();
     final RedisClientBase client = new RedisClientBase(socketChannel, queue);
+    group.register(socketChannel);
     socketChannel.pipeline().addLast(new RedisCommandEncoder(), new RedisReplyDecoder(),
             new SimpleChannelInboundHandler<Reply<?>>() {
               @Override
               protected void channelRead0(ChannelHandlerContext channelHandlerContext, Reply<?> reply) throws Exception {
+                if (reply instanceof PushReply) {
+                  // Not the reply to any command
+                  Block<PushReply> pushListener = client.pushListener;
+                  if (pushListener != null) {
+                    pushListener.apply((PushReply) reply);
+                  }
+                  return;
+                }
                 Promise<Reply> poll;
                 synchronized (client) {
                   poll = queue.poll();
@@ -45,7 +100,7 @@ public class RedisClientBase {
               }
             });
     final Promise<RedisClientBase> promise = new Promise<>();
-    socketChannel.connect(new InetSocketAddress(host, port)).addListener(new ChannelFutureListenerPromiseAdapter<>(promise, client));
+    socketChannel.connect(address).addListener(new ChannelFutureListenerPromiseAdapter<>(promise, client));
     return promise;
   }
 
@@ -53,8 +108,43 @@ public class RedisClientBase {
     Promise<Reply> reply = new Promise<>();
     synchronized (this) {
       queue.add(reply);
-      socketChannel.write(command);
+      socketChannel.writeAndFlush(command);
     }
     return reply;
   }
+
+  /**
+   * Switch to the version of the protocol, staying on the current one if the
+   * reply is an error.
+   */
+  public Promise<Reply> hello(final int protocol, Object... arguments) {
+    Object[] command = new Object[arguments.length + 2];
+    command[0] = "HELLO";
+    command[1] = protocol;
+    System.arraycopy(arguments, 0, command, 2, arguments.length);
+    return send(new Command(command)).map(new Mapper<Reply, Reply>() {
+      @Override
+      public Reply map(Reply reply) {
+        if (!(reply instanceof ErrorReply)) {
+          version = protocol;
+        }
+        return reply;
+      }
+    });
+  }
+
+  /**
+   * @return the version of the protocol spoken, 3 once HELLO 3 succeeds
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Take the data a RESP3 server pushes to the connection, which is dropped
+   * without a listener since it answers no command.
+   */
+  public void setPushListener(Block<PushReply> pushListener) {
+    this.pushListener = pushListener;
+  }
 }
@@ -10,6 +10,7 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 import static redis.netty4.RedisClientBase.connect;
 
@@ -55,6 +56,16 @@ public class RedisClientTest {
     assertTrue(matches.get());
   }
 
+  @Test
+  public void testHello() throws ExecutionException, InterruptedException {
+    RedisClientBase client = connect("localhost", 6379, 3).get();
+    // Servers before 6 don't know HELLO and stay on RESP2
+    Reply hello = client.hello(3).get();
+    assertEquals(hello instanceof ErrorReply ? 2 : 3, client.getVersion());
+    assertEquals("OK", client.send(new Command("SET", "test", "value")).get().data());
+    assertEquals("value", ((BulkReply) client.send(new Command("GET", "test")).get()).asAsciiString());
+  }
+
   @Test
   public void testBenchmark() throws InterruptedException {
     if (System.getenv().containsKey("CI") || System.getProperty("CI") != null) return;
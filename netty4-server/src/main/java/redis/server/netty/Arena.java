@@ -0,0 +1,615 @@
+package redis.server.netty;
+
+import com.google.common.base.Charsets;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import redis.util.BytesKey;
+import redis.util.BytesKeyObjectMap;
+import redis.util.BytesKeySet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keyspace kept in a memory mapped file so that a restarted server serves
+ * from it right away. Values are appended to a log of records in the file and
+ * only the keys and their record positions are held in the heap; a value is
+ * decoded from the mapping, and paged in by the OS, the first time it is used.
+ * <p/>
+ * The file is a header followed by records in segments of SEGMENT_SIZE bytes,
+ * each mapped separately:
+ * <p/>
+ * length, crc32, (LIVE key expire type value | TOMBSTONE key)
+ * <p/>
+ * A length of 0 ends the log and SKIP moves on to the next segment. Keys
+ * changed by write commands are appended at the end of each batch, before its
+ * replies go out, so a crashed process loses nothing that was acknowledged.
+ * <p/>
+ * A clean shutdown writes the index of record positions next to the file and
+ * marks the header clean, and startup then only reads the index. Otherwise
+ * the log is replayed up to the first record that fails its checksum. Once
+ * half of the log is superseded records the live ones are copied to a new file
+ * that replaces it, a bounded amount at each flush so that no batch waits for
+ * the whole copy.
+ */
+class Arena {
+  static final int SEGMENT_SIZE = 1 << 30;
+  private static final byte[] MAGIC = "JREDISARENA".getBytes(Charsets.US_ASCII);
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 64;
+  private static final int STATE = 16;
+  private static final int TAIL = 24;
+  private static final int DEAD = 32;
+  private static final byte DIRTY = 0;
+  private static final byte CLEAN = 1;
+  private static final int SKIP = -1;
+  private static final int LIVE = 1;
+  private static final int TOMBSTONE = 2;
+  private static final long NO_EXPIRE = -1;
+  private static final long COMPACT_MIN = 64 << 20;
+  private static final long COMPACT_STEP = 1 << 20;
+  // Stands in for a value that has not been read from the file yet
+  private static final Object UNLOADED = new Object();
+
+  private final File file;
+  private final File index;
+  private final int segmentSize;
+  private final Keyspace data = new Keyspace();
+  private final BytesKeyObjectMap<Long> expires = new BytesKeyObjectMap<Long>();
+  private Map<BytesKey, Long> locations = new HashMap<BytesKey, Long>();
+  private final BytesKeySet dirty = new BytesKeySet();
+  private final ByteBuf record = Unpooled.buffer();
+  private final CRC32 crc = new CRC32();
+  private Log log;
+  private long dead;
+  private int writing;
+  // The compaction in progress: the new file, how far the old one has been
+  // copied and where the copied keys are in the new one
+  private Log target;
+  private long cursor;
+  private Map<BytesKey, Long> moved;
+  private long movedDead;
+  private String recovery;
+  private long loadTime;
+
+  Arena(SimpleRedisServer server, RedisCommandHandler handler, File file) throws IOException {
+    this(server, handler, file, SEGMENT_SIZE);
+  }
+
+  Arena(SimpleRedisServer server, RedisCommandHandler handler, File file, int segmentSize) throws IOException {
+    this.file = file;
+    this.index = new File(file.getPath() + ".index");
+    this.segmentSize = segmentSize;
+    long start = System.nanoTime();
+    open();
+    loadTime = (System.nanoTime() - start) / 1000000;
+    server.setArena(this);
+    handler.setArena(this);
+  }
+
+  BytesKeyObjectMap<Object> keyspace() {
+    return data;
+  }
+
+  BytesKeyObjectMap<Long> expires() {
+    return expires;
+  }
+
+  /**
+   * Keys put, removed or reported changed while a write command runs are
+   * appended at the next flush. Scripts nest write commands.
+   */
+  void beginWrite() {
+    writing++;
+  }
+
+  void endWrite() {
+    writing--;
+  }
+
+  /**
+   * A value or expire was changed without going through the keyspace.
+   */
+  void changed(byte[] key) {
+    if (writing > 0) {
+      dirty.add(key);
+    }
+  }
+
+  /**
+   * Append the keys changed since the last flush.
+   */
+  void flush() throws IOException {
+    if (dirty.isEmpty()) return;
+    long appended = log.tail;
+    for (BytesKey key : dirty) {
+      if (target != null) {
+        // Superseded in the new file too, where the cursor copies it again
+        Long copy = moved.remove(key);
+        if (copy != null) {
+          movedDead += target.size(copy);
+        }
+      }
+      Object value = data.get(key);
+      Long previous;
+      if (value == null) {
+        previous = locations.remove(key);
+        if (previous != null) {
+          dead += log.size(previous) + log.size(append(TOMBSTONE, key, null));
+        }
+      } else {
+        previous = locations.put(key, append(LIVE, key, value));
+        if (previous != null) {
+          dead += log.size(previous);
+        }
+      }
+    }
+    dirty.clear();
+    if (target == null && dead >= COMPACT_MIN && dead * 2 >= log.tail) {
+      compact();
+    }
+    if (target != null) {
+      // Copy faster than the log grows so that the cursor reaches the tail
+      copy(Math.max(COMPACT_STEP, 2 * (log.tail - appended)));
+    }
+  }
+
+  /**
+   * Replace the keyspace, e.g. with the snapshot from a master.
+   */
+  void replace(Snapshot snapshot) throws IOException {
+    data.clear();
+    expires.clear();
+    for (Map.Entry<Object, Object> entry : snapshot.data.entrySet()) {
+      BytesKey key = (BytesKey) entry.getKey();
+      data.putRaw(key, entry.getValue());
+      dirty.add(key);
+    }
+    expires.putAll(snapshot.expires);
+    flush();
+  }
+
+  /**
+   * Write the index and mark the file clean so the next start doesn't replay
+   * the log.
+   */
+  void close() throws IOException {
+    flush();
+    // The index describes the old file, so a compaction starts over
+    abandon();
+    log.force();
+    File temp = new File(index.getPath() + ".tmp");
+    FileOutputStream fos = new FileOutputStream(temp);
+    try {
+      CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+      DataOutputStream dos = new DataOutputStream(cos);
+      dos.write(MAGIC);
+      dos.writeLong(log.tail);
+      dos.writeInt(locations.size());
+      for (Map.Entry<BytesKey, Long> entry : locations.entrySet()) {
+        ValueEncoding.writeBytes(dos, entry.getKey().getBytes());
+        dos.writeLong(entry.getValue());
+        Long expire = expires.get(entry.getKey());
+        dos.writeLong(expire == null ? NO_EXPIRE : expire);
+      }
+      dos.flush();
+      new DataOutputStream(fos).writeLong(cos.getChecksum().getValue());
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+    if (!temp.renameTo(index)) {
+      throw new IOException("Could not replace " + index);
+    }
+    log.header().putLong(DEAD, dead).put(STATE, CLEAN);
+    log.force();
+    log.close();
+  }
+
+  void info(StringBuilder sb) {
+    sb.append("arena_recovery:").append(recovery).append("\n");
+    sb.append("arena_load_ms:").append(loadTime).append("\n");
+    sb.append("arena_bytes:").append(log.tail).append("\n");
+    sb.append("arena_dead_bytes:").append(dead).append("\n");
+  }
+
+  private void open() throws IOException {
+    boolean exists = file.length() > 0;
+    log = new Log(file, segmentSize);
+    if (!exists) {
+      log.init();
+      recovery = "new";
+      return;
+    }
+    ByteBuffer header = log.header();
+    byte[] magic = new byte[MAGIC.length];
+    header.duplicate().get(magic);
+    if (!Arrays.equals(magic, MAGIC) || header.get(MAGIC.length) > VERSION) {
+      log.close();
+      throw new IOException("Not an arena: " + file);
+    }
+    if (header.getInt(MAGIC.length + 1) != segmentSize) {
+      log.close();
+      throw new IOException("Arena segment size is " + header.getInt(MAGIC.length + 1));
+    }
+    if (header.get(STATE) == CLEAN && readIndex(header.getLong(TAIL))) {
+      log.tail = header.getLong(TAIL);
+      dead = header.getLong(DEAD);
+      recovery = "index";
+    } else {
+      scan();
+      recovery = "scan";
+    }
+    for (BytesKey key : locations.keySet()) {
+      data.putRaw(key, UNLOADED);
+    }
+    // Until the next clean shutdown the index is stale
+    log.header().put(STATE, DIRTY);
+    log.forceHeader();
+  }
+
+  private boolean readIndex(long tail) throws IOException {
+    if (!index.exists()) return false;
+    DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(index), 1 << 16));
+    try {
+      CheckedInputStream cis = new CheckedInputStream(is, new CRC32());
+      DataInputStream dis = new DataInputStream(cis);
+      byte[] magic = new byte[MAGIC.length];
+      dis.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC) || dis.readLong() != tail) return false;
+      int size = dis.readInt();
+      for (int i = 0; i < size; i++) {
+        BytesKey key = new BytesKey(ValueEncoding.readBytes(dis));
+        locations.put(key, dis.readLong());
+        long expire = dis.readLong();
+        if (expire != NO_EXPIRE) {
+          expires.put(key, expire);
+        }
+      }
+      long checksum = cis.getChecksum().getValue();
+      if (is.readLong() == checksum) {
+        return true;
+      }
+    } catch (IOException e) {
+      // Fall back to the log
+    } finally {
+      is.close();
+    }
+    locations.clear();
+    expires.clear();
+    return false;
+  }
+
+  /**
+   * Replay the log up to the first record that is missing or fails its
+   * checksum, which is where a crash stopped writing.
+   */
+  private void scan() throws IOException {
+    long position = HEADER_SIZE;
+    while (position < log.length()) {
+      int offset = (int) (position % segmentSize);
+      if (offset + 8 > segmentSize || log.getInt(position) == SKIP) {
+        position += segmentSize - offset;
+        continue;
+      }
+      ByteBuffer payload = log.payload(position);
+      if (payload == null || log.getInt(position + 4) != checksum(payload)) break;
+      DataInputStream dis = new DataInputStream(new ByteBufInputStream(Unpooled.wrappedBuffer(payload)));
+      int kind = dis.readUnsignedByte();
+      BytesKey key = new BytesKey(ValueEncoding.readBytes(dis));
+      Long previous;
+      if (kind == LIVE) {
+        previous = locations.put(key, position);
+        long expire = dis.readLong();
+        if (expire == NO_EXPIRE) {
+          expires.remove(key);
+        } else {
+          expires.put(key, expire);
+        }
+      } else {
+        previous = locations.remove(key);
+        expires.remove(key);
+        dead += log.size(position);
+      }
+      if (previous != null) {
+        dead += log.size(previous);
+      }
+      position += log.size(position);
+    }
+    log.tail = position;
+    log.truncate();
+  }
+
+  private long append(int kind, BytesKey key, Object value) throws IOException {
+    record.clear();
+    DataOutputStream dos = new DataOutputStream(new ByteBufOutputStream(record));
+    dos.writeByte(kind);
+    ValueEncoding.writeBytes(dos, key.getBytes());
+    if (kind == LIVE) {
+      Long expire = expires.get(key);
+      dos.writeLong(expire == null ? NO_EXPIRE : expire);
+      int type = ValueEncoding.type(value);
+      dos.writeByte(type);
+      ValueEncoding.writeValue(dos, type, value);
+    }
+    ByteBuffer payload = record.nioBuffer();
+    return log.append(payload, checksum(payload));
+  }
+
+  private Object read(long position) {
+    try {
+      DataInputStream dis = new DataInputStream(new ByteBufInputStream(Unpooled.wrappedBuffer(log.payload(position))));
+      dis.readUnsignedByte();
+      ValueEncoding.readBytes(dis);
+      dis.readLong();
+      return ValueEncoding.readValue(dis, dis.readUnsignedByte());
+    } catch (IOException e) {
+      throw new IllegalStateException("Unreadable arena record at " + position, e);
+    }
+  }
+
+  private int checksum(ByteBuffer payload) {
+    crc.reset();
+    crc.update(payload.duplicate());
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Start copying the live records to a new file. Appends keep going to the
+   * old file, which stays the one recovered from until the copy is swapped in.
+   */
+  private void compact() throws IOException {
+    File compacted = new File(file.getPath() + ".compact");
+    compacted.delete();
+    target = new Log(compacted, segmentSize);
+    target.init();
+    cursor = HEADER_SIZE;
+    moved = new HashMap<BytesKey, Long>();
+    movedDead = 0;
+  }
+
+  /**
+   * Walk the old file from the cursor copying the records that are still
+   * current, up to a budget of bytes, and swap the new file in once the cursor
+   * reaches the tail.
+   */
+  private void copy(long budget) throws IOException {
+    long copied = 0;
+    while (cursor < log.tail && copied < budget) {
+      int offset = (int) (cursor % segmentSize);
+      if (offset + 8 > segmentSize || log.getInt(cursor) == SKIP) {
+        cursor += segmentSize - offset;
+        continue;
+      }
+      ByteBuffer payload = log.payload(cursor);
+      if (payload.get(0) == LIVE) {
+        DataInputStream dis = new DataInputStream(new ByteBufInputStream(Unpooled.wrappedBuffer(payload)));
+        dis.readUnsignedByte();
+        BytesKey key = new BytesKey(ValueEncoding.readBytes(dis));
+        Long location = locations.get(key);
+        if (location != null && location == cursor) {
+          moved.put(key, target.append(payload, log.getInt(cursor + 4)));
+          copied += log.size(cursor);
+        }
+      }
+      cursor += log.size(cursor);
+    }
+    if (cursor >= log.tail) {
+      swap();
+    }
+  }
+
+  private void swap() throws IOException {
+    target.force();
+    if (!new File(file.getPath() + ".compact").renameTo(file)) {
+      abandon();
+      throw new IOException("Could not replace " + file);
+    }
+    log.close();
+    log = target;
+    locations = moved;
+    dead = movedDead;
+    target = null;
+    moved = null;
+  }
+
+  private void abandon() throws IOException {
+    if (target != null) {
+      target.close();
+      new File(file.getPath() + ".compact").delete();
+      target = null;
+      moved = null;
+    }
+  }
+
+  /**
+   * The keyspace, which defers reading values and notes the keys that write
+   * commands put or remove. A value that is replaced or removed before it was
+   * read is read then, since callers may use it.
+   */
+  private class Keyspace extends BytesKeyObjectMap<Object> {
+    @Override
+    public Object get(BytesKey key) {
+      Object value = super.get(key);
+      if (value == UNLOADED) {
+        value = read(locations.get(key));
+        super.put(key, value);
+      }
+      return value;
+    }
+
+    @Override
+    public Object put(BytesKey key, Object value) {
+      if (writing > 0) {
+        dirty.add(key);
+      }
+      return loaded(key, super.put(key, value));
+    }
+
+    @Override
+    public Object remove(BytesKey key) {
+      Object value = super.remove(key);
+      if (writing > 0 && value != null) {
+        dirty.add(key);
+      }
+      return loaded(key, value);
+    }
+
+    @Override
+    public void clear() {
+      super.clear();
+      locations.clear();
+      dirty.clear();
+      try {
+        // Nothing to copy, so the new file is swapped in right away
+        abandon();
+        compact();
+        swap();
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not reset the arena", e);
+      }
+    }
+
+    void putRaw(BytesKey key, Object value) {
+      super.put(key, value);
+    }
+
+    /**
+     * The record stays where it was until the next flush.
+     */
+    private Object loaded(BytesKey key, Object value) {
+      return value == UNLOADED ? read(locations.get(key)) : value;
+    }
+  }
+
+  /**
+   * The mapped file. Segments are mapped as the log reaches them.
+   */
+  private static class Log {
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    long tail = HEADER_SIZE;
+
+    Log(File file, int segmentSize) throws IOException {
+      raf = new RandomAccessFile(file, "rw");
+      channel = raf.getChannel();
+      this.segmentSize = segmentSize;
+    }
+
+    void init() throws IOException {
+      ByteBuffer header = header();
+      header.duplicate().put(MAGIC).put((byte) VERSION).putInt(segmentSize);
+      header.put(STATE, DIRTY);
+    }
+
+    long length() throws IOException {
+      return channel.size();
+    }
+
+    MappedByteBuffer header() throws IOException {
+      return segment(0);
+    }
+
+    MappedByteBuffer segment(int i) throws IOException {
+      while (segments.size() <= i) {
+        segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * segmentSize, segmentSize));
+      }
+      return segments.get(i);
+    }
+
+    int getInt(long position) throws IOException {
+      return segment((int) (position / segmentSize)).getInt((int) (position % segmentSize));
+    }
+
+    int size(long position) throws IOException {
+      return 8 + getInt(position);
+    }
+
+    /**
+     * The payload of the record at a position or null if there isn't a
+     * complete one.
+     */
+    ByteBuffer payload(long position) throws IOException {
+      int offset = (int) (position % segmentSize);
+      ByteBuffer segment = segment((int) (position / segmentSize)).duplicate();
+      int length = segment.getInt(offset);
+      if (length <= 0 || length > segmentSize - offset - 8) return null;
+      segment.position(offset + 8).limit(offset + 8 + length);
+      return segment.slice();
+    }
+
+    long append(ByteBuffer payload, int checksum) throws IOException {
+      int size = 8 + payload.remaining();
+      if (size > segmentSize - HEADER_SIZE) {
+        throw new IOException("Record of " + size + " bytes does not fit in an arena segment");
+      }
+      int offset = (int) (tail % segmentSize);
+      if (offset + size > segmentSize) {
+        if (offset + 4 <= segmentSize) {
+          segment((int) (tail / segmentSize)).putInt(offset, SKIP);
+        }
+        tail += segmentSize - offset;
+        offset = 0;
+      }
+      long position = tail;
+      MappedByteBuffer segment = segment((int) (position / segmentSize));
+      segment.putInt(offset + 4, checksum);
+      ByteBuffer target = segment.duplicate();
+      target.position(offset + 8);
+      target.put(payload.duplicate());
+      // The length goes last so a partly written record ends the log
+      segment.putInt(offset, payload.remaining());
+      tail += size;
+      return position;
+    }
+
+    /**
+     * Drop whatever follows the tail after a crash so later appends can't be
+     * confused with it. Mapping the segments again extends the file with
+     * zeros; the old mappings are not touched again.
+     */
+    void truncate() throws IOException {
+      segments.clear();
+      channel.truncate(tail);
+      segment((int) ((tail - 1) / segmentSize));
+    }
+
+    void forceHeader() throws IOException {
+      header().force();
+    }
+
+    void force() throws IOException {
+      header().putLong(TAIL, tail);
+      for (MappedByteBuffer segment : segments) {
+        segment.force();
+      }
+    }
+
+    void close() throws IOException {
+      segments.clear();
+      raf.close();
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+import redis.util.BytesKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connections waiting on keys for a blocking read. Writes only mark a key
+ * as ready and after each command the waiters of the ready keys retry their
+ * command in the order they blocked. A blocked connection stops reading and
+ * holds on to the commands that were already decoded behind the blocking one
+ * until it is served. All of the state is only touched on the command executor.
+ */
+class Blocking {
+  private static final AttributeKey<Waiter> WAITER = new AttributeKey<Waiter>("waiter");
+  private static final MultiBulkReply TIMEOUT = new MultiBulkReply();
+
+  private final Map<BytesKey, Set<Waiter>> waiting = new HashMap<BytesKey, Set<Waiter>>();
+  private final Set<BytesKey> ready = new LinkedHashSet<BytesKey>();
+  private final RedisCommandHandler handler;
+  private final EventExecutor executor;
+  private boolean serving;
+
+  /**
+   * Returned by the server instead of a reply when a command has nothing to
+   * return yet. The command is retried as is whenever one of the keys changes.
+   */
+  static class Blocked implements Reply<Void> {
+    final byte[][] keys;
+    final Command command;
+    // Milliseconds, 0 waits forever
+    final long timeout;
+
+    Blocked(byte[][] keys, Command command, long timeout) {
+      this.keys = keys;
+      this.command = command;
+      this.timeout = timeout;
+    }
+
+    @Override
+    public Void data() {
+      return null;
+    }
+
+    @Override
+    public void write(ByteBuf os) {
+      throw new IllegalStateException("A blocked command has no reply");
+    }
+  }
+
+  private static class Waiter {
+    final ChannelHandlerContext ctx;
+    final List<Command> queued = new ArrayList<Command>();
+    Blocked blocked;
+    ScheduledFuture<?> timeout;
+
+    Waiter(ChannelHandlerContext ctx) {
+      this.ctx = ctx;
+    }
+  }
+
+  Blocking(SimpleRedisServer server, RedisCommandHandler handler, EventExecutor executor) {
+    this.handler = handler;
+    this.executor = executor;
+    server.setBlocking(this);
+    handler.setBlocking(this);
+  }
+
+  /**
+   * Hold on to a command that arrived behind a blocked one.
+   *
+   * @return whether the connection is blocked
+   */
+  boolean queue(ChannelHandlerContext ctx, Command command) {
+    Waiter waiter = ctx.channel().attr(WAITER).get();
+    if (waiter == null || waiter.blocked == null) {
+      return false;
+    }
+    waiter.queued.add(command);
+    return true;
+  }
+
+  void block(ChannelHandlerContext ctx, final Blocked blocked) {
+    final Waiter waiter = waiter(ctx);
+    waiter.blocked = blocked;
+    for (byte[] key : blocked.keys) {
+      BytesKey bytesKey = new BytesKey(key);
+      Set<Waiter> waiters = waiting.get(bytesKey);
+      if (waiters == null) {
+        waiting.put(bytesKey, waiters = new LinkedHashSet<Waiter>());
+      }
+      waiters.add(waiter);
+    }
+    if (blocked.timeout > 0) {
+      waiter.timeout = executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (waiter.blocked == blocked) {
+            unblock(waiter, TIMEOUT);
+          }
+        }
+      }, blocked.timeout, TimeUnit.MILLISECONDS);
+    }
+    ctx.channel().config().setAutoRead(false);
+  }
+
+  /**
+   * A key was written to, its waiters are retried by the next serve.
+   */
+  void signal(byte[] key) {
+    if (!waiting.isEmpty()) {
+      BytesKey bytesKey = new BytesKey(key);
+      if (waiting.containsKey(bytesKey)) {
+        ready.add(bytesKey);
+      }
+    }
+  }
+
+  /**
+   * Retry the commands of the connections waiting on keys that changed.
+   */
+  void serve() {
+    if (serving) return;
+    serving = true;
+    try {
+      while (!ready.isEmpty()) {
+        Iterator<BytesKey> iterator = ready.iterator();
+        BytesKey key = iterator.next();
+        iterator.remove();
+        Set<Waiter> waiters = waiting.get(key);
+        if (waiters == null) continue;
+        for (Waiter waiter : new ArrayList<Waiter>(waiters)) {
+          // An earlier waiter may have consumed the key or served this one
+          if (waiter.blocked == null) continue;
+          Reply reply;
+          try {
+            reply = handler.dispatch(waiter.blocked.command.getName(), waiter.blocked.command);
+          } catch (RedisException e) {
+            reply = new ErrorReply("ERR " + e.getMessage());
+          }
+          if (!(reply instanceof Blocked)) {
+            unblock(waiter, reply);
+          }
+        }
+      }
+    } finally {
+      serving = false;
+    }
+  }
+
+  private void unblock(Waiter waiter, Reply reply) {
+    remove(waiter);
+    ChannelHandlerContext ctx = waiter.ctx;
+    handler.reply(ctx, reply);
+    // Carry on with the commands that arrived in the meantime until one blocks again
+    List<Command> queued = new ArrayList<Command>(waiter.queued);
+    waiter.queued.clear();
+    for (Command command : queued) {
+      try {
+        handler.channelRead0(ctx, command);
+      } catch (Exception e) {
+        ctx.fireExceptionCaught(e);
+      }
+    }
+    if (waiter.blocked == null) {
+      ctx.channel().config().setAutoRead(true);
+    }
+    try {
+      handler.channelReadComplete(ctx);
+    } catch (Exception e) {
+      ctx.fireExceptionCaught(e);
+    }
+  }
+
+  private Waiter waiter(ChannelHandlerContext ctx) {
+    Waiter waiter = ctx.channel().attr(WAITER).get();
+    if (waiter == null) {
+      ctx.channel().attr(WAITER).set(waiter = new Waiter(ctx));
+      final Waiter closing = waiter;
+      ctx.channel().closeFuture().addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              if (closing.blocked != null) {
+                remove(closing);
+              }
+            }
+          });
+        }
+      });
+    }
+    return waiter;
+  }
+
+  private void remove(Waiter waiter) {
+    for (byte[] key : waiter.blocked.keys) {
+      BytesKey bytesKey = new BytesKey(key);
+      Set<Waiter> waiters = waiting.get(bytesKey);
+      if (waiters != null) {
+        waiters.remove(waiter);
+        if (waiters.isEmpty()) {
+          waiting.remove(bytesKey);
+        }
+      }
+    }
+    if (waiter.timeout != null) {
+      waiter.timeout.cancel(false);
+      waiter.timeout = null;
+    }
+    waiter.blocked = null;
+  }
+}
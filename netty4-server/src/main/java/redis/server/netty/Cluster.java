@@ -0,0 +1,551 @@
+package redis.server.netty;
+
+import com.google.common.base.Charsets;
+import io.netty.util.concurrent.EventExecutor;
+import redis.RedisProtocol;
+import redis.netty4.BulkReply;
+import redis.netty4.ErrorReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+import redis.util.BytesKey;
+import redis.util.CRC16;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static redis.netty4.IntegerReply.integer;
+import static redis.util.CRC16.SLOTS;
+
+/**
+ * Cluster membership and hash slot ownership as seen by one node. Keys are
+ * mapped to one of 16384 slots with CRC16 and commands for slots owned by
+ * another node are answered with MOVED, or ASK while a slot is migrating.
+ * <p/>
+ * Nodes find each other with CLUSTER MEET and announce the slots they own
+ * with CLUSTER HELLO over the normal client port whenever that changes. The
+ * state is only touched from the command executor, all network traffic
+ * between nodes happens on the bus thread.
+ */
+public class Cluster {
+  static final ErrorReply CROSSSLOT = new ErrorReply("CROSSSLOT Keys in request don't hash to the same slot");
+  static final ErrorReply TRYAGAIN = new ErrorReply("TRYAGAIN Multiple keys request during rehashing of slot");
+  static final ErrorReply CLUSTERDOWN = new ErrorReply("CLUSTERDOWN Hash slot not served");
+  private static final SecureRandom random = new SecureRandom();
+
+  // first key, last key (negative counts from the end) and step for each command with keys
+  private static final Map<BytesKey, int[]> KEY_SPECS = new HashMap<BytesKey, int[]>();
+
+  static {
+    keys(new int[]{1, 1, 1}, "append", "bitcount", "bitfield", "bitpos", "decr", "decrby", "get", "getbit",
+            "getrange", "getset", "incr", "incrby", "incrbyfloat", "psetex", "set", "setbit", "setex", "setnx", "setrange", "strlen",
+            "lindex", "linsert", "llen", "lpop", "lpush", "lpushx", "lrange", "lrem", "lset", "ltrim", "rpop",
+            "rpush", "rpushx", "dump", "exists", "expire", "expireat", "move", "persist", "pexpire", "pexpireat",
+            "pttl", "restore", "sort", "ttl", "type", "hdel", "hexists", "hget", "hgetall", "hincrby",
+            "hincrbyfloat", "hkeys", "hlen", "hmget", "hmset", "hset", "hsetnx", "hvals", "sadd", "scard",
+            "sismember", "smembers", "spop", "srandmember", "srem", "zadd", "zcard", "zcount", "zincrby", "zrange",
+            "zrangebyscore", "zrank", "zrem", "zremrangebyrank", "zremrangebyscore", "zrevrange",
+            "zrevrangebyscore", "zrevrank", "zscore", "pfadd", "xadd", "xlen", "xrange", "xrevrange", "xtrim");
+    keys(new int[]{1, -1, 1}, "mget", "del", "sdiff", "sinter", "sunion", "sdiffstore", "sinterstore",
+            "sunionstore", "watch", "pfcount", "pfmerge");
+    keys(new int[]{1, -1, 2}, "mset", "msetnx");
+    keys(new int[]{1, 2, 1}, "rename", "renamenx", "rpoplpush", "brpoplpush", "smove");
+    keys(new int[]{1, -2, 1}, "blpop", "brpop");
+    keys(new int[]{2, -1, 1}, "bitop");
+  }
+
+  private static void keys(int[] spec, String... names) {
+    for (String name : names) {
+      KEY_SPECS.put(new BytesKey(name.getBytes()), spec);
+    }
+  }
+
+  private static final BytesKey ZUNIONSTORE = new BytesKey("zunionstore".getBytes());
+  private static final BytesKey ZINTERSTORE = new BytesKey("zinterstore".getBytes());
+  private static final BytesKey SINTERCARD = new BytesKey("sintercard".getBytes());
+  private static final BytesKey XREAD = new BytesKey("xread".getBytes());
+  private static final BytesKey EVAL = new BytesKey("eval".getBytes());
+  private static final BytesKey EVALSHA = new BytesKey("evalsha".getBytes());
+
+  static class Node {
+    final String id;
+    final String host;
+    final int port;
+
+    Node(String id, String host, int port) {
+      this.id = id;
+      this.host = host;
+      this.port = port;
+    }
+
+    String address() {
+      return host + ":" + port;
+    }
+  }
+
+  private final SimpleRedisServer server;
+  private final EventExecutor executor;
+  private final Node myself;
+  private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+  private final Node[] owners = new Node[SLOTS];
+  private final Node[] migrating = new Node[SLOTS];
+  private final Node[] importing = new Node[SLOTS];
+  private final ExecutorService bus = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "cluster-bus");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  // Only used on the bus thread
+  private final Map<String, RedisProtocol> links = new HashMap<String, RedisProtocol>();
+
+  public Cluster(SimpleRedisServer server, EventExecutor executor, String host, int port) {
+    this.server = server;
+    this.executor = executor;
+    myself = new Node(newNodeId(), host, port);
+    nodes.put(myself.id, myself);
+    server.setCluster(this);
+  }
+
+  /**
+   * The keys of a command according to its key spec.
+   */
+  static List<byte[]> keys(byte[] name, Object[] objects) {
+    BytesKey command = new BytesKey(name);
+    if (command.equals(ZUNIONSTORE) || command.equals(ZINTERSTORE)) {
+      if (objects.length < 3) return Collections.emptyList();
+      List<byte[]> keys = new ArrayList<byte[]>();
+      keys.add((byte[]) objects[1]);
+      return numkeys(keys, objects, 2);
+    }
+    if (command.equals(SINTERCARD)) {
+      if (objects.length < 2) return Collections.emptyList();
+      return numkeys(new ArrayList<byte[]>(), objects, 1);
+    }
+    if (command.equals(EVAL) || command.equals(EVALSHA)) {
+      if (objects.length < 3) return Collections.emptyList();
+      return numkeys(new ArrayList<byte[]>(), objects, 2);
+    }
+    if (command.equals(XREAD)) {
+      // The first half of everything after STREAMS
+      for (int i = 1; i < objects.length; i++) {
+        if (new String((byte[]) objects[i], Charsets.US_ASCII).equalsIgnoreCase("streams")) {
+          List<byte[]> keys = new ArrayList<byte[]>();
+          int numkeys = (objects.length - i - 1) / 2;
+          for (int j = i + 1; j <= i + numkeys; j++) {
+            keys.add((byte[]) objects[j]);
+          }
+          return keys;
+        }
+      }
+      return Collections.emptyList();
+    }
+    int[] spec = KEY_SPECS.get(command);
+    if (spec == null || objects.length <= spec[0]) {
+      return Collections.emptyList();
+    }
+    int last = spec[1] < 0 ? objects.length + spec[1] : Math.min(spec[1], objects.length - 1);
+    List<byte[]> keys = new ArrayList<byte[]>();
+    for (int i = spec[0]; i <= last; i += spec[2]) {
+      keys.add((byte[]) objects[i]);
+    }
+    return keys;
+  }
+
+  /**
+   * Add the keys that follow a numkeys argument.
+   */
+  private static List<byte[]> numkeys(List<byte[]> keys, Object[] objects, int position) {
+    try {
+      int numkeys = Integer.parseInt(new String((byte[]) objects[position], Charsets.US_ASCII));
+      for (int i = position + 1; i <= position + numkeys && i < objects.length; i++) {
+        keys.add((byte[]) objects[i]);
+      }
+    } catch (NumberFormatException e) {
+      // The command will report it
+    }
+    return keys;
+  }
+
+  /**
+   * Decide whether this node can serve the command.
+   *
+   * @return null if it can, otherwise the redirection or error to reply with
+   */
+  Reply redirect(byte[] name, Object[] objects, boolean asking) {
+    List<byte[]> keys = keys(name, objects);
+    if (keys.isEmpty()) return null;
+    int slot = -1;
+    for (byte[] key : keys) {
+      int keySlot = CRC16.slot(key);
+      if (slot == -1) {
+        slot = keySlot;
+      } else if (slot != keySlot) {
+        return CROSSSLOT;
+      }
+    }
+    Node owner = owners[slot];
+    if (owner == null) {
+      return CLUSTERDOWN;
+    }
+    if (owner == myself) {
+      Node target = migrating[slot];
+      if (target != null) {
+        int missing = missing(keys);
+        if (missing == keys.size()) {
+          return new ErrorReply("ASK " + slot + " " + target.address());
+        } else if (missing > 0) {
+          return TRYAGAIN;
+        }
+      }
+      return null;
+    }
+    if (asking && importing[slot] != null) {
+      if (keys.size() > 1 && missing(keys) > 0) {
+        return TRYAGAIN;
+      }
+      return null;
+    }
+    return new ErrorReply("MOVED " + slot + " " + owner.address());
+  }
+
+  private int missing(List<byte[]> keys) {
+    int missing = 0;
+    for (byte[] key : keys) {
+      if (!server.contains(key)) missing++;
+    }
+    return missing;
+  }
+
+  String myId() {
+    return myself.id;
+  }
+
+  /**
+   * CLUSTER SLOTS: contiguous slot ranges and the node serving them.
+   */
+  MultiBulkReply slots() {
+    List<Reply> ranges = new ArrayList<Reply>();
+    int start = 0;
+    for (int slot = 1; slot <= SLOTS; slot++) {
+      if (slot == SLOTS || owners[slot] != owners[start]) {
+        Node owner = owners[start];
+        if (owner != null) {
+          ranges.add(new MultiBulkReply(new Reply[]{
+                  integer(start),
+                  integer(slot - 1),
+                  new MultiBulkReply(new Reply[]{
+                          new BulkReply(owner.host.getBytes(Charsets.US_ASCII)),
+                          integer(owner.port),
+                          new BulkReply(owner.id.getBytes(Charsets.US_ASCII))
+                  })
+          }));
+        }
+        start = slot;
+      }
+    }
+    return new MultiBulkReply(ranges.toArray(new Reply[ranges.size()]));
+  }
+
+  /**
+   * CLUSTER NODES: one line per node in the Redis format.
+   */
+  String nodes() {
+    StringBuilder sb = new StringBuilder();
+    for (Node node : nodes.values()) {
+      sb.append(node.id).append(" ").append(node.address()).append("@").append(node.port + 10000).append(" ");
+      sb.append(node == myself ? "myself,master" : "master").append(" - 0 0 0 connected");
+      for (int[] range : ranges(node)) {
+        sb.append(" ").append(range[0]);
+        if (range[1] != range[0]) {
+          sb.append("-").append(range[1]);
+        }
+      }
+      if (node == myself) {
+        for (int slot = 0; slot < SLOTS; slot++) {
+          if (migrating[slot] != null) {
+            sb.append(" [").append(slot).append("->-").append(migrating[slot].id).append("]");
+          }
+          if (importing[slot] != null) {
+            sb.append(" [").append(slot).append("-<-").append(importing[slot].id).append("]");
+          }
+        }
+      }
+      sb.append("\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * CLUSTER INFO
+   */
+  String info() {
+    int assigned = 0;
+    for (Node owner : owners) {
+      if (owner != null) assigned++;
+    }
+    int size = 0;
+    for (Node node : nodes.values()) {
+      if (!ranges(node).isEmpty()) size++;
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append("cluster_state:").append(assigned == SLOTS ? "ok" : "fail").append("\n");
+    sb.append("cluster_slots_assigned:").append(assigned).append("\n");
+    sb.append("cluster_known_nodes:").append(nodes.size()).append("\n");
+    sb.append("cluster_size:").append(size).append("\n");
+    return sb.toString();
+  }
+
+  void addSlots(int[] slots) throws RedisException {
+    for (int slot : slots) {
+      if (owners[slot] != null) {
+        throw new RedisException("Slot " + slot + " is already busy");
+      }
+    }
+    for (int slot : slots) {
+      owners[slot] = myself;
+    }
+    announce();
+  }
+
+  void delSlots(int[] slots) throws RedisException {
+    for (int slot : slots) {
+      if (owners[slot] == null) {
+        throw new RedisException("Slot " + slot + " is already unassigned");
+      }
+    }
+    for (int slot : slots) {
+      owners[slot] = null;
+      migrating[slot] = null;
+      importing[slot] = null;
+    }
+    announce();
+  }
+
+  void setSlot(int slot, String subcommand, String nodeId) throws RedisException {
+    if (subcommand.equalsIgnoreCase("stable")) {
+      migrating[slot] = null;
+      importing[slot] = null;
+      return;
+    }
+    Node node = nodes.get(nodeId);
+    if (node == null) {
+      throw new RedisException("I don't know about node " + nodeId);
+    }
+    if (subcommand.equalsIgnoreCase("migrating")) {
+      if (owners[slot] != myself) {
+        throw new RedisException("I'm not the owner of hash slot " + slot);
+      }
+      migrating[slot] = node;
+    } else if (subcommand.equalsIgnoreCase("importing")) {
+      if (owners[slot] == myself) {
+        throw new RedisException("I'm already the owner of hash slot " + slot);
+      }
+      importing[slot] = node;
+    } else if (subcommand.equalsIgnoreCase("node")) {
+      if (owners[slot] == myself && node != myself && server.countKeysInSlot(slot) > 0) {
+        throw new RedisException("Can't assign hashslot " + slot + " to a different node while I still hold keys for this hash slot.");
+      }
+      owners[slot] = node;
+      migrating[slot] = null;
+      importing[slot] = null;
+      if (node == myself) {
+        announce();
+      }
+    } else {
+      throw new RedisException("Invalid CLUSTER SETSLOT action or number of arguments");
+    }
+  }
+
+  /**
+   * Another node describing itself and the slots it serves.
+   *
+   * @return our own description
+   */
+  Reply hello(byte[][] arguments) throws RedisException {
+    if (arguments.length < 3) {
+      throw new RedisException("wrong number of arguments for 'cluster hello' command");
+    }
+    Node node = learn(new String(arguments[0], Charsets.US_ASCII), new String(arguments[1], Charsets.US_ASCII),
+            Integer.parseInt(new String(arguments[2], Charsets.US_ASCII)));
+    boolean[] claimed = new boolean[SLOTS];
+    for (int i = 3; i < arguments.length; i++) {
+      String range = new String(arguments[i], Charsets.US_ASCII);
+      int dash = range.indexOf('-');
+      int start = Integer.parseInt(dash == -1 ? range : range.substring(0, dash));
+      int end = dash == -1 ? start : Integer.parseInt(range.substring(dash + 1));
+      for (int slot = start; slot <= end; slot++) {
+        claimed[slot] = true;
+      }
+    }
+    for (int slot = 0; slot < SLOTS; slot++) {
+      if (claimed[slot]) {
+        // We only give up our own slot if we were migrating it to them
+        if (owners[slot] != myself || migrating[slot] == node) {
+          owners[slot] = node;
+          migrating[slot] = null;
+          importing[slot] = null;
+        }
+      } else if (owners[slot] == node) {
+        owners[slot] = null;
+      }
+    }
+    Object[] description = describe();
+    Reply[] replies = new Reply[description.length - 2];
+    for (int i = 2; i < description.length; i++) {
+      replies[i - 2] = new BulkReply(((String) description[i]).getBytes(Charsets.US_ASCII));
+    }
+    return new MultiBulkReply(replies);
+  }
+
+  /**
+   * Handshake with another node on the bus thread.
+   */
+  void meet(final String host, final int port) {
+    for (Node node : nodes.values()) {
+      if (node.host.equals(host) && node.port == port) return;
+    }
+    final Object[] hello = describe();
+    bus.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          redis.reply.Reply reply = send(host + ":" + port, hello);
+          if (!(reply instanceof redis.reply.MultiBulkReply)) {
+            throw new IOException("Unexpected reply to CLUSTER HELLO: " + reply.data());
+          }
+          redis.reply.Reply[] fields = ((redis.reply.MultiBulkReply) reply).data();
+          final byte[][] arguments = new byte[fields.length][];
+          for (int i = 0; i < fields.length; i++) {
+            arguments[i] = (byte[]) fields[i].data();
+          }
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                hello(arguments);
+              } catch (RedisException e) {
+                System.err.println("Invalid description from " + host + ":" + port + ": " + e.getMessage());
+              }
+            }
+          });
+        } catch (IOException e) {
+          System.err.println("Failed to meet " + host + ":" + port + ": " + e);
+        }
+      }
+    });
+  }
+
+  private Node learn(String id, String host, int port) {
+    Node node = nodes.get(id);
+    if (node == null) {
+      node = new Node(id, host, port);
+      // Introduce the new node to everyone else we know
+      for (Node other : nodes.values()) {
+        if (other != myself) {
+          sendLater(other.address(), new Object[]{"cluster", "meet", host, String.valueOf(port)});
+        }
+      }
+      nodes.put(id, node);
+    }
+    return node;
+  }
+
+  /**
+   * Tell every known node which slots we serve.
+   */
+  private void announce() {
+    Object[] hello = describe();
+    for (Node node : nodes.values()) {
+      if (node != myself) {
+        sendLater(node.address(), hello);
+      }
+    }
+  }
+
+  private Object[] describe() {
+    List<Object> hello = new ArrayList<Object>();
+    hello.add("cluster");
+    hello.add("hello");
+    hello.add(myself.id);
+    hello.add(myself.host);
+    hello.add(String.valueOf(myself.port));
+    for (int[] range : ranges(myself)) {
+      hello.add(range[0] == range[1] ? String.valueOf(range[0]) : range[0] + "-" + range[1]);
+    }
+    return hello.toArray();
+  }
+
+  private List<int[]> ranges(Node node) {
+    List<int[]> ranges = new ArrayList<int[]>();
+    int start = -1;
+    for (int slot = 0; slot <= SLOTS; slot++) {
+      boolean owned = slot < SLOTS && owners[slot] == node;
+      if (owned && start == -1) {
+        start = slot;
+      } else if (!owned && start != -1) {
+        ranges.add(new int[]{start, slot - 1});
+        start = -1;
+      }
+    }
+    return ranges;
+  }
+
+  private void sendLater(final String address, final Object[] command) {
+    bus.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          send(address, command);
+        } catch (IOException e) {
+          System.err.println("Failed to reach cluster node " + address + ": " + e);
+        }
+      }
+    });
+  }
+
+  private redis.reply.Reply send(String address, Object[] command) throws IOException {
+    RedisProtocol link = links.get(address);
+    try {
+      if (link == null) {
+        int colon = address.lastIndexOf(':');
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        link = new RedisProtocol(socket);
+        links.put(address, link);
+      }
+      link.sendAsync(new redis.Command(command));
+      return link.receiveAsync();
+    } catch (IOException e) {
+      links.remove(address);
+      if (link != null) {
+        link.close();
+      }
+      throw e;
+    }
+  }
+
+  void close() {
+    bus.shutdownNow();
+  }
+
+  private static String newNodeId() {
+    StringBuilder sb = new StringBuilder(40);
+    for (int i = 0; i < 40; i++) {
+      sb.append(Character.forDigit(random.nextInt(16), 16));
+    }
+    return sb.toString();
+  }
+}
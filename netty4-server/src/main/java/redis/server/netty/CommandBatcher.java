@@ -0,0 +1,42 @@
+package redis.server.netty;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import redis.netty4.Command;
+
+import java.util.ArrayList;
+
+/**
+ * Collect the commands decoded from a read so that they reach the command
+ * executor in a single task rather than one task each. The command handler
+ * completes the batch itself so the end of the read is not passed on, nor is
+ * a read that did not complete a command.
+ */
+class CommandBatcher extends ChannelInboundHandlerAdapter {
+
+  static class Batch extends ArrayList<Command> {
+  }
+
+  private Batch batch;
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof Command) {
+      if (batch == null) {
+        batch = new Batch();
+      }
+      batch.add((Command) msg);
+    } else {
+      ctx.fireChannelRead(msg);
+    }
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    if (batch != null) {
+      Batch commands = batch;
+      batch = null;
+      ctx.fireChannelRead(commands);
+    }
+  }
+}
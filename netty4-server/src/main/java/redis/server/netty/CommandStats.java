@@ -0,0 +1,49 @@
+package redis.server.netty;
+
+import redis.util.BytesKey;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Calls and time spent per command for INFO commandstats. Every dispatched
+ * command is counted, including the ones called by scripts. Only touched on
+ * the command executor.
+ */
+class CommandStats {
+  // Calls and nanoseconds
+  private final Map<BytesKey, long[]> stats = new HashMap<BytesKey, long[]>();
+
+  CommandStats(SimpleRedisServer server, RedisCommandHandler handler) {
+    server.setCommandStats(this);
+    handler.setCommandStats(this);
+  }
+
+  void record(byte[] name, long nanos) {
+    BytesKey key = new BytesKey(name);
+    long[] counters = stats.get(key);
+    if (counters == null) {
+      stats.put(key, counters = new long[2]);
+    }
+    counters[0]++;
+    counters[1] += nanos;
+  }
+
+  void reset() {
+    stats.clear();
+  }
+
+  void append(StringBuilder sb) {
+    Map<String, long[]> sorted = new TreeMap<String, long[]>();
+    for (Map.Entry<BytesKey, long[]> entry : stats.entrySet()) {
+      sorted.put(new String(entry.getKey().getBytes()), entry.getValue());
+    }
+    for (Map.Entry<String, long[]> entry : sorted.entrySet()) {
+      long calls = entry.getValue()[0];
+      long usec = entry.getValue()[1] / 1000;
+      sb.append("cmdstat_").append(entry.getKey()).append(":calls=").append(calls).append(",usec=").append(usec)
+              .append(",usec_per_call=").append(String.format("%.2f", (double) usec / calls)).append("\n");
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package redis.server.netty;
+
+import redis.util.BytesKey;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Keyspace notifications. The server queues an event from its write paths
+ * only after a single test of the configured flags against the event's class.
+ * Events are coalesced until the batch of commands that caused them completes
+ * and are then published on the __keyspace@0__ and __keyevent@0__ channels.
+ */
+class KeyspaceEvents {
+  static final int KEYSPACE = 1;
+  static final int KEYEVENT = 1 << 1;
+  static final int GENERIC = 1 << 2;
+  static final int STRING = 1 << 3;
+  static final int LIST = 1 << 4;
+  static final int SET = 1 << 5;
+  static final int HASH = 1 << 6;
+  static final int ZSET = 1 << 7;
+  static final int EXPIRED = 1 << 8;
+  static final int EVICTED = 1 << 9;
+  static final int STREAM = 1 << 10;
+  static final int ALL = GENERIC | STRING | LIST | SET | HASH | ZSET | EXPIRED | EVICTED | STREAM;
+
+  private static final String FLAGS = "KEg$lshzxet";
+  private static final byte[] KEYSPACE_PREFIX = "__keyspace@0__:".getBytes();
+  private static final byte[] KEYEVENT_PREFIX = "__keyevent@0__:".getBytes();
+
+  private final Set<Event> pending = new LinkedHashSet<Event>();
+
+  private static class Event {
+    final int flags;
+    final byte[] event;
+    final BytesKey key;
+
+    Event(int flags, byte[] event, byte[] key) {
+      this.flags = flags;
+      this.event = event;
+      this.key = new BytesKey(key);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Event)) return false;
+      Event other = (Event) o;
+      return event == other.event && flags == other.flags && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() * 31 + System.identityHashCode(event);
+    }
+  }
+
+  /**
+   * Parse the notify-keyspace-events flags. Unless events go to at least one
+   * of the keyspace or keyevent channels nothing is enabled, so the write
+   * paths only ever have to test the class of the event.
+   */
+  static int parse(String value) throws RedisException {
+    int flags = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == 'A') {
+        flags |= ALL;
+      } else {
+        int index = FLAGS.indexOf(c);
+        if (index == -1) {
+          throw new RedisException("Invalid argument '" + value + "' for CONFIG SET 'notify-keyspace-events'");
+        }
+        flags |= 1 << index;
+      }
+    }
+    if ((flags & (KEYSPACE | KEYEVENT)) == 0 || (flags & ALL) == 0) {
+      return 0;
+    }
+    return flags;
+  }
+
+  static String toString(int flags) {
+    StringBuilder sb = new StringBuilder();
+    if ((flags & ALL) == ALL) {
+      sb.append('A');
+      flags &= ~ALL;
+    }
+    for (int i = 0; i < FLAGS.length(); i++) {
+      if ((flags & (1 << i)) != 0) {
+        sb.append(FLAGS.charAt(i));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Queue an event. The event name must be a constant, repeats of the same
+   * event on the same key within a batch are only published once, in the
+   * position of the last one so the final change to a key is published last.
+   */
+  void add(int flags, byte[] event, byte[] key) {
+    Event added = new Event(flags, event, key);
+    pending.remove(added);
+    pending.add(added);
+  }
+
+  void publish(PubSub pubsub) {
+    if (pending.isEmpty()) return;
+    if (pubsub.hasSubscribers()) {
+      for (Event event : pending) {
+        byte[] key = event.key.getBytes();
+        if ((event.flags & KEYSPACE) != 0) {
+          pubsub.publish(concat(KEYSPACE_PREFIX, key), event.event);
+        }
+        if ((event.flags & KEYEVENT) != 0) {
+          pubsub.publish(concat(KEYEVENT_PREFIX, event.event), key);
+        }
+      }
+    }
+    pending.clear();
+  }
+
+  private static byte[] concat(byte[] prefix, byte[] suffix) {
+    byte[] bytes = new byte[prefix.length + suffix.length];
+    System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+    System.arraycopy(suffix, 0, bytes, prefix.length, suffix.length);
+    return bytes;
+  }
+}
@@ -2,15 +2,9 @@ package redis.server.netty;
 
 import com.sampullara.cli.Args;
 import com.sampullara.cli.Argument;
-import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.ChannelPipeline;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.util.concurrent.DefaultEventExecutorGroup;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Redis server
@@ -19,7 +13,22 @@ public class Main {
   @Argument(alias = "p")
   private static Integer port = 6380;
 
-  public static void main(String[] args) throws InterruptedException {
+  @Argument(description = "Also listen on this Unix domain socket, only there with port 0")
+  private static String unixsocket;
+
+  @Argument(description = "Keep the keyspace in this memory mapped file and reattach to it on restart")
+  private static String arena;
+
+  @Argument(description = "Count calls and time per command for INFO commandstats")
+  private static Boolean commandstats = false;
+
+  @Argument(description = "Replicate the master at host:port")
+  private static String replicaof;
+
+  @Argument(description = "Run as a cluster node")
+  private static Boolean cluster = false;
+
+  public static void main(String[] args) throws InterruptedException, IOException {
     try {
       Args.parse(Main.class, args);
     } catch (IllegalArgumentException e) {
@@ -27,37 +36,28 @@ public class Main {
       System.exit(1);
     }
 
-    // Only execute the command handler in a single thread
-    final RedisCommandHandler commandHandler = new RedisCommandHandler(new SimpleRedisServer());
-
-    // Configure the server.
-    ServerBootstrap b = new ServerBootstrap();
-    final DefaultEventExecutorGroup group = new DefaultEventExecutorGroup(1);
+    Server server = new Server(port, cluster);
+    if (unixsocket != null) {
+      server.unixSocket(new File(unixsocket));
+    }
+    if (arena != null) {
+      server.arena(new File(arena));
+    }
+    if (commandstats) {
+      server.commandStats();
+    }
     try {
-        b.group(new NioEventLoopGroup(), new NioEventLoopGroup())
-         .channel(NioServerSocketChannel.class)
-         .option(ChannelOption.SO_BACKLOG, 100)
-         .localAddress(port)
-         .childOption(ChannelOption.TCP_NODELAY, true)
-         .childHandler(new ChannelInitializer<SocketChannel>() {
-           @Override
-           public void initChannel(SocketChannel ch) throws Exception {
-             ChannelPipeline p = ch.pipeline();
-//             p.addLast(new ByteLoggingHandler(LogLevel.INFO));
-             p.addLast(new RedisCommandDecoder());
-             p.addLast(new RedisReplyEncoder());
-             p.addLast(group, commandHandler);
-           }
-         });
-
-        // Start the server.
-        ChannelFuture f = b.bind().sync();
-
-        // Wait until the server socket is closed.
-        f.channel().closeFuture().sync();
+      // Start the server.
+      server.start();
+      if (replicaof != null) {
+        int colon = replicaof.lastIndexOf(':');
+        server.replicaOf(replicaof.substring(0, colon), Integer.parseInt(replicaof.substring(colon + 1)));
+      }
+
+      // Wait until the server socket is closed.
+      server.awaitClose();
     } finally {
-        // Shut down all event loops to terminate all threads.
-      group.shutdownGracefully();
+      server.stop();
     }
   }
 }
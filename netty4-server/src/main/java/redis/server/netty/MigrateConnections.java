@@ -0,0 +1,95 @@
+package redis.server.netty;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Connections that MIGRATE keeps open to its targets so that moving many keys
+ * doesn't pay for a connect per call. Connections that have been idle for
+ * longer than IDLE are closed the next time a connection is requested. Only
+ * used from the command executor.
+ */
+class MigrateConnections {
+  static final long IDLE = 10000;
+
+  private final Map<String, Connection> connections = new HashMap<String, Connection>();
+
+  static class Connection {
+    final String target;
+    final Socket socket;
+    final OutputStream os;
+    final InputStream is;
+    long used;
+
+    Connection(String target, Socket socket) throws IOException {
+      this.target = target;
+      this.socket = socket;
+      os = new BufferedOutputStream(socket.getOutputStream());
+      is = new BufferedInputStream(socket.getInputStream());
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+
+  Connection get(String host, int port, int timeout) throws IOException {
+    long now = System.currentTimeMillis();
+    expire(now);
+    String target = host + ":" + port;
+    Connection connection = connections.get(target);
+    if (connection == null) {
+      Socket socket = new Socket();
+      try {
+        socket.connect(new InetSocketAddress(host, port), timeout);
+        socket.setTcpNoDelay(true);
+        connection = new Connection(target, socket);
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+      connections.put(target, connection);
+    }
+    connection.socket.setSoTimeout(timeout);
+    connection.used = now;
+    return connection;
+  }
+
+  /**
+   * Drop a connection that failed, its stream is in an unknown state.
+   */
+  void discard(Connection connection) {
+    connections.remove(connection.target);
+    connection.close();
+  }
+
+  void close() {
+    for (Connection connection : connections.values()) {
+      connection.close();
+    }
+    connections.clear();
+  }
+
+  private void expire(long now) {
+    Iterator<Connection> it = connections.values().iterator();
+    while (it.hasNext()) {
+      Connection connection = it.next();
+      if (now - connection.used > IDLE) {
+        it.remove();
+        connection.close();
+      }
+    }
+  }
+}
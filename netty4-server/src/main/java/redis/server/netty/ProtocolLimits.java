@@ -0,0 +1,77 @@
+package redis.server.netty;
+
+import java.util.Locale;
+
+/**
+ * Bounds on what a client may send, shared by the command decoders of all
+ * connections and set through CONFIG SET.
+ */
+class ProtocolLimits {
+  private volatile long maxBulkLength = 512 << 20;
+  private volatile long maxMultibulkLength = 1024 * 1024;
+  private volatile long queryBufferLimit = 1 << 30;
+
+  ProtocolLimits() {
+  }
+
+  ProtocolLimits(SimpleRedisServer server) {
+    server.setProtocolLimits(this);
+  }
+
+  /**
+   * proto-max-bulk-len, the longest argument.
+   */
+  long maxBulkLength() {
+    return maxBulkLength;
+  }
+
+  void setMaxBulkLength(long maxBulkLength) {
+    this.maxBulkLength = maxBulkLength;
+  }
+
+  /**
+   * proto-max-multibulk-len, the most arguments in a command.
+   */
+  long maxMultibulkLength() {
+    return maxMultibulkLength;
+  }
+
+  void setMaxMultibulkLength(long maxMultibulkLength) {
+    this.maxMultibulkLength = maxMultibulkLength;
+  }
+
+  /**
+   * client-query-buffer-limit, the most a connection may hold of a command
+   * that has not fully arrived.
+   */
+  long queryBufferLimit() {
+    return queryBufferLimit;
+  }
+
+  void setQueryBufferLimit(long queryBufferLimit) {
+    this.queryBufferLimit = queryBufferLimit;
+  }
+
+  /**
+   * Parse a size as CONFIG SET takes it, with an optional unit: 1k is 1000
+   * bytes and 1kb 1024.
+   */
+  static long memory(String value) {
+    String lower = value.toLowerCase(Locale.ENGLISH);
+    long unit = 1;
+    String[] units = {"kb", "mb", "gb", "k", "m", "g"};
+    long[] multipliers = {1 << 10, 1 << 20, 1 << 30, 1000, 1000 * 1000, 1000 * 1000 * 1000};
+    for (int i = 0; i < units.length; i++) {
+      if (lower.endsWith(units[i])) {
+        unit = multipliers[i];
+        lower = lower.substring(0, lower.length() - units[i].length());
+        break;
+      }
+    }
+    long size = Long.parseLong(lower);
+    if (size < 0) {
+      throw new NumberFormatException("Negative size: " + value);
+    }
+    return size * unit;
+  }
+}
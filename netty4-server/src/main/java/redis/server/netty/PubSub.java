@@ -0,0 +1,223 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import redis.netty4.BulkReply;
+import redis.netty4.ErrorReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+import redis.util.BytesKey;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static redis.netty4.IntegerReply.integer;
+
+/**
+ * Publish/subscribe. Subscriptions belong to connections so the commands are
+ * handled here rather than by the server. Every message is encoded once and
+ * shared by all of its subscribers, which are flushed once per batch of
+ * commands. All of the state is only touched on the command executor.
+ */
+class PubSub {
+  private static final byte[] SUBSCRIBE = "subscribe".getBytes();
+  private static final byte[] UNSUBSCRIBE = "unsubscribe".getBytes();
+  private static final byte[] PSUBSCRIBE = "psubscribe".getBytes();
+  private static final byte[] PUNSUBSCRIBE = "punsubscribe".getBytes();
+  private static final byte[] MESSAGE = "message".getBytes();
+  private static final byte[] PMESSAGE = "pmessage".getBytes();
+  private static final AttributeKey<Subscriptions> SUBSCRIPTIONS = new AttributeKey<Subscriptions>("subscriptions");
+
+  private final Map<BytesKey, Set<Channel>> channels = new HashMap<BytesKey, Set<Channel>>();
+  private final Map<BytesKey, Set<Channel>> patterns = new HashMap<BytesKey, Set<Channel>>();
+  private final Set<Channel> unflushed = new HashSet<Channel>();
+  private final KeyspaceEvents events;
+  private final RedisCommandHandler handler;
+  private final EventExecutor executor;
+
+  private static class Subscriptions {
+    final Set<BytesKey> channels = new LinkedHashSet<BytesKey>();
+    final Set<BytesKey> patterns = new LinkedHashSet<BytesKey>();
+
+    int count() {
+      return channels.size() + patterns.size();
+    }
+  }
+
+  PubSub(SimpleRedisServer server, RedisCommandHandler handler, EventExecutor executor) {
+    this.handler = handler;
+    this.executor = executor;
+    events = server.events();
+    server.setPubSub(this);
+    handler.setPubSub(this);
+  }
+
+  /**
+   * A subscribed connection may only change its subscriptions.
+   */
+  boolean subscribed(Channel channel) {
+    Subscriptions subscriptions = channel.attr(SUBSCRIPTIONS).get();
+    return subscriptions != null && subscriptions.count() > 0;
+  }
+
+  /**
+   * @return whether the command was a subscription command
+   */
+  boolean subscription(ChannelHandlerContext ctx, byte[] name, Object[] objects) {
+    boolean pattern;
+    boolean subscribe;
+    if (Arrays.equals(name, SUBSCRIBE)) {
+      pattern = false;
+      subscribe = true;
+    } else if (Arrays.equals(name, UNSUBSCRIBE)) {
+      pattern = false;
+      subscribe = false;
+    } else if (Arrays.equals(name, PSUBSCRIBE)) {
+      pattern = true;
+      subscribe = true;
+    } else if (Arrays.equals(name, PUNSUBSCRIBE)) {
+      pattern = true;
+      subscribe = false;
+    } else {
+      return false;
+    }
+    if (subscribe && objects.length < 2) {
+      handler.reply(ctx, new ErrorReply("ERR wrong number of arguments for '" + new String(name) + "' command"));
+      return true;
+    }
+    Channel channel = ctx.channel();
+    Subscriptions subscriptions = subscriptions(channel);
+    Set<BytesKey> mine = pattern ? subscriptions.patterns : subscriptions.channels;
+    Map<BytesKey, Set<Channel>> all = pattern ? patterns : channels;
+    List<BytesKey> targets = new ArrayList<BytesKey>();
+    if (objects.length > 1) {
+      for (int i = 1; i < objects.length; i++) {
+        targets.add(new BytesKey((byte[]) objects[i]));
+      }
+    } else {
+      // Unsubscribe from everything
+      targets.addAll(mine);
+      if (targets.isEmpty()) {
+        handler.reply(ctx, new MultiBulkReply(new Reply[]{new BulkReply(name), BulkReply.NIL_REPLY, integer(subscriptions.count())}));
+        return true;
+      }
+    }
+    for (BytesKey target : targets) {
+      if (subscribe) {
+        if (mine.add(target)) {
+          Set<Channel> subscribers = all.get(target);
+          if (subscribers == null) {
+            all.put(target, subscribers = new HashSet<Channel>());
+          }
+          subscribers.add(channel);
+        }
+      } else if (mine.remove(target)) {
+        remove(all, target, channel);
+      }
+      handler.reply(ctx, new MultiBulkReply(new Reply[]{new BulkReply(name), new BulkReply(target.getBytes()), integer(subscriptions.count())}));
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of subscribers that received the message
+   */
+  int publish(byte[] channel, byte[] message) {
+    int receivers = 0;
+    Set<Channel> subscribers = channels.get(new BytesKey(channel));
+    if (subscribers != null) {
+      receivers += send(subscribers, new MultiBulkReply(new Reply[]{
+              new BulkReply(MESSAGE), new BulkReply(channel), new BulkReply(message)}));
+    }
+    for (Map.Entry<BytesKey, Set<Channel>> entry : patterns.entrySet()) {
+      byte[] pattern = entry.getKey().getBytes();
+      if (SimpleRedisServer.matches(channel, pattern, 0, 0)) {
+        receivers += send(entry.getValue(), new MultiBulkReply(new Reply[]{
+                new BulkReply(PMESSAGE), new BulkReply(pattern), new BulkReply(channel), new BulkReply(message)}));
+      }
+    }
+    return receivers;
+  }
+
+  boolean hasSubscribers() {
+    return !channels.isEmpty() || !patterns.isEmpty();
+  }
+
+  /**
+   * Publish the keyspace events of the last batch and flush every subscriber
+   * that was written to.
+   */
+  void flush() {
+    events.publish(this);
+    if (unflushed.isEmpty()) return;
+    for (Channel subscriber : unflushed) {
+      subscriber.flush();
+    }
+    unflushed.clear();
+  }
+
+  private int send(Set<Channel> subscribers, Reply reply) {
+    ByteBuf buf = Unpooled.buffer();
+    try {
+      reply.write(buf);
+    } catch (IOException e) {
+      // Can't happen writing to a heap buffer
+      throw new AssertionError(e);
+    }
+    for (Channel subscriber : subscribers) {
+      subscriber.write(buf.duplicate().retain());
+      unflushed.add(subscriber);
+    }
+    buf.release();
+    return subscribers.size();
+  }
+
+  private Subscriptions subscriptions(final Channel channel) {
+    Subscriptions subscriptions = channel.attr(SUBSCRIPTIONS).get();
+    if (subscriptions == null) {
+      channel.attr(SUBSCRIPTIONS).set(subscriptions = new Subscriptions());
+      final Subscriptions closing = subscriptions;
+      channel.closeFuture().addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              for (BytesKey target : closing.channels) {
+                remove(channels, target, channel);
+              }
+              for (BytesKey target : closing.patterns) {
+                remove(patterns, target, channel);
+              }
+              unflushed.remove(channel);
+            }
+          });
+        }
+      });
+    }
+    return subscriptions;
+  }
+
+  private static void remove(Map<BytesKey, Set<Channel>> all, BytesKey target, Channel channel) {
+    Set<Channel> subscribers = all.get(target);
+    if (subscribers != null) {
+      subscribers.remove(channel);
+      if (subscribers.isEmpty()) {
+        all.remove(target);
+      }
+    }
+  }
+}
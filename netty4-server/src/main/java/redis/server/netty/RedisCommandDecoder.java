@@ -1,73 +1,261 @@
 package redis.server.netty;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import redis.netty4.Command;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import static redis.netty4.RedisReplyDecoder.readLong;
 
 /**
- * Decode commands.
+ * Decode commands. The headers of a command are checked against the protocol
+ * limits before anything is allocated for it, and a connection may not hold
+ * more than the query buffer limit of a command that has not fully arrived.
+ * <p/>
+ * Arguments up to BIG_ARG are read once they are complete. Longer ones are
+ * taken as they arrive so the cumulation buffer doesn't grow to hold them:
+ * up to DIRECT_ARG as a composite of the received chunks, which is copied
+ * once at the end, and beyond that straight into the array that becomes the
+ * value.
+ * <p/>
+ * A protocol error stops decoding. It is replied to after the commands that
+ * came before it and the connection is closed.
  */
-public class RedisCommandDecoder extends ReplayingDecoder<Void> {
+public class RedisCommandDecoder extends ByteToMessageDecoder {
+  static final int BIG_ARG = 32 * 1024;
+  static final int DIRECT_ARG = 1024 * 1024;
+  // Longest inline command or header line
+  private static final int MAX_LINE = 64 * 1024;
+  private static final int INITIAL_ARGUMENTS = 1024;
 
-  private byte[][] bytes;
-  private int arguments = 0;
+  /**
+   * Fired once the commands decoded before the error have been passed on.
+   */
+  static class ProtocolError {
+    final String message;
+
+    ProtocolError(String message) {
+      this.message = message;
+    }
+  }
+
+  private final ProtocolLimits limits;
+  private byte[][] arguments;
+  private int count;
+  private int index;
+  // Length of the argument being read, -1 until its header has been read
+  private int bulk = -1;
+  private CompositeByteBuf chunks;
+  private byte[] direct;
+  private int filled;
+  // Bytes held outside the cumulation buffer for the current command
+  private long held;
+  private String error;
+
+  public RedisCommandDecoder() {
+    this(new ProtocolLimits());
+  }
+
+  RedisCommandDecoder(ProtocolLimits limits) {
+    this.limits = limits;
+  }
 
   @Override
   protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-    if (bytes != null) {
-      int numArgs = bytes.length;
-      for (int i = arguments; i < numArgs; i++) {
-        if (in.readByte() == '$') {
-          long l = readLong(in);
-          if (l > Integer.MAX_VALUE) {
-            throw new IllegalArgumentException("Java only supports arrays up to " + Integer.MAX_VALUE + " in size");
-          }
-          int size = (int) l;
-          bytes[i] = new byte[size];
-          in.readBytes(bytes[i]);
-          if (in.bytesBefore((byte) '\r') != 0) {
-            throw new RedisException("Argument doesn't end in CRLF");
+    if (error != null) {
+      in.skipBytes(in.readableBytes());
+      return;
+    }
+    try {
+      while (in.isReadable() && decodeCommand(ctx, in, out)) {
+        // Next command
+      }
+      if (held + in.readableBytes() > limits.queryBufferLimit()) {
+        throw new ProtocolException("Closed for overcoming of query buffer limits");
+      }
+    } catch (ProtocolException e) {
+      fail(in, e.getMessage());
+    } catch (IOException e) {
+      fail(in, "Protocol error: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    super.channelReadComplete(ctx);
+    if (error != null) {
+      ctx.fireUserEventTriggered(new ProtocolError(error));
+    }
+  }
+
+  @Override
+  protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+    reset();
+  }
+
+  /**
+   * @return whether a whole command was decoded
+   */
+  private boolean decodeCommand(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws IOException {
+    if (arguments == null) {
+      if (in.getByte(in.readerIndex()) != '*') {
+        return decodeInline(in, out);
+      }
+      Long length = readHeader(in);
+      if (length == null) return false;
+      if (length > limits.maxMultibulkLength()) {
+        throw new ProtocolException("Protocol error: invalid multibulk length");
+      }
+      if (length <= 0) {
+        // Nothing to execute
+        return true;
+      }
+      count = length.intValue();
+      // Grow as arguments arrive rather than trusting the count
+      arguments = new byte[Math.min(count, INITIAL_ARGUMENTS)][];
+      index = 0;
+    }
+    while (index < count) {
+      if (bulk == -1) {
+        if (!in.isReadable()) return false;
+        byte marker = in.getByte(in.readerIndex());
+        if (marker != '$') {
+          throw new ProtocolException("Protocol error: expected '$', got '" + (char) marker + "'");
+        }
+        Long length = readHeader(in);
+        if (length == null) return false;
+        if (length < 0 || length > limits.maxBulkLength()) {
+          throw new ProtocolException("Protocol error: invalid bulk length");
+        }
+        bulk = length.intValue();
+        if (bulk >= DIRECT_ARG) {
+          held += bulk;
+          if (held > limits.queryBufferLimit()) {
+            throw new ProtocolException("Closed for overcoming of query buffer limits");
           }
-          in.skipBytes(2);
-          arguments++;
-          checkpoint();
-        } else {
-          throw new IOException("Unexpected character");
+          direct = new byte[bulk];
+          filled = 0;
+        } else if (bulk >= BIG_ARG) {
+          chunks = ctx.alloc().compositeBuffer(Integer.MAX_VALUE);
         }
       }
-      try {
-        out.add(new Command(bytes));
-      } finally {
-        bytes = null;
-        arguments = 0;
-      }
-    } else if (in.readByte() == '*') {
-      long l = readLong(in);
-      if (l > Integer.MAX_VALUE) {
-        throw new IllegalArgumentException("Java only supports arrays up to " + Integer.MAX_VALUE + " in size");
+      byte[] argument = readBulk(in);
+      if (argument == null) return false;
+      if (index == arguments.length) {
+        arguments = Arrays.copyOf(arguments, Math.min(count, arguments.length * 2));
       }
-      int numArgs = (int) l;
-      if (numArgs < 0) {
-        throw new RedisException("Invalid size: " + numArgs);
+      arguments[index++] = argument;
+      bulk = -1;
+    }
+    byte[][] command = arguments;
+    arguments = null;
+    held = 0;
+    out.add(new Command(command));
+    return true;
+  }
+
+  /**
+   * @return the argument or null if more has to arrive
+   */
+  private byte[] readBulk(ByteBuf in) throws IOException {
+    byte[] argument;
+    if (direct != null) {
+      int length = Math.min(in.readableBytes(), bulk - filled);
+      in.readBytes(direct, filled, length);
+      filled += length;
+      if (filled < bulk || in.readableBytes() < 2) return null;
+      argument = direct;
+    } else if (chunks != null) {
+      int length = Math.min(in.readableBytes(), bulk - chunks.writerIndex());
+      if (length > 0) {
+        chunks.addComponent(in.readSlice(length).retain());
+        chunks.writerIndex(chunks.writerIndex() + length);
+        held += length;
       }
-      bytes = new byte[numArgs][];
-      checkpoint();
-      decode(ctx, in, out);
+      if (chunks.writerIndex() < bulk || in.readableBytes() < 2) return null;
+      argument = new byte[bulk];
+      chunks.readBytes(argument);
     } else {
-      // Go backwards one
-      in.readerIndex(in.readerIndex() - 1);
-      // Read command -- can't be interupted
-      byte[][] b = new byte[1][];
-      b[0] = in.readBytes(in.bytesBefore((byte) '\r')).array();
-      in.skipBytes(2);
-      out.add(new Command(b, true));
+      if (in.readableBytes() < bulk + 2) return null;
+      argument = new byte[bulk];
+      in.readBytes(argument);
+      held += bulk;
+    }
+    if (in.readByte() != '\r' || in.readByte() != '\n') {
+      throw new ProtocolException("Protocol error: argument doesn't end in CRLF");
+    }
+    if (chunks != null) {
+      chunks.release();
+      chunks = null;
+    }
+    direct = null;
+    return argument;
+  }
+
+  /**
+   * Read a *count or $length line.
+   *
+   * @return the number or null if the line is incomplete
+   */
+  private Long readHeader(ByteBuf in) throws IOException {
+    int length = in.bytesBefore((byte) '\n');
+    if (length == -1) {
+      if (in.readableBytes() > MAX_LINE) {
+        throw new ProtocolException("Protocol error: too big count string");
+      }
+      return null;
     }
+    in.skipBytes(1);
+    return readLong(in);
   }
 
+  private boolean decodeInline(ByteBuf in, List<Object> out) throws ProtocolException {
+    int length = in.bytesBefore((byte) '\n');
+    if (length == -1) {
+      if (in.readableBytes() > MAX_LINE) {
+        throw new ProtocolException("Protocol error: too big inline request");
+      }
+      return false;
+    }
+    int end = length > 0 && in.getByte(in.readerIndex() + length - 1) == '\r' ? length - 1 : length;
+    if (end == 0) {
+      // Empty lines are ignored
+      in.skipBytes(length + 1);
+      return true;
+    }
+    byte[][] b = new byte[1][];
+    b[0] = new byte[end];
+    in.readBytes(b[0]);
+    in.skipBytes(length - end + 1);
+    out.add(new Command(b, true));
+    return true;
+  }
+
+  private void fail(ByteBuf in, String message) {
+    error = message;
+    in.skipBytes(in.readableBytes());
+    reset();
+  }
+
+  private void reset() {
+    if (chunks != null) {
+      chunks.release();
+      chunks = null;
+    }
+    direct = null;
+    arguments = null;
+    bulk = -1;
+    held = 0;
+  }
+
+  private static class ProtocolException extends IOException {
+    ProtocolException(String message) {
+      super(message);
+    }
+  }
 }
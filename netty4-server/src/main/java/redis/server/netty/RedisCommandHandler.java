@@ -2,21 +2,27 @@ package redis.server.netty;
 
 import com.google.common.base.Charsets;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.AttributeKey;
 import redis.netty4.Command;
 import redis.netty4.ErrorReply;
 import redis.netty4.InlineReply;
 import redis.netty4.Reply;
 import redis.util.BytesKey;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import static redis.netty4.ErrorReply.NYI_REPLY;
+import static redis.netty4.StatusReply.OK;
 import static redis.netty4.StatusReply.QUIT;
 
 /**
@@ -25,7 +31,23 @@ import static redis.netty4.StatusReply.QUIT;
 @ChannelHandler.Sharable
 public class RedisCommandHandler extends SimpleChannelInboundHandler<Command> {
 
+  private static final byte[] SYNC = "sync".getBytes();
+  private static final byte[] PSYNC = "psync".getBytes();
+  private static final byte[] REPLCONF = "replconf".getBytes();
+  private static final byte[] ASKING = "asking".getBytes();
+  private static final byte[] PING = "ping".getBytes();
+  private static final byte[] QUIT_NAME = "quit".getBytes();
+  private static final ErrorReply SUBSCRIBED = new ErrorReply("ERR only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT allowed in this context");
+  private static final AttributeKey<Boolean> ASKING_FLAG = new AttributeKey<Boolean>("asking");
+  private static final AttributeKey<ByteBuf> REPLIES = new AttributeKey<ByteBuf>("replies");
+
   private Map<BytesKey, Wrapper> methods = new HashMap<BytesKey, Wrapper>();
+  private Replication replication;
+  private Cluster cluster;
+  private PubSub pubsub;
+  private Blocking blocking;
+  private CommandStats stats;
+  private Arena arena;
 
   interface Wrapper {
     Reply execute(Command command) throws RedisException;
@@ -60,29 +82,135 @@ public class RedisCommandHandler extends SimpleChannelInboundHandler<Command> {
 
   private static final byte LOWER_DIFF = 'a' - 'A';
 
+  void setReplication(Replication replication) {
+    this.replication = replication;
+  }
+
+  void setCluster(Cluster cluster) {
+    this.cluster = cluster;
+  }
+
+  void setPubSub(PubSub pubsub) {
+    this.pubsub = pubsub;
+  }
+
+  void setBlocking(Blocking blocking) {
+    this.blocking = blocking;
+  }
+
+  void setCommandStats(CommandStats stats) {
+    this.stats = stats;
+  }
+
+  void setArena(Arena arena) {
+    this.arena = arena;
+  }
+
+  /**
+   * A batch of commands from one read is executed in a single task and its
+   * replies go back in a single write.
+   */
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof CommandBatcher.Batch) {
+      for (Command command : (CommandBatcher.Batch) msg) {
+        try {
+          channelRead0(ctx, command);
+        } catch (Exception e) {
+          ctx.fireExceptionCaught(e);
+        }
+      }
+      channelReadComplete(ctx);
+    } else {
+      super.channelRead(ctx, msg);
+    }
+  }
+
   @Override
   public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
-    ctx.flush();
+    // Changes are in the arena before they are acknowledged
+    if (arena != null) {
+      arena.flush();
+    }
+    if (replication != null) {
+      replication.flush();
+    }
+    ByteBuf replies = ctx.channel().attr(REPLIES).getAndRemove();
+    if (replies == null) {
+      ctx.flush();
+    } else {
+      ctx.writeAndFlush(replies);
+    }
+    // Messages and keyspace events of the whole batch go out after the replies
+    if (pubsub != null) {
+      pubsub.flush();
+    }
+  }
+
+  /**
+   * A protocol error is replied to after the commands before it and ends the
+   * connection.
+   */
+  @Override
+  public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+    if (evt instanceof RedisCommandDecoder.ProtocolError) {
+      reply(ctx, new ErrorReply("ERR " + ((RedisCommandDecoder.ProtocolError) evt).message));
+      ctx.writeAndFlush(ctx.channel().attr(REPLIES).getAndRemove()).addListener(ChannelFutureListener.CLOSE);
+    } else {
+      super.userEventTriggered(ctx, evt);
+    }
   }
 
   @Override
   protected void channelRead0(ChannelHandlerContext ctx, Command msg) throws Exception {
+    if (blocking != null && blocking.queue(ctx, msg)) {
+      return;
+    }
+    if (msg instanceof Scripting.Killed) {
+      reply(ctx, ((Scripting.Killed) msg).reply);
+      return;
+    }
     byte[] name = msg.getName();
-    for (int i = 0; i < name.length; i++) {
-      byte b = name[i];
-      if (b >= 'A' && b <= 'Z') {
-        name[i] = (byte) (b + LOWER_DIFF);
+    toLowerCase(name);
+    if (replication != null && replicate(ctx, name, msg)) {
+      return;
+    }
+    if (pubsub != null) {
+      if (pubsub.subscription(ctx, name, msg.getObjects())) {
+        return;
+      }
+      if (pubsub.subscribed(ctx.channel()) && !Arrays.equals(name, PING) && !Arrays.equals(name, QUIT_NAME)) {
+        reply(ctx, SUBSCRIBED);
+        return;
       }
     }
-    Wrapper wrapper = methods.get(new BytesKey(name));
+    if (cluster != null && Arrays.equals(name, ASKING)) {
+      ctx.channel().attr(ASKING_FLAG).set(true);
+      reply(ctx, OK);
+      return;
+    }
     Reply reply;
-    if (wrapper == null) {
-      reply = new ErrorReply("unknown command '" + new String(name, Charsets.US_ASCII) + "'");
+    Reply redirect = null;
+    if (cluster != null) {
+      // ASKING is only good for the next command
+      boolean asking = ctx.channel().attr(ASKING_FLAG).getAndRemove() != null;
+      redirect = cluster.redirect(name, msg.getObjects(), asking);
+    }
+    if (redirect != null) {
+      reply = redirect;
+    } else if (replication != null && replication.rejectsWrites() && Replication.isWrite(name)) {
+      reply = Replication.READONLY;
     } else {
-      reply = wrapper.execute(msg);
+      reply = dispatch(name, msg);
+      if (replication != null && !replication.isReplica() && Replication.isWrite(name)) {
+        replication.propagate(msg, reply);
+      }
     }
-    if (reply == QUIT) {
-      ctx.close();
+    if (reply instanceof Blocking.Blocked) {
+      blocking.block(ctx, (Blocking.Blocked) reply);
+    } else if (reply == QUIT) {
+      ByteBuf replies = ctx.channel().attr(REPLIES).getAndRemove();
+      ctx.writeAndFlush(replies == null ? Unpooled.EMPTY_BUFFER : replies).addListener(ChannelFutureListener.CLOSE);
     } else {
       if (msg.isInline()) {
         if (reply == null) {
@@ -94,7 +222,139 @@ public class RedisCommandHandler extends SimpleChannelInboundHandler<Command> {
       if (reply == null) {
         reply = NYI_REPLY;
       }
-      ctx.write(reply);
+      reply(ctx, reply);
+    }
+    if (blocking != null) {
+      blocking.serve();
+    }
+  }
+
+  /**
+   * Execute a command that did not arrive on a client connection, e.g. one
+   * from the replication stream.
+   */
+  Reply execute(Command command) throws RedisException {
+    byte[] name = command.getName();
+    toLowerCase(name);
+    Reply reply = dispatch(name, command);
+    if (blocking != null) {
+      blocking.serve();
+    }
+    if (arena != null) {
+      try {
+        arena.flush();
+      } catch (IOException e) {
+        throw new RedisException(e);
+      }
+    }
+    if (pubsub != null) {
+      pubsub.flush();
+    }
+    return reply;
+  }
+
+  Reply dispatch(byte[] name, Command command) throws RedisException {
+    Wrapper wrapper = methods.get(new BytesKey(name));
+    if (wrapper == null) {
+      // Commands with subcommands are implemented as command_subcommand
+      Object[] objects = command.getObjects();
+      if (objects != null && objects.length > 1) {
+        byte[] subcommand = (byte[]) objects[1];
+        byte[] method = new byte[name.length + 1 + subcommand.length];
+        System.arraycopy(name, 0, method, 0, name.length);
+        method[name.length] = '_';
+        System.arraycopy(subcommand, 0, method, name.length + 1, subcommand.length);
+        toLowerCase(method);
+        wrapper = methods.get(new BytesKey(method));
+        if (wrapper != null) {
+          command = new Command(Arrays.copyOfRange(objects, 1, objects.length));
+        }
+      }
+    }
+    if (wrapper == null) {
+      return new ErrorReply("unknown command '" + new String(name, Charsets.US_ASCII) + "'");
+    }
+    boolean write = arena != null && Replication.isWrite(name);
+    if (stats == null && !write) {
+      return wrapper.execute(command);
+    }
+    if (write) {
+      arena.beginWrite();
+    }
+    long start = System.nanoTime();
+    try {
+      return wrapper.execute(command);
+    } finally {
+      if (write) {
+        arena.endWrite();
+      }
+      if (stats != null) {
+        stats.record(name, System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * The replication handshake needs the connection itself rather than a reply.
+   */
+  private boolean replicate(ChannelHandlerContext ctx, byte[] name, Command msg) throws IOException {
+    if (Arrays.equals(name, REPLCONF)) {
+      reply(ctx, OK);
+    } else if (Arrays.equals(name, SYNC)) {
+      writeReplies(ctx);
+      replication.sync(ctx);
+    } else if (Arrays.equals(name, PSYNC)) {
+      Object[] objects = msg.getObjects();
+      if (objects.length != 3) {
+        reply(ctx, new ErrorReply("ERR wrong number of arguments for 'psync' command"));
+      } else {
+        try {
+          long offset = Long.parseLong(new String((byte[]) objects[2], Charsets.US_ASCII));
+          writeReplies(ctx);
+          replication.psync(ctx, new String((byte[]) objects[1], Charsets.US_ASCII), offset);
+        } catch (NumberFormatException e) {
+          reply(ctx, new ErrorReply("ERR value is not an integer or out of range"));
+        }
+      }
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Encode a reply on the command executor into the buffer of the connection
+   * that goes out at the end of the batch.
+   */
+  void reply(ChannelHandlerContext ctx, Reply reply) {
+    ByteBuf replies = ctx.channel().attr(REPLIES).get();
+    if (replies == null) {
+      ctx.channel().attr(REPLIES).set(replies = Unpooled.buffer());
+    }
+    try {
+      reply.write(replies);
+    } catch (IOException e) {
+      // Can't happen writing to a heap buffer
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Write out the replies so far ahead of anything written to the connection directly.
+   */
+  private static void writeReplies(ChannelHandlerContext ctx) {
+    ByteBuf replies = ctx.channel().attr(REPLIES).getAndRemove();
+    if (replies != null) {
+      ctx.write(replies);
+    }
+  }
+
+  private static void toLowerCase(byte[] name) {
+    for (int i = 0; i < name.length; i++) {
+      byte b = name[i];
+      if (b >= 'A' && b <= 'Z') {
+        name[i] = (byte) (b + LOWER_DIFF);
+      }
     }
   }
 }
@@ -41,6 +41,28 @@ public interface RedisServer {
    */
   public IntegerReply bitop(byte[] operation0, byte[] destkey1, byte[][] key2) throws RedisException;
 
+  /**
+   * Find first bit set or clear in a string
+   * String
+   *
+   * @param key0
+   * @param bit1
+   * @param start2
+   * @param end3
+   * @return IntegerReply
+   */
+  public IntegerReply bitpos(byte[] key0, byte[] bit1, byte[] start2, byte[] end3) throws RedisException;
+
+  /**
+   * Perform arbitrary bitfield integer operations on strings
+   * String
+   *
+   * @param key0
+   * @param operation1
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply bitfield(byte[] key0, byte[][] operation1) throws RedisException;
+
   /**
    * Decrement the integer value of a key by one
    * String
@@ -434,6 +456,16 @@ public interface RedisServer {
    */
   public StatusReply slaveof(byte[] host0, byte[] port1) throws RedisException;
 
+  /**
+   * Make the server a replica of another instance, or promote it as master
+   * Server
+   *
+   * @param host0
+   * @param port1
+   * @return StatusReply
+   */
+  public StatusReply replicaof(byte[] host0, byte[] port1) throws RedisException;
+
   /**
    * Manages the Redis slow queries log
    * Server
@@ -452,6 +484,123 @@ public interface RedisServer {
    */
   public Reply sync() throws RedisException;
 
+  /**
+   * Assign new hash slots to receiving node
+   * Cluster
+   *
+   * @param slot0
+   * @return StatusReply
+   */
+  public StatusReply cluster_addslots(byte[][] slot0) throws RedisException;
+
+  /**
+   * Assign new hash slot ranges to receiving node
+   * Cluster
+   *
+   * @param start_slot_or_end_slot0
+   * @return StatusReply
+   */
+  public StatusReply cluster_addslotsrange(byte[][] start_slot_or_end_slot0) throws RedisException;
+
+  /**
+   * Return the number of local keys in the specified hash slot
+   * Cluster
+   *
+   * @param slot0
+   * @return IntegerReply
+   */
+  public IntegerReply cluster_countkeysinslot(byte[] slot0) throws RedisException;
+
+  /**
+   * Set hash slots as unbound in receiving node
+   * Cluster
+   *
+   * @param slot0
+   * @return StatusReply
+   */
+  public StatusReply cluster_delslots(byte[][] slot0) throws RedisException;
+
+  /**
+   * Return local key names in the specified hash slot
+   * Cluster
+   *
+   * @param slot0
+   * @param count1
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply cluster_getkeysinslot(byte[] slot0, byte[] count1) throws RedisException;
+
+  /**
+   * Internal command used by cluster nodes to describe themselves and their slots
+   * Cluster
+   *
+   * @param node_id_host_port_slots0
+   * @return MultiBulkReply
+   */
+  public Reply cluster_hello(byte[][] node_id_host_port_slots0) throws RedisException;
+
+  /**
+   * Provides info about Redis Cluster node state
+   * Cluster
+   *
+   * @return BulkReply
+   */
+  public BulkReply cluster_info() throws RedisException;
+
+  /**
+   * Returns the hash slot of the specified key
+   * Cluster
+   *
+   * @param key0
+   * @return IntegerReply
+   */
+  public IntegerReply cluster_keyslot(byte[] key0) throws RedisException;
+
+  /**
+   * Force a node cluster to handshake with another node
+   * Cluster
+   *
+   * @param ip0
+   * @param port1
+   * @return StatusReply
+   */
+  public StatusReply cluster_meet(byte[] ip0, byte[] port1) throws RedisException;
+
+  /**
+   * Return the node id
+   * Cluster
+   *
+   * @return BulkReply
+   */
+  public BulkReply cluster_myid() throws RedisException;
+
+  /**
+   * Get Cluster config for the node
+   * Cluster
+   *
+   * @return BulkReply
+   */
+  public BulkReply cluster_nodes() throws RedisException;
+
+  /**
+   * Bind a hash slot to a specific node
+   * Cluster
+   *
+   * @param slot0
+   * @param subcommand1
+   * @param node_id2
+   * @return StatusReply
+   */
+  public StatusReply cluster_setslot(byte[] slot0, byte[] subcommand1, byte[] node_id2) throws RedisException;
+
+  /**
+   * Get array of Cluster slot to node mappings
+   * Cluster
+   *
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply cluster_slots() throws RedisException;
+
   /**
    * Return the current server time
    * Server
@@ -697,9 +846,10 @@ public interface RedisServer {
    * @param key2
    * @param destination_db3
    * @param timeout4
+   * @param copy_replace_or_keys5
    * @return StatusReply
    */
-  public StatusReply migrate(byte[] host0, byte[] port1, byte[] key2, byte[] destination_db3, byte[] timeout4) throws RedisException;
+  public StatusReply migrate(byte[] host0, byte[] port1, byte[] key2, byte[] destination_db3, byte[] timeout4, byte[][] copy_replace_or_keys5) throws RedisException;
 
   /**
    * Move a key to another database
@@ -794,9 +944,10 @@ public interface RedisServer {
    * @param key0
    * @param ttl1
    * @param serialized_value2
+   * @param replace3
    * @return StatusReply
    */
-  public StatusReply restore(byte[] key0, byte[] ttl1, byte[] serialized_value2) throws RedisException;
+  public StatusReply restore(byte[] key0, byte[] ttl1, byte[] serialized_value2, byte[][] replace3) throws RedisException;
 
   /**
    * Sort the elements in a list, set or sorted set
@@ -1096,6 +1247,16 @@ public interface RedisServer {
    */
   public IntegerReply sinterstore(byte[] destination0, byte[][] key1) throws RedisException;
 
+  /**
+   * Count the members of the intersection of multiple sets
+   * Set
+   *
+   * @param numkeys0
+   * @param key1
+   * @return IntegerReply
+   */
+  public IntegerReply sintercard(byte[] numkeys0, byte[][] key1) throws RedisException;
+
   /**
    * Determine if a given value is a member of a set
    * Set
@@ -1347,4 +1508,95 @@ public interface RedisServer {
    * @return IntegerReply
    */
   public IntegerReply zunionstore(byte[] destination0, byte[] numkeys1, byte[][] key2) throws RedisException;
+
+  /**
+   * Adds the specified elements to the specified HyperLogLog.
+   * Hyperloglog
+   *
+   * @param key0
+   * @param element1
+   * @return IntegerReply
+   */
+  public IntegerReply pfadd(byte[] key0, byte[][] element1) throws RedisException;
+
+  /**
+   * Return the approximated cardinality of the set(s) observed by the HyperLogLog at key(s).
+   * Hyperloglog
+   *
+   * @param key0
+   * @return IntegerReply
+   */
+  public IntegerReply pfcount(byte[][] key0) throws RedisException;
+
+  /**
+   * Merge N different HyperLogLogs into a single one.
+   * Hyperloglog
+   *
+   * @param destkey0
+   * @param sourcekey1
+   * @return StatusReply
+   */
+  public StatusReply pfmerge(byte[] destkey0, byte[][] sourcekey1) throws RedisException;
+
+  /**
+   * Appends a new entry to a stream
+   * Stream
+   *
+   * @param key0
+   * @param args1
+   * @return BulkReply
+   */
+  public BulkReply xadd(byte[] key0, byte[][] args1) throws RedisException;
+
+  /**
+   * Return the number of entries in a stream
+   * Stream
+   *
+   * @param key0
+   * @return IntegerReply
+   */
+  public IntegerReply xlen(byte[] key0) throws RedisException;
+
+  /**
+   * Return a range of elements in a stream, with IDs matching the specified IDs interval
+   * Stream
+   *
+   * @param key0
+   * @param start1
+   * @param end2
+   * @param count3
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply xrange(byte[] key0, byte[] start1, byte[] end2, byte[][] count3) throws RedisException;
+
+  /**
+   * Return a range of elements in a stream, with IDs matching the specified IDs interval, in reverse order
+   * Stream
+   *
+   * @param key0
+   * @param end1
+   * @param start2
+   * @param count3
+   * @return MultiBulkReply
+   */
+  public MultiBulkReply xrevrange(byte[] key0, byte[] end1, byte[] start2, byte[][] count3) throws RedisException;
+
+  /**
+   * Trims the stream to (approximately if '~' is passed) a certain size
+   * Stream
+   *
+   * @param key0
+   * @param args1
+   * @return IntegerReply
+   */
+  public IntegerReply xtrim(byte[] key0, byte[][] args1) throws RedisException;
+
+  /**
+   * Return never seen elements in multiple streams, with IDs greater than the ones reported by the caller for each stream. Can block.
+   * Stream
+   *
+   * @param args0
+   * @return Reply
+   */
+  public Reply xread(byte[][] args0) throws RedisException;
 }
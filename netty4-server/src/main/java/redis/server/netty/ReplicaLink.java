@@ -0,0 +1,229 @@
+package redis.server.netty;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CountingInputStream;
+import redis.RedisProtocol;
+import redis.netty4.Command;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Connection from a replica to its master. Runs on its own thread, reading the
+ * snapshot and the command stream off the socket and handing each unit of work
+ * to the command executor. Reconnects with a partial resync when the
+ * connection drops.
+ */
+class ReplicaLink implements Runnable {
+  private static final int RETRY_DELAY = 1000;
+
+  private final Replication replication;
+  private final String host;
+  private final int port;
+  private final Thread thread;
+  private volatile boolean running = true;
+  private volatile Socket socket;
+
+  ReplicaLink(Replication replication, String host, int port) {
+    this.replication = replication;
+    this.host = host;
+    this.port = port;
+    thread = new Thread(this, "replica-of-" + host + ":" + port);
+    thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  boolean isFollowing(String host, int port) {
+    return this.host.equals(host) && this.port == port;
+  }
+
+  void close() {
+    running = false;
+    Socket current = socket;
+    if (current != null) {
+      try {
+        current.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port));
+        if (!running) break;
+        follow(socket);
+      } catch (Exception e) {
+        if (running) {
+          System.err.println("Lost connection to master " + host + ":" + port + ": " + e);
+        }
+      } finally {
+        close(socket);
+      }
+      if (running) {
+        try {
+          Thread.sleep(RETRY_DELAY);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+
+  private void follow(Socket socket) throws Exception {
+    CountingInputStream is = new CountingInputStream(new BufferedInputStream(socket.getInputStream()));
+    OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+    // We understand snapshots that are streamed without a length
+    send(os, "REPLCONF", "capa", "eof");
+    expectOk(RedisProtocol.receive(is));
+
+    String[] position = onExecutor(new Callable<String[]>() {
+      @Override
+      public String[] call() throws Exception {
+        if (replication.offset() == 0) {
+          return new String[]{"?", "-1"};
+        }
+        return new String[]{replication.replicationId(), String.valueOf(replication.offset() + 1)};
+      }
+    });
+    send(os, "PSYNC", position[0], position[1]);
+    String response = readLine(is);
+    if (response.startsWith("+FULLRESYNC ")) {
+      String[] parts = response.split(" ");
+      final String masterId = parts[1];
+      final long masterOffset = Long.parseLong(parts[2]);
+      final Snapshot snapshot = readSnapshot(is);
+      onExecutor(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          replication.loadSnapshot(ReplicaLink.this, masterId, masterOffset, snapshot);
+          return null;
+        }
+      });
+    } else if (response.startsWith("+CONTINUE")) {
+      final String masterId = response.length() > 10 ? response.substring(10) : position[0];
+      onExecutor(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          replication.continueFrom(ReplicaLink.this, masterId);
+          return null;
+        }
+      });
+    } else {
+      throw new IOException("Unexpected response to PSYNC: " + response);
+    }
+
+    while (running) {
+      Reply reply = RedisProtocol.receive(is);
+      if (!(reply instanceof MultiBulkReply)) {
+        throw new IOException("Unexpected reply in replication stream: " + reply);
+      }
+      Reply[] replies = ((MultiBulkReply) reply).data();
+      byte[][] arguments = new byte[replies.length][];
+      for (int i = 0; i < arguments.length; i++) {
+        arguments[i] = (byte[]) replies[i].data();
+      }
+      final Command command = new Command(arguments);
+      replication.executor().execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            replication.apply(ReplicaLink.this, command);
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * The snapshot is either a sized bulk or, when streamed, an EOF marker
+   * that is repeated after the data.
+   */
+  private Snapshot readSnapshot(CountingInputStream is) throws IOException {
+    String header = readLine(is);
+    if (!header.startsWith("$")) {
+      throw new IOException("Expected snapshot, got: " + header);
+    }
+    if (header.startsWith("$EOF:")) {
+      byte[] mark = header.substring(5).getBytes(Charsets.US_ASCII);
+      Snapshot snapshot = Snapshot.read(is);
+      byte[] end = new byte[mark.length];
+      new DataInputStream(is).readFully(end);
+      if (!Arrays.equals(mark, end)) {
+        throw new IOException("Snapshot is not terminated by the EOF mark");
+      }
+      return snapshot;
+    } else {
+      long length = Long.parseLong(header.substring(1));
+      long start = is.getCount();
+      Snapshot snapshot = Snapshot.read(is);
+      if (is.getCount() - start != length) {
+        throw new IOException("Snapshot length mismatch");
+      }
+      return snapshot;
+    }
+  }
+
+  private <T> T onExecutor(Callable<T> callable) throws Exception {
+    try {
+      return replication.executor().submit(callable).get();
+    } catch (ExecutionException e) {
+      throw (Exception) e.getCause();
+    }
+  }
+
+  private static void send(OutputStream os, String... arguments) throws IOException {
+    new redis.Command(arguments).write(os);
+    os.flush();
+  }
+
+  private static void expectOk(Reply reply) throws IOException {
+    if (!"OK".equals(reply.data())) {
+      throw new IOException("Master refused replica: " + reply.data());
+    }
+  }
+
+  private static String readLine(InputStream is) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    int b;
+    while ((b = is.read()) != '\r') {
+      if (b == -1) throw new IOException("Connection closed by master");
+      baos.write(b);
+    }
+    if (is.read() != '\n') {
+      throw new IOException("Improper line ending");
+    }
+    return new String(baos.toByteArray(), Charsets.US_ASCII);
+  }
+
+  private static void close(Socket socket) {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+}
@@ -0,0 +1,532 @@
+package redis.server.netty;
+
+import com.google.common.base.Charsets;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.EventExecutor;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.Reply;
+import redis.util.BytesKey;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static redis.util.Encoding.numToBytes;
+
+/**
+ * Master and replica side of replication. Every successful write command is
+ * appended to the backlog and streamed to the connected replicas. A replica
+ * first loads a snapshot of the master and then applies the same stream.
+ * <p/>
+ * All of the methods that touch the keyspace are called from the single
+ * command executor so they are ordered with respect to normal clients. The
+ * executor only copies the keyspace for a snapshot; it is written to the
+ * replica on a thread of its own while the stream that follows it is buffered
+ * for that replica, however long the backlog is.
+ */
+public class Replication {
+  static final ErrorReply READONLY = new ErrorReply("READONLY You can't write against a read only replica.");
+  private static final int BACKLOG_SIZE = 1024 * 1024;
+  // Like the hard output buffer limit Redis gives replicas
+  private static final long SYNC_BUFFER_LIMIT = 256 * 1024 * 1024;
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final byte[] CRLF = "\r\n".getBytes();
+  private static final SecureRandom random = new SecureRandom();
+
+  private static final Set<BytesKey> WRITE_COMMANDS = new HashSet<BytesKey>();
+
+  static {
+    for (String name : new String[]{
+            "append", "bitfield", "bitop", "decr", "decrby", "del", "expire", "expireat", "flushall", "flushdb",
+            "getset", "hdel", "hincrby", "hincrbyfloat", "hmset", "hset", "hsetnx", "incr", "incrby",
+            "incrbyfloat", "linsert", "lpop", "lpush", "lpushx", "lrem", "lset", "ltrim", "migrate", "move",
+            "mset", "msetnx", "persist", "pexpire", "pexpireat", "pfadd", "pfmerge", "psetex", "rename", "renamenx",
+            "restore", "rpop", "rpoplpush", "rpush", "rpushx", "sadd", "sdiffstore", "set", "setbit",
+            "setex", "setnx", "setrange", "sinterstore", "smove", "sort", "spop", "srem",
+            "sunionstore", "zadd", "zincrby", "zinterstore", "zrem", "zremrangebyrank",
+            "zremrangebyscore", "zunionstore", "xadd", "xtrim"}) {
+      WRITE_COMMANDS.add(new BytesKey(name.getBytes()));
+    }
+  }
+
+  private final SimpleRedisServer server;
+  private final RedisCommandHandler handler;
+  private final EventExecutor executor;
+  private final ReplicationBacklog backlog = new ReplicationBacklog(BACKLOG_SIZE);
+  private final List<Channel> replicas = new CopyOnWriteArrayList<Channel>();
+  private final Set<Channel> unflushed = new HashSet<Channel>();
+  // Replicas being sent a snapshot and the stream written since it was taken
+  private final Map<Channel, Syncing> syncing = new HashMap<Channel, Syncing>();
+  private final ExecutorService snapshots = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "replication-snapshot");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private String replid = newReplicationId();
+  // The previous replication id and the last offset that belongs to it
+  private String replid2 = "0000000000000000000000000000000000000000";
+  private long secondOffset = -1;
+  private volatile ReplicaLink link;
+  private boolean readOnly = true;
+
+  public Replication(SimpleRedisServer server, RedisCommandHandler handler, EventExecutor executor) {
+    this.server = server;
+    this.handler = handler;
+    this.executor = executor;
+    server.setReplication(this);
+    handler.setReplication(this);
+  }
+
+  static boolean isWrite(byte[] name) {
+    return WRITE_COMMANDS.contains(new BytesKey(name));
+  }
+
+  /**
+   * Replicas reject writes from normal clients, only the master stream may change them.
+   */
+  boolean rejectsWrites() {
+    return readOnly && link != null;
+  }
+
+  void setReadOnly(boolean readOnly) {
+    this.readOnly = readOnly;
+  }
+
+  boolean isReplica() {
+    return link != null;
+  }
+
+  String replicationId() {
+    return replid;
+  }
+
+  long offset() {
+    return backlog.offset();
+  }
+
+  int connectedReplicas() {
+    return replicas.size();
+  }
+
+  /**
+   * Feed a successfully executed write command to the backlog and replicas.
+   * Commands whose effect depends on when or where they run are rewritten
+   * into deterministic equivalents.
+   */
+  void propagate(Command command, Reply reply) throws IOException {
+    Object[] args = command.getObjects();
+    String name = new String(command.getName(), Charsets.US_ASCII);
+    if (name.equals("migrate")) {
+      // Some keys may have moved even when a later one was refused
+      migrated(args);
+      return;
+    }
+    if (reply instanceof ErrorReply) return;
+    if (name.equals("spop")) {
+      ByteBuf member = (ByteBuf) reply.data();
+      if (member == null) return;
+      // Don't consume the reply that is still to be written to the client
+      feed("srem", args[1], member.duplicate());
+    } else if (name.equals("expire") || name.equals("pexpire")) {
+      long ttl = Long.parseLong(new String((byte[]) args[2], Charsets.US_ASCII));
+      feed("pexpireat", args[1], String.valueOf(now() + (name.equals("expire") ? ttl * 1000 : ttl)));
+    } else if (name.equals("setex") || name.equals("psetex")) {
+      long ttl = Long.parseLong(new String((byte[]) args[2], Charsets.US_ASCII));
+      feed("set", args[1], args[3]);
+      feed("pexpireat", args[1], String.valueOf(now() + (name.equals("setex") ? ttl * 1000 : ttl)));
+    } else if (name.equals("xadd")) {
+      ByteBuf id = (ByteBuf) reply.data();
+      if (id == null) return;
+      // Generated ids depend on the clock so replicas get the one that was used
+      Object[] fixed = new Object[args.length];
+      System.arraycopy(args, 0, fixed, 0, args.length);
+      int position = 2;
+      while (position < fixed.length) {
+        String option = new String((byte[]) fixed[position], Charsets.US_ASCII).toLowerCase();
+        if (option.equals("nomkstream")) {
+          position++;
+        } else if (option.equals("maxlen")) {
+          String next = new String((byte[]) fixed[position + 1], Charsets.US_ASCII);
+          position += next.equals("=") || next.equals("~") ? 3 : 2;
+        } else {
+          break;
+        }
+      }
+      fixed[position] = id.duplicate();
+      feed(new Command(fixed));
+    } else {
+      feed(command);
+    }
+  }
+
+  /**
+   * Replicas must not talk to the target themselves, they delete whatever
+   * the master no longer has.
+   */
+  private void migrated(Object[] args) throws IOException {
+    List<Object> del = new ArrayList<Object>();
+    del.add("del");
+    if (((byte[]) args[3]).length != 0) {
+      del.add(args[3]);
+    }
+    for (int i = 6; i < args.length; i++) {
+      String option = new String((byte[]) args[i], Charsets.US_ASCII).toLowerCase();
+      if (option.equals("copy")) {
+        return;
+      } else if (option.equals("keys")) {
+        del.addAll(Arrays.asList(args).subList(i + 1, args.length));
+        break;
+      }
+    }
+    for (Iterator<Object> i = del.listIterator(1); i.hasNext(); ) {
+      if (server.contains((byte[]) i.next())) {
+        i.remove();
+      }
+    }
+    if (del.size() > 1) {
+      feed(new Command(del.toArray()));
+    }
+  }
+
+  private void feed(String name, Object key, Object value) throws IOException {
+    feed(new Command(name, key, value));
+  }
+
+  private void feed(Command command) throws IOException {
+    ByteBuf buf = Unpooled.buffer();
+    command.write(buf);
+    backlog.append(buf);
+    for (Channel replica : replicas) {
+      replica.write(buf.duplicate().retain());
+      unflushed.add(replica);
+    }
+    for (Iterator<Map.Entry<Channel, Syncing>> i = syncing.entrySet().iterator(); i.hasNext(); ) {
+      Map.Entry<Channel, Syncing> entry = i.next();
+      Syncing sync = entry.getValue();
+      if (!sync.add(buf)) {
+        // Gone, or too far behind to ever catch up
+        i.remove();
+        sync.release();
+        entry.getKey().close();
+      }
+    }
+    buf.release();
+  }
+
+  /**
+   * Called once the executor has drained a batch of commands.
+   */
+  void flush() {
+    if (unflushed.isEmpty()) return;
+    for (Channel replica : unflushed) {
+      replica.flush();
+    }
+    unflushed.clear();
+  }
+
+  /**
+   * Old style full synchronization. The snapshot is sent as a bulk reply.
+   */
+  void sync(ChannelHandlerContext ctx) throws IOException {
+    transfer(ctx.channel(), null);
+  }
+
+  /**
+   * Partial resynchronization from the backlog if the replica is following
+   * our history and the offset is still available, otherwise a full resync
+   * with the snapshot streamed in chunks and terminated by a random mark.
+   */
+  void psync(ChannelHandlerContext ctx, String requestedId, long requestedOffset) throws IOException {
+    boolean sameHistory = requestedId.equals(replid) ||
+            (requestedId.equals(replid2) && requestedOffset <= secondOffset + 1);
+    if (sameHistory && backlog.contains(requestedOffset)) {
+      ctx.write(status("+CONTINUE " + replid));
+      ctx.write(backlog.since(requestedOffset));
+    } else {
+      ctx.write(status("+FULLRESYNC " + replid + " " + backlog.offset()));
+      byte[] mark = newReplicationId().getBytes(Charsets.US_ASCII);
+      ctx.write(status("$EOF:" + new String(mark, Charsets.US_ASCII)));
+      transfer(ctx.channel(), mark);
+      return;
+    }
+    addReplica(ctx.channel());
+  }
+
+  /**
+   * Copy the keyspace and write it to the replica on the snapshot thread,
+   * then have the replica follow the stream from where the copy was taken.
+   * Without a mark the snapshot is a bulk reply, which needs its length
+   * before it is sent.
+   */
+  private void transfer(final Channel channel, final byte[] mark) throws IOException {
+    final Snapshot snapshot = server.snapshot().copy(now());
+    syncing.put(channel, new Syncing(channel, replid));
+    snapshots.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (mark == null) {
+            ByteBuf buf = channel.alloc().buffer();
+            snapshot.write(new ByteBufOutputStream(buf), now());
+            ByteBuf header = channel.alloc().buffer();
+            header.writeByte('$');
+            header.writeBytes(numToBytes(buf.readableBytes(), true));
+            channel.write(header);
+            channel.write(buf);
+          } else {
+            ChunkedOutputStream os = new ChunkedOutputStream(channel);
+            snapshot.write(os, now());
+            os.write(mark);
+            os.close();
+          }
+        } catch (IOException e) {
+          channel.close();
+          return;
+        }
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            follow(channel);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Start streaming to a replica that has been sent its snapshot. The
+   * writes made while it was being sent were buffered for it.
+   */
+  private void follow(Channel channel) {
+    Syncing sync = syncing.remove(channel);
+    if (sync == null) return;
+    if (!channel.isActive() || !sync.id.equals(replid)) {
+      // It has to start over with a new snapshot
+      sync.release();
+      channel.close();
+      return;
+    }
+    for (ByteBuf buf : sync.pending) {
+      channel.write(buf);
+    }
+    channel.flush();
+    addReplica(channel);
+  }
+
+  private void addReplica(final Channel channel) {
+    replicas.add(channel);
+    channel.closeFuture().addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        replicas.remove(channel);
+      }
+    });
+  }
+
+  /**
+   * Start following another server. Any existing link is dropped first.
+   */
+  void replicaOf(String host, int port) {
+    ReplicaLink current = link;
+    if (current != null) {
+      if (current.isFollowing(host, port)) return;
+      current.close();
+    }
+    link = new ReplicaLink(this, host, port);
+    link.start();
+  }
+
+  /**
+   * Stop following the master and accept writes. The old history is kept as
+   * the secondary id so our own replicas can continue with a partial resync.
+   */
+  void promote() {
+    ReplicaLink current = link;
+    if (current == null) return;
+    current.close();
+    link = null;
+    replid2 = replid;
+    secondOffset = backlog.offset();
+    replid = newReplicationId();
+  }
+
+  /**
+   * Drop the link to the master without changing roles, used at shutdown.
+   */
+  void close() {
+    ReplicaLink current = link;
+    if (current != null) {
+      current.close();
+    }
+    snapshots.shutdownNow();
+  }
+
+  /**
+   * Replica side: replace the keyspace with the master's snapshot. Called on the executor.
+   */
+  void loadSnapshot(ReplicaLink from, String masterId, long masterOffset, Snapshot snapshot) {
+    if (link != from) return;
+    server.load(snapshot);
+    replid = masterId;
+    backlog.reset(masterOffset);
+    // Our own replicas have a different history now
+    for (Channel replica : replicas) {
+      replica.close();
+    }
+  }
+
+  /**
+   * Replica side: the master continued our history under a possibly new id.
+   */
+  void continueFrom(ReplicaLink from, String masterId) {
+    if (link != from) return;
+    if (!masterId.equals(replid)) {
+      replid2 = replid;
+      secondOffset = backlog.offset();
+      replid = masterId;
+    }
+  }
+
+  /**
+   * Replica side: apply a command from the master stream and pass it on to
+   * our own replicas unchanged. Called on the executor.
+   */
+  void apply(ReplicaLink from, Command command) throws IOException, RedisException {
+    if (link != from) return;
+    handler.execute(command);
+    feed(command);
+    flush();
+  }
+
+  EventExecutor executor() {
+    return executor;
+  }
+
+  /**
+   * The stream held back for a replica until its snapshot has been sent.
+   */
+  private static class Syncing {
+    final Channel channel;
+    final String id;
+    final List<ByteBuf> pending = new ArrayList<ByteBuf>();
+    long bytes;
+
+    Syncing(Channel channel, String id) {
+      this.channel = channel;
+      this.id = id;
+    }
+
+    /**
+     * @return false if the replica is gone or over the limit
+     */
+    boolean add(ByteBuf buf) {
+      if (!channel.isActive()) return false;
+      bytes += buf.readableBytes();
+      if (bytes > SYNC_BUFFER_LIMIT) return false;
+      pending.add(buf.duplicate().retain());
+      return true;
+    }
+
+    void release() {
+      for (ByteBuf buf : pending) {
+        buf.release();
+      }
+      pending.clear();
+    }
+  }
+
+  private static ByteBuf status(String line) {
+    ByteBuf buf = Unpooled.buffer(line.length() + 2);
+    buf.writeBytes(line.getBytes(Charsets.US_ASCII));
+    buf.writeBytes(CRLF);
+    return buf;
+  }
+
+  private static long now() {
+    return System.currentTimeMillis();
+  }
+
+  private static String newReplicationId() {
+    StringBuilder sb = new StringBuilder(40);
+    for (int i = 0; i < 40; i++) {
+      sb.append(Character.forDigit(random.nextInt(16), 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Hands the snapshot to the channel in fixed size chunks as it is produced
+   * rather than materializing it before the first byte is sent. A replica
+   * that reads slower than the snapshot is produced holds up the snapshot
+   * thread instead of having the rest of it queued in memory.
+   */
+  private static class ChunkedOutputStream extends OutputStream {
+    private final Channel channel;
+    private ByteBuf chunk;
+
+    ChunkedOutputStream(Channel channel) {
+      this.channel = channel;
+      chunk = channel.alloc().buffer(CHUNK_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (!chunk.isWritable()) {
+        writeChunk();
+      }
+      chunk.writeByte(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (!chunk.isWritable()) {
+          writeChunk();
+        }
+        int length = Math.min(len, chunk.writableBytes());
+        chunk.writeBytes(b, off, length);
+        off += length;
+        len -= length;
+      }
+    }
+
+    private void writeChunk() throws IOException {
+      ChannelFuture written = channel.writeAndFlush(chunk);
+      if (!channel.isWritable()) {
+        written.awaitUninterruptibly();
+        if (!written.isSuccess()) {
+          throw new IOException("Replica went away", written.cause());
+        }
+      }
+      chunk = channel.alloc().buffer(CHUNK_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.write(chunk);
+    }
+  }
+}
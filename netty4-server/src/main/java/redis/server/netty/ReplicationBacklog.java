@@ -0,0 +1,80 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Circular buffer holding the most recent bytes of the replication stream so
+ * that a replica that briefly lost its connection can continue from its last
+ * offset instead of transferring a full snapshot.
+ * <p/>
+ * Offsets follow the Redis convention: the first byte of the stream has
+ * offset 1 and the master offset is the total number of bytes produced.
+ */
+class ReplicationBacklog {
+  private final byte[] buffer;
+  // Total number of bytes ever appended
+  private long offset;
+  // Number of valid bytes in the buffer
+  private int length;
+  // Next position in the buffer to write
+  private int index;
+
+  ReplicationBacklog(int size) {
+    buffer = new byte[size];
+  }
+
+  /**
+   * Continue the offsets of another stream, e.g. after a full sync from a master.
+   */
+  void reset(long offset) {
+    this.offset = offset;
+    length = 0;
+    index = 0;
+  }
+
+  long offset() {
+    return offset;
+  }
+
+  void append(ByteBuf buf) {
+    int readable = buf.readableBytes();
+    int readerIndex = buf.readerIndex();
+    offset += readable;
+    if (readable >= buffer.length) {
+      buf.getBytes(readerIndex + readable - buffer.length, buffer, 0, buffer.length);
+      index = 0;
+      length = buffer.length;
+      return;
+    }
+    int first = Math.min(readable, buffer.length - index);
+    buf.getBytes(readerIndex, buffer, index, first);
+    if (first < readable) {
+      buf.getBytes(readerIndex + first, buffer, 0, readable - first);
+    }
+    index = (index + readable) % buffer.length;
+    length = Math.min(buffer.length, length + readable);
+  }
+
+  /**
+   * @return true if the stream starting at this offset is still available
+   */
+  boolean contains(long from) {
+    return from > offset - length && from <= offset + 1;
+  }
+
+  /**
+   * Copy of the stream from the given offset to the current offset.
+   */
+  ByteBuf since(long from) {
+    int count = (int) (offset - from + 1);
+    ByteBuf buf = Unpooled.buffer(count);
+    int start = (index - count + buffer.length) % buffer.length;
+    int first = Math.min(count, buffer.length - start);
+    buf.writeBytes(buffer, start, first);
+    if (first < count) {
+      buf.writeBytes(buffer, 0, count - first);
+    }
+    return buf;
+  }
+}
@@ -0,0 +1,479 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.Bit32Lib;
+import org.luaj.vm2.lib.DebugLib;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.PackageLib;
+import org.luaj.vm2.lib.StringLib;
+import org.luaj.vm2.lib.TableLib;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.ZeroArgFunction;
+import org.luaj.vm2.lib.jse.JseBaseLib;
+import org.luaj.vm2.lib.jse.JseMathLib;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.ErrorReply;
+import redis.netty4.IntegerReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+import redis.netty4.StatusReply;
+import redis.util.BytesKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static redis.netty4.BulkReply.NIL_REPLY;
+import static redis.netty4.IntegerReply.integer;
+import static redis.util.Encoding.bytesToNum;
+
+/**
+ * EVAL on an embedded Lua interpreter. Scripts are compiled once and cached
+ * by the SHA1 of their source. redis.call dispatches straight to the server
+ * methods and turns their replies into Lua values without encoding them, and
+ * the writes a script makes are replicated one by one. Each script sees the
+ * shared libraries through an environment of its own that refuses new
+ * globals, so one script can't leave state behind for the next.
+ * <p/>
+ * A script runs on the command executor so nothing else runs until it ends.
+ * SCRIPT KILL is answered on the I/O thread instead and a count hook stops the
+ * script at its next check, as does running past lua-time-limit. Scripts that
+ * have already written can not be stopped.
+ */
+class Scripting {
+  private static final ErrorReply NOTBUSY = new ErrorReply("NOTBUSY No scripts in execution right now.");
+  private static final ErrorReply UNKILLABLE = new ErrorReply("UNKILLABLE Sorry the script already executed write " +
+          "commands against the dataset. You can either wait the script termination or kill the server in a hard " +
+          "way using the SHUTDOWN NOSAVE command.");
+  private static final ErrorReply NOSCRIPT = new ErrorReply("NOSCRIPT No matching script. Please use EVAL.");
+  private static final MultiBulkReply NIL_MULTIBULK = new MultiBulkReply();
+  private static final LuaString OK_FIELD = LuaString.valueOf("ok");
+  private static final LuaString ERR_FIELD = LuaString.valueOf("err");
+  private static final int HOOK_INSTRUCTIONS = 10000;
+  private static final int IDLE = 0;
+  private static final int RUNNING = 1;
+  private static final int WRITTEN = 2;
+  private static final int KILLED = 3;
+
+  private static final Set<BytesKey> NOT_ALLOWED = new HashSet<BytesKey>();
+
+  static {
+    for (String name : new String[]{"eval", "evalsha", "script", "multi", "exec", "discard", "watch", "unwatch",
+            "subscribe", "unsubscribe", "psubscribe", "punsubscribe", "sync", "psync", "replconf", "slaveof",
+            "replicaof", "monitor", "quit", "shutdown"}) {
+      NOT_ALLOWED.add(new BytesKey(name.getBytes()));
+    }
+  }
+
+  private final RedisCommandHandler handler;
+  private final Replication replication;
+  private final Globals globals = new Globals();
+  // Of every script environment
+  private final LuaTable sandbox = new LuaTable();
+  private final Map<String, LuaValue> scripts = new HashMap<String, LuaValue>();
+  // Shared with the I/O threads for SCRIPT KILL
+  private final AtomicInteger state = new AtomicInteger(IDLE);
+  private volatile long deadline;
+  private long timeLimit = 5000;
+  private String killedBy;
+
+  Scripting(SimpleRedisServer server, RedisCommandHandler handler, Replication replication) {
+    this.handler = handler;
+    this.replication = replication;
+    globals.load(new JseBaseLib());
+    globals.load(new PackageLib());
+    globals.load(new Bit32Lib());
+    globals.load(new TableLib());
+    globals.load(new StringLib());
+    globals.load(new JseMathLib());
+    globals.load(new DebugLib());
+    LoadState.install(globals);
+    LuaC.install(globals);
+    globals.get("debug").get("sethook").invoke(LuaValue.varargsOf(new LuaValue[]{
+            new ZeroArgFunction() {
+              @Override
+              public LuaValue call() {
+                checkKilled();
+                return NONE;
+              }
+            }, LuaValue.valueOf(""), LuaValue.valueOf(HOOK_INSTRUCTIONS)}));
+    // Nothing that reaches outside of the server
+    for (String name : new String[]{"debug", "package", "require", "dofile", "loadfile", "print"}) {
+      globals.set(name, LuaValue.NIL);
+    }
+    LuaTable redis = new LuaTable();
+    redis.set("call", new VarArgFunction() {
+      @Override
+      public Varargs invoke(Varargs args) {
+        return redisCall(args, true);
+      }
+    });
+    redis.set("pcall", new VarArgFunction() {
+      @Override
+      public Varargs invoke(Varargs args) {
+        return redisCall(args, false);
+      }
+    });
+    redis.set("status_reply", new OneArgFunction() {
+      @Override
+      public LuaValue call(LuaValue arg) {
+        LuaTable table = new LuaTable();
+        table.set(OK_FIELD, arg.checkstring());
+        return table;
+      }
+    });
+    redis.set("error_reply", new OneArgFunction() {
+      @Override
+      public LuaValue call(LuaValue arg) {
+        LuaTable table = new LuaTable();
+        table.set(ERR_FIELD, arg.checkstring());
+        return table;
+      }
+    });
+    redis.set("sha1hex", new OneArgFunction() {
+      @Override
+      public LuaValue call(LuaValue arg) {
+        return LuaValue.valueOf(sha1hex(bytes(arg.checkstring())));
+      }
+    });
+    globals.set("redis", redis);
+    sandbox.set(LuaValue.INDEX, globals);
+    sandbox.set(LuaValue.NEWINDEX, new VarArgFunction() {
+      @Override
+      public Varargs invoke(Varargs args) {
+        throw new LuaError("Script attempted to create global variable '" + args.arg(2).tojstring() + "'");
+      }
+    });
+    sandbox.set(LuaValue.METATABLE, LuaValue.FALSE);
+    server.setScripting(this);
+  }
+
+  /**
+   * Answers SCRIPT KILL while the command executor is busy with a script.
+   */
+  ChannelHandler killer() {
+    return new Killer();
+  }
+
+  @ChannelHandler.Sharable
+  private class Killer extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+      if (state.get() != IDLE && msg instanceof Command) {
+        Object[] objects = ((Command) msg).getObjects();
+        if (objects != null && objects.length == 2 && new String((byte[]) objects[0]).equalsIgnoreCase("script")
+                && new String((byte[]) objects[1]).equalsIgnoreCase("kill")) {
+          // Stop the script now but reply after the connection's earlier commands
+          ctx.fireChannelRead(new Killed(objects, kill()));
+          return;
+        }
+      }
+      ctx.fireChannelRead(msg);
+    }
+  }
+
+  /**
+   * A SCRIPT KILL that has already been carried out, the command handler only
+   * sends its reply.
+   */
+  static class Killed extends Command {
+    final Reply reply;
+
+    Killed(Object[] objects, Reply reply) {
+      super(objects);
+      this.reply = reply;
+    }
+  }
+
+  void setTimeLimit(long timeLimit) {
+    this.timeLimit = timeLimit;
+  }
+
+  long timeLimit() {
+    return timeLimit;
+  }
+
+  Reply kill() {
+    while (true) {
+      int current = state.get();
+      if (current == IDLE) {
+        return NOTBUSY;
+      } else if (current == WRITTEN) {
+        return UNKILLABLE;
+      } else if (current == KILLED || state.compareAndSet(RUNNING, KILLED)) {
+        return StatusReply.OK;
+      }
+    }
+  }
+
+  Reply eval(byte[] script, byte[] numkeys, byte[][] args) throws RedisException {
+    if (script == null || numkeys == null) {
+      throw new RedisException("wrong number of arguments for 'eval' command");
+    }
+    String sha = sha1hex(script);
+    LuaValue function = scripts.get(sha);
+    if (function == null) {
+      function = compile(sha, script);
+    }
+    return run(sha, function, numkeys, args);
+  }
+
+  Reply evalsha(byte[] sha1, byte[] numkeys, byte[][] args) throws RedisException {
+    if (sha1 == null || numkeys == null) {
+      throw new RedisException("wrong number of arguments for 'evalsha' command");
+    }
+    String sha = new String(sha1).toLowerCase();
+    LuaValue function = scripts.get(sha);
+    if (function == null) {
+      return NOSCRIPT;
+    }
+    return run(sha, function, numkeys, args);
+  }
+
+  BulkReply load(byte[] script) throws RedisException {
+    if (script == null) {
+      throw new RedisException("wrong number of arguments for 'script load' command");
+    }
+    String sha = sha1hex(script);
+    if (!scripts.containsKey(sha)) {
+      compile(sha, script);
+    }
+    return new BulkReply(sha.getBytes());
+  }
+
+  MultiBulkReply exists(byte[][] shas) {
+    Reply[] replies = new Reply[shas.length];
+    for (int i = 0; i < shas.length; i++) {
+      replies[i] = integer(scripts.containsKey(new String(shas[i]).toLowerCase()) ? 1 : 0);
+    }
+    return new MultiBulkReply(replies);
+  }
+
+  void flush() {
+    scripts.clear();
+  }
+
+  private LuaValue compile(String sha, byte[] script) throws RedisException {
+    try {
+      LuaValue function = globals.load(new ByteArrayInputStream(script), "@user_script", "t", environment());
+      scripts.put(sha, function);
+      return function;
+    } catch (LuaError e) {
+      throw new RedisException("Error compiling script (new function): " + message(e));
+    }
+  }
+
+  /**
+   * A Globals rather than a plain table, since luaj only calls the debug hook
+   * that SCRIPT KILL relies on for functions whose environment is one.
+   */
+  private Globals environment() {
+    Globals env = new Globals();
+    env.running = globals.running;
+    env.debuglib = globals.debuglib;
+    env.baselib = globals.baselib;
+    env.rawset("_G", env);
+    env.setmetatable(sandbox);
+    return env;
+  }
+
+  private Reply run(String sha, LuaValue function, byte[] numkeys1, byte[][] args) throws RedisException {
+    long numkeys = bytesToNum(numkeys1);
+    if (numkeys > args.length) {
+      throw new RedisException("Number of keys can't be greater than number of args");
+    } else if (numkeys < 0) {
+      throw new RedisException("Number of keys can't be negative");
+    }
+    LuaTable keys = new LuaTable();
+    LuaTable argv = new LuaTable();
+    for (int i = 0; i < args.length; i++) {
+      if (i < numkeys) {
+        keys.set(i + 1, LuaValue.valueOf(args[i]));
+      } else {
+        argv.set((int) (i - numkeys + 1), LuaValue.valueOf(args[i]));
+      }
+    }
+    globals.set("KEYS", keys);
+    globals.set("ARGV", argv);
+    killedBy = null;
+    deadline = timeLimit > 0 ? System.currentTimeMillis() + timeLimit : Long.MAX_VALUE;
+    state.set(RUNNING);
+    try {
+      return toReply(function.call());
+    } catch (LuaError e) {
+      throw new RedisException("Error running script (call to f_" + sha + "): " + message(e));
+    } finally {
+      state.set(IDLE);
+    }
+  }
+
+  /**
+   * Called by the count hook and before every command.
+   */
+  private void checkKilled() {
+    if (state.get() == RUNNING && System.currentTimeMillis() > deadline && state.compareAndSet(RUNNING, KILLED)) {
+      killedBy = "Script exceeded lua-time-limit of " + timeLimit + " ms";
+    }
+    if (state.get() == KILLED) {
+      // Raised again at every check so pcall can't swallow it
+      throw new LuaError(killedBy == null ? "Script killed by user with SCRIPT KILL..." : killedBy);
+    }
+  }
+
+  private Varargs redisCall(Varargs args, boolean raise) {
+    checkKilled();
+    int length = args.narg();
+    if (length == 0) {
+      throw new LuaError("Please specify at least one argument for redis.call()");
+    }
+    Object[] objects = new Object[length];
+    for (int i = 0; i < length; i++) {
+      LuaValue arg = args.arg(i + 1);
+      if (arg.type() != LuaValue.TSTRING && arg.type() != LuaValue.TNUMBER) {
+        throw new LuaError("Lua redis() command arguments must be strings or integers");
+      }
+      objects[i] = bytes(arg.checkstring());
+    }
+    byte[] name = new String((byte[]) objects[0]).toLowerCase().getBytes();
+    objects[0] = name;
+    if (NOT_ALLOWED.contains(new BytesKey(name))) {
+      throw new LuaError("This Redis command is not allowed from scripts");
+    }
+    Command command = new Command(objects);
+    boolean write = Replication.isWrite(name);
+    Reply reply;
+    if (write && replication != null && replication.rejectsWrites()) {
+      reply = Replication.READONLY;
+    } else {
+      if (write && !state.compareAndSet(RUNNING, WRITTEN)) {
+        // Already written or just killed
+        checkKilled();
+      }
+      try {
+        reply = handler.dispatch(name, command);
+      } catch (RedisException e) {
+        reply = new ErrorReply("ERR " + e.getMessage());
+      }
+      if (write && replication != null && !replication.isReplica()) {
+        try {
+          replication.propagate(command, reply);
+        } catch (IOException e) {
+          throw new LuaError(e.getMessage());
+        }
+      }
+    }
+    if (raise && reply instanceof ErrorReply) {
+      throw new LuaError(((ErrorReply) reply).data());
+    }
+    return toLua(reply);
+  }
+
+  private static LuaValue toLua(Reply reply) {
+    if (reply instanceof IntegerReply) {
+      return LuaValue.valueOf((double) ((IntegerReply) reply).data());
+    } else if (reply instanceof BulkReply) {
+      ByteBuf buf = ((BulkReply) reply).data();
+      if (buf == null) return LuaValue.FALSE;
+      byte[] bytes = new byte[buf.readableBytes()];
+      buf.getBytes(buf.readerIndex(), bytes);
+      return LuaValue.valueOf(bytes);
+    } else if (reply instanceof MultiBulkReply) {
+      Reply[] replies = ((MultiBulkReply) reply).data();
+      if (replies == null) return LuaValue.FALSE;
+      LuaTable table = new LuaTable(replies.length, 0);
+      for (int i = 0; i < replies.length; i++) {
+        table.set(i + 1, toLua(replies[i]));
+      }
+      return table;
+    } else if (reply instanceof StatusReply) {
+      LuaTable table = new LuaTable();
+      table.set(OK_FIELD, LuaValue.valueOf(((StatusReply) reply).data()));
+      return table;
+    } else if (reply instanceof ErrorReply) {
+      LuaTable table = new LuaTable();
+      table.set(ERR_FIELD, LuaValue.valueOf(((ErrorReply) reply).data()));
+      return table;
+    }
+    // Unimplemented commands and blocking commands, which never block in a script
+    return LuaValue.FALSE;
+  }
+
+  private static Reply toReply(LuaValue value) {
+    switch (value.type()) {
+      case LuaValue.TSTRING:
+        return new BulkReply(bytes(value.checkstring()));
+      case LuaValue.TNUMBER:
+        return integer((long) value.todouble());
+      case LuaValue.TBOOLEAN:
+        return value.toboolean() ? integer(1) : NIL_REPLY;
+      case LuaValue.TTABLE: {
+        LuaValue err = value.get(ERR_FIELD);
+        if (err.type() == LuaValue.TSTRING) {
+          return new ErrorReply(err.tojstring());
+        }
+        LuaValue ok = value.get(OK_FIELD);
+        if (ok.type() == LuaValue.TSTRING) {
+          return new StatusReply(ok.tojstring());
+        }
+        // The array part up to the first nil
+        List<Reply> replies = new ArrayList<Reply>();
+        for (int i = 1; ; i++) {
+          LuaValue element = value.get(i);
+          if (element.isnil()) break;
+          replies.add(toReply(element));
+        }
+        return new MultiBulkReply(replies.toArray(new Reply[replies.size()]));
+      }
+      default:
+        return NIL_REPLY;
+    }
+  }
+
+  /**
+   * The error without the stack traceback, it has to fit on a reply line.
+   */
+  private static String message(LuaError e) {
+    String message = e.getMessage();
+    int newline = message.indexOf('\n');
+    return (newline == -1 ? message : message.substring(0, newline)).replace('\r', ' ');
+  }
+
+  private static byte[] bytes(LuaString string) {
+    byte[] bytes = new byte[string.rawlen()];
+    string.copyInto(0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  static String sha1hex(byte[] bytes) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+      StringBuilder sb = new StringBuilder(40);
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package redis.server.netty;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A SimpleRedisServer listening on a port, a Unix domain socket or both.
+ * Several can run in the same JVM.
+ */
+public class Server {
+  private final int port;
+  private final SimpleRedisServer redisServer = new SimpleRedisServer();
+  // Only execute the command handler in a single thread
+  private final DefaultEventExecutorGroup group = new DefaultEventExecutorGroup(1);
+  private final RedisCommandHandler commandHandler = new RedisCommandHandler(redisServer);
+  private final Replication replication = new Replication(redisServer, commandHandler, group.next());
+  private final PubSub pubsub = new PubSub(redisServer, commandHandler, group.next());
+  private final Blocking blocking = new Blocking(redisServer, commandHandler, group.next());
+  private final Scripting scripting = new Scripting(redisServer, commandHandler, replication);
+  private final ProtocolLimits limits = new ProtocolLimits(redisServer);
+  private final EventLoopGroup bossGroup = new NioEventLoopGroup();
+  private final EventLoopGroup workerGroup = new NioEventLoopGroup();
+  private final Cluster cluster;
+  private File unixSocket;
+  private EventLoopGroup epollGroup;
+  private Channel channel;
+  private Channel unixChannel;
+
+  public Server(int port) {
+    this(port, false);
+  }
+
+  /**
+   * @param cluster whether this server is a cluster node
+   */
+  public Server(int port, boolean cluster) {
+    this.port = port;
+    if (cluster) {
+      this.cluster = new Cluster(redisServer, group.next(), "127.0.0.1", port);
+      commandHandler.setCluster(this.cluster);
+    } else {
+      this.cluster = null;
+    }
+  }
+
+  /**
+   * Also listen on a Unix domain socket, which saves clients on the same host
+   * the loopback TCP stack. Needs the native epoll transport. With port 0 the
+   * server only listens on the socket.
+   */
+  public Server unixSocket(File path) {
+    this.unixSocket = path;
+    return this;
+  }
+
+  /**
+   * Count the calls and time of every command for INFO commandstats, which
+   * costs each command two clock reads and a map update.
+   */
+  public Server commandStats() {
+    new CommandStats(redisServer, commandHandler);
+    return this;
+  }
+
+  /**
+   * Keep the keyspace in a memory mapped arena file, which a restarted server
+   * attaches to instead of starting empty. Not for cluster nodes.
+   */
+  public Server arena(File path) throws IOException {
+    if (cluster != null) {
+      throw new IllegalStateException("The arena does not support cluster mode");
+    }
+    new Arena(redisServer, commandHandler, path);
+    return this;
+  }
+
+  public Server start() throws InterruptedException {
+    ChannelInitializer<Channel> initializer = new ChannelInitializer<Channel>() {
+      @Override
+      public void initChannel(Channel ch) throws Exception {
+        ChannelPipeline p = ch.pipeline();
+//        p.addLast(new ByteLoggingHandler(LogLevel.INFO));
+        p.addLast(new RedisCommandDecoder(limits));
+        p.addLast(new RedisReplyEncoder());
+        p.addLast(scripting.killer());
+        p.addLast(new CommandBatcher());
+        p.addLast(group, commandHandler);
+      }
+    };
+    if (port != 0) {
+      ServerBootstrap b = new ServerBootstrap();
+      b.group(bossGroup, workerGroup)
+       .channel(NioServerSocketChannel.class)
+       .option(ChannelOption.SO_BACKLOG, 100)
+       .localAddress(port)
+       .childOption(ChannelOption.TCP_NODELAY, true)
+       .childHandler(initializer);
+      channel = b.bind().sync().channel();
+    }
+    if (unixSocket != null) {
+      if (!Epoll.isAvailable()) {
+        throw new IllegalStateException("Unix domain sockets need the native epoll transport",
+                Epoll.unavailabilityCause());
+      }
+      // Left behind by an earlier run
+      unixSocket.delete();
+      epollGroup = new EpollEventLoopGroup();
+      ServerBootstrap b = new ServerBootstrap();
+      b.group(epollGroup)
+       .channel(EpollServerDomainSocketChannel.class)
+       .option(ChannelOption.SO_BACKLOG, 100)
+       .localAddress(new DomainSocketAddress(unixSocket))
+       .childHandler(initializer);
+      unixChannel = b.bind().sync().channel();
+    }
+    return this;
+  }
+
+  public int port() {
+    return port;
+  }
+
+  /**
+   * Follow a master from startup.
+   */
+  public void replicaOf(final String host, final int port) {
+    group.next().execute(new Runnable() {
+      @Override
+      public void run() {
+        replication.replicaOf(host, port);
+      }
+    });
+  }
+
+  /**
+   * Wait until the server socket is closed.
+   */
+  public void awaitClose() throws InterruptedException {
+    (channel != null ? channel : unixChannel).closeFuture().sync();
+  }
+
+  public void stop() {
+    replication.close();
+    if (cluster != null) {
+      cluster.close();
+    }
+    if (channel != null) {
+      channel.close().awaitUninterruptibly();
+    }
+    if (unixChannel != null) {
+      unixChannel.close().awaitUninterruptibly();
+      epollGroup.shutdownGracefully();
+      unixSocket.delete();
+    }
+    group.next().submit(new Runnable() {
+      @Override
+      public void run() {
+        redisServer.close();
+      }
+    }).awaitUninterruptibly();
+    // Shut down all event loops to terminate all threads.
+    bossGroup.shutdownGracefully();
+    workerGroup.shutdownGracefully();
+    group.shutdownGracefully();
+  }
+}
@@ -1,9 +1,13 @@
 package redis.server.netty;
 
+import com.google.common.primitives.UnsignedBytes;
 import io.netty.buffer.ByteBuf;
 import redis.netty4.*;
 import redis.util.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.security.SecureRandom;
 import java.util.*;
@@ -20,11 +24,164 @@ import static redis.util.Encoding.numToBytes;
 public class SimpleRedisServer implements RedisServer {
 
   private static final StatusReply PONG = new StatusReply("PONG");
+  private static final StatusReply NOKEY = new StatusReply("NOKEY");
+  private static final byte[] ASKING = "ASKING".getBytes();
+  private static final byte[] RESTORE = "RESTORE".getBytes();
+  private static final byte[] REPLACE = "REPLACE".getBytes();
+  private static final byte[] NOTIFY_KEYSPACE_EVENTS = "notify-keyspace-events".getBytes();
+  private static final byte[] LUA_TIME_LIMIT = "lua-time-limit".getBytes();
+  private static final byte[] PROTO_MAX_BULK_LEN = "proto-max-bulk-len".getBytes();
+  private static final byte[] PROTO_MAX_MULTIBULK_LEN = "proto-max-multibulk-len".getBytes();
+  private static final byte[] CLIENT_QUERY_BUFFER_LIMIT = "client-query-buffer-limit".getBytes();
+  private static final byte[] SET_EVENT = "set".getBytes();
+  private static final byte[] DEL_EVENT = "del".getBytes();
+  private static final byte[] EXPIRED_EVENT = "expired".getBytes();
+  private static final byte[] PFADD_EVENT = "pfadd".getBytes();
+  private static final byte[] SETBIT_EVENT = "setbit".getBytes();
+  private static final byte[] SORTSTORE_EVENT = "sortstore".getBytes();
+  private static final byte[] SINTERSTORE_EVENT = "sinterstore".getBytes();
+  private static final byte[] SUNIONSTORE_EVENT = "sunionstore".getBytes();
+  private static final byte[] SDIFFSTORE_EVENT = "sdiffstore".getBytes();
+  private static final byte[] ZUNIONSTORE_EVENT = "zunionstore".getBytes();
+  private static final byte[] ZINTERSTORE_EVENT = "zinterstore".getBytes();
+  private static final byte[] XADD_EVENT = "xadd".getBytes();
+  private static final byte[] APPEND_EVENT = "append".getBytes();
+  private static final byte[] INCRBY_EVENT = "incrby".getBytes();
+  private static final byte[] INCRBYFLOAT_EVENT = "incrbyfloat".getBytes();
+  private static final byte[] SETRANGE_EVENT = "setrange".getBytes();
+  private static final byte[] EXPIRE_EVENT = "expire".getBytes();
+  private static final byte[] PERSIST_EVENT = "persist".getBytes();
+  private static final byte[] RENAME_FROM_EVENT = "rename_from".getBytes();
+  private static final byte[] RENAME_TO_EVENT = "rename_to".getBytes();
+  private static final byte[] RESTORE_EVENT = "restore".getBytes();
+  private static final byte[] LPUSH_EVENT = "lpush".getBytes();
+  private static final byte[] RPUSH_EVENT = "rpush".getBytes();
+  private static final byte[] LPOP_EVENT = "lpop".getBytes();
+  private static final byte[] RPOP_EVENT = "rpop".getBytes();
+  private static final byte[] LINSERT_EVENT = "linsert".getBytes();
+  private static final byte[] LSET_EVENT = "lset".getBytes();
+  private static final byte[] LREM_EVENT = "lrem".getBytes();
+  private static final byte[] LTRIM_EVENT = "ltrim".getBytes();
+  private static final byte[] HSET_EVENT = "hset".getBytes();
+  private static final byte[] HDEL_EVENT = "hdel".getBytes();
+  private static final byte[] HINCRBY_EVENT = "hincrby".getBytes();
+  private static final byte[] HINCRBYFLOAT_EVENT = "hincrbyfloat".getBytes();
+  private static final byte[] SADD_EVENT = "sadd".getBytes();
+  private static final byte[] SREM_EVENT = "srem".getBytes();
+  private static final byte[] SPOP_EVENT = "spop".getBytes();
+  private static final byte[] ZADD_EVENT = "zadd".getBytes();
+  private static final byte[] ZINCR_EVENT = "zincr".getBytes();
+  private static final byte[] ZREM_EVENT = "zrem".getBytes();
+  private static final byte[] ZREMRANGEBYRANK_EVENT = "zremrangebyrank".getBytes();
+  private static final byte[] ZREMRANGEBYSCORE_EVENT = "zremrangebyscore".getBytes();
+  private static final byte[] XTRIM_EVENT = "xtrim".getBytes();
+  private static final byte[] XREAD = "xread".getBytes();
+  private static final Comparator<byte[]> UNSIGNED = UnsignedBytes.lexicographicalComparator();
+  private static final Comparator<Set<?>> SMALLEST_FIRST = new Comparator<Set<?>>() {
+    @Override
+    public int compare(Set<?> o1, Set<?> o2) {
+      return o1.size() < o2.size() ? -1 : o1.size() > o2.size() ? 1 : 0;
+    }
+  };
   private long started = now();
 
   private BytesKeyObjectMap<Object> data = new BytesKeyObjectMap<Object>();
   private BytesKeyObjectMap<Long> expires = new BytesKeyObjectMap<Long>();
-  private static int[] mask = {128, 64, 32, 16, 8, 4, 2, 1};
+  private Replication replication;
+  private Cluster cluster;
+  private PubSub pubsub;
+  private Blocking blocking;
+  private Scripting scripting;
+  private CommandStats commandStats;
+  private Arena arena;
+  private ProtocolLimits limits;
+  private final KeyspaceEvents events = new KeyspaceEvents();
+  private int notify;
+  private final MigrateConnections migrateConnections = new MigrateConnections();
+
+  void setReplication(Replication replication) {
+    this.replication = replication;
+  }
+
+  /**
+   * In cluster mode the keyspace is indexed by hash slot.
+   */
+  void setCluster(Cluster cluster) {
+    this.cluster = cluster;
+    data = new SlotIndexedMap<Object>(data);
+  }
+
+  void setPubSub(PubSub pubsub) {
+    this.pubsub = pubsub;
+  }
+
+  void setBlocking(Blocking blocking) {
+    this.blocking = blocking;
+  }
+
+  void setScripting(Scripting scripting) {
+    this.scripting = scripting;
+  }
+
+  void setCommandStats(CommandStats commandStats) {
+    this.commandStats = commandStats;
+  }
+
+  /**
+   * The keyspace lives in a memory mapped arena rather than the heap.
+   */
+  void setArena(Arena arena) {
+    this.arena = arena;
+    data = arena.keyspace();
+    expires = arena.expires();
+  }
+
+  void setProtocolLimits(ProtocolLimits limits) {
+    this.limits = limits;
+  }
+
+  KeyspaceEvents events() {
+    return events;
+  }
+
+  /**
+   * Close the connections kept open by MIGRATE.
+   */
+  void close() {
+    migrateConnections.close();
+    if (arena != null) {
+      try {
+        arena.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  boolean contains(byte[] key) {
+    return _getany(key) != null;
+  }
+
+  int countKeysInSlot(int slot) {
+    return ((SlotIndexedMap<Object>) data).countKeysInSlot(slot);
+  }
+
+  Snapshot snapshot() {
+    return new Snapshot(data, expires);
+  }
+
+  void load(Snapshot snapshot) {
+    if (arena != null) {
+      try {
+        arena.replace(snapshot);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not write the snapshot to the arena", e);
+      }
+      return;
+    }
+    data = cluster == null ? snapshot.data : new SlotIndexedMap<Object>(snapshot.data);
+    expires = snapshot.expires;
+  }
 
   private static RedisException invalidValue() {
     return new RedisException("Operation against a key holding the wrong kind of value");
@@ -84,12 +241,24 @@ public class SimpleRedisServer implements RedisServer {
   }
 
   private Object _get(byte[] key0) {
+    Object o = _getany(key0);
+    if (o instanceof Bitmap) {
+      // Only the bit commands work on the words, everything else sees the
+      // bytes the bitmap keeps until its next bit write so reads neither undo
+      // the conversion for the next SETBIT nor copy the whole string
+      o = ((Bitmap) o).bytes();
+    }
+    return o;
+  }
+
+  private Object _getany(byte[] key0) {
     Object o = data.get(key0);
     if (o != null) {
       Long l = expires.get(key0);
       if (l != null) {
         if (l < now()) {
           data.remove(key0);
+          _notify(KeyspaceEvents.EXPIRED, EXPIRED_EVENT, key0);
           return null;
         }
       }
@@ -101,11 +270,13 @@ public class SimpleRedisServer implements RedisServer {
     Object o = _get(key0);
     if (o == null) {
       _put(key0, numToBytes(delta, false));
+      _notify(KeyspaceEvents.STRING, INCRBY_EVENT, key0);
       return integer(delta);
     } else if (o instanceof byte[]) {
       try {
         long integer = bytesToNum((byte[]) o) + delta;
         _put(key0, numToBytes(integer, false));
+        _notify(KeyspaceEvents.STRING, INCRBY_EVENT, key0);
         return integer(integer);
       } catch (IllegalArgumentException e) {
         throw new RedisException(e.getMessage());
@@ -120,12 +291,14 @@ public class SimpleRedisServer implements RedisServer {
     if (o == null) {
       byte[] bytes = _tobytes(delta);
       _put(key0, bytes);
+      _notify(KeyspaceEvents.STRING, INCRBYFLOAT_EVENT, key0);
       return new BulkReply(bytes);
     } else if (o instanceof byte[]) {
       try {
         double number = _todouble((byte[]) o) + delta;
         byte[] bytes = _tobytes(number);
         _put(key0, bytes);
+        _notify(KeyspaceEvents.STRING, INCRBYFLOAT_EVENT, key0);
         return new BulkReply(bytes);
       } catch (IllegalArgumentException e) {
         throw new RedisException(e.getMessage());
@@ -135,18 +308,57 @@ public class SimpleRedisServer implements RedisServer {
     }
   }
 
-  private static int _test(byte[] bytes, long offset) throws RedisException {
-    long div = offset / 8;
-    if (div > MAX_VALUE) throw notInteger();
-    int i;
-    if (bytes.length < div + 1) {
-      i = 0;
-    } else {
-      int mod = (int) (offset % 8);
-      int value = bytes[((int) div)] & 0xFF;
-      i = value & mask[mod];
+  /**
+   * Bit commands keep strings as words until another command reads them.
+   */
+  private Bitmap _getbitmap(byte[] key0, boolean create) throws RedisException {
+    Object o = _getany(key0);
+    if (o instanceof Bitmap) {
+      return (Bitmap) o;
+    } else if (o instanceof byte[]) {
+      Bitmap bitmap = new Bitmap((byte[]) o);
+      data.put(key0, bitmap);
+      return bitmap;
+    } else if (o == null) {
+      if (!create) {
+        return null;
+      }
+      Bitmap bitmap = new Bitmap();
+      _put(key0, bitmap);
+      return bitmap;
+    }
+    throw invalidValue();
+  }
+
+  private static long _tobitoffset(byte[] offset1) throws RedisException {
+    long offset;
+    try {
+      offset = bytesToNum(offset1);
+    } catch (IllegalArgumentException e) {
+      offset = -1;
+    }
+    if (offset < 0 || offset >= Bitmap.MAX_BITS) {
+      throw new RedisException("bit offset is not an integer or out of range");
+    }
+    return offset;
+  }
+
+  /**
+   * Byte offsets of BITCOUNT and BITPOS count from the end when negative and
+   * are clamped to the string.
+   */
+  private static int _tobitrange(byte[] offset1, int length) throws RedisException {
+    long offset = bytesToNum(offset1);
+    if (offset < 0) {
+      offset += length;
     }
-    return i != 0 ? 1 : 0;
+    if (offset < 0) {
+      offset = 0;
+    }
+    if (offset >= length) {
+      offset = length - 1;
+    }
+    return (int) offset;
   }
 
   private byte[] _getbytes(byte[] aKey2) throws RedisException {
@@ -190,7 +402,21 @@ public class SimpleRedisServer implements RedisServer {
     return data.put(key, value);
   }
 
-  private static boolean matches(byte[] key, byte[] pattern, int kp, int pp) {
+  /**
+   * Queue a keyspace notification if its class of events is enabled. Every
+   * change to a key comes through here, so it also tells the arena about
+   * values that were changed in place.
+   */
+  private void _notify(int type, byte[] event, byte[] key) {
+    if (arena != null) {
+      arena.changed(key);
+    }
+    if ((notify & type) != 0) {
+      events.add(notify, event, key);
+    }
+  }
+
+  static boolean matches(byte[] key, byte[] pattern, int kp, int pp) {
     if (kp == key.length) {
       return pp == pattern.length || (pp == pattern.length - 1 && pattern[pp] == '*');
     } else if (pp == pattern.length) {
@@ -305,9 +531,11 @@ public class SimpleRedisServer implements RedisServer {
       System.arraycopy(src, 0, bytes, 0, length0);
       System.arraycopy(value1, 0, bytes, length0, length1);
       _put(key0, bytes);
+      _notify(KeyspaceEvents.STRING, APPEND_EVENT, key0);
       return integer(bytes.length);
     } else if (o == null) {
       _put(key0, value1);
+      _notify(KeyspaceEvents.STRING, APPEND_EVENT, key0);
       return integer(length1);
     } else {
       throw invalidValue();
@@ -325,30 +553,21 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply bitcount(byte[] key0, byte[] start1, byte[] end2) throws RedisException {
-    Object o = _get(key0);
-    if (o instanceof byte[]) {
-      byte[] bytes = (byte[]) o;
-      int size = bytes.length;
-      int s = _torange(start1, size);
-      int e = _torange(end2, size);
-      if (e < s) e = s;
-      int total = 0;
-      for (int i = s; i <= e; i++) {
-        int b = bytes[i] & 0xFF;
-        for (int j = 0; j < 8; j++) {
-          if ((b & mask[j]) != 0) {
-            total++;
-          }
-        }
-      }
-      return integer(total);
-    } else if (o == null) {
+    if ((start1 == null) != (end2 == null)) {
+      throw new RedisException("syntax error");
+    }
+    Bitmap bitmap = _getbitmap(key0, false);
+    if (bitmap == null) {
       return integer(0);
-    } else {
-      throw invalidValue();
     }
+    int size = bitmap.length();
+    if (start1 == null) {
+      return integer(bitmap.count(0, size - 1));
+    }
+    return integer(bitmap.count(_tobitrange(start1, size), _tobitrange(end2, size)));
   }
 
+
   /**
    * Perform bitwise operations between strings
    * String
@@ -360,54 +579,245 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply bitop(byte[] operation0, byte[] destkey1, byte[][] key2) throws RedisException {
-    BitOp bitOp = BitOp.valueOf(new String(operation0).toUpperCase());
-    int size = 0;
-    for (byte[] aKey2 : key2) {
-      int length = aKey2.length;
-      if (length > size) {
-        size = length;
-      }
-    }
-    byte[] bytes = null;
-    for (byte[] aKey2 : key2) {
-      byte[] src;
-      src = _getbytes(aKey2);
-      if (bytes == null) {
-        bytes = new byte[size];
-        if (bitOp == BitOp.NOT) {
-          if (key2.length > 1) {
-            throw new RedisException("invalid number of arguments for 'bitop' NOT operation");
-          }
-          for (int i = 0; i < src.length; i++) {
-            bytes[i] = (byte) ~(src[i] & 0xFF);
-          }
+    BitOp bitOp;
+    try {
+      bitOp = BitOp.valueOf(new String(operation0).toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new RedisException("syntax error");
+    }
+    if (key2.length == 0) {
+      throw new RedisException("wrong number of arguments for 'bitop' command");
+    }
+    if (bitOp == BitOp.NOT && key2.length > 1) {
+      throw new RedisException("BITOP NOT must be called with a single source key.");
+    }
+    Bitmap[] sources = new Bitmap[key2.length];
+    for (int i = 0; i < key2.length; i++) {
+      Bitmap source = _getbitmap(key2[i], false);
+      sources[i] = source == null ? new Bitmap() : source;
+    }
+    Bitmap result;
+    switch (bitOp) {
+      case AND:
+        result = Bitmap.and(sources);
+        break;
+      case OR:
+        result = Bitmap.or(sources);
+        break;
+      case XOR:
+        result = Bitmap.xor(sources);
+        break;
+      default:
+        result = Bitmap.not(sources[0]);
+    }
+    if (result.length() == 0) {
+      if (data.remove(destkey1) != null) {
+        _notify(KeyspaceEvents.GENERIC, DEL_EVENT, destkey1);
+      }
+      expires.remove(destkey1);
+    } else {
+      _put(destkey1, result);
+      _notify(KeyspaceEvents.STRING, SET_EVENT, destkey1);
+    }
+    return integer(result.length());
+  }
+
+  /**
+   * Find first bit set or clear in a string
+   * String
+   *
+   * @param key0
+   * @param bit1
+   * @param start2
+   * @param end3
+   * @return IntegerReply
+   */
+  @Override
+  public IntegerReply bitpos(byte[] key0, byte[] bit1, byte[] start2, byte[] end3) throws RedisException {
+    long bit = bytesToNum(bit1);
+    if (bit != 0 && bit != 1) {
+      throw new RedisException("The bit argument must be 1 or 0.");
+    }
+    Bitmap bitmap = _getbitmap(key0, false);
+    if (bitmap == null) {
+      return integer(bit == 1 ? -1 : 0);
+    }
+    int size = bitmap.length();
+    int start = start2 == null ? 0 : _tobitrange(start2, size);
+    int end = end3 == null ? size - 1 : _tobitrange(end3, size);
+    if (start > end) {
+      return integer(-1);
+    }
+    long position = bitmap.position(bit == 1, start, end);
+    if (position == -1 && bit == 0 && end3 == null) {
+      // The string is padded with zeros to the right
+      return integer(((long) end + 1) * 8);
+    }
+    return integer(position);
+  }
+
+  /**
+   * Perform arbitrary bitfield integer operations on strings
+   * String
+   *
+   * @param key0
+   * @param operation1
+   * @return MultiBulkReply
+   */
+  @Override
+  public MultiBulkReply bitfield(byte[] key0, byte[][] operation1) throws RedisException {
+    List<BitField> fields = new ArrayList<BitField>();
+    int overflow = BitField.WRAP;
+    boolean write = false;
+    for (int i = 0; i < operation1.length; i++) {
+      String name = new String(operation1[i]).toLowerCase();
+      int op;
+      if (name.equals("get")) {
+        op = BitField.GET;
+      } else if (name.equals("set")) {
+        op = BitField.SET;
+      } else if (name.equals("incrby")) {
+        op = BitField.INCRBY;
+      } else if (name.equals("overflow") && i + 1 < operation1.length) {
+        String mode = new String(operation1[++i]).toLowerCase();
+        if (mode.equals("wrap")) {
+          overflow = BitField.WRAP;
+        } else if (mode.equals("sat")) {
+          overflow = BitField.SAT;
+        } else if (mode.equals("fail")) {
+          overflow = BitField.FAIL;
         } else {
-          System.arraycopy(src, 0, bytes, 0, src.length);
+          throw new RedisException("Invalid OVERFLOW type specified");
         }
+        continue;
       } else {
-        for (int i = 0; i < src.length; i++) {
-          int d = bytes[i] & 0xFF;
-          int s = src[i] & 0xFF;
-          switch (bitOp) {
-            case AND:
-              bytes[i] = (byte) (d & s);
-              break;
-            case OR:
-              bytes[i] = (byte) (d | s);
-              break;
-            case XOR:
-              bytes[i] = (byte) (d ^ s);
-              break;
-          }
-        }
+        throw new RedisException("syntax error");
+      }
+      int arguments = op == BitField.GET ? 2 : 3;
+      if (i + arguments >= operation1.length) {
+        throw new RedisException("syntax error");
+      }
+      BitField field = new BitField(op, overflow, operation1[i + 1], operation1[i + 2]);
+      if (op != BitField.GET) {
+        field.value = bytesToNum(operation1[i + 3]);
+        write = true;
+      }
+      fields.add(field);
+      i += arguments;
+    }
+    Bitmap bitmap = _getbitmap(key0, write);
+    Reply[] replies = new Reply[fields.size()];
+    for (int i = 0; i < replies.length; i++) {
+      BitField field = fields.get(i);
+      long current = bitmap == null ? 0 : bitmap.getField(field.offset, field.bits, field.signed);
+      if (field.op == BitField.GET) {
+        replies[i] = integer(current);
+        continue;
       }
+      Long updated = field.op == BitField.SET ? field.apply(field.value, 0) : field.apply(current, field.value);
+      if (updated == null) {
+        replies[i] = NIL_REPLY;
+      } else {
+        bitmap.setField(field.offset, field.bits, updated);
+        replies[i] = integer(field.op == BitField.SET ? current : updated);
+      }
+    }
+    if (write) {
+      _notify(KeyspaceEvents.STRING, SETBIT_EVENT, key0);
     }
-    _put(destkey1, bytes);
-    return integer(bytes == null ? 0 : bytes.length);
+    return new MultiBulkReply(replies);
   }
 
+
   enum BitOp {AND, OR, XOR, NOT}
 
+  /**
+   * One GET, SET or INCRBY of a BITFIELD command.
+   */
+  private static class BitField {
+    static final int GET = 0;
+    static final int SET = 1;
+    static final int INCRBY = 2;
+    static final int WRAP = 0;
+    static final int SAT = 1;
+    static final int FAIL = 2;
+
+    final int op;
+    final int overflow;
+    final boolean signed;
+    final int bits;
+    final long offset;
+    long value;
+
+    BitField(int op, int overflow, byte[] type, byte[] offset) throws RedisException {
+      this.op = op;
+      this.overflow = overflow;
+      int bits = 0;
+      if (type.length > 1 && (type[0] == 'i' || type[0] == 'u')) {
+        try {
+          bits = Integer.parseInt(new String(type, 1, type.length - 1));
+        } catch (NumberFormatException e) {
+          bits = 0;
+        }
+      }
+      signed = type[0] == 'i';
+      if (bits < 1 || bits > (signed ? 64 : 63)) {
+        throw new RedisException("Invalid bitfield type. Use something like i16 u8. Note that u64 is not supported but i64 is.");
+      }
+      this.bits = bits;
+      // #n addresses the nth field of this type
+      boolean multiply = offset.length > 0 && offset[0] == '#';
+      long position;
+      try {
+        position = bytesToNum(multiply ? Arrays.copyOfRange(offset, 1, offset.length) : offset);
+      } catch (IllegalArgumentException e) {
+        position = -1;
+      }
+      if (multiply) {
+        position *= bits;
+      }
+      if (position < 0 || position + bits > Bitmap.MAX_BITS) {
+        throw new RedisException("bit offset is not an integer or out of range");
+      }
+      this.offset = position;
+    }
+
+    /**
+     * @return the new value of the field or null if it overflows and
+     *         overflow is FAIL
+     */
+    Long apply(long current, long increment) {
+      long max = signed ? (bits == 64 ? Long.MAX_VALUE : (1L << (bits - 1)) - 1) : (1L << bits) - 1;
+      long min = signed ? -max - 1 : 0;
+      long sum = current + increment;
+      boolean over;
+      boolean under;
+      if (!signed && current < 0) {
+        // Only a SET can get here, the value is taken as unsigned
+        over = true;
+        under = false;
+      } else if (((current ^ sum) & (increment ^ sum)) < 0) {
+        over = increment > 0;
+        under = increment < 0;
+      } else {
+        over = sum > max;
+        under = sum < min;
+      }
+      if (!over && !under) {
+        return sum;
+      }
+      switch (overflow) {
+        case WRAP:
+          if (!signed) return sum & max;
+          return bits == 64 ? sum : (sum << (64 - bits)) >> (64 - bits);
+        case SAT:
+          return over ? max : min;
+        default:
+          return null;
+      }
+    }
+  }
+
   /**
    * Decrement the integer value of a key by one
    * String
@@ -463,18 +873,12 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply getbit(byte[] key0, byte[] offset1) throws RedisException {
-    Object o = _get(key0);
-    if (o instanceof byte[]) {
-      long offset = bytesToNum(offset1);
-      byte[] bytes = (byte[]) o;
-      return _test(bytes, offset) == 1 ? integer(1) : integer(0);
-    } else if (o == null) {
-      return integer(0);
-    } else {
-      throw invalidValue();
-    }
+    long offset = _tobitoffset(offset1);
+    Bitmap bitmap = _getbitmap(key0, false);
+    return integer(bitmap != null && bitmap.get(offset) ? 1 : 0);
   }
 
+
   /**
    * Get a substring of the string stored at a key
    * String
@@ -508,7 +912,11 @@ public class SimpleRedisServer implements RedisServer {
   @Override
   public BulkReply getset(byte[] key0, byte[] value1) throws RedisException {
     Object put = _put(key0, value1);
+    if (put instanceof Bitmap) {
+      put = ((Bitmap) put).bytes();
+    }
     if (put == null || put instanceof byte[]) {
+      _notify(KeyspaceEvents.STRING, SET_EVENT, key0);
       return put == null ? NIL_REPLY : new BulkReply((byte[]) put);
     } else {
       // Put it back
@@ -592,6 +1000,7 @@ public class SimpleRedisServer implements RedisServer {
     }
     for (int i = 0; i < length; i += 2) {
       _put(key_or_value0[i], key_or_value0[i + 1]);
+      _notify(KeyspaceEvents.STRING, SET_EVENT, key_or_value0[i]);
     }
     return OK;
   }
@@ -616,6 +1025,7 @@ public class SimpleRedisServer implements RedisServer {
     }
     for (int i = 0; i < length; i += 2) {
       _put(key_or_value0[i], key_or_value0[i + 1]);
+      _notify(KeyspaceEvents.STRING, SET_EVENT, key_or_value0[i]);
     }
     return integer(1);
   }
@@ -632,6 +1042,8 @@ public class SimpleRedisServer implements RedisServer {
   @Override
   public Reply psetex(byte[] key0, byte[] milliseconds1, byte[] value2) throws RedisException {
     _put(key0, value2, bytesToNum(milliseconds1) + now());
+    _notify(KeyspaceEvents.STRING, SET_EVENT, key0);
+    _notify(KeyspaceEvents.GENERIC, EXPIRE_EVENT, key0);
     return OK;
   }
 
@@ -646,6 +1058,7 @@ public class SimpleRedisServer implements RedisServer {
   @Override
   public StatusReply set(byte[] key0, byte[] value1) throws RedisException {
     _put(key0, value1);
+    _notify(KeyspaceEvents.STRING, SET_EVENT, key0);
     return OK;
   }
 
@@ -660,40 +1073,18 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply setbit(byte[] key0, byte[] offset1, byte[] value2) throws RedisException {
-    int bit = (int) bytesToNum(value2);
-    if (bit != 0 && bit != 1) throw notInteger();
-    Object o = _get(key0);
-    if (o instanceof byte[] || o == null) {
-      long offset = bytesToNum(offset1);
-      long div = offset / 8;
-      if (div + 1 > MAX_VALUE) throw notInteger();
-
-      byte[] bytes = (byte[]) o;
-      if (bytes == null || bytes.length < div + 1) {
-        byte[] tmp = bytes;
-        bytes = new byte[(int) div + 1];
-        if (tmp != null) System.arraycopy(tmp, 0, bytes, 0, tmp.length);
-        _put(key0, bytes);
-      }
-      int mod = (int) (offset % 8);
-      int value = bytes[((int) div)] & 0xFF;
-      int i = value & mask[mod];
-      if (i == 0) {
-        if (bit != 0) {
-          bytes[((int) div)] += mask[mod];
-        }
-        return integer(0);
-      } else {
-        if (bit == 0) {
-          bytes[((int) div)] -= mask[mod];
-        }
-        return integer(1);
-      }
-    } else {
-      throw invalidValue();
+    long offset = _tobitoffset(offset1);
+    long bit = bytesToNum(value2);
+    if (bit != 0 && bit != 1) {
+      throw new RedisException("bit is not an integer or out of range");
     }
+    Bitmap bitmap = _getbitmap(key0, true);
+    boolean previous = bitmap.set(offset, bit == 1);
+    _notify(KeyspaceEvents.STRING, SETBIT_EVENT, key0);
+    return integer(previous ? 1 : 0);
   }
 
+
   /**
    * Set the value and expiration of a key
    * String
@@ -706,6 +1097,8 @@ public class SimpleRedisServer implements RedisServer {
   @Override
   public StatusReply setex(byte[] key0, byte[] seconds1, byte[] value2) throws RedisException {
     _put(key0, value2, bytesToNum(seconds1) * 1000 + now());
+    _notify(KeyspaceEvents.STRING, SET_EVENT, key0);
+    _notify(KeyspaceEvents.GENERIC, EXPIRE_EVENT, key0);
     return OK;
   }
 
@@ -721,6 +1114,7 @@ public class SimpleRedisServer implements RedisServer {
   public IntegerReply setnx(byte[] key0, byte[] value1) throws RedisException {
     if (_get(key0) == null) {
       _put(key0, value1);
+      _notify(KeyspaceEvents.STRING, SET_EVENT, key0);
       return integer(1);
     }
     return integer(0);
@@ -745,8 +1139,15 @@ public class SimpleRedisServer implements RedisServer {
       bytes = new byte[length];
       System.arraycopy(tmp, 0, bytes, 0, offset);
       _put(key0, bytes);
+    } else if (data.get(key0) instanceof Bitmap) {
+      // The bitmap's bytes are shared with it so they replace it before
+      // they change
+      data.put(key0, bytes);
     }
     System.arraycopy(value2, 0, bytes, offset, value2.length);
+    if (value2.length > 0) {
+      _notify(KeyspaceEvents.STRING, SETRANGE_EVENT, key0);
+    }
     return integer(bytes.length);
   }
 
@@ -759,6 +1160,10 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply strlen(byte[] key0) throws RedisException {
+    Object o = _getany(key0);
+    if (o instanceof Bitmap) {
+      return integer(((Bitmap) o).length());
+    }
     return integer(_getbytes(key0).length);
   }
 
@@ -896,7 +1301,30 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply config_get(byte[] parameter0) throws RedisException {
-    throw new RedisException("Not supported");
+    List<Reply> replies = new ArrayList<Reply>();
+    if (matches(NOTIFY_KEYSPACE_EVENTS, parameter0, 0, 0)) {
+      replies.add(new BulkReply(NOTIFY_KEYSPACE_EVENTS));
+      replies.add(new BulkReply(KeyspaceEvents.toString(notify).getBytes()));
+    }
+    if (scripting != null && matches(LUA_TIME_LIMIT, parameter0, 0, 0)) {
+      replies.add(new BulkReply(LUA_TIME_LIMIT));
+      replies.add(new BulkReply(numToBytes(scripting.timeLimit())));
+    }
+    if (limits != null) {
+      if (matches(PROTO_MAX_BULK_LEN, parameter0, 0, 0)) {
+        replies.add(new BulkReply(PROTO_MAX_BULK_LEN));
+        replies.add(new BulkReply(numToBytes(limits.maxBulkLength())));
+      }
+      if (matches(PROTO_MAX_MULTIBULK_LEN, parameter0, 0, 0)) {
+        replies.add(new BulkReply(PROTO_MAX_MULTIBULK_LEN));
+        replies.add(new BulkReply(numToBytes(limits.maxMultibulkLength())));
+      }
+      if (matches(CLIENT_QUERY_BUFFER_LIMIT, parameter0, 0, 0)) {
+        replies.add(new BulkReply(CLIENT_QUERY_BUFFER_LIMIT));
+        replies.add(new BulkReply(numToBytes(limits.queryBufferLimit())));
+      }
+    }
+    return new MultiBulkReply(replies.toArray(new Reply[replies.size()]));
   }
 
   /**
@@ -909,7 +1337,37 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply config_set(byte[] parameter0, byte[] value1) throws RedisException {
-    throw new RedisException("Not supported");
+    if (new String(parameter0).equalsIgnoreCase("notify-keyspace-events")) {
+      notify = KeyspaceEvents.parse(new String(value1));
+      return OK;
+    }
+    if (scripting != null && new String(parameter0).equalsIgnoreCase("lua-time-limit")) {
+      scripting.setTimeLimit(bytesToNum(value1));
+      return OK;
+    }
+    if (limits != null) {
+      String name = new String(parameter0);
+      boolean bulk = name.equalsIgnoreCase("proto-max-bulk-len");
+      boolean multibulk = name.equalsIgnoreCase("proto-max-multibulk-len");
+      if (bulk || multibulk || name.equalsIgnoreCase("client-query-buffer-limit")) {
+        long size;
+        try {
+          size = ProtocolLimits.memory(new String(value1));
+        } catch (NumberFormatException e) {
+          throw new RedisException("Invalid argument '" + new String(value1) + "' for CONFIG SET '" + name + "'");
+        }
+        if (bulk) {
+          // Arguments are read into arrays
+          limits.setMaxBulkLength(Math.min(size, Integer.MAX_VALUE - 2));
+        } else if (multibulk) {
+          limits.setMaxMultibulkLength(Math.min(size, Integer.MAX_VALUE));
+        } else {
+          limits.setQueryBufferLimit(size);
+        }
+        return OK;
+      }
+    }
+    throw new RedisException("Unsupported CONFIG parameter: " + new String(parameter0));
   }
 
   /**
@@ -920,7 +1378,10 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply config_resetstat() throws RedisException {
-    throw new RedisException("Not supported");
+    if (commandStats != null) {
+      commandStats.reset();
+    }
+    return OK;
   }
 
   /**
@@ -965,7 +1426,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply flushall() throws RedisException {
-    data.clear();
+    _flush();
     return OK;
   }
 
@@ -977,10 +1438,24 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply flushdb() throws RedisException {
-    data.clear();
+    _flush();
     return OK;
   }
 
+  /**
+   * Every key is deleted so subscribers get a del for each of them, which is
+   * only worth walking the keys for when they are going to be sent.
+   */
+  private void _flush() {
+    if ((notify & KeyspaceEvents.GENERIC) != 0) {
+      for (Object key : data.keySet()) {
+        _notify(KeyspaceEvents.GENERIC, DEL_EVENT, ((BytesKey) key).getBytes());
+      }
+    }
+    data.clear();
+    expires.clear();
+  }
+
   /**
    * Get information and statistics about the server
    * Server
@@ -993,6 +1468,21 @@ public class SimpleRedisServer implements RedisServer {
     sb.append("redis_version:2.6.0\n");
     sb.append("keys:").append(data.size()).append("\n");
     sb.append("uptime:").append(now() - started).append("\n");
+    if (replication != null) {
+      sb.append("role:").append(replication.isReplica() ? "slave" : "master").append("\n");
+      sb.append("connected_slaves:").append(replication.connectedReplicas()).append("\n");
+      sb.append("master_replid:").append(replication.replicationId()).append("\n");
+      sb.append("master_repl_offset:").append(replication.offset()).append("\n");
+    }
+    if (commandStats != null && section != null) {
+      String name = new String(section);
+      if (name.equalsIgnoreCase("commandstats") || name.equalsIgnoreCase("all")) {
+        commandStats.append(sb);
+      }
+    }
+    if (arena != null) {
+      arena.info(sb);
+    }
     return new BulkReply(sb.toString().getBytes());
   }
 
@@ -1053,8 +1543,33 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply slaveof(byte[] host0, byte[] port1) throws RedisException {
-    // TODO
-    return null;
+    if (replication == null) {
+      throw new RedisException("Not supported");
+    }
+    if (host0 == null || port1 == null) {
+      throw new RedisException("wrong number of arguments for 'slaveof' command");
+    }
+    String host = new String(host0);
+    String port = new String(port1);
+    if (host.equalsIgnoreCase("no") && port.equalsIgnoreCase("one")) {
+      replication.promote();
+    } else {
+      replication.replicaOf(host, _toposint(port1));
+    }
+    return OK;
+  }
+
+  /**
+   * Make the server a replica of another instance, or promote it as master
+   * Server
+   *
+   * @param host0
+   * @param port1
+   * @return StatusReply
+   */
+  @Override
+  public StatusReply replicaof(byte[] host0, byte[] port1) throws RedisException {
+    return slaveof(host0, port1);
   }
 
   /**
@@ -1082,19 +1597,240 @@ public class SimpleRedisServer implements RedisServer {
     return null;
   }
 
+  private Cluster _cluster() throws RedisException {
+    if (cluster == null) {
+      throw new RedisException("This instance has cluster support disabled");
+    }
+    return cluster;
+  }
+
+  private static int _toslot(byte[] slot0) throws RedisException {
+    if (slot0 == null) {
+      throw new RedisException("wrong number of arguments");
+    }
+    long slot = bytesToNum(slot0);
+    if (slot < 0 || slot >= CRC16.SLOTS) {
+      throw new RedisException("Invalid or out of range slot");
+    }
+    return (int) slot;
+  }
+
+  private static int[] _toslots(byte[][] slot0) throws RedisException {
+    if (slot0.length == 0) {
+      throw new RedisException("wrong number of arguments");
+    }
+    int[] slots = new int[slot0.length];
+    for (int i = 0; i < slot0.length; i++) {
+      slots[i] = _toslot(slot0[i]);
+    }
+    return slots;
+  }
+
   /**
-   * Return the current server time
-   * Server
+   * Assign new hash slots to receiving node
+   * Cluster
    *
-   * @return MultiBulkReply
+   * @param slot0
+   * @return StatusReply
    */
   @Override
-  public MultiBulkReply time() throws RedisException {
-    long millis = System.currentTimeMillis();
-    long seconds = millis / 1000;
-    Reply[] replies = new Reply[]{
-            new BulkReply(numToBytes(seconds)),
-            new BulkReply(numToBytes((millis - seconds * 1000) * 1000))
+  public StatusReply cluster_addslots(byte[][] slot0) throws RedisException {
+    _cluster().addSlots(_toslots(slot0));
+    return OK;
+  }
+
+  /**
+   * Assign new hash slot ranges to receiving node
+   * Cluster
+   *
+   * @param start_slot_or_end_slot0
+   * @return StatusReply
+   */
+  @Override
+  public StatusReply cluster_addslotsrange(byte[][] start_slot_or_end_slot0) throws RedisException {
+    if (start_slot_or_end_slot0.length == 0 || start_slot_or_end_slot0.length % 2 != 0) {
+      throw new RedisException("wrong number of arguments for 'cluster addslotsrange' command");
+    }
+    List<Integer> slots = new ArrayList<Integer>();
+    for (int i = 0; i < start_slot_or_end_slot0.length; i += 2) {
+      int start = _toslot(start_slot_or_end_slot0[i]);
+      int end = _toslot(start_slot_or_end_slot0[i + 1]);
+      for (int slot = start; slot <= end; slot++) {
+        slots.add(slot);
+      }
+    }
+    int[] array = new int[slots.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = slots.get(i);
+    }
+    _cluster().addSlots(array);
+    return OK;
+  }
+
+  /**
+   * Return the number of local keys in the specified hash slot
+   * Cluster
+   *
+   * @param slot0
+   * @return IntegerReply
+   */
+  @Override
+  public IntegerReply cluster_countkeysinslot(byte[] slot0) throws RedisException {
+    _cluster();
+    return integer(countKeysInSlot(_toslot(slot0)));
+  }
+
+  /**
+   * Set hash slots as unbound in receiving node
+   * Cluster
+   *
+   * @param slot0
+   * @return StatusReply
+   */
+  @Override
+  public StatusReply cluster_delslots(byte[][] slot0) throws RedisException {
+    _cluster().delSlots(_toslots(slot0));
+    return OK;
+  }
+
+  /**
+   * Return local key names in the specified hash slot
+   * Cluster
+   *
+   * @param slot0
+   * @param count1
+   * @return MultiBulkReply
+   */
+  @Override
+  public MultiBulkReply cluster_getkeysinslot(byte[] slot0, byte[] count1) throws RedisException {
+    _cluster();
+    List<BytesKey> keys = ((SlotIndexedMap<Object>) data).keysInSlot(_toslot(slot0), _toposint(count1));
+    Reply[] replies = new Reply[keys.size()];
+    for (int i = 0; i < replies.length; i++) {
+      replies[i] = new BulkReply(keys.get(i).getBytes());
+    }
+    return new MultiBulkReply(replies);
+  }
+
+  /**
+   * Internal command used by cluster nodes to describe themselves and their slots
+   * Cluster
+   *
+   * @param node_id_host_port_slots0
+   * @return MultiBulkReply
+   */
+  @Override
+  public Reply cluster_hello(byte[][] node_id_host_port_slots0) throws RedisException {
+    return _cluster().hello(node_id_host_port_slots0);
+  }
+
+  /**
+   * Provides info about Redis Cluster node state
+   * Cluster
+   *
+   * @return BulkReply
+   */
+  @Override
+  public BulkReply cluster_info() throws RedisException {
+    return new BulkReply(_cluster().info().getBytes());
+  }
+
+  /**
+   * Returns the hash slot of the specified key
+   * Cluster
+   *
+   * @param key0
+   * @return IntegerReply
+   */
+  @Override
+  public IntegerReply cluster_keyslot(byte[] key0) throws RedisException {
+    if (key0 == null) {
+      throw new RedisException("wrong number of arguments for 'cluster keyslot' command");
+    }
+    return integer(CRC16.slot(key0));
+  }
+
+  /**
+   * Force a node cluster to handshake with another node
+   * Cluster
+   *
+   * @param ip0
+   * @param port1
+   * @return StatusReply
+   */
+  @Override
+  public StatusReply cluster_meet(byte[] ip0, byte[] port1) throws RedisException {
+    if (ip0 == null) {
+      throw new RedisException("wrong number of arguments for 'cluster meet' command");
+    }
+    _cluster().meet(new String(ip0), _toposint(port1));
+    return OK;
+  }
+
+  /**
+   * Return the node id
+   * Cluster
+   *
+   * @return BulkReply
+   */
+  @Override
+  public BulkReply cluster_myid() throws RedisException {
+    return new BulkReply(_cluster().myId().getBytes());
+  }
+
+  /**
+   * Get Cluster config for the node
+   * Cluster
+   *
+   * @return BulkReply
+   */
+  @Override
+  public BulkReply cluster_nodes() throws RedisException {
+    return new BulkReply(_cluster().nodes().getBytes());
+  }
+
+  /**
+   * Bind a hash slot to a specific node
+   * Cluster
+   *
+   * @param slot0
+   * @param subcommand1
+   * @param node_id2
+   * @return StatusReply
+   */
+  @Override
+  public StatusReply cluster_setslot(byte[] slot0, byte[] subcommand1, byte[] node_id2) throws RedisException {
+    if (subcommand1 == null) {
+      throw new RedisException("wrong number of arguments for 'cluster setslot' command");
+    }
+    _cluster().setSlot(_toslot(slot0), new String(subcommand1), node_id2 == null ? null : new String(node_id2));
+    return OK;
+  }
+
+  /**
+   * Get array of Cluster slot to node mappings
+   * Cluster
+   *
+   * @return MultiBulkReply
+   */
+  @Override
+  public MultiBulkReply cluster_slots() throws RedisException {
+    return _cluster().slots();
+  }
+
+  /**
+   * Return the current server time
+   * Server
+   *
+   * @return MultiBulkReply
+   */
+  @Override
+  public MultiBulkReply time() throws RedisException {
+    long millis = System.currentTimeMillis();
+    long seconds = millis / 1000;
+    Reply[] replies = new Reply[]{
+            new BulkReply(numToBytes(seconds)),
+            new BulkReply(numToBytes((millis - seconds * 1000) * 1000))
     };
     return new MultiBulkReply(replies);
   }
@@ -1180,6 +1916,7 @@ public class SimpleRedisServer implements RedisServer {
       return integer(-1);
     }
     list.add(i + (where == Where.BEFORE ? 0 : 1), new BytesKey(value3));
+    _notify(KeyspaceEvents.LIST, LINSERT_EVENT, key0);
     return integer(list.size());
   }
 
@@ -1211,7 +1948,9 @@ public class SimpleRedisServer implements RedisServer {
     if (list == null || list.size() == 0) {
       return NIL_REPLY;
     } else {
-      return new BulkReply(list.remove(0).getBytes());
+      BulkReply reply = new BulkReply(list.remove(0).getBytes());
+      _notify(KeyspaceEvents.LIST, LPOP_EVENT, key0);
+      return reply;
     }
   }
 
@@ -1229,6 +1968,7 @@ public class SimpleRedisServer implements RedisServer {
     for (byte[] value : value1) {
       list.add(0, new BytesKey(value));
     }
+    _notify(KeyspaceEvents.LIST, LPUSH_EVENT, key0);
     return integer(list.size());
   }
 
@@ -1247,6 +1987,7 @@ public class SimpleRedisServer implements RedisServer {
       return integer(0);
     } else {
       list.add(0, new BytesKey(value1));
+      _notify(KeyspaceEvents.LIST, LPUSH_EVENT, key0);
     }
     return integer(list.size());
   }
@@ -1317,6 +2058,9 @@ public class SimpleRedisServer implements RedisServer {
           count--;
         }
       }
+      if (rem > 0) {
+        _notify(KeyspaceEvents.LIST, LREM_EVENT, key0);
+      }
       return integer(rem);
     }
   }
@@ -1340,6 +2084,7 @@ public class SimpleRedisServer implements RedisServer {
     int index = _toposint(index1);
     if (index < size) {
       list.set(index, new BytesKey(value2));
+      _notify(KeyspaceEvents.LIST, LSET_EVENT, key0);
       return OK;
     } else {
       throw invalidValue();
@@ -1366,6 +2111,7 @@ public class SimpleRedisServer implements RedisServer {
       int e = _torange(stop2, l);
       // Doesn't change expiration
       data.put(key0, list.subList(s, e + 1));
+      _notify(KeyspaceEvents.LIST, LTRIM_EVENT, key0);
       return OK;
     }
   }
@@ -1386,6 +2132,7 @@ public class SimpleRedisServer implements RedisServer {
     } else {
       byte[] bytes = list.get(l - 1).getBytes();
       list.remove(l - 1);
+      _notify(KeyspaceEvents.LIST, RPOP_EVENT, key0);
       return new BulkReply(bytes);
     }
   }
@@ -1409,6 +2156,8 @@ public class SimpleRedisServer implements RedisServer {
       BytesValue popped = source.get(l - 1);
       source.remove(l - 1);
       dest.add(0, popped);
+      _notify(KeyspaceEvents.LIST, RPOP_EVENT, source0);
+      _notify(KeyspaceEvents.LIST, LPUSH_EVENT, destination1);
       return new BulkReply(popped.getBytes());
     }
   }
@@ -1427,6 +2176,7 @@ public class SimpleRedisServer implements RedisServer {
     for (byte[] bytes : value1) {
       list.add(new BytesKey(bytes));
     }
+    _notify(KeyspaceEvents.LIST, RPUSH_EVENT, key0);
     return integer(list.size());
   }
 
@@ -1445,6 +2195,7 @@ public class SimpleRedisServer implements RedisServer {
       return integer(0);
     } else {
       list.add(new BytesKey(value1));
+      _notify(KeyspaceEvents.LIST, RPUSH_EVENT, key0);
       return integer(list.size());
     }
   }
@@ -1463,6 +2214,7 @@ public class SimpleRedisServer implements RedisServer {
       Object remove = data.remove(bytes);
       if (remove != null) {
         total++;
+        _notify(KeyspaceEvents.GENERIC, DEL_EVENT, bytes);
       }
       expires.remove(bytes);
     }
@@ -1478,7 +2230,15 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public BulkReply dump(byte[] key0) throws RedisException {
-    throw new RedisException("Not supported");
+    Object o = _get(key0);
+    if (o == null) {
+      return NIL_REPLY;
+    }
+    try {
+      return new BulkReply(ValueEncoding.serialize(o));
+    } catch (IOException e) {
+      throw new RedisException(e.getMessage());
+    }
   }
 
   /**
@@ -1490,7 +2250,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply exists(byte[] key0) throws RedisException {
-    Object o = _get(key0);
+    Object o = _getany(key0);
     return o == null ? integer(0) : integer(1);
   }
 
@@ -1509,6 +2269,7 @@ public class SimpleRedisServer implements RedisServer {
       return integer(0);
     } else {
       expires.put(key0, bytesToNum(seconds1) * 1000 + now());
+      _notify(KeyspaceEvents.GENERIC, EXPIRE_EVENT, key0);
       return integer(1);
     }
   }
@@ -1528,6 +2289,7 @@ public class SimpleRedisServer implements RedisServer {
       return integer(0);
     } else {
       expires.put(key0, bytesToNum(timestamp1) * 1000);
+      _notify(KeyspaceEvents.GENERIC, EXPIRE_EVENT, key0);
       return integer(1);
     }
   }
@@ -1545,22 +2307,25 @@ public class SimpleRedisServer implements RedisServer {
       throw new RedisException("wrong number of arguments for KEYS");
     }
     List<Reply<ByteBuf>> replies = new ArrayList<Reply<ByteBuf>>();
-    Iterator<Object> it = data.keySet().iterator();
-    while(it.hasNext()) {        
-      BytesKey key = (BytesKey) it.next();
+    List<BytesKey> expired = new ArrayList<BytesKey>();
+    for (Object o : data.keySet()) {
+      BytesKey key = (BytesKey) o;
       byte[] bytes = key.getBytes();
-      boolean expired = false;
       Long l = expires.get(key);
       if (l != null) {
         if (l < now()) {
-          expired = true;
-          it.remove();
+          expired.add(key);
+          continue;
         }
       }
-      if (matches(bytes, pattern0, 0, 0) && !expired) {
+      if (matches(bytes, pattern0, 0, 0)) {
         replies.add(new BulkReply(bytes));
       }
     }
+    for (BytesKey key : expired) {
+      data.remove(key);
+      _notify(KeyspaceEvents.EXPIRED, EXPIRED_EVENT, key.getBytes());
+    }
     return new MultiBulkReply(replies.toArray(new Reply[replies.size()]));
   }
 
@@ -1573,12 +2338,101 @@ public class SimpleRedisServer implements RedisServer {
    * @param key2
    * @param destination_db3
    * @param timeout4
+   * @param copy_replace_or_keys5
    * @return StatusReply
    */
   @Override
-  public StatusReply migrate(byte[] host0, byte[] port1, byte[] key2, byte[] destination_db3, byte[] timeout4) throws RedisException {
-    // TODO: Multiserver
-    return null;
+  public StatusReply migrate(byte[] host0, byte[] port1, byte[] key2, byte[] destination_db3, byte[] timeout4, byte[][] copy_replace_or_keys5) throws RedisException {
+    if (timeout4 == null) {
+      throw new RedisException("wrong number of arguments for 'migrate' command");
+    }
+    if (_toint(destination_db3) != 0) {
+      throw new RedisException("DB index is out of range");
+    }
+    boolean copy = false;
+    boolean replace = false;
+    List<byte[]> keys = new ArrayList<byte[]>();
+    for (int i = 0; i < copy_replace_or_keys5.length; i++) {
+      String option = new String(copy_replace_or_keys5[i]).toLowerCase();
+      if (option.equals("copy")) {
+        copy = true;
+      } else if (option.equals("replace")) {
+        replace = true;
+      } else if (option.equals("keys")) {
+        if (key2.length != 0) {
+          throw new RedisException("When using MIGRATE KEYS option, the key argument must be set to the empty string");
+        }
+        keys.addAll(Arrays.asList(copy_replace_or_keys5).subList(i + 1, copy_replace_or_keys5.length));
+        break;
+      } else {
+        throw new RedisException("syntax error");
+      }
+    }
+    if (keys.isEmpty()) {
+      keys.add(key2);
+    }
+    List<byte[]> found = new ArrayList<byte[]>();
+    List<Object> values = new ArrayList<Object>();
+    for (byte[] key : keys) {
+      Object value = _get(key);
+      if (value != null) {
+        found.add(key);
+        values.add(value);
+      }
+    }
+    if (found.isEmpty()) {
+      return NOKEY;
+    }
+    int timeout = _toposint(timeout4);
+    boolean[] restored = new boolean[found.size()];
+    String error = null;
+    MigrateConnections.Connection connection = null;
+    try {
+      connection = migrateConnections.get(new String(host0), _toposint(port1), timeout);
+      OutputStream os = connection.os;
+      InputStream is = connection.is;
+      // Pipeline the whole batch, in a cluster the target may be importing the slot
+      for (int i = 0; i < found.size(); i++) {
+        byte[] key = found.get(i);
+        Long expire = expires.get(key);
+        long ttl = expire == null ? 0 : Math.max(1, expire - now());
+        if (cluster != null) {
+          new redis.Command(ASKING).write(os);
+        }
+        redis.Command.writeDirect(os, RESTORE, key, String.valueOf(ttl), ValueEncoding.serialize(values.get(i)),
+                replace ? new Object[]{REPLACE} : null);
+      }
+      os.flush();
+      for (int i = 0; i < found.size(); i++) {
+        if (cluster != null) {
+          redis.RedisProtocol.receive(is);
+        }
+        redis.reply.Reply reply = redis.RedisProtocol.receive(is);
+        if (reply instanceof redis.reply.ErrorReply) {
+          if (error == null) error = ((redis.reply.ErrorReply) reply).data();
+        } else {
+          restored[i] = true;
+        }
+      }
+    } catch (IOException e) {
+      if (connection != null) {
+        migrateConnections.discard(connection);
+      }
+      throw new RedisException("IOERR error or timeout writing to target instance");
+    }
+    if (!copy) {
+      for (int i = 0; i < found.size(); i++) {
+        if (restored[i]) {
+          data.remove(found.get(i));
+          expires.remove(found.get(i));
+          _notify(KeyspaceEvents.GENERIC, DEL_EVENT, found.get(i));
+        }
+      }
+    }
+    if (error != null) {
+      throw new RedisException("Target instance replied with error: " + error);
+    }
+    return OK;
   }
 
   /**
@@ -1621,7 +2475,11 @@ public class SimpleRedisServer implements RedisServer {
       return integer(0);
     } else {
       Long remove = expires.remove(key0);
-      return remove == null ? integer(0) : integer(1);
+      if (remove == null) {
+        return integer(0);
+      }
+      _notify(KeyspaceEvents.GENERIC, PERSIST_EVENT, key0);
+      return integer(1);
     }
   }
 
@@ -1640,6 +2498,7 @@ public class SimpleRedisServer implements RedisServer {
       return integer(0);
     } else {
       expires.put(key0, bytesToNum(milliseconds1) + now());
+      _notify(KeyspaceEvents.GENERIC, EXPIRE_EVENT, key0);
       return integer(1);
     }
   }
@@ -1659,6 +2518,7 @@ public class SimpleRedisServer implements RedisServer {
       return integer(0);
     } else {
       expires.put(key0, bytesToNum(milliseconds_timestamp1));
+      _notify(KeyspaceEvents.GENERIC, EXPIRE_EVENT, key0);
       return integer(1);
     }
   }
@@ -1747,6 +2607,8 @@ public class SimpleRedisServer implements RedisServer {
     } else {
       data.put(newkey1, data.remove(key0));
       expires.put(newkey1, expires.remove(key0));
+      _notify(KeyspaceEvents.GENERIC, RENAME_FROM_EVENT, key0);
+      _notify(KeyspaceEvents.GENERIC, RENAME_TO_EVENT, newkey1);
       return OK;
     }
   }
@@ -1769,6 +2631,8 @@ public class SimpleRedisServer implements RedisServer {
       if (newo == null) {
         data.put(newkey1, data.remove(key0));
         expires.put(newkey1, expires.remove(key0));
+        _notify(KeyspaceEvents.GENERIC, RENAME_FROM_EVENT, key0);
+        _notify(KeyspaceEvents.GENERIC, RENAME_TO_EVENT, newkey1);
         return integer(1);
       } else {
         return integer(0);
@@ -1783,11 +2647,43 @@ public class SimpleRedisServer implements RedisServer {
    * @param key0
    * @param ttl1
    * @param serialized_value2
+   * @param replace3
    * @return StatusReply
    */
   @Override
-  public StatusReply restore(byte[] key0, byte[] ttl1, byte[] serialized_value2) throws RedisException {
-    throw new RedisException("Not supported");
+  public StatusReply restore(byte[] key0, byte[] ttl1, byte[] serialized_value2, byte[][] replace3) throws RedisException {
+    if (serialized_value2 == null) {
+      throw new RedisException("wrong number of arguments for 'restore' command");
+    }
+    boolean replace = false;
+    for (byte[] option : replace3) {
+      if (new String(option).equalsIgnoreCase("replace")) {
+        replace = true;
+      } else {
+        throw new RedisException("syntax error");
+      }
+    }
+    long ttl = bytesToNum(ttl1);
+    if (ttl < 0) {
+      throw new RedisException("Invalid TTL value, must be >= 0");
+    }
+    if (!replace && _get(key0) != null) {
+      throw new RedisException("BUSYKEY Target key name already exists.");
+    }
+    Object value;
+    try {
+      value = ValueEncoding.deserialize(serialized_value2);
+    } catch (IOException e) {
+      throw new RedisException("DUMP payload version or checksum are wrong");
+    }
+    data.put(key0, value);
+    if (ttl > 0) {
+      expires.put(key0, now() + ttl);
+    } else {
+      expires.remove(key0);
+    }
+    _notify(KeyspaceEvents.GENERIC, RESTORE_EVENT, key0);
+    return OK;
   }
 
   /**
@@ -1806,10 +2702,225 @@ public class SimpleRedisServer implements RedisServer {
    *
    * @return Reply
    */
+  @SuppressWarnings("unchecked")
   @Override
   public Reply sort(byte[] key0, byte[][] pattern1_offset_or_count2_pattern3) throws RedisException {
-    // TODO
-    return null;
+    byte[][] options = pattern1_offset_or_count2_pattern3;
+    byte[] by = null;
+    List<byte[]> gets = new ArrayList<byte[]>();
+    long offset = 0;
+    long count = -1;
+    boolean desc = false;
+    boolean alpha = false;
+    byte[] store = null;
+    for (int i = 0; i < options.length; i++) {
+      String option = new String(options[i]).toLowerCase();
+      int remaining = options.length - i - 1;
+      if (option.equals("asc")) {
+        desc = false;
+      } else if (option.equals("desc")) {
+        desc = true;
+      } else if (option.equals("alpha")) {
+        alpha = true;
+      } else if (option.equals("limit") && remaining >= 2) {
+        offset = bytesToNum(options[++i]);
+        count = bytesToNum(options[++i]);
+      } else if (option.equals("store") && remaining >= 1) {
+        store = options[++i];
+      } else if (option.equals("by") && remaining >= 1) {
+        by = options[++i];
+        if (cluster != null) {
+          throw new RedisException("BY option of SORT denied in Cluster mode.");
+        }
+      } else if (option.equals("get") && remaining >= 1) {
+        gets.add(options[++i]);
+        if (cluster != null) {
+          throw new RedisException("GET option of SORT denied in Cluster mode.");
+        }
+      } else {
+        throw new RedisException("syntax error");
+      }
+    }
+
+    Object o = _get(key0);
+    final byte[][] elements;
+    if (o == null) {
+      elements = new byte[0][];
+    } else if (o instanceof List) {
+      List<BytesValue> list = (List<BytesValue>) o;
+      elements = new byte[list.size()][];
+      for (int i = 0; i < elements.length; i++) {
+        elements[i] = list.get(i).getBytes();
+      }
+    } else if (o instanceof BytesKeySet) {
+      elements = new byte[((BytesKeySet) o).size()][];
+      int i = 0;
+      for (BytesKey member : (BytesKeySet) o) {
+        elements[i++] = member.getBytes();
+      }
+    } else if (o instanceof ZSet) {
+      List<ZSetEntry> list = ((ZSet) o).list();
+      elements = new byte[list.size()][];
+      for (int i = 0; i < elements.length; i++) {
+        elements[i] = list.get(i).getKey().getBytes();
+      }
+    } else {
+      throw invalidValue();
+    }
+
+    int size = elements.length;
+    int start = offset < 0 ? 0 : (int) Math.min(offset, size);
+    int end = count < 0 ? size : (int) Math.min(size, start + count);
+    int[] index = IndexSort.identity(size);
+    // A BY pattern without a * means the elements are not sorted
+    if (by == null || _indexof(by, (byte) '*', 0) != -1) {
+      // The sort keys are looked up once, up front
+      byte[][] values = by == null ? elements : _lookup(by, elements, index, 0, size);
+      _sort(index, start, end, elements, values, alpha, desc);
+    } else if (desc && o instanceof ZSet) {
+      for (int i = 0; i < size; i++) {
+        index[i] = size - 1 - i;
+      }
+    }
+
+    int fields = gets.isEmpty() ? 1 : gets.size();
+    byte[][] results = new byte[(end - start) * fields][];
+    if (gets.isEmpty()) {
+      for (int i = start; i < end; i++) {
+        results[i - start] = elements[index[i]];
+      }
+    } else {
+      for (int g = 0; g < fields; g++) {
+        byte[][] values = _lookup(gets.get(g), elements, index, start, end);
+        for (int i = 0; i < values.length; i++) {
+          results[i * fields + g] = values[i];
+        }
+      }
+    }
+
+    if (store != null) {
+      if (results.length == 0) {
+        if (data.remove(store) != null) {
+          _notify(KeyspaceEvents.GENERIC, DEL_EVENT, store);
+        }
+        expires.remove(store);
+      } else {
+        List<BytesValue> list = new ArrayList<BytesValue>(results.length);
+        for (byte[] result : results) {
+          list.add(new BytesValue(result == null ? new byte[0] : result));
+        }
+        _put(store, list);
+        _notify(KeyspaceEvents.LIST, SORTSTORE_EVENT, store);
+      }
+      return integer(results.length);
+    }
+    Reply[] replies = new Reply[results.length];
+    for (int i = 0; i < results.length; i++) {
+      replies[i] = results[i] == null ? NIL_REPLY : new BulkReply(results[i]);
+    }
+    return new MultiBulkReply(replies);
+  }
+
+  /**
+   * Order the window of the index by score, or by bytes for ALPHA. Ties are
+   * broken by the elements themselves so the order is always the same.
+   */
+  private static void _sort(int[] index, int start, int end, final byte[][] elements, final byte[][] values,
+                            boolean alpha, final boolean desc) throws RedisException {
+    IndexSort sort;
+    if (alpha) {
+      sort = new IndexSort() {
+        @Override
+        protected int compare(int a, int b) {
+          int cmp;
+          if (values[a] == null || values[b] == null) {
+            // Missing keys sort first
+            cmp = values[a] == null ? (values[b] == null ? 0 : -1) : 1;
+          } else {
+            cmp = UNSIGNED.compare(values[a], values[b]);
+          }
+          if (cmp == 0) {
+            cmp = UNSIGNED.compare(elements[a], elements[b]);
+          }
+          return desc ? -cmp : cmp;
+        }
+      };
+    } else {
+      final double[] scores = new double[values.length];
+      for (int i = 0; i < scores.length; i++) {
+        if (values[i] != null) {
+          try {
+            scores[i] = _todouble(values[i]);
+          } catch (NumberFormatException e) {
+            scores[i] = Double.NaN;
+          }
+          if (Double.isNaN(scores[i])) {
+            throw new RedisException("One or more scores can't be converted into double");
+          }
+        }
+      }
+      sort = new IndexSort() {
+        @Override
+        protected int compare(int a, int b) {
+          int cmp = scores[a] < scores[b] ? -1 : scores[a] > scores[b] ? 1 : UNSIGNED.compare(elements[a], elements[b]);
+          return desc ? -cmp : cmp;
+        }
+      };
+    }
+    sort.sort(index, start, end);
+  }
+
+  /**
+   * Look up a SORT pattern for the elements at a window of the index. The
+   * pattern is split around its * and -> once for the whole batch. # stands
+   * for the element itself and a pattern without a * matches nothing.
+   */
+  @SuppressWarnings("unchecked")
+  private byte[][] _lookup(byte[] pattern, byte[][] elements, int[] index, int start, int end) {
+    byte[][] values = new byte[end - start][];
+    if (pattern.length == 1 && pattern[0] == '#') {
+      for (int i = start; i < end; i++) {
+        values[i - start] = elements[index[i]];
+      }
+      return values;
+    }
+    int star = _indexof(pattern, (byte) '*', 0);
+    if (star == -1) {
+      return values;
+    }
+    int arrow = star;
+    do {
+      arrow = _indexof(pattern, (byte) '-', arrow + 1);
+    } while (arrow != -1 && (arrow + 1 == pattern.length || pattern[arrow + 1] != '>'));
+    byte[] field = null;
+    int suffix = pattern.length;
+    if (arrow != -1 && arrow + 2 < pattern.length) {
+      field = Arrays.copyOfRange(pattern, arrow + 2, pattern.length);
+      suffix = arrow;
+    }
+    for (int i = start; i < end; i++) {
+      byte[] element = elements[index[i]];
+      byte[] key = new byte[element.length + suffix - 1];
+      System.arraycopy(pattern, 0, key, 0, star);
+      System.arraycopy(element, 0, key, star, element.length);
+      System.arraycopy(pattern, star + 1, key, star + element.length, suffix - star - 1);
+      Object o = _get(key);
+      if (field == null) {
+        values[i - start] = o instanceof byte[] ? (byte[]) o : null;
+      } else if (o instanceof BytesKeyObjectMap) {
+        values[i - start] = ((BytesKeyObjectMap<byte[]>) o).get(field);
+      }
+    }
+    return values;
+  }
+
+  private static int _indexof(byte[] bytes, byte b, int from) {
+    for (int i = from; i < bytes.length; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
   }
 
   /**
@@ -1843,10 +2954,10 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public StatusReply type(byte[] key0) throws RedisException {
-    Object o = _get(key0);
+    Object o = _getany(key0);
     if (o == null) {
       return new StatusReply("none");
-    } else if (o instanceof byte[]) {
+    } else if (o instanceof byte[] || o instanceof Bitmap) {
       return new StatusReply("string");
     } else if (o instanceof Map) {
       return new StatusReply("hash");
@@ -1856,6 +2967,8 @@ public class SimpleRedisServer implements RedisServer {
       return new StatusReply("zset");
     } else if (o instanceof Set) {
       return new StatusReply("set");
+    } else if (o instanceof Stream) {
+      return new StatusReply("stream");
     }
     return null;
   }
@@ -1896,7 +3009,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply eval(byte[] script0, byte[] numkeys1, byte[][] key2) throws RedisException {
-    throw new RedisException("Not supported");
+    return _scripting().eval(script0, numkeys1, key2);
   }
 
   /**
@@ -1910,7 +3023,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply evalsha(byte[] sha10, byte[] numkeys1, byte[][] key2) throws RedisException {
-    throw new RedisException("Not supported");
+    return _scripting().evalsha(sha10, numkeys1, key2);
   }
 
   /**
@@ -1922,7 +3035,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply script_exists(byte[][] script0) throws RedisException {
-    throw new RedisException("Not supported");
+    return _scripting().exists(script0);
   }
 
   /**
@@ -1933,7 +3046,8 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply script_flush() throws RedisException {
-    throw new RedisException("Not supported");
+    _scripting().flush();
+    return OK;
   }
 
   /**
@@ -1944,7 +3058,8 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply script_kill() throws RedisException {
-    throw new RedisException("Not supported");
+    // While a script runs this is answered on the I/O thread
+    return _scripting().kill();
   }
 
   /**
@@ -1956,7 +3071,14 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public Reply script_load(byte[] script0) throws RedisException {
-    throw new RedisException("Not supported");
+    return _scripting().load(script0);
+  }
+
+  private Scripting _scripting() throws RedisException {
+    if (scripting == null) {
+      throw new RedisException("Not supported");
+    }
+    return scripting;
   }
 
   /**
@@ -1974,6 +3096,9 @@ public class SimpleRedisServer implements RedisServer {
     for (byte[] hkey : field1) {
       total += hash.remove(hkey) == null ? 0 : 1;
     }
+    if (total > 0) {
+      _notify(KeyspaceEvents.HASH, HDEL_EVENT, key0);
+    }
     return integer(total);
   }
 
@@ -2044,11 +3169,13 @@ public class SimpleRedisServer implements RedisServer {
     int increment = _toint(increment2);
     if (field == null) {
       hash.put(field1, increment2);
+      _notify(KeyspaceEvents.HASH, HINCRBY_EVENT, key0);
       return new IntegerReply(increment);
     } else {
       int i = _toint(field);
       int value = i + increment;
       hash.put(field1, numToBytes(value, false));
+      _notify(KeyspaceEvents.HASH, HINCRBY_EVENT, key0);
       return new IntegerReply(value);
     }
   }
@@ -2069,12 +3196,14 @@ public class SimpleRedisServer implements RedisServer {
     double increment = _todouble(increment2);
     if (field == null) {
       hash.put(field1, increment2);
+      _notify(KeyspaceEvents.HASH, HINCRBYFLOAT_EVENT, key0);
       return new BulkReply(increment2);
     } else {
       double d = _todouble(field);
       double value = d + increment;
       byte[] bytes = _tobytes(value);
       hash.put(field1, bytes);
+      _notify(KeyspaceEvents.HASH, HINCRBYFLOAT_EVENT, key0);
       return new BulkReply(bytes);
     }
   }
@@ -2152,6 +3281,7 @@ public class SimpleRedisServer implements RedisServer {
     for (int i = 0; i < field_or_value1.length; i += 2) {
       hash.put(field_or_value1[i], field_or_value1[i + 1]);
     }
+    _notify(KeyspaceEvents.HASH, HSET_EVENT, key0);
     return OK;
   }
 
@@ -2168,6 +3298,7 @@ public class SimpleRedisServer implements RedisServer {
   public IntegerReply hset(byte[] key0, byte[] field1, byte[] value2) throws RedisException {
     BytesKeyObjectMap<byte[]> hash = _gethash(key0, true);
     Object put = hash.put(field1, value2);
+    _notify(KeyspaceEvents.HASH, HSET_EVENT, key0);
     return put == null ? integer(1) : integer(0);
   }
 
@@ -2186,6 +3317,7 @@ public class SimpleRedisServer implements RedisServer {
     byte[] bytes = hash.get(field1);
     if (bytes == null) {
       hash.put(field1, value2);
+      _notify(KeyspaceEvents.HASH, HSET_EVENT, key0);
       return integer(1);
     } else {
       return integer(0);
@@ -2221,8 +3353,7 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public IntegerReply publish(byte[] channel0, byte[] message1) throws RedisException {
-    // TODO: Pubsub
-    return null;
+    return integer(pubsub == null ? 0 : pubsub.publish(channel0, message1));
   }
 
   /**
@@ -2240,6 +3371,9 @@ public class SimpleRedisServer implements RedisServer {
     for (byte[] bytes : member1) {
       if (set.add(bytes)) total++;
     }
+    if (total > 0) {
+      _notify(KeyspaceEvents.SET, SADD_EVENT, key0);
+    }
     return integer(total);
   }
 
@@ -2269,23 +3403,56 @@ public class SimpleRedisServer implements RedisServer {
     return _setreply(set);
   }
 
+  /**
+   * Either walk the first set probing the others, or copy it and remove the
+   * members of the others, whichever touches fewer members.
+   */
   private BytesKeySet _sdiff(byte[][] key0) throws RedisException {
-    BytesKeySet set = null;
-    for (byte[] key : key0) {
-      if (set == null) {
-        set = new BytesKeySet();
-        set.addAll(_getset(key, false));
-      } else {
-        BytesKeySet c = _getset(key, false);
-        set.removeAll(c);
-      }
-    }
-    if (set == null) {
+    if (key0.length == 0) {
       throw new RedisException("wrong number of arguments for 'sdiff' command");
     }
-    return set;
-  }
-
+    BytesKeySet first = _getset(key0[0], false);
+    List<BytesKeySet> others = new ArrayList<BytesKeySet>(key0.length - 1);
+    long removed = 0;
+    for (int i = 1; i < key0.length && !first.isEmpty(); i++) {
+      BytesKeySet other = _getset(key0[i], false);
+      if (other == first) {
+        // Subtracting the set from itself
+        return new BytesKeySet();
+      }
+      if (!other.isEmpty()) {
+        others.add(other);
+        removed += other.size();
+      }
+    }
+    // Probing is preferred when the costs are close, it never copies
+    long probes = (long) first.size() * others.size() / 2;
+    if (probes <= first.size() + removed) {
+      // Members are most likely to be found in the largest sets
+      Collections.sort(others, Collections.reverseOrder(SMALLEST_FIRST));
+      BytesKeySet set = new BytesKeySet();
+      next:
+      for (BytesKey member : first) {
+        for (BytesKeySet other : others) {
+          if (other.contains(member)) {
+            continue next;
+          }
+        }
+        set.add(member);
+      }
+      return set;
+    }
+    BytesKeySet set = new BytesKeySet(first.size());
+    set.addAll(first);
+    for (BytesKeySet other : others) {
+      if (set.isEmpty()) break;
+      for (BytesKey member : other) {
+        set.remove(member);
+      }
+    }
+    return set;
+  }
+
   /**
    * Subtract multiple sets and store the resulting set in a key
    * Set
@@ -2298,9 +3465,7 @@ public class SimpleRedisServer implements RedisServer {
   public IntegerReply sdiffstore(byte[] destination0, byte[][] key1) throws RedisException {
     Object o = _get(destination0);
     if (o == null || o instanceof Set) {
-      BytesKeySet set = _sdiff(key1);
-      _put(destination0, set);
-      return integer(set.size());
+      return _storeset(destination0, _sdiff(key1), SDIFFSTORE_EVENT);
     } else {
       throw invalidValue();
     }
@@ -2315,30 +3480,88 @@ public class SimpleRedisServer implements RedisServer {
    */
   @Override
   public MultiBulkReply sinter(byte[][] key0) throws RedisException {
-    BytesKeySet set = _sinter(key0);
-    return _setreply(set);
+    List<BytesKey> members = new ArrayList<BytesKey>();
+    _sinter(key0, members, 0);
+    Reply[] replies = new Reply[members.size()];
+    for (int i = 0; i < replies.length; i++) {
+      replies[i] = new BulkReply(members.get(i).getBytes());
+    }
+    return new MultiBulkReply(replies);
   }
 
-  private BytesKeySet _sinter(byte[][] key0) throws RedisException {
-    BytesKeySet set = null;
-    for (byte[] key : key0) {
-      if (set == null) {
-        set = _getset(key, false);
-      } else {
-        BytesKeySet inter = new BytesKeySet();
-        BytesKeySet newset = _getset(key, false);
-        for (BytesKey bytesKey : newset) {
-          if (set.contains(bytesKey)) {
-            inter.add(bytesKey);
-          }
+  /**
+   * Walk the smallest set and probe the others from the smallest up, so the
+   * cost is bound by the smallest set rather than the first one given.
+   *
+   * @param members where to add the intersection, null to only count it
+   * @param limit   stop after this many members, 0 for no limit
+   * @return the number of members found
+   */
+  private int _sinter(byte[][] key0, Collection<BytesKey> members, long limit) throws RedisException {
+    if (key0.length == 0) {
+      throw new RedisException("wrong number of arguments for 'sinter' command");
+    }
+    BytesKeySet[] sets = new BytesKeySet[key0.length];
+    for (int i = 0; i < key0.length; i++) {
+      sets[i] = _getset(key0[i], false);
+    }
+    Arrays.sort(sets, SMALLEST_FIRST);
+    int count = 0;
+    next:
+    for (BytesKey member : sets[0]) {
+      for (int i = 1; i < sets.length; i++) {
+        if (!sets[i].contains(member)) {
+          continue next;
         }
-        set = inter;
+      }
+      if (members != null) {
+        members.add(member);
+      }
+      if (++count == limit) {
+        break;
       }
     }
-    if (set == null) {
-      throw new RedisException("wrong number of arguments for 'sinter' command");
+    return count;
+  }
+
+  /**
+   * Count the members of the intersection of multiple sets
+   * Set
+   *
+   * @param numkeys0
+   * @param key1
+   * @return IntegerReply
+   */
+  @Override
+  public IntegerReply sintercard(byte[] numkeys0, byte[][] key1) throws RedisException {
+    long numkeys;
+    try {
+      numkeys = bytesToNum(numkeys0);
+    } catch (IllegalArgumentException e) {
+      numkeys = 0;
     }
-    return set;
+    if (numkeys <= 0) {
+      throw new RedisException("numkeys should be greater than 0");
+    }
+    if (numkeys > key1.length) {
+      throw new RedisException("Number of keys can't be greater than number of args");
+    }
+    long limit = 0;
+    for (int i = (int) numkeys; i < key1.length; i++) {
+      if (new String(key1[i]).equalsIgnoreCase("limit") && i + 1 < key1.length) {
+        try {
+          limit = bytesToNum(key1[++i]);
+        } catch (IllegalArgumentException e) {
+          throw notInteger();
+        }
+        if (limit < 0) {
+          throw new RedisException("LIMIT can't be negative");
+        }
+      } else {
+        throw new RedisException("syntax error");
+      }
+    }
+    return integer(_sinter(Arrays.copyOf(key1, (int) numkeys), null, limit));
   }
 
   /**
@@ -2353,14 +3576,31 @@ public class SimpleRedisServer implements RedisServer {
   public IntegerReply sinterstore(byte[] destination0, byte[][] key1) throws RedisException {
     Object o = _get(destination0);
     if (o == null || o instanceof Set) {
-      BytesKeySet set = _sinter(key1);
-      _put(destination0, set);
-      return integer(set.size());
+      BytesKeySet set = new BytesKeySet();
+      _sinter(key1, set, 0);
+      return _storeset(destination0, set, SINTERSTORE_EVENT);
     } else {
       throw invalidValue();
     }
   }
 
+  /**
+   * The result of a *STORE command becomes the destination as it is, an
+   * empty result deletes it.
+   */
+  private IntegerReply _storeset(byte[] destination0, BytesKeySet set, byte[] event) {
+    if (set.isEmpty()) {
+      if (data.remove(destination0) != null) {
+        _notify(KeyspaceEvents.GENERIC, DEL_EVENT, destination0);
+      }
+      expires.remove(destination0);
+    } else {
+      _put(destination0, set);
+      _notify(KeyspaceEvents.SET, event, destination0);
+    }
+    return integer(set.size());
+  }
+
   /**
    * Determine if a given value is a member of a set
    * Set
@@ -2412,6 +3652,8 @@ public class SimpleRedisServer implements RedisServer {
     if (source.remove(member2)) {
       BytesKeySet dest = _getset(destination1, true);
       dest.add(member2);
+      _notify(KeyspaceEvents.SET, SREM_EVENT, source0);
+      _notify(KeyspaceEvents.SET, SADD_EVENT, destination1);
       return integer(1);
     } else {
       return integer(0);
@@ -2435,6 +3677,7 @@ public class SimpleRedisServer implements RedisServer {
     try {
       BytesKey key = getRandomKey((Map) mapField.get(set));
       set.remove(key);
+      _notify(KeyspaceEvents.SET, SPOP_EVENT, key0);
       return new BulkReply(key.getBytes());
     } catch (IllegalAccessException e) {
       throw new RedisException("Not supported");
@@ -2503,6 +3746,9 @@ public class SimpleRedisServer implements RedisServer {
         total++;
       }
     }
+    if (total > 0) {
+      _notify(KeyspaceEvents.SET, SREM_EVENT, key0);
+    }
     return new IntegerReply(total);
   }
 
@@ -2520,18 +3766,20 @@ public class SimpleRedisServer implements RedisServer {
   }
 
   private BytesKeySet _sunion(byte[][] key0) throws RedisException {
-    BytesKeySet set = null;
-    for (byte[] key : key0) {
-      if (set == null) {
-        set = new BytesKeySet();
-        set.addAll(_getset(key, false));
-      } else {
-        set.addAll(_getset(key, false));
-      }
-    }
-    if (set == null) {
+    if (key0.length == 0) {
       throw new RedisException("wrong number of arguments for 'sunion' command");
     }
+    BytesKeySet[] sets = new BytesKeySet[key0.length];
+    int largest = 0;
+    for (int i = 0; i < key0.length; i++) {
+      sets[i] = _getset(key0[i], false);
+      largest = Math.max(largest, sets[i].size());
+    }
+    // The union is at least as large as the largest set
+    BytesKeySet set = new BytesKeySet(largest);
+    for (BytesKeySet other : sets) {
+      set.addAll(other);
+    }
     return set;
   }
 
@@ -2547,9 +3795,7 @@ public class SimpleRedisServer implements RedisServer {
   public IntegerReply sunionstore(byte[] destination0, byte[][] key1) throws RedisException {
     Object o = _get(destination0);
     if (o == null || o instanceof Set) {
-      BytesKeySet set = _sunion(key1);
-      _put(destination0, set);
-      return integer(set.size());
+      return _storeset(destination0, _sunion(key1), SUNIONSTORE_EVENT);
     } else {
       throw invalidValue();
     }
@@ -2577,11 +3823,26 @@ public class SimpleRedisServer implements RedisServer {
         total++;
       }
     }
+    _notify(KeyspaceEvents.ZSET, ZADD_EVENT, key);
     return integer(total);
   }
 
-  private double _todouble(byte[] score) {
-    return parseDouble(new String(score));
+  private static double _todouble(byte[] score) {
+    String string = new String(score);
+    try {
+      return parseDouble(string);
+    } catch (NumberFormatException e) {
+      // Also accept the infinities that strtod reads
+      String lower = string.toLowerCase();
+      boolean negative = lower.startsWith("-");
+      if (negative || lower.startsWith("+")) {
+        lower = lower.substring(1);
+      }
+      if (lower.equals("inf") || lower.equals("infinity")) {
+        return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+      }
+      throw e;
+    }
   }
 
   /**
@@ -2644,10 +3905,12 @@ public class SimpleRedisServer implements RedisServer {
     double increment = _todouble(increment1);
     if (entry == null) {
       zset.add(new BytesKey(member2), increment);
+      _notify(KeyspaceEvents.ZSET, ZINCR_EVENT, key0);
       return new BulkReply(increment1);
     } else {
       zset.remove(member2);
       zset.add(entry.getKey(), entry.getScore() + increment);
+      _notify(KeyspaceEvents.ZSET, ZINCR_EVENT, key0);
       return new BulkReply(_tobytes(entry.getScore()));
     }
   }
@@ -2671,79 +3934,125 @@ public class SimpleRedisServer implements RedisServer {
       throw new RedisException("wrong number of arguments for '" + name + "' command");
     }
     int numkeys = _toint(numkeys1);
+    if (numkeys < 1) {
+      throw new RedisException("at least 1 input key is needed for ZUNIONSTORE/ZINTERSTORE");
+    }
     if (key2.length < numkeys) {
       throw new RedisException("wrong number of arguments for '" + name + "' command");
     }
-    int position = numkeys;
     double[] weights = null;
-    Aggregate type = null;
-    if (key2.length > position) {
-      if ("weights".equals(new String(key2[position]).toLowerCase())) {
-        position++;
-        if (key2.length < position + numkeys) {
-          throw new RedisException("wrong number of arguments for '" + name + "' command");
-        }
+    Aggregate type = Aggregate.SUM;
+    for (int position = numkeys; position < key2.length; ) {
+      String option = new String(key2[position]).toLowerCase();
+      int remaining = key2.length - position - 1;
+      if (option.equals("weights") && remaining >= numkeys) {
         weights = new double[numkeys];
-        for (int i = position; i < position + numkeys; i++) {
-          weights[i - position] = _todouble(key2[i]);
+        for (int i = 0; i < numkeys; i++) {
+          try {
+            weights[i] = _todouble(key2[position + 1 + i]);
+          } catch (NumberFormatException e) {
+            throw new RedisException("weight value is not a float");
+          }
         }
-        position += numkeys;
-      }
-      if (key2.length > position + 1) {
-        if ("aggregate".equals(new String(key2[position]).toLowerCase())) {
+        position += numkeys + 1;
+      } else if (option.equals("aggregate") && remaining >= 1) {
+        try {
           type = Aggregate.valueOf(new String(key2[position + 1]).toUpperCase());
+        } catch (IllegalArgumentException e) {
+          throw new RedisException("syntax error");
         }
-      } else if (key2.length != position) {
-        throw new RedisException("wrong number of arguments for '" + name + "' command");
+        position += 2;
+      } else {
+        throw new RedisException("syntax error");
       }
     }
-    del(new byte[][]{destination0});
-    ZSet destination = _getzset(destination0, true);
+    final ZSet[] zsets = new ZSet[numkeys];
     for (int i = 0; i < numkeys; i++) {
-      ZSet zset = _getzset(key2[i], false);
-      if (i == 0) {
-        if (weights == null) {
-          destination.addAll(zset);
-        } else {
-          double weight = weights[i];
-          for (ZSetEntry entry : zset) {
-            destination.add(entry.getKey(), entry.getScore() * weight);
+      zsets[i] = _getzset(key2[i], false);
+    }
+    BytesKey[] keys;
+    double[] scores;
+    int size;
+    if (union) {
+      int largest = 0;
+      for (ZSet zset : zsets) {
+        largest = Math.max(largest, zset.size());
+      }
+      // Aggregate every input in one pass over primitive scores
+      BytesKeyDoubleMap map = new BytesKeyDoubleMap(largest);
+      for (int i = 0; i < numkeys; i++) {
+        double weight = weights == null ? 1 : weights[i];
+        for (ZSetEntry entry : zsets[i]) {
+          double score = _weighted(entry.getScore(), weight);
+          int index = map.indexOf(entry.getKey());
+          if (index == -1) {
+            map.put(entry.getKey(), score);
+          } else {
+            map.setValueAt(index, _aggregate(type, map.valueAt(index), score));
           }
         }
-      } else {
-        for (ZSetEntry entry : zset) {
-          BytesKey key = entry.getKey();
-          ZSetEntry current = destination.get(key);
-          destination.remove(key);
-          if (union || current != null) {
-            double newscore = entry.getScore() * (weights == null ? 1 : weights[i]);
-            if (type == null || type == Aggregate.SUM) {
-              if (current != null) {
-                newscore += current.getScore();
-              }
-            } else if (type == Aggregate.MIN) {
-              if (current != null && newscore > current.getScore()) {
-                newscore = current.getScore();
-              }
-            } else if (type == Aggregate.MAX) {
-              if (current != null && newscore < current.getScore()) {
-                newscore = current.getScore();
-              }
-            }
-            destination.add(key, newscore);
-          }
+      }
+      size = map.size();
+      keys = new BytesKey[size];
+      scores = new double[size];
+      map.copyTo(keys, scores);
+    } else {
+      // Walk the smallest input and look its members up in the others
+      int[] order = IndexSort.identity(numkeys);
+      new IndexSort() {
+        @Override
+        protected int compare(int a, int b) {
+          return zsets[a].size() - zsets[b].size();
         }
-        if (!union) {
-          for (ZSetEntry entry : new ZSet(destination)) {
-            BytesKey key = entry.getKey();
-            if (zset.get(key) == null) {
-              destination.remove(key);
-            }
+      }.sort(order);
+      ZSet smallest = zsets[order[0]];
+      keys = new BytesKey[smallest.size()];
+      scores = new double[smallest.size()];
+      size = 0;
+      next:
+      for (ZSetEntry entry : smallest) {
+        double score = _weighted(entry.getScore(), weights == null ? 1 : weights[order[0]]);
+        for (int i = 1; i < numkeys; i++) {
+          ZSetEntry other = zsets[order[i]].get(entry.getKey());
+          if (other == null) {
+            continue next;
           }
+          score = _aggregate(type, score, _weighted(other.getScore(), weights == null ? 1 : weights[order[i]]));
         }
+        keys[size] = entry.getKey();
+        scores[size++] = score;
       }
     }
-    return integer(destination.size());
+    if (size == 0) {
+      if (data.remove(destination0) != null) {
+        _notify(KeyspaceEvents.GENERIC, DEL_EVENT, destination0);
+      }
+      expires.remove(destination0);
+    } else {
+      // Sorted once rather than on every insert
+      _put(destination0, ZSet.of(keys, scores, size));
+      _notify(KeyspaceEvents.ZSET, union ? ZUNIONSTORE_EVENT : ZINTERSTORE_EVENT, destination0);
+    }
+    return integer(size);
+  }
+
+  private static double _weighted(double score, double weight) {
+    double weighted = score * weight;
+    // 0 * inf
+    return Double.isNaN(weighted) ? 0 : weighted;
+  }
+
+  private static double _aggregate(Aggregate type, double current, double score) {
+    switch (type) {
+      case MIN:
+        return score < current ? score : current;
+      case MAX:
+        return score > current ? score : current;
+      default:
+        double sum = current + score;
+        // inf + -inf
+        return Double.isNaN(sum) ? 0 : sum;
+    }
   }
 
   enum Aggregate {SUM, MIN, MAX}
@@ -2909,12 +4218,16 @@ public class SimpleRedisServer implements RedisServer {
   public IntegerReply zrem(byte[] key0, byte[][] member1) throws RedisException {
     ZSet zset = _getzset(key0, false);
     if (zset.isEmpty()) return integer(0);
+    int size = zset.size();
     int total = 0;
     for (byte[] member : member1) {
       if (zset.remove(member)) {
         total++;
       }
     }
+    if (zset.size() < size) {
+      _notify(KeyspaceEvents.ZSET, ZREM_EVENT, key0);
+    }
     return integer(total);
   }
 
@@ -2950,6 +4263,9 @@ public class SimpleRedisServer implements RedisServer {
     for (ZSetEntry zSetEntry : list) {
       if (zset.remove(zSetEntry.getKey())) total++;
     }
+    if (!list.isEmpty()) {
+      _notify(KeyspaceEvents.ZSET, ZREMRANGEBYRANK_EVENT, key0);
+    }
     return integer(total);
   }
 
@@ -2969,6 +4285,7 @@ public class SimpleRedisServer implements RedisServer {
     Score min = _toscorerange(min1);
     Score max = _toscorerange(max2);
     List<ZSetEntry> entries = zset.subSet(min.value, max.value);
+    int size = zset.size();
     int total = 0;
     for (ZSetEntry entry : new ArrayList<ZSetEntry>(entries)) {
       if (!min.inclusive && entry.getScore() == min.value) continue;
@@ -2977,6 +4294,9 @@ public class SimpleRedisServer implements RedisServer {
         total++;
       }
     }
+    if (zset.size() < size) {
+      _notify(KeyspaceEvents.ZSET, ZREMRANGEBYSCORE_EVENT, key0);
+    }
     return integer(total);
   }
 
@@ -3096,4 +4416,431 @@ public class SimpleRedisServer implements RedisServer {
   public IntegerReply zunionstore(byte[] destination0, byte[] numkeys1, byte[][] key2) throws RedisException {
     return _zstore(destination0, numkeys1, key2, "zunionstore", true);
   }
+
+  private HyperLogLog _gethll(byte[] key0) throws RedisException {
+    Object o = _get(key0);
+    if (o == null) {
+      return null;
+    }
+    if (!(o instanceof byte[]) || !HyperLogLog.isHyperLogLog((byte[]) o)) {
+      throw new RedisException("WRONGTYPE Key is not a valid HyperLogLog string value.");
+    }
+    return HyperLogLog.wrap((byte[]) o);
+  }
+
+  /**
+   * Adds the specified elements to the specified HyperLogLog.
+   * Hyperloglog
+   *
+   * @param key0
+   * @param element1
+   * @return IntegerReply
+   */
+  @Override
+  public IntegerReply pfadd(byte[] key0, byte[][] element1) throws RedisException {
+    if (key0 == null) {
+      throw new RedisException("wrong number of arguments for 'pfadd' command");
+    }
+    HyperLogLog hll = _gethll(key0);
+    boolean changed = false;
+    if (hll == null) {
+      hll = new HyperLogLog();
+      changed = true;
+    }
+    for (byte[] element : element1) {
+      changed |= hll.add(element);
+    }
+    if (changed) {
+      // Growing the sparse encoding replaces the array
+      data.put(key0, hll.bytes());
+      _notify(KeyspaceEvents.STRING, PFADD_EVENT, key0);
+    }
+    return integer(changed ? 1 : 0);
+  }
+
+  /**
+   * Return the approximated cardinality of the set(s) observed by the HyperLogLog at key(s).
+   * Hyperloglog
+   *
+   * @param key0
+   * @return IntegerReply
+   */
+  @Override
+  public IntegerReply pfcount(byte[][] key0) throws RedisException {
+    if (key0.length == 0) {
+      throw new RedisException("wrong number of arguments for 'pfcount' command");
+    }
+    if (key0.length == 1) {
+      HyperLogLog hll = _gethll(key0[0]);
+      return integer(hll == null ? 0 : hll.count());
+    }
+    // Count the union without changing any of the keys
+    byte[] registers = new byte[HyperLogLog.REGISTERS];
+    for (byte[] key : key0) {
+      HyperLogLog hll = _gethll(key);
+      if (hll != null) {
+        hll.mergeInto(registers);
+      }
+    }
+    return integer(HyperLogLog.count(registers));
+  }
+
+  /**
+   * Merge N different HyperLogLogs into a single one.
+   * Hyperloglog
+   *
+   * @param destkey0
+   * @param sourcekey1
+   * @return StatusReply
+   */
+  @Override
+  public StatusReply pfmerge(byte[] destkey0, byte[][] sourcekey1) throws RedisException {
+    if (destkey0 == null) {
+      throw new RedisException("wrong number of arguments for 'pfmerge' command");
+    }
+    byte[] registers = new byte[HyperLogLog.REGISTERS];
+    HyperLogLog dest = _gethll(destkey0);
+    if (dest != null) {
+      dest.mergeInto(registers);
+    }
+    for (byte[] key : sourcekey1) {
+      HyperLogLog hll = _gethll(key);
+      if (hll != null) {
+        hll.mergeInto(registers);
+      }
+    }
+    byte[] merged = HyperLogLog.fromRegisters(registers).bytes();
+    if (dest == null) {
+      _put(destkey0, merged);
+    } else {
+      // Keep the expiration of the destination
+      data.put(destkey0, merged);
+    }
+    _notify(KeyspaceEvents.STRING, PFADD_EVENT, destkey0);
+    return OK;
+  }
+
+  /**
+   * Unlike the other collections a missing stream is not created unless asked for.
+   */
+  private Stream _getstream(byte[] key0, boolean create) throws RedisException {
+    Object o = _get(key0);
+    if (o == null) {
+      if (!create) {
+        return null;
+      }
+      o = new Stream();
+      data.put(key0, o);
+    }
+    if (!(o instanceof Stream)) {
+      throw invalidValue();
+    }
+    return (Stream) o;
+  }
+
+  private static StreamId _tostreamid(byte[] id, long sequence) throws RedisException {
+    try {
+      return StreamId.parse(id, sequence);
+    } catch (IllegalArgumentException e) {
+      throw new RedisException(e.getMessage());
+    }
+  }
+
+  /**
+   * An end of an XRANGE interval: - and +, an id without a sequence number
+   * for the whole millisecond or ( in front of an id to exclude it.
+   */
+  private static StreamId _tointerval(byte[] id, boolean end) throws RedisException {
+    if (id.length == 1 && id[0] == '-') {
+      return StreamId.MIN;
+    } else if (id.length == 1 && id[0] == '+') {
+      return StreamId.MAX;
+    }
+    if (id.length > 0 && id[0] == '(') {
+      StreamId excluded = _tostreamid(Arrays.copyOfRange(id, 1, id.length), end ? Long.MAX_VALUE : 0);
+      StreamId bound = end ? excluded.previous() : excluded.next();
+      if (bound == null) {
+        throw new RedisException("invalid " + (end ? "end" : "start") + " ID for the interval");
+      }
+      return bound;
+    }
+    return _tostreamid(id, end ? Long.MAX_VALUE : 0);
+  }
+
+  /**
+   * Parse MAXLEN [=|~] threshold starting at the MAXLEN.
+   *
+   * @param trim the threshold and whether trimming may be approximate
+   * @return the position after the threshold
+   */
+  private static int _totrim(byte[][] args, int position, long[] trim) throws RedisException {
+    position++;
+    if (position < args.length && args[position].length == 1 && (args[position][0] == '=' || args[position][0] == '~')) {
+      trim[1] = args[position][0] == '~' ? 1 : 0;
+      position++;
+    }
+    if (position == args.length) {
+      throw new RedisException("syntax error");
+    }
+    trim[0] = bytesToNum(args[position]);
+    if (trim[0] < 0) {
+      throw new RedisException("The MAXLEN argument must be >= 0.");
+    }
+    return position + 1;
+  }
+
+  private static MultiBulkReply _entries(List<Stream.Entry> entries) {
+    Reply[] replies = new Reply[entries.size()];
+    for (int i = 0; i < replies.length; i++) {
+      Stream.Entry entry = entries.get(i);
+      byte[][] fields = entry.getFields();
+      Reply[] values = new Reply[fields.length];
+      for (int j = 0; j < fields.length; j++) {
+        values[j] = new BulkReply(fields[j]);
+      }
+      replies[i] = new MultiBulkReply(new Reply[]{new BulkReply(entry.getId().getBytes()), new MultiBulkReply(values)});
+    }
+    return new MultiBulkReply(replies);
+  }
+
+  /**
+   * Appends a new entry to a stream
+   * Stream
+   *
+   * @param key0
+   * @param args1
+   * @return BulkReply
+   */
+  @Override
+  public BulkReply xadd(byte[] key0, byte[][] args1) throws RedisException {
+    if (key0 == null) {
+      throw new RedisException("wrong number of arguments for 'xadd' command");
+    }
+    boolean nomkstream = false;
+    long[] trim = {-1, 0};
+    int position = 0;
+    while (position < args1.length) {
+      String option = new String(args1[position]).toLowerCase();
+      if (option.equals("nomkstream")) {
+        nomkstream = true;
+        position++;
+      } else if (option.equals("maxlen")) {
+        position = _totrim(args1, position, trim);
+      } else {
+        break;
+      }
+    }
+    int fields = args1.length - position - 1;
+    if (fields < 2 || fields % 2 != 0) {
+      throw new RedisException("wrong number of arguments for 'xadd' command");
+    }
+    Stream stream = _getstream(key0, false);
+    boolean created = stream == null;
+    if (created) {
+      if (nomkstream) {
+        return NIL_REPLY;
+      }
+      // Only stored once the entry has been added
+      stream = new Stream();
+    }
+    byte[] id1 = args1[position];
+    StreamId id;
+    int length = id1.length;
+    if (length == 1 && id1[0] == '*') {
+      id = stream.nextId(now());
+    } else if (length > 2 && id1[length - 2] == '-' && id1[length - 1] == '*') {
+      long millis = _tostreamid(Arrays.copyOfRange(id1, 0, length - 2), 0).getMillis();
+      id = stream.nextId(millis);
+      if (id != null && id.getMillis() != millis) {
+        throw new RedisException("The ID specified in XADD is equal or smaller than the target stream top item");
+      }
+    } else {
+      id = _tostreamid(id1, 0);
+      if (id.equals(StreamId.MIN)) {
+        throw new RedisException("The ID specified in XADD must be greater than 0-0");
+      }
+    }
+    if (id == null) {
+      throw new RedisException("The stream has exhausted the last possible ID, unable to add more items");
+    }
+    try {
+      stream.add(id, Arrays.copyOfRange(args1, position + 1, args1.length));
+    } catch (IllegalArgumentException e) {
+      throw new RedisException(e.getMessage());
+    }
+    if (created) {
+      _put(key0, stream);
+    }
+    _notify(KeyspaceEvents.STREAM, XADD_EVENT, key0);
+    if (trim[0] >= 0 && stream.trim(trim[0], trim[1] == 1) > 0) {
+      _notify(KeyspaceEvents.STREAM, XTRIM_EVENT, key0);
+    }
+    if (blocking != null) {
+      blocking.signal(key0);
+    }
+    return new BulkReply(id.getBytes());
+  }
+
+  /**
+   * Return the number of entries in a stream
+   * Stream
+   *
+   * @param key0
+   * @return IntegerReply
+   */
+  @Override
+  public IntegerReply xlen(byte[] key0) throws RedisException {
+    Stream stream = _getstream(key0, false);
+    return integer(stream == null ? 0 : stream.length());
+  }
+
+  /**
+   * Return a range of elements in a stream, with IDs matching the specified IDs interval
+   * Stream
+   *
+   * @param key0
+   * @param start1
+   * @param end2
+   * @param count3
+   * @return MultiBulkReply
+   */
+  @Override
+  public MultiBulkReply xrange(byte[] key0, byte[] start1, byte[] end2, byte[][] count3) throws RedisException {
+    return _xrange(key0, start1, end2, count3, "xrange", false);
+  }
+
+  /**
+   * Return a range of elements in a stream, with IDs matching the specified IDs interval, in reverse order
+   * Stream
+   *
+   * @param key0
+   * @param end1
+   * @param start2
+   * @param count3
+   * @return MultiBulkReply
+   */
+  @Override
+  public MultiBulkReply xrevrange(byte[] key0, byte[] end1, byte[] start2, byte[][] count3) throws RedisException {
+    return _xrange(key0, start2, end1, count3, "xrevrange", true);
+  }
+
+  private MultiBulkReply _xrange(byte[] key0, byte[] start, byte[] end, byte[][] count, String name, boolean reverse) throws RedisException {
+    if (key0 == null || start == null || end == null) {
+      throw new RedisException("wrong number of arguments for '" + name + "' command");
+    }
+    StreamId from = _tointerval(start, false);
+    StreamId to = _tointerval(end, true);
+    long limit = 0;
+    if (count.length == 2 && new String(count[0]).equalsIgnoreCase("count")) {
+      limit = bytesToNum(count[1]);
+      if (limit <= 0) {
+        return MultiBulkReply.EMPTY;
+      }
+    } else if (count.length != 0) {
+      throw new RedisException("syntax error");
+    }
+    Stream stream = _getstream(key0, false);
+    if (stream == null) {
+      return MultiBulkReply.EMPTY;
+    }
+    return _entries(stream.range(from, to, (int) Math.min(limit, MAX_VALUE), reverse));
+  }
+
+  /**
+   * Trims the stream to (approximately if '~' is passed) a certain size
+   * Stream
+   *
+   * @param key0
+   * @param args1
+   * @return IntegerReply
+   */
+  @Override
+  public IntegerReply xtrim(byte[] key0, byte[][] args1) throws RedisException {
+    if (key0 == null || args1.length == 0) {
+      throw new RedisException("wrong number of arguments for 'xtrim' command");
+    }
+    long[] trim = {-1, 0};
+    if (!new String(args1[0]).equalsIgnoreCase("maxlen") || _totrim(args1, 0, trim) != args1.length) {
+      throw new RedisException("syntax error");
+    }
+    Stream stream = _getstream(key0, false);
+    if (stream == null) {
+      return integer(0);
+    }
+    long removed = stream.trim(trim[0], trim[1] == 1);
+    if (removed > 0) {
+      _notify(KeyspaceEvents.STREAM, XTRIM_EVENT, key0);
+    }
+    return integer(removed);
+  }
+
+  /**
+   * Return never seen elements in multiple streams, with IDs greater than the ones reported by the caller for each stream. Can block.
+   * Stream
+   *
+   * @param args0
+   * @return Reply
+   */
+  @Override
+  public Reply xread(byte[][] args0) throws RedisException {
+    long count = 0;
+    long block = -1;
+    int position = 0;
+    boolean streams = false;
+    while (position < args0.length && !streams) {
+      String option = new String(args0[position]).toLowerCase();
+      if (option.equals("count") && position + 1 < args0.length) {
+        count = Math.max(0, bytesToNum(args0[position + 1]));
+        position += 2;
+      } else if (option.equals("block") && position + 1 < args0.length) {
+        block = bytesToNum(args0[position + 1]);
+        if (block < 0) {
+          throw new RedisException("timeout is negative");
+        }
+        position += 2;
+      } else if (option.equals("streams")) {
+        streams = true;
+        position++;
+      } else {
+        throw new RedisException("syntax error");
+      }
+    }
+    int remaining = args0.length - position;
+    if (!streams || remaining == 0 || remaining % 2 != 0) {
+      throw new RedisException("Unbalanced 'xread' list of streams: for each stream key an ID or '$' must be specified.");
+    }
+    int numkeys = remaining / 2;
+    byte[][] keys = Arrays.copyOfRange(args0, position, position + numkeys);
+    byte[][] ids = Arrays.copyOfRange(args0, position + numkeys, args0.length);
+    List<Reply> replies = new ArrayList<Reply>();
+    for (int i = 0; i < numkeys; i++) {
+      Stream stream = _getstream(keys[i], false);
+      StreamId after;
+      if (ids[i].length == 1 && ids[i][0] == '$') {
+        after = stream == null ? StreamId.MIN : stream.lastId();
+        // Retried after blocking it must still mean the entries after now
+        ids[i] = after.getBytes();
+      } else {
+        after = _tostreamid(ids[i], 0);
+      }
+      StreamId start = after.next();
+      if (stream != null && start != null) {
+        List<Stream.Entry> entries = stream.range(start, StreamId.MAX, (int) Math.min(count, MAX_VALUE), false);
+        if (!entries.isEmpty()) {
+          replies.add(new MultiBulkReply(new Reply[]{new BulkReply(keys[i]), _entries(entries)}));
+        }
+      }
+    }
+    if (!replies.isEmpty()) {
+      return new MultiBulkReply(replies.toArray(new Reply[replies.size()]));
+    }
+    if (block < 0 || blocking == null) {
+      return new MultiBulkReply();
+    }
+    Object[] retry = new Object[1 + args0.length];
+    retry[0] = XREAD;
+    System.arraycopy(args0, 0, retry, 1, position + numkeys);
+    System.arraycopy(ids, 0, retry, 1 + position + numkeys, numkeys);
+    return new Blocking.Blocked(keys, new Command(retry), block);
+  }
 }
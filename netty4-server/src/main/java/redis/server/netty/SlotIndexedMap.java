@@ -0,0 +1,79 @@
+package redis.server.netty;
+
+import redis.util.BytesKey;
+import redis.util.BytesKeyObjectMap;
+import redis.util.BytesKeySet;
+import redis.util.CRC16;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keyspace that also tracks which keys live in each cluster hash slot, so
+ * that migrating a slot or counting its keys doesn't scan the whole map.
+ */
+class SlotIndexedMap<V> extends BytesKeyObjectMap<V> {
+  private BytesKeySet[] slots = new BytesKeySet[CRC16.SLOTS];
+
+  SlotIndexedMap() {
+  }
+
+  SlotIndexedMap(Map<Object, V> map) {
+    for (Map.Entry<Object, V> entry : map.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public V put(BytesKey key, V value) {
+    V previous = super.put(key, value);
+    if (previous == null) {
+      int slot = CRC16.slot(key.getBytes());
+      BytesKeySet keys = slots[slot];
+      if (keys == null) {
+        slots[slot] = keys = new BytesKeySet();
+      }
+      keys.add(key);
+    }
+    return previous;
+  }
+
+  @Override
+  public V remove(BytesKey key) {
+    V previous = super.remove(key);
+    if (previous != null) {
+      int slot = CRC16.slot(key.getBytes());
+      BytesKeySet keys = slots[slot];
+      keys.remove(key);
+      if (keys.isEmpty()) {
+        slots[slot] = null;
+      }
+    }
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    slots = new BytesKeySet[CRC16.SLOTS];
+  }
+
+  int countKeysInSlot(int slot) {
+    BytesKeySet keys = slots[slot];
+    return keys == null ? 0 : keys.size();
+  }
+
+  List<BytesKey> keysInSlot(int slot, int count) {
+    BytesKeySet keys = slots[slot];
+    List<BytesKey> list = new ArrayList<BytesKey>(Math.min(count, countKeysInSlot(slot)));
+    if (keys != null) {
+      Iterator<BytesKey> it = keys.iterator();
+      while (it.hasNext() && list.size() < count) {
+        list.add(it.next());
+      }
+    }
+    return list;
+  }
+}
@@ -0,0 +1,83 @@
+package redis.server.netty;
+
+import redis.Command;
+import redis.RedisProtocol;
+import redis.reply.ErrorReply;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves a hash slot from one cluster node to another while both keep serving
+ * traffic. The slot is marked importing on the target and migrating on the
+ * source so clients are sent to the right node with ASK, the keys are moved
+ * in pipelined MIGRATE batches and finally the slot is assigned to the target.
+ */
+public class SlotMigration {
+  private static final int TIMEOUT = 5000;
+
+  private final String sourceHost;
+  private final int sourcePort;
+  private final String targetHost;
+  private final int targetPort;
+  private final int batch;
+
+  public SlotMigration(String sourceHost, int sourcePort, String targetHost, int targetPort, int batch) {
+    this.sourceHost = sourceHost;
+    this.sourcePort = sourcePort;
+    this.targetHost = targetHost;
+    this.targetPort = targetPort;
+    this.batch = batch;
+  }
+
+  /**
+   * @return the number of keys moved
+   */
+  public int migrate(int slot) throws IOException {
+    RedisProtocol source = new RedisProtocol(new Socket(sourceHost, sourcePort));
+    RedisProtocol target = new RedisProtocol(new Socket(targetHost, targetPort));
+    try {
+      String sourceId = new String((byte[]) call(source, "cluster", "myid").data());
+      String targetId = new String((byte[]) call(target, "cluster", "myid").data());
+      call(target, "cluster", "setslot", slot, "importing", sourceId);
+      call(source, "cluster", "setslot", slot, "migrating", targetId);
+      int moved = 0;
+      while (true) {
+        Reply[] keys = ((MultiBulkReply) call(source, "cluster", "getkeysinslot", slot, batch)).data();
+        if (keys.length == 0) break;
+        List<Object> arguments = new ArrayList<Object>();
+        arguments.add("migrate");
+        arguments.add(targetHost);
+        arguments.add(targetPort);
+        arguments.add("");
+        arguments.add(0);
+        arguments.add(TIMEOUT);
+        arguments.add("keys");
+        for (Reply key : keys) {
+          arguments.add(key.data());
+        }
+        call(source, arguments.toArray());
+        moved += keys.length;
+      }
+      call(target, "cluster", "setslot", slot, "node", targetId);
+      call(source, "cluster", "setslot", slot, "node", targetId);
+      return moved;
+    } finally {
+      source.close();
+      target.close();
+    }
+  }
+
+  private static Reply call(RedisProtocol rp, Object... arguments) throws IOException {
+    rp.sendAsync(new Command(arguments));
+    Reply reply = rp.receiveAsync();
+    if (reply instanceof ErrorReply) {
+      throw new IOException(((ErrorReply) reply).data());
+    }
+    return reply;
+  }
+}
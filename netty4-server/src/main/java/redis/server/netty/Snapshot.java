@@ -0,0 +1,124 @@
+package redis.server.netty;
+
+import com.google.common.base.Charsets;
+import redis.util.BytesKey;
+import redis.util.BytesKeyObjectMap;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Point in time copy of the keyspace that is shipped to replicas during a
+ * full resynchronization. The format is self delimiting so it can be
+ * streamed without knowing its length up front:
+ * <p/>
+ * magic, version, (expire? type key value)*, EOF, crc32
+ */
+class Snapshot {
+  private static final byte[] MAGIC = "JREDIS".getBytes(Charsets.US_ASCII);
+  private static final int VERSION = 1;
+  private static final int EXPIRE_MS = 0xFC;
+  private static final int EOF = 0xFF;
+
+  final BytesKeyObjectMap<Object> data;
+  final BytesKeyObjectMap<Long> expires;
+
+  Snapshot(BytesKeyObjectMap<Object> data, BytesKeyObjectMap<Long> expires) {
+    this.data = data;
+    this.expires = expires;
+  }
+
+  /**
+   * A copy of the live keys that the commands run after it can't change, so
+   * that it can be written without holding up the command executor.
+   */
+  Snapshot copy(long now) throws IOException {
+    BytesKeyObjectMap<Object> data = new BytesKeyObjectMap<Object>();
+    BytesKeyObjectMap<Long> expires = new BytesKeyObjectMap<Long>();
+    for (Object o : this.data.keySet()) {
+      BytesKey key = (BytesKey) o;
+      Long expire = this.expires.get(key);
+      if (expire != null) {
+        if (expire < now) continue;
+        expires.put(key, expire);
+      }
+      // Through get so that values kept in an arena are read
+      data.put(key, ValueEncoding.copy(this.data.get(key)));
+    }
+    return new Snapshot(data, expires);
+  }
+
+  /**
+   * Write every live key to the stream. Keys that have already expired are skipped.
+   */
+  void write(OutputStream os, long now) throws IOException {
+    CheckedOutputStream cos = new CheckedOutputStream(os, new CRC32());
+    DataOutputStream dos = new DataOutputStream(cos);
+    dos.write(MAGIC);
+    dos.writeByte(VERSION);
+    for (Object o : data.keySet()) {
+      BytesKey key = (BytesKey) o;
+      Long expire = expires.get(key);
+      if (expire != null) {
+        if (expire < now) continue;
+        dos.writeByte(EXPIRE_MS);
+        dos.writeLong(expire);
+      }
+      // Through get so that values kept in an arena are read
+      Object value = data.get(key);
+      int type = ValueEncoding.type(value);
+      dos.writeByte(type);
+      ValueEncoding.writeBytes(dos, key.getBytes());
+      ValueEncoding.writeValue(dos, type, value);
+    }
+    dos.writeByte(EOF);
+    dos.flush();
+    // The checksum is not part of itself
+    new DataOutputStream(os).writeLong(cos.getChecksum().getValue());
+  }
+
+  /**
+   * Read a snapshot written by {@link #write}. Exactly the bytes of the
+   * snapshot are consumed from the stream.
+   */
+  static Snapshot read(InputStream is) throws IOException {
+    CheckedInputStream cis = new CheckedInputStream(is, new CRC32());
+    DataInputStream dis = new DataInputStream(cis);
+    byte[] magic = new byte[MAGIC.length];
+    dis.readFully(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException("Invalid snapshot header");
+    }
+    int version = dis.readUnsignedByte();
+    if (version > VERSION) {
+      throw new IOException("Unsupported snapshot version: " + version);
+    }
+    BytesKeyObjectMap<Object> data = new BytesKeyObjectMap<Object>();
+    BytesKeyObjectMap<Long> expires = new BytesKeyObjectMap<Long>();
+    int type;
+    while ((type = dis.readUnsignedByte()) != EOF) {
+      Long expire = null;
+      if (type == EXPIRE_MS) {
+        expire = dis.readLong();
+        type = dis.readUnsignedByte();
+      }
+      BytesKey key = new BytesKey(ValueEncoding.readBytes(dis));
+      data.put(key, ValueEncoding.readValue(dis, type));
+      if (expire != null) {
+        expires.put(key, expire);
+      }
+    }
+    long checksum = cis.getChecksum().getValue();
+    if (new DataInputStream(is).readLong() != checksum) {
+      throw new IOException("Snapshot checksum mismatch");
+    }
+    return new Snapshot(data, expires);
+  }
+}
@@ -0,0 +1,289 @@
+package redis.server.netty;
+
+import redis.util.Bitmap;
+import redis.util.BytesKey;
+import redis.util.BytesKeyObjectMap;
+import redis.util.BytesKeySet;
+import redis.util.BytesValue;
+import redis.util.Stream;
+import redis.util.StreamId;
+import redis.util.ZSet;
+import redis.util.ZSetEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary encoding of the values held by the SimpleRedisServer. Lengths are
+ * written as unsigned varints so that small collections and short strings
+ * only pay a byte or two of overhead.
+ */
+class ValueEncoding {
+  static final int STRING = 0;
+  static final int LIST = 1;
+  static final int SET = 2;
+  static final int ZSET = 3;
+  static final int HASH = 4;
+  static final int STREAM = 5;
+
+  private static final int DUMP_VERSION = 1;
+
+  static int type(Object value) throws IOException {
+    if (value instanceof byte[] || value instanceof Bitmap) {
+      return STRING;
+    } else if (value instanceof List) {
+      return LIST;
+    } else if (value instanceof BytesKeySet) {
+      return SET;
+    } else if (value instanceof ZSet) {
+      return ZSET;
+    } else if (value instanceof BytesKeyObjectMap) {
+      return HASH;
+    } else if (value instanceof Stream) {
+      return STREAM;
+    }
+    throw new IOException("Can not encode value of type " + value.getClass().getName());
+  }
+
+  @SuppressWarnings("unchecked")
+  static void writeValue(DataOutput os, int type, Object value) throws IOException {
+    switch (type) {
+      case STRING:
+        writeBytes(os, value instanceof Bitmap ? ((Bitmap) value).toBytes() : (byte[]) value);
+        break;
+      case LIST: {
+        List<BytesValue> list = (List<BytesValue>) value;
+        writeLength(os, list.size());
+        for (BytesValue element : list) {
+          writeBytes(os, element.getBytes());
+        }
+        break;
+      }
+      case SET: {
+        BytesKeySet set = (BytesKeySet) value;
+        writeLength(os, set.size());
+        for (BytesKey member : set) {
+          writeBytes(os, member.getBytes());
+        }
+        break;
+      }
+      case ZSET: {
+        ZSet zset = (ZSet) value;
+        writeLength(os, zset.size());
+        for (ZSetEntry entry : zset) {
+          writeBytes(os, entry.getKey().getBytes());
+          os.writeDouble(entry.getScore());
+        }
+        break;
+      }
+      case HASH: {
+        BytesKeyObjectMap<byte[]> hash = (BytesKeyObjectMap<byte[]>) value;
+        writeLength(os, hash.size());
+        for (Map.Entry<Object, byte[]> entry : hash.entrySet()) {
+          writeBytes(os, ((BytesKey) entry.getKey()).getBytes());
+          writeBytes(os, entry.getValue());
+        }
+        break;
+      }
+      case STREAM: {
+        // The last id outlives trimmed entries so it is written separately
+        Stream stream = (Stream) value;
+        os.writeLong(stream.lastId().getMillis());
+        os.writeLong(stream.lastId().getSequence());
+        writeLength(os, stream.length());
+        for (Stream.Entry entry : stream.range(StreamId.MIN, StreamId.MAX, 0, false)) {
+          os.writeLong(entry.getId().getMillis());
+          os.writeLong(entry.getId().getSequence());
+          byte[][] fields = entry.getFields();
+          writeLength(os, fields.length);
+          for (byte[] field : fields) {
+            writeBytes(os, field);
+          }
+        }
+        break;
+      }
+      default:
+        throw new IOException("Unknown value type: " + type);
+    }
+  }
+
+  /**
+   * A copy of a value that commands changing it in place can't reach, e.g.
+   * for a snapshot written on another thread. Hash values and the members of
+   * lists and sets are replaced rather than changed so they are shared.
+   */
+  @SuppressWarnings("unchecked")
+  static Object copy(Object value) throws IOException {
+    switch (type(value)) {
+      case STRING:
+        return value instanceof Bitmap ? ((Bitmap) value).toBytes() : ((byte[]) value).clone();
+      case LIST:
+        return new ArrayList<BytesValue>((List<BytesValue>) value);
+      case SET: {
+        BytesKeySet set = (BytesKeySet) value;
+        BytesKeySet copy = new BytesKeySet(set.size());
+        copy.addAll(set);
+        return copy;
+      }
+      case ZSET:
+        return ((ZSet) value).copy();
+      case HASH: {
+        BytesKeyObjectMap<byte[]> copy = new BytesKeyObjectMap<byte[]>();
+        copy.putAll((BytesKeyObjectMap<byte[]>) value);
+        return copy;
+      }
+      default:
+        return ((Stream) value).copy();
+    }
+  }
+
+  static Object readValue(DataInput is, int type) throws IOException {
+    switch (type) {
+      case STRING:
+        return readBytes(is);
+      case LIST: {
+        int size = readLength(is);
+        List<BytesValue> list = new ArrayList<BytesValue>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(new BytesKey(readBytes(is)));
+        }
+        return list;
+      }
+      case SET: {
+        int size = readLength(is);
+        BytesKeySet set = new BytesKeySet();
+        for (int i = 0; i < size; i++) {
+          set.add(readBytes(is));
+        }
+        return set;
+      }
+      case ZSET: {
+        int size = readLength(is);
+        ZSet zset = new ZSet();
+        for (int i = 0; i < size; i++) {
+          BytesKey member = new BytesKey(readBytes(is));
+          zset.add(member, is.readDouble());
+        }
+        return zset;
+      }
+      case HASH: {
+        int size = readLength(is);
+        BytesKeyObjectMap<byte[]> hash = new BytesKeyObjectMap<byte[]>();
+        for (int i = 0; i < size; i++) {
+          byte[] field = readBytes(is);
+          hash.put(field, readBytes(is));
+        }
+        return hash;
+      }
+      case STREAM: {
+        StreamId last = new StreamId(is.readLong(), is.readLong());
+        int size = readLength(is);
+        Stream stream = new Stream();
+        for (int i = 0; i < size; i++) {
+          StreamId id = new StreamId(is.readLong(), is.readLong());
+          byte[][] fields = new byte[readLength(is)][];
+          for (int j = 0; j < fields.length; j++) {
+            fields[j] = readBytes(is);
+          }
+          try {
+            stream.add(id, fields);
+          } catch (IllegalArgumentException e) {
+            throw new IOException("Stream entries out of order");
+          }
+        }
+        stream.setLastId(last);
+        return stream;
+      }
+      default:
+        throw new IOException("Unknown value type: " + type);
+    }
+  }
+
+  /**
+   * Standalone encoding of a single value as used by DUMP, RESTORE and
+   * MIGRATE: type, value, a two byte version and the CRC32 of everything
+   * before it as eight bytes.
+   */
+  static byte[] serialize(Object value) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(baos);
+    int type = type(value);
+    dos.writeByte(type);
+    writeValue(dos, type, value);
+    dos.writeShort(DUMP_VERSION);
+    CRC32 crc = new CRC32();
+    crc.update(baos.toByteArray());
+    dos.writeLong(crc.getValue());
+    dos.flush();
+    return baos.toByteArray();
+  }
+
+  static Object deserialize(byte[] bytes) throws IOException {
+    int length = bytes.length - 10;
+    if (length < 1) {
+      throw new IOException("Truncated value");
+    }
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes, length, 10));
+    int version = dis.readUnsignedShort();
+    if (version > DUMP_VERSION) {
+      throw new IOException("Unsupported value version: " + version);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, length + 2);
+    if (dis.readLong() != crc.getValue()) {
+      throw new IOException("Checksum mismatch");
+    }
+    dis = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+    Object value = readValue(dis, dis.readUnsignedByte());
+    if (dis.read() != -1) {
+      throw new IOException("Trailing bytes after value");
+    }
+    return value;
+  }
+
+  static void writeBytes(DataOutput os, byte[] bytes) throws IOException {
+    writeLength(os, bytes.length);
+    os.write(bytes);
+  }
+
+  static byte[] readBytes(DataInput is) throws IOException {
+    byte[] bytes = new byte[readLength(is)];
+    is.readFully(bytes);
+    return bytes;
+  }
+
+  static void writeLength(DataOutput os, long length) throws IOException {
+    while ((length & ~0x7FL) != 0) {
+      os.writeByte((int) ((length & 0x7F) | 0x80));
+      length >>>= 7;
+    }
+    os.writeByte((int) length);
+  }
+
+  static int readLength(DataInput is) throws IOException {
+    long length = 0;
+    int shift = 0;
+    int b;
+    do {
+      if (shift > 28) {
+        throw new IOException("Invalid length encoding");
+      }
+      b = is.readUnsignedByte();
+      length |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Java only supports arrays up to " + Integer.MAX_VALUE + " in size");
+    }
+    return (int) length;
+  }
+}
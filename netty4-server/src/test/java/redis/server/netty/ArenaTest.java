@@ -0,0 +1,266 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.Command;
+import redis.RedisProtocol;
+import redis.netty4.BulkReply;
+import redis.netty4.Reply;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * The keyspace in a memory mapped arena surviving restarts and crashes.
+ */
+public class ArenaTest {
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("redis", ".arena");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    for (String suffix : new String[]{"", ".index", ".compact"}) {
+      new File(file.getPath() + suffix).delete();
+    }
+  }
+
+  @Test
+  public void testReattach() throws Exception {
+    Server server = new Server(freePort()).arena(file).start();
+    RedisProtocol client = new RedisProtocol(new Socket("localhost", server.port()));
+    call(client, "set", "string", "value");
+    call(client, "rpush", "list", "a", "b", "c");
+    call(client, "hset", "hash", "field", "value");
+    call(client, "zadd", "zset", "1", "one");
+    call(client, "set", "expiring", "value");
+    call(client, "expire", "expiring", "1000");
+    call(client, "set", "deleted", "value");
+    call(client, "del", "deleted");
+    call(client, "set", "old", "value");
+    call(client, "rename", "old", "new");
+    client.close();
+    server.stop();
+
+    server = new Server(freePort()).arena(file).start();
+    client = new RedisProtocol(new Socket("localhost", server.port()));
+    try {
+      assertTrue(string(call(client, "info")).contains("arena_recovery:index"));
+      assertEquals(6L, call(client, "dbsize").data());
+      assertEquals("value", string(call(client, "get", "string")));
+      assertEquals(3L, call(client, "llen", "list").data());
+      assertEquals("value", string(call(client, "hget", "hash", "field")));
+      assertEquals(1.0, Double.parseDouble(string(call(client, "zscore", "zset", "one"))));
+      assertTrue((Long) call(client, "ttl", "expiring").data() > 0);
+      assertNull(call(client, "get", "deleted").data());
+      assertEquals("value", string(call(client, "get", "new")));
+      // A key renamed before it is read keeps its value
+      call(client, "rename", "new", "newer");
+      assertEquals("value", string(call(client, "get", "newer")));
+    } finally {
+      client.close();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testCrashRecovery() throws Exception {
+    SimpleRedisServer rs = new SimpleRedisServer();
+    RedisCommandHandler handler = new RedisCommandHandler(rs);
+    Arena arena = new Arena(rs, handler, file, 1 << 20);
+    for (int i = 0; i < 100; i++) {
+      execute(handler, "set", "key" + i, "value" + i);
+    }
+    execute(handler, "del", "key0");
+    execute(handler, "incr", "counter");
+    execute(handler, "incr", "counter");
+    // The process dies without closing the arena and with a record half written
+    long tail = Long.parseLong(info(arena, "arena_bytes"));
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(tail + 8);
+    raf.writeInt(42);
+    raf.seek(tail);
+    raf.writeInt(100);
+    raf.close();
+
+    rs = new SimpleRedisServer();
+    handler = new RedisCommandHandler(rs);
+    arena = new Arena(rs, handler, file, 1 << 20);
+    assertEquals("scan", info(arena, "arena_recovery"));
+    assertEquals(100L, execute(handler, "dbsize").data());
+    assertNull(((BulkReply) execute(handler, "get", "key0")).data());
+    assertEquals("value99", ((BulkReply) execute(handler, "get", "key99")).asUTF8String());
+    assertEquals(3L, execute(handler, "incr", "counter").data());
+
+    // Nothing of the torn record is left to follow the new one
+    rs = new SimpleRedisServer();
+    handler = new RedisCommandHandler(rs);
+    arena = new Arena(rs, handler, file, 1 << 20);
+    assertEquals("scan", info(arena, "arena_recovery"));
+    assertEquals("3", ((BulkReply) execute(handler, "get", "counter")).asUTF8String());
+    arena.close();
+  }
+
+  @Test
+  public void testOnlyChangedKeysAppended() throws Exception {
+    SimpleRedisServer rs = new SimpleRedisServer();
+    RedisCommandHandler handler = new RedisCommandHandler(rs);
+    Arena arena = new Arena(rs, handler, file, 1 << 20);
+    String value = new String(new char[100000]).replace('\0', 'x');
+    execute(handler, "sadd", "a", "common", value + "a");
+    execute(handler, "sadd", "b", "common", value + "b");
+    // The sources are read but only the small destination is written
+    long tail = Long.parseLong(info(arena, "arena_bytes"));
+    assertEquals(1L, execute(handler, "sinterstore", "dest", "a", "b").data());
+    assertTrue(Long.parseLong(info(arena, "arena_bytes")) - tail < 1000);
+
+    // Changes made in place and to expires still reach the log
+    execute(handler, "sadd", "dest", "more");
+    execute(handler, "expire", "dest", "1000");
+    rs = new SimpleRedisServer();
+    handler = new RedisCommandHandler(rs);
+    arena = new Arena(rs, handler, file, 1 << 20);
+    assertEquals(2L, execute(handler, "scard", "dest").data());
+    assertTrue((Long) execute(handler, "ttl", "dest").data() > 0);
+    arena.close();
+  }
+
+  @Test
+  public void testUnreadValues() throws Exception {
+    SimpleRedisServer rs = new SimpleRedisServer();
+    RedisCommandHandler handler = new RedisCommandHandler(rs);
+    Arena arena = new Arena(rs, handler, file, 1 << 20);
+    execute(handler, "set", "getset", "old");
+    execute(handler, "set", "rename", "value");
+    execute(handler, "set", "del", "value");
+    execute(handler, "set", "overwritten", "value");
+    arena.close();
+
+    // Commands that look at the value they replace or remove, on keys that
+    // have not been read since the restart
+    rs = new SimpleRedisServer();
+    handler = new RedisCommandHandler(rs);
+    arena = new Arena(rs, handler, file, 1 << 20);
+    assertEquals("old", ((BulkReply) execute(handler, "getset", "getset", "new")).asUTF8String());
+    assertEquals("OK", execute(handler, "rename", "rename", "renamed").data());
+    assertEquals(1L, execute(handler, "del", "del").data());
+    assertEquals("OK", execute(handler, "set", "overwritten", "new").data());
+    arena.close();
+
+    rs = new SimpleRedisServer();
+    handler = new RedisCommandHandler(rs);
+    arena = new Arena(rs, handler, file, 1 << 20);
+    assertEquals(3L, execute(handler, "dbsize").data());
+    assertEquals("new", ((BulkReply) execute(handler, "get", "getset")).asUTF8String());
+    assertEquals("value", ((BulkReply) execute(handler, "get", "renamed")).asUTF8String());
+    assertEquals("new", ((BulkReply) execute(handler, "get", "overwritten")).asUTF8String());
+    arena.close();
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    SimpleRedisServer rs = new SimpleRedisServer();
+    RedisCommandHandler handler = new RedisCommandHandler(rs);
+    Arena arena = new Arena(rs, handler, file, 1 << 20);
+    String value = new String(new char[100000]).replace('\0', 'x');
+    // Many times the segment size and the compaction threshold, with more
+    // live keys than a single flush copies
+    for (int i = 0; i < 1000; i++) {
+      execute(handler, "set", "key" + i % 30, value + i);
+    }
+    assertTrue(file.length() < 100 << 20);
+    arena.close();
+
+    rs = new SimpleRedisServer();
+    handler = new RedisCommandHandler(rs);
+    arena = new Arena(rs, handler, file, 1 << 20);
+    for (int i = 970; i < 1000; i++) {
+      assertEquals(value + i, ((BulkReply) execute(handler, "get", "key" + i % 30)).asUTF8String());
+    }
+    execute(handler, "flushall");
+    assertEquals(0L, execute(handler, "dbsize").data());
+    assertEquals(1 << 20, file.length());
+    arena.close();
+  }
+
+  @Test
+  public void benchmarkStartup() throws Exception {
+    SimpleRedisServer rs = new SimpleRedisServer();
+    RedisCommandHandler handler = new RedisCommandHandler(rs);
+    Arena arena = new Arena(rs, handler, file);
+    String value = new String(new char[10000]).replace('\0', 'x');
+    for (int i = 0; i < 50000; i++) {
+      execute(handler, "set", "key" + i, value);
+    }
+    long bytes = Long.parseLong(info(arena, "arena_bytes"));
+    arena.close();
+    for (int round = 0; round < 2; round++) {
+      long start = System.nanoTime();
+      rs = new SimpleRedisServer();
+      handler = new RedisCommandHandler(rs);
+      arena = new Arena(rs, handler, file);
+      long attach = System.nanoTime() - start;
+      Reply reply = execute(handler, "get", "key" + round);
+      assertEquals(value.length(), ((BulkReply) reply).data().readableBytes());
+      long first = System.nanoTime() - start;
+      if (round == 0) {
+        // Crash instead of closing so the next start replays the log
+        arena.flush();
+      } else {
+        arena.close();
+      }
+      System.out.println((round == 0 ? "Clean" : "Crash") + " start of a " + (bytes >> 20) + " MB arena: " +
+              attach / 1000000 + " ms to attach, " + first / 1000000 + " ms to the first GET");
+    }
+  }
+
+  private static String info(Arena arena, String field) {
+    StringBuilder sb = new StringBuilder();
+    arena.info(sb);
+    for (String line : sb.toString().split("\n")) {
+      if (line.startsWith(field + ":")) {
+        return line.substring(field.length() + 1);
+      }
+    }
+    return null;
+  }
+
+  private static Reply execute(RedisCommandHandler handler, String... arguments) throws Exception {
+    Object[] objects = new Object[arguments.length];
+    for (int i = 0; i < arguments.length; i++) {
+      objects[i] = arguments[i].getBytes();
+    }
+    return handler.execute(new redis.netty4.Command(objects));
+  }
+
+  private static redis.reply.Reply call(RedisProtocol rp, Object... arguments) throws IOException {
+    rp.sendAsync(new Command(arguments));
+    return rp.receiveAsync();
+  }
+
+  private static String string(redis.reply.Reply reply) {
+    return new String((byte[]) reply.data());
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.Command;
+import redis.RedisProtocol;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Blocking reads served by writes on other connections.
+ */
+public class BlockingTest {
+
+  private Server server;
+  private Socket socket;
+  private RedisProtocol reader;
+  private RedisProtocol writer;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new Server(freePort()).start();
+    socket = new Socket("localhost", server.port());
+    reader = new RedisProtocol(socket);
+    writer = new RedisProtocol(new Socket("localhost", server.port()));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    reader.close();
+    writer.close();
+    server.stop();
+  }
+
+  @Test
+  public void testBlockingRead() throws Exception {
+    call(writer, "xadd", "stream", "1-0", "f", "old");
+    // The commands behind a blocked one wait for it
+    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    new Command(new Object[]{"xread", "block", "0", "streams", "stream", "$"}).write(batch);
+    new Command(new Object[]{"xlen", "stream"}).write(batch);
+    socket.getOutputStream().write(batch.toByteArray());
+    Thread.sleep(50);
+    assertEquals("2-0", string(call(writer, "xadd", "stream", "2-0", "f", "new")));
+    Reply[] streams = ((MultiBulkReply) reader.receiveAsync()).data();
+    assertEquals(1, streams.length);
+    Reply[] stream = ((MultiBulkReply) streams[0]).data();
+    assertEquals("stream", string(stream[0]));
+    Reply[] entry = ((MultiBulkReply) ((MultiBulkReply) stream[1]).data()[0]).data();
+    assertEquals("2-0", string(entry[0]));
+    assertEquals("new", string(((MultiBulkReply) entry[1]).data()[1]));
+    assertEquals(2L, reader.receiveAsync().data());
+
+    // Waiting for a stream that does not exist yet
+    reader.sendAsync(new Command(new Object[]{"xread", "block", "0", "streams", "missing", "stream", "$", "$"}));
+    Thread.sleep(50);
+    call(writer, "xadd", "missing", "*", "f", "created");
+    streams = ((MultiBulkReply) reader.receiveAsync()).data();
+    assertEquals(1, streams.length);
+    assertEquals("missing", string(((MultiBulkReply) streams[0]).data()[0]));
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    long start = System.currentTimeMillis();
+    assertNull(call(reader, "xread", "block", "100", "streams", "stream", "$").data());
+    assertEquals(true, System.currentTimeMillis() - start >= 100);
+    // A later write does not reach the connection that timed out
+    call(writer, "xadd", "stream", "*", "f", "v");
+    assertEquals("PONG", call(reader, "ping").data());
+    // Nor does anything go to a closed one
+    RedisProtocol closing = new RedisProtocol(new Socket("localhost", server.port()));
+    closing.sendAsync(new Command(new Object[]{"xread", "block", "0", "streams", "stream", "$"}));
+    Thread.sleep(50);
+    closing.close();
+    Thread.sleep(50);
+    call(writer, "xadd", "stream", "*", "f", "v");
+    assertEquals(2L, call(writer, "xlen", "stream").data());
+  }
+
+  private static Reply call(RedisProtocol rp, Object... arguments) throws IOException {
+    rp.sendAsync(new Command(arguments));
+    return rp.receiveAsync();
+  }
+
+  private static String string(Reply reply) {
+    return new String((byte[]) reply.data());
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+}
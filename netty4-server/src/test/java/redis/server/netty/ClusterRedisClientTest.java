@@ -0,0 +1,208 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.Command;
+import redis.RedisProtocol;
+import redis.client.ClusterRedisClient;
+import redis.client.RedisClientPool;
+import redis.reply.ErrorReply;
+import redis.reply.Reply;
+import redis.util.CRC16;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Three cluster nodes, each a server process of its own.
+ */
+public class ClusterRedisClientTest {
+  private Process[] processes = new Process[3];
+  private int[] ports = new int[3];
+  private RedisProtocol[] nodes = new RedisProtocol[3];
+
+  @Before
+  public void setUp() throws Exception {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    for (int i = 0; i < processes.length; i++) {
+      ports[i] = freePort();
+      ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+              Main.class.getName(), "-port", String.valueOf(ports[i]), "-cluster");
+      pb.redirectErrorStream(true);
+      processes[i] = pb.start();
+      drain(processes[i].getInputStream());
+    }
+    for (int i = 0; i < processes.length; i++) {
+      nodes[i] = connect(ports[i]);
+    }
+    call(nodes[0], "cluster", "addslotsrange", 0, 5460);
+    call(nodes[1], "cluster", "addslotsrange", 5461, 10922);
+    call(nodes[2], "cluster", "addslotsrange", 10923, 16383);
+    call(nodes[0], "cluster", "meet", "127.0.0.1", ports[1]);
+    call(nodes[0], "cluster", "meet", "127.0.0.1", ports[2]);
+    for (RedisProtocol node : nodes) {
+      awaitInfo(node, "cluster_state:ok");
+      awaitInfo(node, "cluster_known_nodes:3");
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (int i = 0; i < processes.length; i++) {
+      if (nodes[i] != null) {
+        nodes[i].close();
+      }
+      processes[i].destroy();
+    }
+  }
+
+  @Test
+  public void testRedirects() throws Exception {
+    ClusterRedisClient cluster = new ClusterRedisClient("127.0.0.1", ports[0]);
+    for (int i = 0; i < 300; i++) {
+      assertEquals("OK", cluster.set("key" + i, "value" + i).data());
+    }
+    for (int i = 0; i < 300; i++) {
+      assertEquals("value" + i, cluster.get("key" + i).asAsciiString());
+      // Stored on the node that serves the slot
+      Reply reply = call(nodes[nodeFor(CRC16.slot(("key" + i).getBytes()))], "get", "key" + i);
+      assertEquals("value" + i, new String((byte[]) reply.data()));
+    }
+
+    // The whole slot moves so the map is stale and the next command is moved
+    int slot = CRC16.slot("m".getBytes());
+    int from = nodeFor(slot);
+    int to = (from + 1) % 3;
+    for (int i = 0; i < 10; i++) {
+      cluster.set("{m}:" + i, "value" + i);
+    }
+    RedisClientPool source = cluster.node("{m}");
+    new SlotMigration("127.0.0.1", ports[from], "127.0.0.1", ports[to], 16).migrate(slot);
+    assertEquals("value5", cluster.get("{m}:5").asAsciiString());
+    RedisClientPool target = cluster.node("{m}");
+    assertNotSame(source, target);
+    assertEquals("127.0.0.1:" + ports[to], target.toString());
+
+    // A key moved ahead of its migrating slot is asked for
+    slot = CRC16.slot("a".getBytes());
+    from = nodeFor(slot);
+    to = (from + 1) % 3;
+    cluster.set("{a}:0", "asked");
+    cluster.set("{a}:1", "stayed");
+    source = cluster.node("{a}");
+    String sourceId = new String((byte[]) call(nodes[from], "cluster", "myid").data());
+    String targetId = new String((byte[]) call(nodes[to], "cluster", "myid").data());
+    call(nodes[to], "cluster", "setslot", slot, "importing", sourceId);
+    call(nodes[from], "cluster", "setslot", slot, "migrating", targetId);
+    call(nodes[from], "migrate", "127.0.0.1", ports[to], "", 0, 1000, "keys", "{a}:0");
+    assertEquals("asked", cluster.get("{a}:0").asAsciiString());
+    assertEquals("stayed", cluster.get("{a}:1").asAsciiString());
+    // Only moves change the map
+    assertSame(source, cluster.node("{a}"));
+    cluster.close();
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    ClusterRedisClient cluster = new ClusterRedisClient("127.0.0.1", ports[0]);
+    RedisClientPool[] pools = new RedisClientPool[3];
+    long[] borrows = new long[3];
+    for (int i = 0; i < 3; i++) {
+      // Keys whose slots are served by each node
+      pools[i] = cluster.node(new String[] { "{a}", "{b}", "{c}" }[i]);
+      borrows[i] = pools[i].getBorrows();
+    }
+    ClusterRedisClient.Batch batch = cluster.batch();
+    for (int i = 0; i < 10000; i++) {
+      batch.add("SET", "batch" + i, new Command("SET", "batch" + i, "value" + i));
+    }
+    batch.add("INCR", "batch0", new Command("INCR", "batch0"));
+    Reply[] replies = batch.execute();
+    assertEquals(10001, replies.length);
+    for (int i = 0; i < 10000; i++) {
+      assertEquals("OK", replies[i].data());
+    }
+    assertTrue(replies[10000] instanceof ErrorReply);
+    // One pipeline for each node
+    for (int i = 0; i < 3; i++) {
+      assertEquals(borrows[i] + 1, pools[i].getBorrows());
+    }
+
+    batch = cluster.batch();
+    for (int i = 0; i < 10000; i++) {
+      batch.add("GET", "batch" + i, new Command("GET", "batch" + i));
+    }
+    replies = batch.execute();
+    for (int i = 0; i < 10000; i++) {
+      assertEquals("value" + i, new String((byte[]) replies[i].data()));
+    }
+    cluster.close();
+  }
+
+  private int nodeFor(int slot) {
+    return slot <= 5460 ? 0 : slot <= 10922 ? 1 : 2;
+  }
+
+  private static RedisProtocol connect(int port) throws Exception {
+    long start = System.currentTimeMillis();
+    while (true) {
+      try {
+        return new RedisProtocol(new Socket("127.0.0.1", port));
+      } catch (IOException e) {
+        if (System.currentTimeMillis() - start > 20000) throw e;
+        Thread.sleep(50);
+      }
+    }
+  }
+
+  private static void awaitInfo(RedisProtocol rp, String line) throws Exception {
+    long start = System.currentTimeMillis();
+    while (System.currentTimeMillis() - start < 5000) {
+      if (new String((byte[]) call(rp, "cluster", "info").data()).contains(line)) return;
+      Thread.sleep(10);
+    }
+    fail("Cluster never reached " + line);
+  }
+
+  private static Reply call(RedisProtocol rp, Object... arguments) throws IOException {
+    rp.sendAsync(new Command(arguments));
+    return rp.receive();
+  }
+
+  /**
+   * Keep the output of a server from filling its pipe.
+   */
+  private static void drain(final InputStream is) {
+    Thread thread = new Thread() {
+      public void run() {
+        byte[] buffer = new byte[1024];
+        try {
+          while (is.read(buffer) != -1) ;
+        } catch (IOException e) {
+          // Gone
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+}
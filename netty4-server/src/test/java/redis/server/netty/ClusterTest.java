@@ -0,0 +1,211 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.Command;
+import redis.RedisProtocol;
+import redis.reply.ErrorReply;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+import redis.util.CRC16;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Three cluster nodes running in the same JVM.
+ */
+public class ClusterTest {
+
+  private Server[] servers = new Server[3];
+  private RedisProtocol[] clients = new RedisProtocol[3];
+
+  @Before
+  public void setUp() throws Exception {
+    for (int i = 0; i < servers.length; i++) {
+      servers[i] = new Server(freePort(), true).start();
+      clients[i] = new RedisProtocol(new Socket("localhost", servers[i].port()));
+    }
+    call(clients[0], "cluster", "addslotsrange", 0, 5460);
+    call(clients[1], "cluster", "addslotsrange", 5461, 10922);
+    call(clients[2], "cluster", "addslotsrange", 10923, 16383);
+    // The other nodes introduce themselves to each other
+    call(clients[0], "cluster", "meet", "127.0.0.1", servers[1].port());
+    call(clients[0], "cluster", "meet", "127.0.0.1", servers[2].port());
+    for (RedisProtocol client : clients) {
+      awaitInfo(client, "cluster_state:ok");
+      awaitInfo(client, "cluster_known_nodes:3");
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (int i = 0; i < servers.length; i++) {
+      clients[i].close();
+      servers[i].stop();
+    }
+  }
+
+  @Test
+  public void testRedirection() throws Exception {
+    assertEquals(12182L, call(clients[0], "cluster", "keyslot", "foo").data());
+    assertEquals(3, ((MultiBulkReply) call(clients[0], "cluster", "slots")).data().length);
+
+    Reply reply = call(clients[0], "set", "foo", "bar");
+    assertEquals("MOVED 12182 127.0.0.1:" + servers[2].port(), reply.data());
+    assertEquals("OK", call(clients[2], "set", "foo", "bar").data());
+    assertEquals("bar", string(call(clients[2], "get", "foo")));
+
+    // Keys that don't share a slot can't be used together
+    reply = call(clients[2], "mset", "foo", "1", "bar", "2");
+    assertTrue(((String) reply.data()).startsWith("CROSSSLOT"));
+    int slot = CRC16.slot("{user}".getBytes());
+    RedisProtocol owner = clients[nodeFor(slot)];
+    assertEquals("OK", call(owner, "mset", "{user}.a", "1", "{user}.b", "2").data());
+    assertEquals(2L, call(owner, "cluster", "countkeysinslot", slot).data());
+
+    // Keyless commands are served anywhere
+    assertEquals("PONG", call(clients[0], "ping").data());
+    String nodes = string(call(clients[0], "cluster", "nodes"));
+    assertEquals(3, nodes.split("\n").length);
+    assertTrue(nodes.contains("myself,master"));
+  }
+
+  @Test
+  public void testSlotMigration() throws Exception {
+    final int slot = CRC16.slot("m".getBytes());
+    int from = nodeFor(slot);
+    final int to = (from + 1) % 3;
+    RedisProtocol source = clients[from];
+    RedisProtocol target = clients[to];
+    final int count = 250;
+    for (int i = 0; i < count; i++) {
+      call(source, "set", "{m}:" + i, "value" + i);
+    }
+    call(source, "expire", "{m}:0", 1000);
+    assertEquals((long) count, call(source, "cluster", "countkeysinslot", slot).data());
+
+    // Move a few keys by hand to see the ASK redirection
+    String sourceId = string(call(source, "cluster", "myid"));
+    String targetId = string(call(target, "cluster", "myid"));
+    call(target, "cluster", "setslot", slot, "importing", sourceId);
+    call(source, "cluster", "setslot", slot, "migrating", targetId);
+    assertEquals("OK", call(source, "migrate", "127.0.0.1", servers[to].port(), "", 0, 1000, "keys", "{m}:0", "{m}:1").data());
+    assertEquals("ASK " + slot + " 127.0.0.1:" + servers[to].port(), call(source, "get", "{m}:0").data());
+    assertEquals("value2", string(call(source, "get", "{m}:2")));
+    assertEquals("MOVED " + slot + " 127.0.0.1:" + servers[from].port(), call(target, "get", "{m}:0").data());
+    call(target, "asking");
+    assertEquals("value0", string(call(target, "get", "{m}:0")));
+    call(target, "asking");
+    assertTrue((Long) call(target, "ttl", "{m}:0").data() > 0);
+
+    // Readers following redirections never miss a key while the rest moves
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    Thread reader = new Thread() {
+      public void run() {
+        try {
+          Map<Integer, RedisProtocol> connections = new HashMap<Integer, RedisProtocol>();
+          int i = 0;
+          while (!done.get()) {
+            String key = "{m}:" + (i++ % count);
+            String value = get(connections, servers[0].port(), key);
+            if (!("value" + key.substring(4)).equals(value)) {
+              failure.set(key + " was " + value);
+              return;
+            }
+          }
+        } catch (Exception e) {
+          failure.set(e.toString());
+        }
+      }
+    };
+    reader.start();
+    int moved = new SlotMigration("127.0.0.1", servers[from].port(), "127.0.0.1", servers[to].port(), 16).migrate(slot);
+    Thread.sleep(100);
+    done.set(true);
+    reader.join();
+    assertNull(failure.get());
+    assertEquals(count - 2, moved);
+
+    assertEquals(0L, call(source, "cluster", "countkeysinslot", slot).data());
+    assertEquals((long) count, call(target, "cluster", "countkeysinslot", slot).data());
+    assertEquals("MOVED " + slot + " 127.0.0.1:" + servers[to].port(), call(source, "get", "{m}:5").data());
+    assertEquals("value5", string(call(target, "get", "{m}:5")));
+    // The third node hears about the new owner
+    RedisProtocol other = clients[3 - from - to];
+    long start = System.currentTimeMillis();
+    while (!call(other, "get", "{m}:5").data().equals("MOVED " + slot + " 127.0.0.1:" + servers[to].port())) {
+      if (System.currentTimeMillis() - start > 5000) fail("Slot owner never propagated");
+      Thread.sleep(10);
+    }
+  }
+
+  private String get(Map<Integer, RedisProtocol> connections, int port, String key) throws IOException {
+    boolean asking = false;
+    for (int redirects = 0; redirects < 5; redirects++) {
+      RedisProtocol rp = connections.get(port);
+      if (rp == null) {
+        connections.put(port, rp = new RedisProtocol(new Socket("localhost", port)));
+      }
+      if (asking) {
+        call(rp, "asking");
+      }
+      Reply reply = call(rp, "get", key);
+      if (!(reply instanceof ErrorReply)) {
+        return string(reply);
+      }
+      String[] error = ((String) reply.data()).split(" ");
+      if (!error[0].equals("MOVED") && !error[0].equals("ASK")) {
+        throw new IOException(reply.data().toString());
+      }
+      asking = error[0].equals("ASK");
+      port = Integer.parseInt(error[2].substring(error[2].indexOf(':') + 1));
+    }
+    throw new IOException("Too many redirections");
+  }
+
+  private int nodeFor(int slot) {
+    return slot <= 5460 ? 0 : slot <= 10922 ? 1 : 2;
+  }
+
+  private static void awaitInfo(RedisProtocol rp, String line) throws Exception {
+    long start = System.currentTimeMillis();
+    while (System.currentTimeMillis() - start < 5000) {
+      if (string(call(rp, "cluster", "info")).contains(line)) return;
+      Thread.sleep(10);
+    }
+    fail("Cluster never reached " + line);
+  }
+
+  private static Reply call(RedisProtocol rp, Object... arguments) throws IOException {
+    rp.sendAsync(new Command(arguments));
+    return rp.receiveAsync();
+  }
+
+  private static String string(Reply reply) {
+    Object data = reply.data();
+    assertTrue(data == null || data instanceof byte[]);
+    return data == null ? null : new String((byte[]) data);
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.Command;
+import redis.RedisProtocol;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Publish/subscribe and the keyspace notifications built on it.
+ */
+public class KeyspaceEventsTest {
+
+  private Server server;
+  private Socket socket;
+  private RedisProtocol client;
+  private RedisProtocol subscriber;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new Server(freePort()).start();
+    socket = new Socket("localhost", server.port());
+    client = new RedisProtocol(socket);
+    subscriber = new RedisProtocol(new Socket("localhost", server.port()));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    client.close();
+    subscriber.close();
+    server.stop();
+  }
+
+  @Test
+  public void testPublish() throws Exception {
+    assertEquals(0L, call(client, "publish", "news", "nobody").data());
+    assertMessage(call(subscriber, "subscribe", "news"), "subscribe", "news", 1L);
+    assertMessage(call(subscriber, "psubscribe", "n*"), "psubscribe", "n*", 2L);
+    assertEquals("ERR only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT allowed in this context",
+            call(subscriber, "get", "news").data());
+    assertEquals(2L, call(client, "publish", "news", "hello").data());
+    assertMessage(subscriber.receiveAsync(), "message", "news", "hello");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "n*", "news", "hello");
+    assertMessage(call(subscriber, "unsubscribe"), "unsubscribe", "news", 1L);
+    assertEquals(1L, call(client, "publish", "news", "again").data());
+    assertMessage(subscriber.receiveAsync(), "pmessage", "n*", "news", "again");
+  }
+
+  @Test
+  public void testNotifications() throws Exception {
+    assertEquals("OK", call(client, "config", "set", "notify-keyspace-events", "KEA").data());
+    Reply[] config = ((MultiBulkReply) call(client, "config", "get", "notify-keyspace-events")).data();
+    assertEquals("AKE", new String((byte[]) config[1].data()));
+    call(subscriber, "psubscribe", "__key*__:*");
+    call(subscriber, "subscribe", "done");
+
+    // Repeated events in one batch of commands are only published once
+    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    new Command(new Object[]{"set", "foo", "1"}).write(batch);
+    new Command(new Object[]{"set", "foo", "2"}).write(batch);
+    new Command(new Object[]{"del", "foo"}).write(batch);
+    socket.getOutputStream().write(batch.toByteArray());
+    for (int i = 0; i < 3; i++) {
+      client.receiveAsync();
+    }
+    call(client, "publish", "done", "1");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyspace@0__:foo", "set");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyevent@0__:set", "foo");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyspace@0__:foo", "del");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyevent@0__:del", "foo");
+    assertMessage(subscriber.receiveAsync(), "message", "done", "1");
+
+    // A repeated event is published where it last happened, after the delete
+    // it followed
+    batch.reset();
+    new Command(new Object[]{"set", "foo", "1"}).write(batch);
+    new Command(new Object[]{"del", "foo"}).write(batch);
+    new Command(new Object[]{"set", "foo", "2"}).write(batch);
+    socket.getOutputStream().write(batch.toByteArray());
+    for (int i = 0; i < 3; i++) {
+      client.receiveAsync();
+    }
+    call(client, "publish", "done", "interleaved");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyspace@0__:foo", "del");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyevent@0__:del", "foo");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyspace@0__:foo", "set");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyevent@0__:set", "foo");
+    assertMessage(subscriber.receiveAsync(), "message", "done", "interleaved");
+
+    call(client, "psetex", "bar", 1, "value");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyspace@0__:bar", "set");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyevent@0__:set", "bar");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyspace@0__:bar", "expire");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyevent@0__:expire", "bar");
+    Thread.sleep(10);
+    assertEquals(null, call(client, "get", "bar").data());
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyspace@0__:bar", "expired");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyevent@0__:expired", "bar");
+
+    // Only keyevent channels for generic commands
+    call(client, "config", "set", "notify-keyspace-events", "Eg");
+    call(client, "set", "baz", "1");
+    call(client, "del", "baz");
+    call(client, "publish", "done", "2");
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__key*__:*", "__keyevent@0__:del", "baz");
+    assertMessage(subscriber.receiveAsync(), "message", "done", "2");
+  }
+
+  @Test
+  public void testTypeClasses() throws Exception {
+    call(client, "config", "set", "notify-keyspace-events", "Eg$lshz");
+    call(subscriber, "psubscribe", "__keyevent@0__:*");
+    call(client, "append", "s", "ab");
+    call(client, "incr", "n");
+    call(client, "setrange", "s", 1, "c");
+    call(client, "rpush", "l", "a", "b");
+    call(client, "lpop", "l");
+    call(client, "hset", "h", "f", "v");
+    call(client, "hdel", "h", "f");
+    call(client, "sadd", "set", "a");
+    call(client, "srem", "set", "a");
+    call(client, "zadd", "z", 1, "a");
+    call(client, "zincrby", "z", 1, "a");
+    call(client, "zrem", "z", "a");
+    call(client, "expire", "s", 100);
+    call(client, "persist", "s");
+    call(client, "rename", "s", "t");
+    call(client, "flushdb");
+    assertEvent("append", "s");
+    assertEvent("incrby", "n");
+    assertEvent("setrange", "s");
+    assertEvent("rpush", "l");
+    assertEvent("lpop", "l");
+    assertEvent("hset", "h");
+    assertEvent("hdel", "h");
+    assertEvent("sadd", "set");
+    assertEvent("srem", "set");
+    assertEvent("zadd", "z");
+    assertEvent("zincr", "z");
+    assertEvent("zrem", "z");
+    assertEvent("expire", "s");
+    assertEvent("persist", "s");
+    assertEvent("rename_from", "s");
+    assertEvent("rename_to", "t");
+    Set<String> flushed = new HashSet<String>();
+    for (int i = 0; i < 6; i++) {
+      Reply[] parts = ((MultiBulkReply) subscriber.receiveAsync()).data();
+      assertEquals("__keyevent@0__:del", new String((byte[]) parts[2].data()));
+      flushed.add(new String((byte[]) parts[3].data()));
+    }
+    assertEquals(new HashSet<String>(Arrays.asList("n", "l", "h", "set", "z", "t")), flushed);
+
+    // Nothing is published for writes that leave the key untouched
+    call(client, "config", "set", "notify-keyspace-events", "Es");
+    call(client, "sadd", "set", "a");
+    call(client, "sadd", "set", "a");
+    call(client, "srem", "set", "b");
+    call(client, "publish", "__keyevent@0__:done", "x");
+    assertEvent("sadd", "set");
+    assertEvent("done", "x");
+  }
+
+  private void assertEvent(String event, String key) throws IOException {
+    assertMessage(subscriber.receiveAsync(), "pmessage", "__keyevent@0__:*", "__keyevent@0__:" + event, key);
+  }
+
+  private static void assertMessage(Reply reply, Object... expected) {
+    Reply[] parts = ((MultiBulkReply) reply).data();
+    assertEquals(expected.length, parts.length);
+    for (int i = 0; i < parts.length; i++) {
+      Object data = parts[i].data();
+      assertEquals(expected[i], data instanceof byte[] ? new String((byte[]) data) : data);
+    }
+  }
+
+  private static Reply call(RedisProtocol rp, Object... arguments) throws IOException {
+    rp.sendAsync(new Command(arguments));
+    return rp.receiveAsync();
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+}
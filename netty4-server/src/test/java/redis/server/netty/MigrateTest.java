@@ -0,0 +1,141 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.Command;
+import redis.RedisProtocol;
+import redis.reply.ErrorReply;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * DUMP, RESTORE and MIGRATE between two servers.
+ */
+public class MigrateTest {
+
+  private Server source;
+  private Server target;
+  private RedisProtocol sourceClient;
+  private RedisProtocol targetClient;
+
+  @Before
+  public void setUp() throws Exception {
+    source = new Server(freePort()).start();
+    target = new Server(freePort()).start();
+    sourceClient = new RedisProtocol(new Socket("localhost", source.port()));
+    targetClient = new RedisProtocol(new Socket("localhost", target.port()));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    sourceClient.close();
+    targetClient.close();
+    source.stop();
+    target.stop();
+  }
+
+  @Test
+  public void testDumpRestore() throws Exception {
+    call(sourceClient, "set", "string", "value");
+    call(sourceClient, "rpush", "list", "a", "b", "c");
+    call(sourceClient, "sadd", "set", "a", "b");
+    call(sourceClient, "zadd", "zset", 1, "a", 2, "b");
+    call(sourceClient, "hset", "hash", "field", "value");
+    for (String key : new String[]{"string", "list", "set", "zset", "hash"}) {
+      byte[] dump = (byte[]) call(sourceClient, "dump", key).data();
+      assertEquals("OK", call(targetClient, "restore", key, 0, dump).data());
+      assertEquals(string(call(sourceClient, "type", key)), string(call(targetClient, "type", key)));
+    }
+    assertEquals("value", string(call(targetClient, "get", "string")));
+    assertEquals(3, ((MultiBulkReply) call(targetClient, "lrange", "list", 0, -1)).data().length);
+    assertEquals(string(call(sourceClient, "zscore", "zset", "b")), string(call(targetClient, "zscore", "zset", "b")));
+    assertNull(call(sourceClient, "dump", "missing").data());
+
+    byte[] dump = (byte[]) call(sourceClient, "dump", "string").data();
+    assertTrue(((String) call(targetClient, "restore", "string", 0, dump).data()).startsWith("ERR BUSYKEY"));
+    assertEquals("OK", call(targetClient, "restore", "string", 1000, dump, "replace").data());
+    long pttl = (Long) call(targetClient, "pttl", "string").data();
+    assertTrue(pttl > 0 && pttl <= 1000);
+
+    // Corrupt the value and then the version
+    dump[1] ^= 1;
+    assertEquals("ERR DUMP payload version or checksum are wrong", call(targetClient, "restore", "other", 0, dump).data());
+    dump[1] ^= 1;
+    dump[dump.length - 10] = 2;
+    assertEquals("ERR DUMP payload version or checksum are wrong", call(targetClient, "restore", "other", 0, dump).data());
+  }
+
+  @Test
+  public void testMigrate() throws Exception {
+    int count = 10000;
+    int batch = 1000;
+    for (int i = 0; i < count; i++) {
+      sourceClient.sendAsync(new Command(new Object[]{"set", "key" + i, "value" + i}));
+    }
+    for (int i = 0; i < count; i++) {
+      sourceClient.receiveAsync();
+    }
+    call(sourceClient, "expire", "key0", 1000);
+    for (int i = 0; i < count; i += batch) {
+      List<Object> arguments = new ArrayList<Object>();
+      arguments.add("migrate");
+      arguments.add("127.0.0.1");
+      arguments.add(target.port());
+      arguments.add("");
+      arguments.add(0);
+      arguments.add(5000);
+      if (i == 0) {
+        arguments.add("copy");
+      }
+      arguments.add("keys");
+      for (int j = i; j < i + batch; j++) {
+        arguments.add("key" + j);
+      }
+      assertEquals("OK", call(sourceClient, arguments.toArray()).data());
+    }
+    assertEquals((long) batch, call(sourceClient, "dbsize").data());
+    assertEquals((long) count, call(targetClient, "dbsize").data());
+    assertEquals("value5000", string(call(targetClient, "get", "key5000")));
+    assertTrue((Long) call(targetClient, "ttl", "key0").data() > 0);
+
+    // The copies are still there and the target refuses them without REPLACE
+    Reply reply = call(sourceClient, "migrate", "127.0.0.1", target.port(), "key1", 0, 5000);
+    assertTrue(reply instanceof ErrorReply);
+    assertTrue(((String) reply.data()).contains("BUSYKEY"));
+    assertEquals("OK", call(sourceClient, "migrate", "127.0.0.1", target.port(), "key1", 0, 5000, "replace").data());
+    assertEquals("NOKEY", call(sourceClient, "migrate", "127.0.0.1", target.port(), "key1", 0, 5000).data());
+    assertEquals("ERR DB index is out of range",
+            call(sourceClient, "migrate", "127.0.0.1", target.port(), "key2", 1, 5000).data());
+    assertEquals("value2", string(call(sourceClient, "get", "key2")));
+  }
+
+  private static Reply call(RedisProtocol rp, Object... arguments) throws IOException {
+    rp.sendAsync(new Command(arguments));
+    return rp.receiveAsync();
+  }
+
+  private static String string(Reply reply) {
+    Object data = reply.data();
+    return data instanceof byte[] ? new String((byte[]) data) : (String) data;
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+}
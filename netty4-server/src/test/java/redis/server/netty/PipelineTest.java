@@ -0,0 +1,91 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.Command;
+import redis.RedisProtocol;
+import redis.reply.Reply;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Pipelined commands arriving in one read.
+ */
+public class PipelineTest {
+
+  private Server server;
+  private Socket socket;
+  private RedisProtocol client;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new Server(freePort()).start();
+    socket = new Socket("localhost", server.port());
+    client = new RedisProtocol(socket);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    client.close();
+    server.stop();
+  }
+
+  @Test
+  public void testOrder() throws Exception {
+    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    for (int i = 0; i < 100; i++) {
+      new Command(new Object[]{"set", "key" + i, "value" + i}).write(batch);
+      new Command(new Object[]{"get", "key" + i}).write(batch);
+    }
+    batch.write("PING\r\n".getBytes());
+    new Command(new Object[]{"dbsize"}).write(batch);
+    socket.getOutputStream().write(batch.toByteArray());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("OK", client.receiveAsync().data());
+      assertEquals("value" + i, new String((byte[]) client.receiveAsync().data()));
+    }
+    assertEquals("PONG", client.receiveAsync().data());
+    assertEquals(100L, client.receiveAsync().data());
+  }
+
+  @Test
+  public void benchmarkPipeline() throws Exception {
+    new Command(new Object[]{"set", "key", "value"}).write(socket.getOutputStream());
+    client.receiveAsync();
+    ByteArrayOutputStream gets = new ByteArrayOutputStream();
+    for (int i = 0; i < 1000; i++) {
+      new Command(new Object[]{"get", "key"}).write(gets);
+    }
+    byte[] bytes = gets.toByteArray();
+    OutputStream os = socket.getOutputStream();
+    for (int round = 0; round < 2; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < 100; i++) {
+        os.write(bytes);
+        for (int j = 0; j < 1000; j++) {
+          Reply reply = client.receiveAsync();
+          if (j == 999) {
+            assertEquals("value", new String((byte[]) reply.data()));
+          }
+        }
+      }
+      System.out.println("100 batches of 1000 pipelined GETs: " + (System.nanoTime() - start) / 100000 + " ns per command");
+    }
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package redis.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import redis.RedisProtocol;
+import redis.netty4.Command;
+import redis.reply.ErrorReply;
+import redis.reply.Reply;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Commands decoded within the protocol limits.
+ */
+public class RedisCommandDecoderTest {
+
+  @Test
+  public void testChunkedArguments() throws Exception {
+    ProtocolLimits limits = new ProtocolLimits();
+    Errors errors = new Errors();
+    EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder(limits), errors);
+    byte[][] values = {
+            value(10), value(RedisCommandDecoder.BIG_ARG), value(RedisCommandDecoder.DIRECT_ARG * 3)
+    };
+    byte[] bytes = encode("set", "key", values[0], values[1], values[2]);
+    // Arrives in reads of all sizes
+    int position = 0;
+    for (int size = 1; position < bytes.length; size = size * 3 + 1) {
+      int length = Math.min(size, bytes.length - position);
+      channel.writeInbound(Unpooled.wrappedBuffer(bytes, position, length));
+      position += length;
+    }
+    Command command = (Command) channel.readInbound();
+    assertEquals("set", new String(command.getName()));
+    Object[] objects = command.getObjects();
+    assertEquals(5, objects.length);
+    for (int i = 0; i < values.length; i++) {
+      assertTrue(Arrays.equals(values[i], (byte[]) objects[2 + i]));
+    }
+    assertNull(channel.readInbound());
+    assertTrue(errors.messages.isEmpty());
+    channel.finish();
+  }
+
+  @Test
+  public void testLimits() throws Exception {
+    ProtocolLimits limits = new ProtocolLimits();
+    limits.setMaxBulkLength(100);
+    Errors errors = new Errors();
+    EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder(limits), errors);
+    // Nothing is allocated for an absurd count
+    channel.writeInbound(Unpooled.wrappedBuffer("*2000000000\r\n".getBytes()));
+    assertEquals("Protocol error: invalid multibulk length", errors.messages.get(0));
+    // Nor is anything decoded after an error
+    channel.writeInbound(Unpooled.wrappedBuffer(encode("ping")));
+    assertNull(channel.readInbound());
+
+    errors = new Errors();
+    channel = new EmbeddedChannel(new RedisCommandDecoder(limits), errors);
+    channel.writeInbound(Unpooled.wrappedBuffer(encode("ping"), "*2\r\n$3\r\nset\r\n$101\r\n".getBytes()));
+    assertEquals("ping", new String(((Command) channel.readInbound()).getName()));
+    assertEquals("Protocol error: invalid bulk length", errors.messages.get(0));
+
+    limits = new ProtocolLimits();
+    limits.setQueryBufferLimit(RedisCommandDecoder.DIRECT_ARG * 2);
+    errors = new Errors();
+    channel = new EmbeddedChannel(new RedisCommandDecoder(limits), errors);
+    channel.writeInbound(Unpooled.wrappedBuffer(encode("set", "key", value(RedisCommandDecoder.DIRECT_ARG * 2))));
+    assertEquals("Closed for overcoming of query buffer limits", errors.messages.get(0));
+    errors = new Errors();
+    channel = new EmbeddedChannel(new RedisCommandDecoder(limits), errors);
+    byte[] value = value(RedisCommandDecoder.DIRECT_ARG / 2);
+    // Complete arguments of a command that hasn't fully arrived count too
+    byte[] mset = encode("mset", "a", value, "b", value, "c", value, "d", value, "e", "1");
+    channel.writeInbound(Unpooled.wrappedBuffer(mset, 0, mset.length - 3));
+    assertEquals("Closed for overcoming of query buffer limits", errors.messages.get(0));
+
+    errors = new Errors();
+    channel = new EmbeddedChannel(new RedisCommandDecoder(limits), errors);
+    channel.writeInbound(Unpooled.wrappedBuffer(new byte[70000]));
+    assertEquals("Protocol error: too big inline request", errors.messages.get(0));
+  }
+
+  @Test
+  public void testProtocolErrorReply() throws Exception {
+    Server server = new Server(freePort()).start();
+    try {
+      Socket socket = new Socket("localhost", server.port());
+      RedisProtocol client = new RedisProtocol(socket);
+      redis.Command set = new redis.Command(new Object[]{"config", "set", "proto-max-bulk-len", "1kb"});
+      set.write(socket.getOutputStream());
+      assertEquals("OK", client.receiveAsync().data());
+      ByteArrayOutputStream batch = new ByteArrayOutputStream();
+      new redis.Command(new Object[]{"set", "key", "value"}).write(batch);
+      batch.write("*3\r\n$3\r\nset\r\n$3\r\nkey\r\n$1025\r\n".getBytes());
+      socket.getOutputStream().write(batch.toByteArray());
+      assertEquals("OK", client.receiveAsync().data());
+      Reply reply = client.receiveAsync();
+      assertTrue(reply instanceof ErrorReply);
+      assertEquals("ERR Protocol error: invalid bulk length", reply.data());
+      assertEquals(-1, socket.getInputStream().read());
+      socket.close();
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void benchmarkLargeSet() throws Exception {
+    byte[] bytes = encode("set", "key", value(64 * 1024 * 1024));
+    for (int round = 0; round < 3; round++) {
+      EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder());
+      long start = System.nanoTime();
+      for (int position = 0; position < bytes.length; position += 65536) {
+        channel.writeInbound(Unpooled.wrappedBuffer(bytes, position, Math.min(65536, bytes.length - position)));
+      }
+      assertEquals(3, ((Command) channel.readInbound()).getObjects().length);
+      System.out.println("64 MB SET in 64 KB reads: " + (System.nanoTime() - start) / 1000000 + " ms");
+      channel.finish();
+    }
+  }
+
+  private static class Errors extends ChannelInboundHandlerAdapter {
+    final List<String> messages = new ArrayList<String>();
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+      if (evt instanceof RedisCommandDecoder.ProtocolError) {
+        messages.add(((RedisCommandDecoder.ProtocolError) evt).message);
+      }
+    }
+  }
+
+  private static byte[] value(int size) {
+    byte[] value = new byte[size];
+    for (int i = 0; i < size; i++) {
+      value[i] = (byte) i;
+    }
+    return value;
+  }
+
+  private static byte[] encode(Object... arguments) throws IOException {
+    ByteBuf buf = Unpooled.buffer();
+    new Command(arguments).write(buf);
+    byte[] bytes = new byte[buf.readableBytes()];
+    buf.readBytes(bytes);
+    return bytes;
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+}
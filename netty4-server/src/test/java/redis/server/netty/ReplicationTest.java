@@ -0,0 +1,274 @@
+package redis.server.netty;
+
+import com.google.common.base.Charsets;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.Command;
+import redis.RedisProtocol;
+import redis.reply.ErrorReply;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Master and replica running in the same JVM.
+ */
+public class ReplicationTest {
+
+  private Server master;
+  private Server replica;
+  private RedisProtocol masterClient;
+  private RedisProtocol replicaClient;
+
+  @Before
+  public void setUp() throws Exception {
+    master = new Server(freePort()).start();
+    replica = new Server(freePort()).start();
+    masterClient = new RedisProtocol(new Socket("localhost", master.port()));
+    replicaClient = new RedisProtocol(new Socket("localhost", replica.port()));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    masterClient.close();
+    replicaClient.close();
+    replica.stop();
+    master.stop();
+  }
+
+  @Test
+  public void testFullSyncAndStream() throws Exception {
+    call(masterClient, "set", "string", "value");
+    call(masterClient, "hset", "hash", "field", "value");
+    call(masterClient, "zadd", "zset", "1.5", "member");
+    call(masterClient, "rpush", "list", "a", "b", "c");
+    call(masterClient, "sadd", "set", "a", "b", "c");
+    call(masterClient, "setex", "expiring", "100", "value");
+    call(masterClient, "xadd", "stream", "*", "field", "1");
+
+    assertEquals("OK", call(replicaClient, "slaveof", "localhost", String.valueOf(master.port())).data());
+    awaitValue(replicaClient, "string", "value");
+    assertEquals("value", string(call(replicaClient, "hget", "hash", "field")));
+    assertEquals("1.5", string(call(replicaClient, "zscore", "zset", "member")));
+    assertEquals(3L, call(replicaClient, "llen", "list").data());
+    assertEquals(3L, call(replicaClient, "scard", "set").data());
+    assertTrue((Long) call(replicaClient, "ttl", "expiring").data() > 0);
+    assertEquals(1L, call(replicaClient, "xlen", "stream").data());
+
+    // Writes after the snapshot arrive through the stream in order
+    Reply popped = call(masterClient, "spop", "set");
+    call(masterClient, "rpush", "list", "d");
+    call(masterClient, "expire", "string", "100");
+    // Replicas add the entry with the id the master generated
+    String id = string(call(masterClient, "xadd", "stream", "maxlen", "1", "*", "field", "2"));
+    call(masterClient, "set", "later", "value");
+    awaitValue(replicaClient, "later", "value");
+    assertTrue((Long) call(replicaClient, "ttl", "string").data() > 0);
+    // SPOP relies on HashMap internals that are not available on every JVM
+    if (!(popped instanceof ErrorReply)) {
+      assertEquals(0L, call(replicaClient, "sismember", "set", string(popped)).data());
+    }
+    assertEquals(4L, call(replicaClient, "llen", "list").data());
+    Reply[] entries = ((MultiBulkReply) call(replicaClient, "xrange", "stream", "-", "+")).data();
+    assertEquals(1, entries.length);
+    assertEquals(id, string(((MultiBulkReply) entries[0]).data()[0]));
+
+    // Replicas are read only
+    Reply reply = call(replicaClient, "set", "string", "other");
+    assertTrue(reply instanceof ErrorReply);
+    assertTrue(((ErrorReply) reply).data().startsWith("READONLY"));
+
+    // Promote it and it accepts writes again
+    call(replicaClient, "slaveof", "no", "one");
+    assertEquals("OK", call(replicaClient, "set", "string", "other").data());
+  }
+
+  @Test
+  public void testMigrateDeletesOnReplica() throws Exception {
+    Server target = new Server(freePort()).start();
+    try {
+      call(masterClient, "set", "moved", "value");
+      call(masterClient, "set", "copied", "value");
+      call(replicaClient, "slaveof", "localhost", String.valueOf(master.port()));
+      awaitValue(replicaClient, "moved", "value");
+
+      assertEquals("OK", call(masterClient, "migrate", "127.0.0.1", target.port(), "copied", 0, 5000, "copy").data());
+      assertEquals("OK", call(masterClient, "migrate", "127.0.0.1", target.port(), "", 0, 5000, "keys", "moved", "missing").data());
+      call(masterClient, "set", "later", "value");
+      awaitValue(replicaClient, "later", "value");
+      assertEquals(0L, call(replicaClient, "exists", "moved").data());
+      assertEquals("value", string(call(replicaClient, "get", "copied")));
+    } finally {
+      target.stop();
+    }
+  }
+
+  @Test
+  public void testPartialResync() throws Exception {
+    call(masterClient, "set", "before", "value");
+
+    Socket socket = new Socket("localhost", master.port());
+    RedisProtocol rp = new RedisProtocol(socket);
+    rp.sendAsync(new Command(new Object[]{"psync", "?", "-1"}));
+    InputStream is = socket.getInputStream();
+    String[] fullresync = readLine(is).split(" ");
+    assertEquals("+FULLRESYNC", fullresync[0]);
+    String replid = fullresync[1];
+    long offset = Long.parseLong(fullresync[2]);
+    String mark = readLine(is).substring(5);
+    Snapshot snapshot = Snapshot.read(is);
+    assertEquals("value", new String((byte[]) snapshot.data.get("before".getBytes())));
+    byte[] end = new byte[mark.length()];
+    new DataInputStream(is).readFully(end);
+    assertEquals(mark, new String(end));
+
+    call(masterClient, "set", "during", "value");
+    MultiBulkReply streamed = (MultiBulkReply) RedisProtocol.receive(is);
+    assertEquals("during", string(streamed.data()[1]));
+    offset += commandLength("set", "during", "value");
+    socket.close();
+
+    // Missed while disconnected
+    call(masterClient, "set", "after", "value");
+    socket = new Socket("localhost", master.port());
+    rp = new RedisProtocol(socket);
+    rp.sendAsync(new Command(new Object[]{"psync", replid, String.valueOf(offset + 1)}));
+    is = socket.getInputStream();
+    assertEquals("+CONTINUE " + replid, readLine(is));
+    streamed = (MultiBulkReply) RedisProtocol.receive(is);
+    assertEquals("after", string(streamed.data()[1]));
+    socket.close();
+  }
+
+  @Test
+  public void testWritesDuringFullResync() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      call(masterClient, "rpush", "list" + i, "a");
+    }
+
+    Socket socket = new Socket("localhost", master.port());
+    RedisProtocol rp = new RedisProtocol(socket);
+    rp.sendAsync(new Command(new Object[]{"psync", "?", "-1"}));
+    InputStream is = socket.getInputStream();
+    assertTrue(readLine(is).startsWith("+FULLRESYNC"));
+    String mark = readLine(is).substring(5);
+    // Served while the snapshot is written
+    call(masterClient, "rpush", "list0", "b");
+    call(masterClient, "set", "during", "value");
+
+    // As of the PSYNC
+    Snapshot snapshot = Snapshot.read(is);
+    assertEquals(1000, snapshot.data.size());
+    assertEquals(1, ((List) snapshot.data.get("list0".getBytes())).size());
+    byte[] end = new byte[mark.length()];
+    new DataInputStream(is).readFully(end);
+    assertEquals(mark, new String(end));
+    // The writes follow from the backlog
+    assertEquals("b", string(((MultiBulkReply) RedisProtocol.receive(is)).data()[2]));
+    assertEquals("during", string(((MultiBulkReply) RedisProtocol.receive(is)).data()[1]));
+    socket.close();
+  }
+
+  @Test
+  public void testBacklogWrapsDuringFullResync() throws Exception {
+    String value = new String(new char[100000]).replace('\0', 'x');
+    // Far more than the socket buffers hold, so the snapshot waits on us
+    for (int i = 0; i < 200; i++) {
+      call(masterClient, "set", "key" + i, value);
+    }
+
+    Socket socket = new Socket("localhost", master.port());
+    RedisProtocol rp = new RedisProtocol(socket);
+    rp.sendAsync(new Command(new Object[]{"psync", "?", "-1"}));
+    InputStream is = socket.getInputStream();
+    assertTrue(readLine(is).startsWith("+FULLRESYNC"));
+    String mark = readLine(is).substring(5);
+    // More than the whole backlog is written before the snapshot is read
+    for (int i = 0; i < 20; i++) {
+      call(masterClient, "set", "during" + i, value);
+    }
+
+    Snapshot snapshot = Snapshot.read(is);
+    assertEquals(200, snapshot.data.size());
+    byte[] end = new byte[mark.length()];
+    new DataInputStream(is).readFully(end);
+    assertEquals(mark, new String(end));
+    for (int i = 0; i < 20; i++) {
+      assertEquals("during" + i, string(((MultiBulkReply) RedisProtocol.receive(is)).data()[1]));
+    }
+    socket.close();
+  }
+
+  @Test
+  public void testBacklogWrapsAround() {
+    ReplicationBacklog backlog = new ReplicationBacklog(8);
+    backlog.append(Unpooled.wrappedBuffer("abcdef".getBytes()));
+    assertTrue(backlog.contains(1));
+    backlog.append(Unpooled.wrappedBuffer("ghijk".getBytes()));
+    assertEquals(11, backlog.offset());
+    assertTrue(!backlog.contains(3));
+    assertTrue(backlog.contains(4));
+    assertTrue(backlog.contains(12));
+    ByteBuf since = backlog.since(6);
+    assertEquals("fghijk", since.toString(Charsets.US_ASCII));
+    assertEquals(0, backlog.since(12).readableBytes());
+  }
+
+  private static long commandLength(String... arguments) throws IOException {
+    ByteBuf buf = Unpooled.buffer();
+    new redis.netty4.Command(arguments).write(buf);
+    return buf.readableBytes();
+  }
+
+  private static void awaitValue(RedisProtocol rp, String key, String value) throws Exception {
+    long start = System.currentTimeMillis();
+    while (System.currentTimeMillis() - start < 5000) {
+      if (value.equals(string(call(rp, "get", key)))) return;
+      Thread.sleep(10);
+    }
+    fail("Replica never received " + key);
+  }
+
+  private static Reply call(RedisProtocol rp, Object... arguments) throws IOException {
+    rp.sendAsync(new Command(arguments));
+    return rp.receiveAsync();
+  }
+
+  private static String string(Reply reply) {
+    Object data = reply.data();
+    assertTrue(data == null || data instanceof byte[]);
+    return data == null ? null : new String((byte[]) data);
+  }
+
+  private static String readLine(InputStream is) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int b;
+    while ((b = is.read()) != '\r') {
+      sb.append((char) b);
+    }
+    assertEquals('\n', is.read());
+    return sb.toString();
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+}
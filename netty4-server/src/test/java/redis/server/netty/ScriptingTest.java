@@ -0,0 +1,182 @@
+package redis.server.netty;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.Command;
+import redis.RedisProtocol;
+import redis.reply.ErrorReply;
+import redis.reply.MultiBulkReply;
+import redis.reply.Reply;
+import redis.reply.StatusReply;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Lua scripts through EVAL and the script cache.
+ */
+public class ScriptingTest {
+
+  private Server server;
+  private RedisProtocol client;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new Server(freePort()).commandStats().start();
+    client = new RedisProtocol(new Socket("localhost", server.port()));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    client.close();
+    server.stop();
+  }
+
+  @Test
+  public void testEval() throws Exception {
+    assertEquals("OK", call(client, "eval", "return redis.call('set', KEYS[1], ARGV[1])", "1", "key", "value").data());
+    assertEquals("value", string(call(client, "eval", "return redis.call('get', KEYS[1])", "1", "key")));
+    assertEquals(3L, call(client, "eval", "return 3.7", "0").data());
+    assertNull(call(client, "eval", "return false", "0").data());
+    assertEquals(1L, call(client, "eval", "return true", "0").data());
+    Reply[] array = ((MultiBulkReply) call(client, "eval", "return {1, 'two', {ARGV[1]}, nil, 5}", "0", "3")).data();
+    assertEquals(3, array.length);
+    assertEquals(1L, array[0].data());
+    assertEquals("two", string(array[1]));
+    assertEquals("3", string(((MultiBulkReply) array[2]).data()[0]));
+    assertEquals("fine", call(client, "eval", "return redis.status_reply('fine')", "0").data());
+    assertEquals("MY error", call(client, "eval", "return redis.error_reply('MY error')", "0").data());
+
+    // Replies converted to Lua and back
+    call(client, "rpush", "list", "a", "b");
+    assertEquals(2L, call(client, "eval", "return #redis.call('lrange', KEYS[1], 0, -1)", "1", "list").data());
+    assertEquals("PONG", call(client, "eval", "return redis.call('ping')", "0").data());
+    assertEquals(1L, call(client, "eval", "if redis.call('get', 'missing') == false then return 1 end", "0").data());
+
+    // Errors
+    Reply reply = call(client, "eval", "return redis.call('lpush', KEYS[1], 'x')", "1", "key");
+    assertTrue(reply instanceof ErrorReply);
+    assertTrue(((String) reply.data()).startsWith("ERR Error running script"));
+    reply = call(client, "eval", "local r = redis.pcall('lpush', KEYS[1], 'x') return r.err", "1", "key");
+    assertTrue(string(reply).contains("wrong kind of value"));
+    reply = call(client, "eval", "return redis.call('eval', 'return 1', 0)", "0");
+    assertTrue(((String) reply.data()).contains("not allowed from scripts"));
+    reply = call(client, "eval", "return (", "0");
+    assertTrue(((String) reply.data()).startsWith("ERR Error compiling script"));
+    reply = call(client, "eval", "return 1", "2", "key");
+    assertTrue(reply instanceof ErrorReply);
+    reply = call(client, "eval", "return loadfile", "0");
+    assertNull(reply.data());
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    String script = "return ARGV[1] .. ARGV[2]";
+    String sha = string(call(client, "script", "load", script));
+    assertEquals(40, sha.length());
+    assertEquals("ab", string(call(client, "evalsha", sha, "0", "a", "b")));
+    assertEquals("ab", string(call(client, "evalsha", sha.toUpperCase(), "0", "a", "b")));
+    Reply[] exists = ((MultiBulkReply) call(client, "script", "exists", sha, "0000")).data();
+    assertEquals(1L, exists[0].data());
+    assertEquals(0L, exists[1].data());
+    // EVAL caches what it compiles
+    String other = string(call(client, "script", "load", "return 1"));
+    assertEquals("OK", call(client, "script", "flush").data());
+    call(client, "eval", "return 1", "0");
+    assertEquals(1L, call(client, "evalsha", other, "0").data());
+    assertEquals("NOSCRIPT No matching script. Please use EVAL.", call(client, "evalsha", sha, "0").data());
+  }
+
+  @Test
+  public void testGlobals() throws Exception {
+    assertTrue(((String) call(client, "eval", "leaked = 1 return 1", "0").data())
+            .contains("Script attempted to create global variable 'leaked'"));
+    assertTrue(((String) call(client, "eval", "_G.leaked = 1 return 1", "0").data())
+            .contains("Script attempted to create global variable 'leaked'"));
+    assertTrue(((String) call(client, "eval", "setmetatable(_G, nil) return 1", "0").data())
+            .contains("protected metatable"));
+    assertEquals("nil", string(call(client, "eval", "return type(leaked)", "0")));
+    // Locals and the libraries are still there
+    assertEquals(2L, call(client, "eval", "local x = 1 return x + string.len('a')", "0").data());
+  }
+
+  @Test
+  public void testKill() throws Exception {
+    assertEquals("NOTBUSY No scripts in execution right now.", call(client, "script", "kill").data());
+    RedisProtocol other = new RedisProtocol(new Socket("localhost", server.port()));
+    try {
+      other.sendAsync(new Command(new Object[]{"eval", "while true do end", "0"}));
+      Thread.sleep(100);
+      assertEquals("OK", call(client, "script", "kill").data());
+      Reply reply = other.receiveAsync();
+      assertTrue(((String) reply.data()).contains("Script killed by user"));
+
+      // The reply to a kill still comes after the replies to earlier commands
+      other.sendAsync(new Command(new Object[]{"eval", "while true do end", "0"}));
+      Thread.sleep(100);
+      client.sendAsync(new Command(new Object[]{"incr", "before"}));
+      assertEquals(1L, call(client, "script", "kill").data());
+      assertEquals("OK", client.receiveAsync().data());
+      assertTrue(((String) other.receiveAsync().data()).contains("Script killed by user"));
+
+      // Nor can pcall hold on to a killed script
+      other.sendAsync(new Command(new Object[]{"eval", "while true do pcall(redis.call, 'ping') end", "0"}));
+      Thread.sleep(100);
+      assertEquals("OK", call(client, "script", "kill").data());
+      assertTrue(other.receiveAsync() instanceof ErrorReply);
+
+      // Scripts that have written run to the end
+      other.sendAsync(new Command(new Object[]{"eval",
+              "redis.call('set', 'x', 1) while redis.call('incr', 'x') < 200000 do end return 1", "0"}));
+      Thread.sleep(50);
+      assertTrue(((String) call(client, "script", "kill").data()).startsWith("UNKILLABLE"));
+      assertEquals(1L, other.receiveAsync().data());
+
+      // The time limit stops scripts that have not written
+      assertEquals("OK", call(client, "config", "set", "lua-time-limit", "100").data());
+      assertEquals("100", string(((MultiBulkReply) call(client, "config", "get", "lua-time-limit")).data()[1]));
+      Reply reply2 = call(other, "eval", "while true do end", "0");
+      assertTrue(((String) reply2.data()).contains("lua-time-limit"));
+      assertEquals("PONG", call(other, "ping").data());
+    } finally {
+      other.close();
+    }
+  }
+
+  @Test
+  public void testCommandStats() throws Exception {
+    call(client, "set", "key", "value");
+    call(client, "eval", "redis.call('get', KEYS[1]) return redis.call('get', KEYS[1])", "1", "key");
+    String info = string(call(client, "info", "commandstats"));
+    assertTrue(info.contains("cmdstat_set:calls=1,"));
+    assertTrue(info.contains("cmdstat_get:calls=2,"));
+    assertTrue(info.contains("cmdstat_eval:calls=1,"));
+    assertTrue(call(client, "config", "resetstat") instanceof StatusReply);
+    info = string(call(client, "info", "commandstats"));
+    assertTrue(!info.contains("cmdstat_set"));
+  }
+
+  private static Reply call(RedisProtocol rp, Object... arguments) throws IOException {
+    rp.sendAsync(new Command(arguments));
+    return rp.receiveAsync();
+  }
+
+  private static String string(Reply reply) {
+    return new String((byte[]) reply.data());
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+}
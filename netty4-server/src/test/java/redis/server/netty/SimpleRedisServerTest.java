@@ -0,0 +1,411 @@
+package redis.server.netty;
+
+import org.junit.Before;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.MultiBulkReply;
+import redis.netty4.Reply;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Commands called directly on the server.
+ */
+public class SimpleRedisServerTest {
+
+  private SimpleRedisServer rs;
+
+  @Before
+  public void setUp() {
+    rs = new SimpleRedisServer();
+  }
+
+  @Test
+  public void testHyperLogLog() throws RedisException {
+    assertEquals(1L, (long) rs.pfadd(b("hll"), new byte[0][]).data());
+    assertEquals(0L, (long) rs.pfcount(a("hll")).data());
+    assertEquals(1L, (long) rs.pfadd(b("hll"), a("a", "b", "c")).data());
+    assertEquals(0L, (long) rs.pfadd(b("hll"), a("a", "b")).data());
+    assertEquals(3L, (long) rs.pfcount(a("hll")).data());
+    // It is still a string
+    assertEquals("string", rs.type(b("hll")).data());
+
+    for (int i = 0; i < 10000; i++) {
+      rs.pfadd(b("other"), a("a", "other" + i));
+    }
+    long count = rs.pfcount(a("hll", "other", "missing")).data();
+    assertTrue(String.valueOf(count), Math.abs(count - 10003) < 300);
+    assertEquals("OK", rs.pfmerge(b("merged"), a("hll", "other")).data());
+    assertEquals(count, (long) rs.pfcount(a("merged")).data());
+
+    rs.set(b("string"), b("value"));
+    try {
+      rs.pfadd(b("string"), a("a"));
+      fail("Not a HyperLogLog");
+    } catch (RedisException e) {
+      assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+    }
+  }
+
+  @Test
+  public void testBits() throws RedisException {
+    assertEquals(0L, (long) rs.setbit(b("bits"), b("7"), b("1")).data());
+    assertEquals(1L, (long) rs.setbit(b("bits"), b("7"), b("1")).data());
+    assertEquals(0L, (long) rs.setbit(b("bits"), b("100"), b("1")).data());
+    assertEquals(1L, (long) rs.getbit(b("bits"), b("100")).data());
+    assertEquals(0L, (long) rs.getbit(b("bits"), b("1000")).data());
+    // Other commands see the exact string
+    assertEquals(13, rs.get(b("bits")).data().capacity());
+    assertEquals(13L, (long) rs.strlen(b("bits")).data());
+    assertEquals("string", rs.type(b("bits")).data());
+    assertEquals(2L, (long) rs.bitcount(b("bits"), null, null).data());
+    assertEquals(1L, (long) rs.bitcount(b("bits"), b("1"), b("-1")).data());
+    assertEquals(0L, (long) rs.bitcount(b("missing"), null, null).data());
+    // Writing the bytes in place is seen by the bit commands
+    assertEquals(13L, (long) rs.setrange(b("bits"), b("0"), b("A")).data());
+    assertEquals(1L, (long) rs.getbit(b("bits"), b("1")).data());
+    assertEquals(0L, (long) rs.getbit(b("bits"), b("2")).data());
+    assertEquals(1L, (long) rs.getbit(b("bits"), b("100")).data());
+    assertEquals(0L, (long) rs.setbit(b("bits"), b("2"), b("1")).data());
+    assertEquals('a', rs.get(b("bits")).data().getByte(0));
+    // Reads keep the bytes only until the next bit write
+    assertEquals(0L, (long) rs.setbit(b("bits"), b("6"), b("1")).data());
+    assertEquals('c', rs.get(b("bits")).data().getByte(0));
+    assertEquals(13L, (long) rs.strlen(b("bits")).data());
+
+    rs.set(b("a"), b("foobar"));
+    rs.set(b("b"), b("abcdef"));
+    assertEquals(6L, (long) rs.bitop(b("and"), b("dest"), a("a", "b")).data());
+    assertEquals("`bc`ab", rs.get(b("dest")).asAsciiString());
+    assertEquals(6L, (long) rs.bitop(b("or"), b("dest"), a("a", "b")).data());
+    assertEquals("goofev", rs.get(b("dest")).asAsciiString());
+    assertEquals(13L, (long) rs.bitop(b("xor"), b("dest"), a("a", "bits")).data());
+    assertEquals(6L, (long) rs.bitop(b("not"), b("dest"), a("a")).data());
+    assertEquals(48 - 26L, (long) rs.bitcount(b("dest"), null, null).data());
+    // An empty result deletes the destination
+    assertEquals(0L, (long) rs.bitop(b("and"), b("dest"), a("missing")).data());
+    assertEquals(0L, (long) rs.exists(b("dest")).data());
+
+    rs.set(b("pos"), new byte[]{(byte) 0xFF, (byte) 0xF0, 0});
+    assertEquals(12L, (long) rs.bitpos(b("pos"), b("0"), null, null).data());
+    assertEquals(16L, (long) rs.bitpos(b("pos"), b("0"), b("2"), null).data());
+    assertEquals(8L, (long) rs.bitpos(b("pos"), b("1"), b("1"), null).data());
+    assertEquals(-1L, (long) rs.bitpos(b("pos"), b("1"), b("2"), b("-1")).data());
+    rs.set(b("ones"), new byte[]{(byte) 0xFF, (byte) 0xFF});
+    assertEquals(16L, (long) rs.bitpos(b("ones"), b("0"), null, null).data());
+    assertEquals(-1L, (long) rs.bitpos(b("ones"), b("0"), b("0"), b("-1")).data());
+    assertEquals(0L, (long) rs.bitpos(b("missing"), b("0"), null, null).data());
+    assertEquals(-1L, (long) rs.bitpos(b("missing"), b("1"), null, null).data());
+
+    Reply[] replies = rs.bitfield(b("field"), a("set", "u8", "#1", "255", "get", "u8", "8", "get", "i8", "8")).data();
+    assertEquals(0L, replies[0].data());
+    assertEquals(255L, replies[1].data());
+    assertEquals(-1L, replies[2].data());
+    replies = rs.bitfield(b("field"), a("incrby", "u8", "8", "1", "overflow", "sat", "incrby", "u8", "8", "300",
+            "overflow", "fail", "incrby", "u8", "8", "1", "incrby", "i4", "0", "-9")).data();
+    assertEquals(0L, replies[0].data());
+    assertEquals(255L, replies[1].data());
+    assertEquals(null, replies[2].data());
+    assertEquals(null, replies[3].data());
+    assertEquals(2L, (long) rs.strlen(b("field")).data());
+    try {
+      rs.bitfield(b("field"), a("get", "u64", "0"));
+      fail("u64 is not supported");
+    } catch (RedisException e) {
+      assertTrue(e.getMessage().startsWith("Invalid bitfield type"));
+    }
+  }
+
+  @Test
+  public void testSort() throws RedisException {
+    rs.rpush(b("list"), a("3", "1", "2", "10", "5"));
+    assertEquals("[1, 2, 3, 5, 10]", sort("list"));
+    assertEquals("[5, 3]", sort("list", "desc", "limit", "1", "2"));
+    assertEquals("[1, 10, 2, 3, 5]", sort("list", "alpha"));
+    assertEquals("[]", sort("list", "limit", "0", "0"));
+    assertEquals("[]", sort("list", "limit", "10", "5"));
+    assertEquals("[1, 2]", sort("list", "limit", "-1", "2"));
+    assertEquals("[]", sort("missing"));
+
+    rs.mset(a("w_1", "c", "w_2", "a", "w_3", "b", "w_10", "d"));
+    rs.hset(b("h_1"), b("f"), b("9"));
+    rs.hset(b("h_5"), b("f"), b("8"));
+    // Missing keys sort first or count as zero
+    assertEquals("[5, 2, 3, 1, 10]", sort("list", "by", "w_*", "alpha"));
+    assertEquals("[10, 2, 3, 5, 1]", sort("list", "by", "h_*->f"));
+    assertEquals("[3, b, null, 1, c, 9, 2, a, null, 10, d, null, 5, null, 8]",
+            sort("list", "by", "nosort", "get", "#", "get", "w_*", "get", "h_*->f"));
+    assertEquals("[3, 1, 2, 10, 5]", sort("list", "by", "nosort", "desc"));
+    assertEquals("[c, b]", sort("list", "by", "w_*", "alpha", "desc", "get", "w_*", "limit", "1", "2"));
+    try {
+      sort("list", "by", "w_*");
+      fail("Not numbers");
+    } catch (RedisException e) {
+      assertEquals("One or more scores can't be converted into double", e.getMessage());
+    }
+
+    assertEquals(5L, rs.sort(b("list"), a("get", "w_", "store", "dest")).data());
+    assertEquals(5L, (long) rs.llen(b("dest")).data());
+    assertEquals(0, rs.lindex(b("dest"), b("0")).data().capacity());
+    assertEquals(0L, rs.sort(b("list"), a("limit", "0", "0", "store", "dest")).data());
+    assertEquals(0L, (long) rs.exists(b("dest")).data());
+
+    rs.zadd(a("zset", "3", "a", "1", "b", "2", "c"));
+    assertEquals("[b, c, a]", sort("zset", "by", "nosort"));
+    assertEquals("[a, c]", sort("zset", "by", "nosort", "desc", "limit", "0", "2"));
+    rs.sadd(b("set"), a("y", "x"));
+    assertEquals("[x, y]", sort("set", "alpha"));
+    rs.rpush(b("scores"), a("1", "+inf", "1.5", "-2"));
+    assertEquals("[-2, 1, 1.5, +inf]", sort("scores"));
+    try {
+      sort("list", "foo");
+      fail("Not an option");
+    } catch (RedisException e) {
+      assertEquals("syntax error", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testSetAlgebra() throws RedisException {
+    String[] members = new String[10000];
+    for (int i = 0; i < members.length; i++) {
+      members[i] = String.valueOf(i);
+    }
+    rs.sadd(b("large"), a(members));
+    rs.sadd(b("small"), a("1", "2", "3", "x"));
+    rs.sadd(b("other"), a("2", "3", "4"));
+
+    assertEquals("[2, 3]", sorted(rs.sinter(a("large", "small", "other"))));
+    assertEquals("[]", sorted(rs.sinter(a("large", "missing"))));
+    assertEquals(2L, (long) rs.sintercard(b("3"), a("large", "small", "other")).data());
+    assertEquals(1L, (long) rs.sintercard(b("2"), a("large", "small", "limit", "1")).data());
+    assertEquals(3L, (long) rs.sintercard(b("2"), a("large", "small", "limit", "0")).data());
+    try {
+      rs.sintercard(b("3"), a("large", "small"));
+      fail("Too many keys");
+    } catch (RedisException e) {
+      assertEquals("Number of keys can't be greater than number of args", e.getMessage());
+    }
+
+    // Both ways of computing the difference
+    assertEquals("[x]", sorted(rs.sdiff(a("small", "other", "large", "missing"))));
+    assertEquals(9996, rs.sdiff(a("large", "small", "other")).data().length);
+    assertEquals("[]", sorted(rs.sdiff(a("small", "small"))));
+    assertEquals("[1, 2, 3, 4, x]", sorted(rs.sunion(a("small", "other", "missing"))));
+
+    assertEquals(2L, (long) rs.sinterstore(b("dest"), a("small", "other")).data());
+    assertEquals("[2, 3]", sorted(rs.smembers(b("dest"))));
+    // The destination is never the source set itself
+    assertEquals(4L, (long) rs.sinterstore(b("dest"), a("small")).data());
+    rs.srem(b("dest"), a("1"));
+    assertEquals(4L, (long) rs.scard(b("small")).data());
+    assertEquals(10001L, (long) rs.sunionstore(b("dest"), a("large", "small")).data());
+    assertEquals(2L, (long) rs.sdiffstore(b("dest"), a("small", "other")).data());
+    // An empty result deletes the destination
+    assertEquals(0L, (long) rs.sdiffstore(b("dest"), a("small", "small")).data());
+    assertEquals(0L, (long) rs.exists(b("dest")).data());
+  }
+
+  @Test
+  public void testZStore() throws RedisException {
+    rs.zadd(a("z1", "1", "a", "2", "b", "3", "c"));
+    rs.zadd(a("z2", "10", "b", "20", "c", "30", "d"));
+    assertEquals(4L, (long) rs.zunionstore(b("dest"), b("2"), a("z1", "z2")).data());
+    assertEquals("[a, 1.0, b, 12.0, c, 23.0, d, 30.0]", range("dest"));
+    assertEquals(4L, (long) rs.zunionstore(b("dest"), b("2"), a("z1", "z2", "weights", "2", "-1", "aggregate", "max")).data());
+    assertEquals("[d, -30.0, a, 2.0, b, 4.0, c, 6.0]", range("dest"));
+    assertEquals(2L, (long) rs.zinterstore(b("dest"), b("2"), a("z2", "z1", "aggregate", "min")).data());
+    assertEquals("[b, 2.0, c, 3.0]", range("dest"));
+    // The destination can be an input
+    assertEquals(2L, (long) rs.zinterstore(b("dest"), b("3"), a("dest", "z1", "z2", "weights", "1", "0", "1")).data());
+    assertEquals("[b, 12.0, c, 23.0]", range("dest"));
+    // inf + -inf and 0 * inf are 0
+    rs.zadd(a("inf", "inf", "a"));
+    rs.zadd(a("-inf", "-inf", "a"));
+    assertEquals(1L, (long) rs.zunionstore(b("dest"), b("2"), a("inf", "-inf")).data());
+    assertEquals("[a, 0.0]", range("dest"));
+    assertEquals(1L, (long) rs.zunionstore(b("dest"), b("1"), a("inf", "weights", "0")).data());
+    assertEquals("[a, 0.0]", range("dest"));
+    // An empty result deletes the destination
+    assertEquals(0L, (long) rs.zinterstore(b("dest"), b("2"), a("z1", "missing")).data());
+    assertEquals(0L, (long) rs.exists(b("dest")).data());
+    try {
+      rs.zunionstore(b("dest"), b("2"), a("z1", "z2", "aggregate", "avg"));
+      fail("Not an aggregate");
+    } catch (RedisException e) {
+      assertEquals("syntax error", e.getMessage());
+    }
+  }
+
+  @Test
+  public void benchmarkZStore() throws RedisException {
+    if (System.getenv().containsKey("CI") || System.getProperty("CI") != null) return;
+    String[] keys = new String[10];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "zset" + i;
+      String[] args = new String[1 + 200000];
+      args[0] = keys[i];
+      for (int j = 0; j < 100000; j++) {
+        args[1 + j * 2] = String.valueOf(j * i);
+        args[2 + j * 2] = "member:" + (j + i * 10000);
+      }
+      rs.zadd(a(args));
+    }
+    rs.zadd(a("small", "1", "member:50000", "2", "member:95000"));
+    for (int n = 0; n < 3; n++) {
+      long start = System.nanoTime();
+      long size = rs.zunionstore(b("union"), b("10"), a(keys)).data();
+      long union = System.nanoTime() - start;
+      start = System.nanoTime();
+      long inter = rs.zinterstore(b("inter"), b("11"), add(keys, "small")).data();
+      System.out.println("ZUNIONSTORE of ten 100k zsets into " + size + ": " + union / 1000000 + " ms, " +
+              "ZINTERSTORE with a small one into " + inter + ": " + (System.nanoTime() - start) / 1000 + " us");
+    }
+  }
+
+  @Test
+  public void testStreams() throws RedisException {
+    assertEquals("1-1", rs.xadd(b("stream"), a("1-1", "f", "a")).asAsciiString());
+    assertEquals("1-2", rs.xadd(b("stream"), a("1-*", "f", "b")).asAsciiString());
+    assertEquals("5-0", rs.xadd(b("stream"), a("5", "f", "c", "g", "d")).asAsciiString());
+    String id = rs.xadd(b("stream"), a("*", "f", "e")).asAsciiString();
+    assertTrue(id, Long.parseLong(id.substring(0, id.indexOf('-'))) > 5);
+    assertEquals("stream", rs.type(b("stream")).data());
+    assertEquals(4L, (long) rs.xlen(b("stream")).data());
+    for (String invalid : new String[]{"5-0", "1-*", "0-0", "a"}) {
+      try {
+        rs.xadd(b("stream"), a(invalid, "f", "x"));
+        fail(invalid);
+      } catch (RedisException e) {
+        // Expected
+      }
+    }
+    assertEquals(4L, (long) rs.xlen(b("stream")).data());
+    // A failed add does not create the key and NOMKSTREAM never does
+    try {
+      rs.xadd(b("missing"), a("0-0", "f", "x"));
+      fail("0-0");
+    } catch (RedisException e) {
+      assertEquals("The ID specified in XADD must be greater than 0-0", e.getMessage());
+    }
+    assertEquals(null, rs.xadd(b("missing"), a("nomkstream", "*", "f", "x")).data());
+    assertEquals(0L, (long) rs.exists(b("missing")).data());
+
+    assertEquals("[1-1 [f, a], 1-2 [f, b], 5-0 [f, c, g, d]]", entries(rs.xrange(b("stream"), b("-"), b("5"), a())));
+    assertEquals("[1-2 [f, b], 5-0 [f, c, g, d]]", entries(rs.xrange(b("stream"), b("(1-1"), b("5-0"), a())));
+    assertEquals("[1-1 [f, a], 1-2 [f, b]]", entries(rs.xrange(b("stream"), b("1"), b("1"), a())));
+    assertEquals("[1-1 [f, a]]", entries(rs.xrange(b("stream"), b("-"), b("+"), a("count", "1"))));
+    assertEquals("[5-0 [f, c, g, d], 1-2 [f, b]]", entries(rs.xrevrange(b("stream"), b("(" + id), b("-"), a("COUNT", "2"))));
+    assertEquals("[]", entries(rs.xrange(b("missing"), b("-"), b("+"), a())));
+
+    // Reading after an id in each stream
+    rs.xadd(b("other"), a("2-0", "h", "i"));
+    Reply[] read = ((MultiBulkReply) rs.xread(a("count", "1", "streams", "stream", "other", "1-1", "0"))).data();
+    assertEquals(2, read.length);
+    assertEquals("stream", ((BulkReply) ((MultiBulkReply) read[0]).data()[0]).asAsciiString());
+    assertEquals("[1-2 [f, b]]", entries((MultiBulkReply) ((MultiBulkReply) read[0]).data()[1]));
+    assertEquals("[2-0 [h, i]]", entries((MultiBulkReply) ((MultiBulkReply) read[1]).data()[1]));
+    // Nothing after the last entry and without a connection to block on it doesn't
+    assertEquals(null, rs.xread(a("block", "10", "streams", "stream", "$")).data());
+    try {
+      rs.xread(a("streams", "stream", "other", "0"));
+      fail("Unbalanced");
+    } catch (RedisException e) {
+      assertTrue(e.getMessage().startsWith("Unbalanced"));
+    }
+
+    // Trimming keeps the newest entries and the last id
+    assertEquals(2L, (long) rs.xtrim(b("stream"), a("maxlen", "2")).data());
+    assertEquals("[5-0 [f, c, g, d], " + id + " [f, e]]", entries(rs.xrange(b("stream"), b("-"), b("+"), a())));
+    rs.xadd(b("stream"), a("maxlen", "=", "0", "*", "f", "g"));
+    assertEquals(0L, (long) rs.xlen(b("stream")).data());
+    try {
+      rs.xadd(b("stream"), a("5-1", "f", "x"));
+      fail("Before the last id");
+    } catch (RedisException e) {
+      // Expected
+    }
+
+    // Streams survive DUMP and RESTORE
+    for (int i = 0; i < 1000; i++) {
+      rs.xadd(b("large"), a("*", "n", String.valueOf(i)));
+    }
+    byte[] dumped = rs.dump(b("large")).data().array();
+    rs.restore(b("copy"), b("0"), dumped, a());
+    assertEquals(1000L, (long) rs.xlen(b("copy")).data());
+    assertEquals(entries(rs.xrevrange(b("large"), b("+"), b("-"), a("count", "3"))),
+            entries(rs.xrevrange(b("copy"), b("+"), b("-"), a("count", "3"))));
+    rs.set(b("string"), b("value"));
+    try {
+      rs.xadd(b("string"), a("*", "f", "x"));
+      fail("Not a stream");
+    } catch (RedisException e) {
+      // Expected
+    }
+  }
+
+  private static byte[][] add(String[] strings, String string) {
+    String[] added = new String[strings.length + 1];
+    System.arraycopy(strings, 0, added, 0, strings.length);
+    added[strings.length] = string;
+    return a(added);
+  }
+
+  private static String entries(MultiBulkReply reply) {
+    List<String> entries = new ArrayList<String>();
+    for (Reply entry : reply.data()) {
+      Reply[] parts = ((MultiBulkReply) entry).data();
+      List<String> fields = new ArrayList<String>();
+      for (Reply field : ((MultiBulkReply) parts[1]).data()) {
+        fields.add(((BulkReply) field).asAsciiString());
+      }
+      entries.add(((BulkReply) parts[0]).asAsciiString() + " " + fields);
+    }
+    return entries.toString();
+  }
+
+  private String range(String key) throws RedisException {
+    List<String> members = new ArrayList<String>();
+    for (Reply member : rs.zrange(b(key), b("0"), b("-1"), b("withscores")).data()) {
+      members.add(((BulkReply) member).asAsciiString());
+    }
+    return members.toString();
+  }
+
+  private static String sorted(MultiBulkReply reply) {
+    List<String> members = new ArrayList<String>();
+    for (Reply member : reply.data()) {
+      members.add(((BulkReply) member).asAsciiString());
+    }
+    Collections.sort(members);
+    return members.toString();
+  }
+
+  private String sort(String key, String... options) throws RedisException {
+    Reply[] replies = ((MultiBulkReply) rs.sort(b(key), a(options))).data();
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < replies.length; i++) {
+      if (i > 0) sb.append(", ");
+      sb.append(((BulkReply) replies[i]).asAsciiString());
+    }
+    return sb.append("]").toString();
+  }
+
+  private static byte[] b(String string) {
+    return string.getBytes();
+  }
+
+  private static byte[][] a(String... strings) {
+    byte[][] bytes = new byte[strings.length][];
+    for (int i = 0; i < strings.length; i++) {
+      bytes[i] = strings[i].getBytes();
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,147 @@
+package redis.server.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.netty4.BulkReply;
+import redis.netty4.Command;
+import redis.netty4.RedisCommandEncoder;
+import redis.netty4.RedisReplyDecoder;
+import redis.netty4.Reply;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+/**
+ * Clients on the same host connecting through the Unix domain socket.
+ */
+public class UnixSocketTest {
+
+  private File path;
+  private Server server;
+  private EventLoopGroup epollGroup;
+  private EventLoopGroup nioGroup;
+
+  @Before
+  public void setUp() throws Exception {
+    if (!Epoll.isAvailable()) return;
+    path = File.createTempFile("redis", ".sock");
+    server = new Server(freePort()).unixSocket(path).start();
+    epollGroup = new EpollEventLoopGroup(1);
+    nioGroup = new NioEventLoopGroup(1);
+  }
+
+  @After
+  public void tearDown() {
+    if (server == null) return;
+    server.stop();
+    epollGroup.shutdownGracefully();
+    nioGroup.shutdownGracefully();
+  }
+
+  @Test
+  public void testUnixSocket() throws Exception {
+    if (server == null) return;
+    Connection unix = new Connection(epollGroup, EpollDomainSocketChannel.class, new DomainSocketAddress(path));
+    Connection tcp = new Connection(nioGroup, NioSocketChannel.class, new InetSocketAddress("localhost", server.port()));
+    assertEquals("OK", unix.call("set", "key", "value").data());
+    assertEquals("value", ((BulkReply) tcp.call("get", "key")).asAsciiString());
+    unix.close();
+    tcp.close();
+    server.stop();
+    server = null;
+    assertFalse(path.exists());
+    epollGroup.shutdownGracefully();
+    nioGroup.shutdownGracefully();
+  }
+
+  @Test
+  public void benchmarkTransports() throws Exception {
+    if (server == null) return;
+    Connection unix = new Connection(epollGroup, EpollDomainSocketChannel.class, new DomainSocketAddress(path));
+    Connection tcp = new Connection(nioGroup, NioSocketChannel.class, new InetSocketAddress("localhost", server.port()));
+    unix.call("set", "key", "value");
+    for (int round = 0; round < 2; round++) {
+      for (Connection connection : new Connection[]{tcp, unix}) {
+        long start = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+          connection.call("get", "key");
+        }
+        long latency = (System.nanoTime() - start) / 10000;
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+          for (int j = 0; j < 1000; j++) {
+            connection.channel.write(new Command(new Object[]{"get", "key"}));
+          }
+          connection.channel.flush();
+          for (int j = 0; j < 1000; j++) {
+            connection.replies.take();
+          }
+        }
+        System.out.println((connection == tcp ? "TCP" : "Unix") + ": " + latency + " ns per GET round trip, " +
+                (System.nanoTime() - start) / 100000 + " ns per pipelined GET");
+      }
+    }
+    unix.close();
+    tcp.close();
+  }
+
+  private static class Connection {
+    final BlockingQueue<Reply> replies = new LinkedBlockingQueue<Reply>();
+    final Channel channel;
+
+    Connection(EventLoopGroup group, Class<? extends Channel> type, SocketAddress address) throws InterruptedException {
+      Bootstrap b = new Bootstrap();
+      b.group(group).channel(type).handler(new ChannelInitializer<Channel>() {
+        @Override
+        protected void initChannel(Channel ch) throws Exception {
+          ch.pipeline().addLast(new RedisCommandEncoder(), new RedisReplyDecoder(), new SimpleChannelInboundHandler<Reply>(false) {
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, Reply reply) throws Exception {
+              replies.add(reply);
+            }
+          });
+        }
+      });
+      channel = b.connect(address).sync().channel();
+    }
+
+    Reply call(Object... arguments) throws InterruptedException {
+      channel.writeAndFlush(new Command(arguments));
+      return replies.take();
+    }
+
+    void close() {
+      channel.close().awaitUninterruptibly();
+    }
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket ss = new ServerSocket(0);
+    try {
+      return ss.getLocalPort();
+    } finally {
+      ss.close();
+    }
+  }
+}
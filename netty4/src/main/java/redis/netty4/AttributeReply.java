@@ -0,0 +1,35 @@
+package redis.netty4;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A reply with RESP3 attributes, extra information about it that can be
+ * ignored by looking at data(), the reply itself.
+ */
+public class AttributeReply implements Reply<Reply> {
+  public static final char MARKER = '|';
+  private final MapReply attributes;
+  private final Reply reply;
+
+  public AttributeReply(MapReply attributes, Reply reply) {
+    this.attributes = attributes;
+    this.reply = reply;
+  }
+
+  public MapReply attributes() {
+    return attributes;
+  }
+
+  @Override
+  public Reply data() {
+    return reply;
+  }
+
+  @Override
+  public void write(ByteBuf os) throws IOException {
+    attributes.write(os, MARKER, attributes.size());
+    reply.write(os);
+  }
+}
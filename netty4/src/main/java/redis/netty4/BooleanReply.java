@@ -0,0 +1,43 @@
+package redis.netty4;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A RESP3 boolean, one of two shared replies.
+ */
+public class BooleanReply implements Reply<Boolean> {
+  public static final char MARKER = '#';
+  public static final BooleanReply TRUE = new BooleanReply(true);
+  public static final BooleanReply FALSE = new BooleanReply(false);
+  private final boolean value;
+
+  private BooleanReply(boolean value) {
+    this.value = value;
+  }
+
+  public static BooleanReply valueOf(boolean value) {
+    return value ? TRUE : FALSE;
+  }
+
+  public boolean value() {
+    return value;
+  }
+
+  @Override
+  public Boolean data() {
+    return value;
+  }
+
+  @Override
+  public void write(ByteBuf os) throws IOException {
+    os.writeByte(MARKER);
+    os.writeByte(value ? 't' : 'f');
+    os.writeBytes(CRLF);
+  }
+
+  public String toString() {
+    return String.valueOf(value);
+  }
+}
@@ -68,6 +68,10 @@ public class Command {
     return getBytes(objects[0]);
   }
 
+  public Object[] getObjects() {
+    return objects;
+  }
+
   public boolean isInline() {
     return inline;
   }
@@ -79,7 +83,9 @@ public class Command {
     } else if (object instanceof byte[]) {
       argument = (byte[]) object;
     } else if (object instanceof ByteBuf) {
-      argument = ((ByteBuf) object).array();
+      ByteBuf buf = (ByteBuf) object;
+      argument = new byte[buf.readableBytes()];
+      buf.getBytes(buf.readerIndex(), argument);
     } else if (object instanceof String) {
       argument = ((String) object).getBytes(Charsets.UTF_8);
     } else {
@@ -0,0 +1,39 @@
+package redis.netty4;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+
+import static redis.util.Encoding.doubleToBytes;
+
+/**
+ * A RESP3 double, read straight from its digits.
+ */
+public class DoubleReply implements Reply<Double> {
+  public static final char MARKER = ',';
+  private final double value;
+
+  public DoubleReply(double value) {
+    this.value = value;
+  }
+
+  public double value() {
+    return value;
+  }
+
+  @Override
+  public Double data() {
+    return value;
+  }
+
+  @Override
+  public void write(ByteBuf os) throws IOException {
+    os.writeByte(MARKER);
+    os.writeBytes(doubleToBytes(value));
+    os.writeBytes(CRLF);
+  }
+
+  public String toString() {
+    return String.valueOf(value);
+  }
+}
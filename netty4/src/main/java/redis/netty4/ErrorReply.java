@@ -8,6 +8,8 @@ import io.netty.buffer.ByteBuf;
 
 public class ErrorReply implements Reply<String> {
   public static final char MARKER = '-';
+  // A RESP3 error sent like a bulk value
+  public static final char BLOB_MARKER = '!';
   public static final ErrorReply NYI_REPLY = new ErrorReply("Not yet implemented");
   private final String error;
 
@@ -33,7 +33,8 @@ public class InlineReply implements Reply<Object> {
       os.writeBytes(CRLF);
     } else if (o instanceof ByteBuf) {
       os.writeByte('+');
-      os.writeBytes(((ByteBuf) o).array());
+      ByteBuf buf = (ByteBuf) o;
+      os.writeBytes(buf, buf.readerIndex(), buf.readableBytes());
       os.writeBytes(CRLF);
     } else if (o instanceof byte[]) {
       os.writeByte('+');
@@ -25,9 +25,20 @@ public class MultiBulkReply implements Reply<Reply[]> {
   public MultiBulkReply() {
   }
 
+  /**
+   * @return how many replies follow a header of the size, more than it for
+   *         the RESP3 aggregates made of pairs
+   */
+  protected long elements(long size) {
+    return size;
+  }
+
   public void read(RedisReplyDecoder rd, ByteBuf is) throws IOException {
     if (size == -2) {
       long l = readLong(is);
+      if (l != -1) {
+        l = elements(l);
+      }
       if (l > Integer.MAX_VALUE) {
         throw new IllegalArgumentException("Java only supports arrays up to " + Integer.MAX_VALUE + " in size");
       }
@@ -61,11 +72,19 @@ public class MultiBulkReply implements Reply<Reply[]> {
 
   @Override
   public void write(ByteBuf os) throws IOException {
-    os.writeByte(MARKER);
+    write(os, MARKER, replies == null ? -1 : replies.length);
+  }
+
+  /**
+   * Write the replies after a header, for the RESP3 aggregates that are
+   * arrays with another marker or size.
+   */
+  void write(ByteBuf os, char marker, int size) throws IOException {
+    os.writeByte(marker);
     if (replies == null) {
       os.writeBytes(NEG_ONE_WITH_CRLF);
     } else {
-      os.writeBytes(numToBytes(replies.length, true));
+      os.writeBytes(numToBytes(size, true));
       for (Reply reply : replies) {
         reply.write(os);
       }
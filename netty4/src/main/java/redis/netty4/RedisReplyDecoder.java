@@ -2,12 +2,16 @@ package redis.netty4;
 
 import com.google.common.base.Charsets;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ReplayingDecoder;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.List;
 
+import static redis.util.Encoding.bytesToDouble;
+
 /**
  * Netty codec for Redis
  */
@@ -46,7 +50,10 @@ public class RedisReplyDecoder extends ReplayingDecoder<Void> {
     if (size == -1) {
       return null;
     }
-    ByteBuf buffer = is.readSlice(size);
+    // Copied to the heap, a slice would not outlive the decoder's buffer
+    byte[] bytes = new byte[size];
+    is.readBytes(bytes);
+    ByteBuf buffer = Unpooled.wrappedBuffer(bytes);
     int cr = is.readByte();
     int lf = is.readByte();
     if (cr != CR || lf != LF) {
@@ -83,7 +90,7 @@ public class RedisReplyDecoder extends ReplayingDecoder<Void> {
 
   public Reply receive(final ByteBuf is) throws IOException {
     if (reply != null) {
-      return decodeMultiBulkReply(is);
+      return decode(null, is);
     }
     return readReply(is);
   }
@@ -92,12 +99,16 @@ public class RedisReplyDecoder extends ReplayingDecoder<Void> {
     int code = is.readByte();
     switch (code) {
       case StatusReply.MARKER: {
-        String status = is.readBytes(is.bytesBefore((byte) '\r')).toString(Charsets.UTF_8);
+        byte[] bytes = new byte[is.bytesBefore((byte) '\r')];
+        is.readBytes(bytes);
+        String status = new String(bytes, Charsets.UTF_8);
         is.skipBytes(2);
         return new StatusReply(status);
       }
       case ErrorReply.MARKER: {
-        String error = is.readBytes(is.bytesBefore((byte) '\r')).toString(Charsets.UTF_8);
+        byte[] bytes = new byte[is.bytesBefore((byte) '\r')];
+        is.readBytes(bytes);
+        String error = new String(bytes, Charsets.UTF_8);
         is.skipBytes(2);
         return new ErrorReply(error);
       }
@@ -108,11 +119,55 @@ public class RedisReplyDecoder extends ReplayingDecoder<Void> {
         return new BulkReply(readBytes(is));
       }
       case MultiBulkReply.MARKER: {
-        if (reply == null) {
-          return decodeMultiBulkReply(is);
-        } else {
-          return new RedisReplyDecoder(false).decodeMultiBulkReply(is);
+        return aggregate(new MultiBulkReply(), is);
+      }
+      case NullReply.MARKER: {
+        is.skipBytes(2);
+        return NullReply.NULL;
+      }
+      case BooleanReply.MARKER: {
+        byte value = is.readByte();
+        is.skipBytes(2);
+        if (value != 't' && value != 'f') {
+          throw new IOException("Invalid boolean: " + value);
+        }
+        return BooleanReply.valueOf(value == 't');
+      }
+      case DoubleReply.MARKER: {
+        byte[] bytes = new byte[is.bytesBefore((byte) '\r')];
+        is.readBytes(bytes);
+        is.skipBytes(2);
+        return new DoubleReply(bytesToDouble(bytes, 0, bytes.length));
+      }
+      case BigNumberReply.MARKER: {
+        byte[] bytes = new byte[is.bytesBefore((byte) '\r')];
+        is.readBytes(bytes);
+        is.skipBytes(2);
+        return new BigNumberReply(new BigInteger(new String(bytes, Charsets.US_ASCII)));
+      }
+      case ErrorReply.BLOB_MARKER: {
+        return new ErrorReply(readBytes(is).toString(Charsets.UTF_8));
+      }
+      case VerbatimReply.MARKER: {
+        ByteBuf bytes = readBytes(is);
+        if (bytes.capacity() < 4 || bytes.getByte(3) != ':') {
+          throw new IOException("Invalid verbatim string format");
         }
+        return new VerbatimReply(bytes.toString(0, 3, Charsets.US_ASCII), bytes.slice(4, bytes.capacity() - 4));
+      }
+      case MapReply.MARKER: {
+        return aggregate(new MapReply(), is);
+      }
+      case SetReply.MARKER: {
+        return aggregate(new SetReply(), is);
+      }
+      case PushReply.MARKER: {
+        return aggregate(new PushReply(), is);
+      }
+      case AttributeReply.MARKER: {
+        // Small, so read again from the start if it is incomplete
+        MapReply attributes = (MapReply) new RedisReplyDecoder(false).decode(new MapReply(), is);
+        return new AttributeReply(attributes, new RedisReplyDecoder(false).readReply(is));
       }
       default: {
         throw new IOException("Unexpected character in stream: " + code);
@@ -127,17 +182,39 @@ public class RedisReplyDecoder extends ReplayingDecoder<Void> {
     }
   }
 
+  private MultiBulkReply aggregate(MultiBulkReply created, ByteBuf is) throws IOException {
+    if (reply == null) {
+      return decode(created, is);
+    } else {
+      return new RedisReplyDecoder(false).decode(created, is);
+    }
+  }
+
   public MultiBulkReply decodeMultiBulkReply(ByteBuf is) throws IOException {
+    return decode(reply == null ? new MultiBulkReply() : null, is);
+  }
+
+  /**
+   * Continue the aggregate being read or start the one created. It is kept
+   * until it is complete since a replay resumes from the last checkpoint.
+   */
+  private MultiBulkReply decode(MultiBulkReply created, ByteBuf is) throws IOException {
+    if (reply == null) {
+      reply = created;
+      checkpoint();
+    }
+    MultiBulkReply read = reply;
     try {
-      if (reply == null) {
-        reply = new MultiBulkReply();
-        checkpoint();
-      }
-      reply.read(this, is);
-      return reply;
-    } finally {
+      read.read(this, is);
+    } catch (IOException e) {
+      reply = null;
+      throw e;
+    } catch (RuntimeException e) {
       reply = null;
+      throw e;
     }
+    reply = null;
+    return read;
   }
 
 }
@@ -0,0 +1,24 @@
+package redis.netty4;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A RESP3 set, an array whose elements are unique.
+ */
+public class SetReply extends MultiBulkReply {
+  public static final char MARKER = '~';
+
+  public SetReply() {
+  }
+
+  public SetReply(Reply[] replies) {
+    super(replies);
+  }
+
+  @Override
+  public void write(ByteBuf os) throws IOException {
+    write(os, MARKER, data().length);
+  }
+}
@@ -3,18 +3,31 @@ package redis;
 import com.google.common.base.Charsets;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
 import org.junit.Test;
+import redis.netty4.AttributeReply;
+import redis.netty4.BigNumberReply;
+import redis.netty4.BooleanReply;
 import redis.netty4.BulkReply;
+import redis.netty4.DoubleReply;
 import redis.netty4.ErrorReply;
 import redis.netty4.IntegerReply;
+import redis.netty4.MapReply;
 import redis.netty4.MultiBulkReply;
+import redis.netty4.NullReply;
+import redis.netty4.PushReply;
 import redis.netty4.RedisReplyDecoder;
 import redis.netty4.Reply;
+import redis.netty4.SetReply;
 import redis.netty4.StatusReply;
+import redis.netty4.VerbatimReply;
 
 import java.io.IOException;
+import java.math.BigInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -80,4 +93,49 @@ public class ReplyTest {
       assertEquals(integer, data[4].data());
     }
   }
+
+  @Test
+  public void testResp3() throws IOException {
+    ByteBuf os = Unpooled.buffer();
+    NullReply.NULL.write(os);
+    BooleanReply.TRUE.write(os);
+    new DoubleReply(-2.5).write(os);
+    new BigNumberReply(new BigInteger("3492890328409238509324850943850943825024385")).write(os);
+    new VerbatimReply("txt", Unpooled.wrappedBuffer("Some string".getBytes())).write(os);
+    new MapReply(new Reply[] {
+            new BulkReply("first".getBytes()), new IntegerReply(1),
+            new BulkReply("second".getBytes()), new SetReply(new Reply[] { new DoubleReply(Double.NaN) })}).write(os);
+    new PushReply(new Reply[] { new BulkReply("invalidate".getBytes()),
+            new MultiBulkReply(new Reply[] { new BulkReply("key".getBytes()) })}).write(os);
+    new AttributeReply(new MapReply(new Reply[] { new StatusReply("ttl"), new IntegerReply(3600) }),
+            new MultiBulkReply(new Reply[] { new IntegerReply(1), new IntegerReply(2) })).write(os);
+    os.writeBytes("!21\r\nSYNTAX invalid syntax\r\n".getBytes());
+
+    // A byte at a time, so every reply is replayed from its checkpoints
+    EmbeddedChannel channel = new EmbeddedChannel(new RedisReplyDecoder());
+    while (os.isReadable()) {
+      channel.writeInbound(os.readBytes(1));
+    }
+    assertSame(NullReply.NULL, channel.readInbound());
+    assertSame(BooleanReply.TRUE, channel.readInbound());
+    assertEquals(-2.5, ((DoubleReply) channel.readInbound()).value(), 0);
+    assertEquals(new BigInteger("3492890328409238509324850943850943825024385"), ((Reply) channel.readInbound()).data());
+    VerbatimReply verbatim = (VerbatimReply) channel.readInbound();
+    assertEquals("txt", verbatim.format());
+    assertEquals("Some string", verbatim.asAsciiString());
+    MapReply map = (MapReply) channel.readInbound();
+    assertEquals(2, map.size());
+    Reply[] data = map.data();
+    assertEquals("first", ((BulkReply) data[0]).asAsciiString());
+    assertEquals(1L, data[1].data());
+    assertTrue(((DoubleReply) ((SetReply) data[3]).data()[0]).value() != 0);
+    PushReply push = (PushReply) channel.readInbound();
+    assertEquals("invalidate", push.kind());
+    assertEquals("key", ((BulkReply) ((MultiBulkReply) push.data()[1]).data()[0]).asAsciiString());
+    AttributeReply attribute = (AttributeReply) channel.readInbound();
+    assertEquals("ttl", attribute.attributes().data()[0].data());
+    assertEquals(2, ((MultiBulkReply) attribute.data()).data().length);
+    assertEquals("SYNTAX invalid syntax", ((ErrorReply) channel.readInbound()).data());
+    assertNull(channel.readInbound());
+  }
 }
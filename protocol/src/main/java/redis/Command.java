@@ -3,6 +3,7 @@ package redis;
 import com.google.common.base.Charsets;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -87,7 +88,10 @@ public class Command {
 
   private static void writeObject(OutputStream os, Object object) throws IOException {
     byte[] argument;
-    if (object == null) {
+    if (object instanceof Streamed) {
+      ((Streamed) object).write(os);
+      return;
+    } else if (object == null) {
       argument = EMPTY_BYTES;
     } else if (object instanceof byte[]) {
       argument = (byte[]) object;
@@ -104,6 +108,42 @@ public class Command {
     os.write(CRLF);
   }
 
+  /**
+   * An argument copied from a stream as the command is written, so a large
+   * value never has to be in memory all at once.
+   */
+  public static class Streamed {
+    private static final int CHUNK = 64 * 1024;
+
+    private final InputStream is;
+    private final long length;
+
+    /**
+     * @param is read once, when the command is written
+     * @param length exactly what the stream holds
+     */
+    public Streamed(InputStream is, long length) {
+      this.is = is;
+      this.length = length;
+    }
+
+    void write(OutputStream os) throws IOException {
+      os.write(BYTES_PREFIX);
+      os.write(numToBytes(length, true));
+      byte[] chunk = new byte[(int) Math.min(CHUNK, length)];
+      long remaining = length;
+      while (remaining > 0) {
+        int read = is.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+        if (read == -1) {
+          throw new EOFException("Stream ended " + remaining + " bytes short");
+        }
+        os.write(chunk, 0, read);
+        remaining -= read;
+      }
+      os.write(CRLF);
+    }
+  }
+
   public static Command read(InputStream is) throws IOException {
     int read = is.read();
     if (read == ARGS_PREFIX) {
@@ -0,0 +1,11 @@
+package redis;
+
+import redis.reply.PushReply;
+
+/**
+ * Takes the data a RESP3 server pushes to a connection so that only replies
+ * to commands are returned by receive.
+ */
+public interface PushListener {
+  void pushed(PushReply push);
+}
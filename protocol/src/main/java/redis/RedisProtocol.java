@@ -1,20 +1,39 @@
 package redis;
 
+import com.google.common.base.Charsets;
+import redis.reply.AttributeReply;
+import redis.reply.BigNumberReply;
+import redis.reply.BooleanReply;
 import redis.reply.BulkReply;
+import redis.reply.DoubleReply;
 import redis.reply.ErrorReply;
 import redis.reply.IntegerReply;
+import redis.reply.MapReply;
 import redis.reply.MultiBulkReply;
+import redis.reply.NullReply;
+import redis.reply.PushReply;
 import redis.reply.Reply;
+import redis.reply.SetReply;
 import redis.reply.StatusReply;
+import redis.reply.VerbatimReply;
+import redis.util.Encoding;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigInteger;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implements the Redis Universal Protocol. Send a command, receive a command, send a reply
@@ -26,9 +45,25 @@ public class RedisProtocol {
   public static final char LF = '\n';
   private static final char ZERO = '0';
   private final BufferedInputStream is;
+  private final ReplyParser parser;
   private final OutputStream os;
   private final Socket socket;
 
+  // Negative unless batching
+  private long flushDelay = -1;
+  private volatile boolean unflushed;
+  private boolean flushScheduled;
+  // Blocked on a reply, so nothing batched goes out until it arrives
+  private volatile boolean receiving;
+
+  // Negotiated with HELLO
+  private volatile int version = 2;
+  private volatile PushListener pushListener;
+
+  // Calls on the socket, only counted when created from one
+  private long reads;
+  private long writes;
+
   /**
    * Create a new RedisProtocol from a socket connection.
    *
@@ -37,8 +72,21 @@ public class RedisProtocol {
    */
   public RedisProtocol(Socket socket) throws IOException {
     this.socket = socket;
-    is = new BufferedInputStream(socket.getInputStream());
-    os = new BufferedOutputStream(socket.getOutputStream());
+    is = new BufferedInputStream(new FilterInputStream(socket.getInputStream()) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        reads++;
+        return in.read(b, off, len);
+      }
+    });
+    parser = new ReplyParser(is);
+    os = new BufferedOutputStream(new FilterOutputStream(socket.getOutputStream()) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        writes++;
+        out.write(b, off, len);
+      }
+    });
   }
 
   /**
@@ -51,6 +99,7 @@ public class RedisProtocol {
   public RedisProtocol(BufferedInputStream is, OutputStream os) {
     this.is = is;
     this.os = os;
+    parser = new ReplyParser(is);
     socket = null;
   }
 
@@ -125,6 +174,34 @@ public class RedisProtocol {
     } while (true);
   }
 
+  /**
+   * Read the rest of a line that has to end in CRLF.
+   *
+   * @param is
+   * @return the line without its ending
+   * @throws IOException
+   */
+  private static byte[] readLine(InputStream is) throws IOException {
+    byte[] line = new byte[16];
+    int length = 0;
+    while (true) {
+      int read = is.read();
+      if (read == -1) {
+        throw new EOFException("Unexpected end of stream");
+      } else if (read == CR) {
+        int lf = is.read();
+        if (lf != LF) {
+          throw new IOException("Improper line ending: " + read + ", " + lf);
+        }
+        return Arrays.copyOf(line, length);
+      }
+      if (length == line.length) {
+        line = Arrays.copyOf(line, length * 2);
+      }
+      line[length++] = (byte) read;
+    }
+  }
+
   /**
    * Read a Reply from an input stream.
    *
@@ -153,12 +230,66 @@ public class RedisProtocol {
       case MultiBulkReply.MARKER: {
         return new MultiBulkReply(is);
       }
+      case NullReply.MARKER: {
+        if (readLine(is).length != 0) {
+          throw new IOException("Invalid null");
+        }
+        return NullReply.NULL;
+      }
+      case BooleanReply.MARKER: {
+        byte[] value = readLine(is);
+        if (value.length != 1 || (value[0] != 't' && value[0] != 'f')) {
+          throw new IOException("Invalid boolean: " + new String(value, Charsets.ISO_8859_1));
+        }
+        return BooleanReply.valueOf(value[0] == 't');
+      }
+      case DoubleReply.MARKER: {
+        byte[] value = readLine(is);
+        return new DoubleReply(Encoding.bytesToDouble(value, 0, value.length));
+      }
+      case BigNumberReply.MARKER: {
+        return new BigNumberReply(new BigInteger(new String(readLine(is), Charsets.ISO_8859_1)));
+      }
+      case ErrorReply.BLOB_MARKER: {
+        return new ErrorReply(new String(readBytes(is), Charsets.ISO_8859_1));
+      }
+      case VerbatimReply.MARKER: {
+        byte[] bytes = readBytes(is);
+        if (bytes.length < 4 || bytes[3] != ':') {
+          throw new IOException("Invalid verbatim string format");
+        }
+        return new VerbatimReply(new String(bytes, 0, 3, Charsets.ISO_8859_1), Arrays.copyOfRange(bytes, 4, bytes.length));
+      }
+      case MapReply.MARKER: {
+        return new MapReply(receive(is, readLong(is) * 2));
+      }
+      case SetReply.MARKER: {
+        return new SetReply(receive(is, readLong(is)));
+      }
+      case PushReply.MARKER: {
+        return new PushReply(receive(is, readLong(is)));
+      }
+      case AttributeReply.MARKER: {
+        MapReply attributes = new MapReply(receive(is, readLong(is) * 2));
+        return new AttributeReply(attributes, receive(is));
+      }
       default: {
         throw new IOException("Unexpected character in stream: " + code);
       }
     }
   }
 
+  private static Reply[] receive(InputStream is, long size) throws IOException {
+    if (size > Integer.MAX_VALUE || size < 0) {
+      throw new IllegalArgumentException("Invalid size: " + size);
+    }
+    Reply[] replies = new Reply[(int) size];
+    for (int i = 0; i < replies.length; i++) {
+      replies[i] = receive(is);
+    }
+    return replies;
+  }
+
   public static byte[] toBytes(Number length) {
     return length.toString().getBytes();
   }
@@ -171,12 +302,139 @@ public class RedisProtocol {
    */
   public Reply receiveAsync() throws IOException {
     synchronized (is) {
-      return receive(is);
+      flushBeforeWait();
+      receiving = true;
+      try {
+        pushed();
+        return parser.read();
+      } finally {
+        receiving = false;
+      }
+    }
+  }
+
+  /**
+   * Wait for a reply without locking the input stream, for a caller that is
+   * the only one reading from this connection.
+   *
+   * @return
+   * @throws IOException
+   */
+  public Reply receive() throws IOException {
+    flushBeforeWait();
+    receiving = true;
+    try {
+      pushed();
+      return parser.read();
+    } finally {
+      receiving = false;
     }
   }
 
   /**
-   * Send a command over the wire, do not wait for a reponse.
+   * Wait for a reply and hand it to the visitor as it is read, for the only
+   * caller reading from this connection.
+   *
+   * @param visitor
+   * @throws IOException
+   */
+  public void receive(ReplyVisitor visitor) throws IOException {
+    flushBeforeWait();
+    receiving = true;
+    try {
+      pushed();
+      parser.read(visitor);
+    } finally {
+      receiving = false;
+    }
+  }
+
+  /**
+   * Wait for a reply and write a bulk value straight to the stream, for the
+   * only caller reading from this connection.
+   *
+   * @param os
+   * @return the length of a bulk value as an IntegerReply, -1 if it is
+   * missing, otherwise the reply
+   * @throws IOException
+   */
+  public Reply receive(OutputStream os) throws IOException {
+    flushBeforeWait();
+    receiving = true;
+    try {
+      pushed();
+      return parser.read(os);
+    } finally {
+      receiving = false;
+    }
+  }
+
+  /**
+   * Hand the pushes that come before the next reply to the listener.
+   */
+  private void pushed() throws IOException {
+    PushListener pushListener = this.pushListener;
+    if (pushListener != null) {
+      while (parser.isPush()) {
+        pushListener.pushed((PushReply) parser.read());
+        // What was buffered may have been nothing but pushes
+        flushBeforeWait();
+      }
+    }
+  }
+
+  /**
+   * Switch the connection to a version of the protocol, meant to be the
+   * first command after connecting. A server older than Redis 6 answers with
+   * an error and stays on version 2, which is what is returned then.
+   *
+   * @param version 2 or 3
+   * @param arguments such as AUTH with a username and password
+   * @return the properties of the server or the error
+   * @throws IOException
+   */
+  public Reply hello(int version, Object... arguments) throws IOException {
+    Object[] command = new Object[arguments.length + 2];
+    command[0] = "HELLO";
+    command[1] = version;
+    System.arraycopy(arguments, 0, command, 2, arguments.length);
+    sendAsync(new Command(command));
+    Reply reply = receive();
+    if (!(reply instanceof ErrorReply)) {
+      this.version = version;
+    }
+    return reply;
+  }
+
+  /**
+   * @return the version of the protocol spoken, 3 once HELLO 3 succeeds
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Take pushes out of the replies, which otherwise come back from receive
+   * like any other reply. Null stops.
+   *
+   * @param pushListener
+   */
+  public void setPushListener(PushListener pushListener) {
+    this.pushListener = pushListener;
+  }
+
+  /**
+   * The reply about to be read may be for a command that is still batched.
+   */
+  private void flushBeforeWait() throws IOException {
+    if (unflushed && parser.available() == 0) {
+      flush();
+    }
+  }
+
+  /**
+   * Send a command over the wire, do not wait for a reponse. When batching
+   * the command only goes out with the next flush.
    *
    * @param command
    * @throws IOException
@@ -184,20 +442,116 @@ public class RedisProtocol {
   public void sendAsync(Command command) throws IOException {
     synchronized (os) {
       command.write(os);
+      if (flushDelay >= 0) {
+        unflushed = true;
+        // Otherwise the next receive flushes
+        if (flushDelay > 0 && receiving && !flushScheduled) {
+          flushScheduled = true;
+          Flusher.schedule(this, flushDelay);
+        }
+        return;
+      }
     }
     os.flush();
   }
 
+  /**
+   * Batch commands sent with sendAsync into as few writes as possible. They
+   * are flushed when the buffer fills, when a reply is waited for that isn't
+   * already buffered, on an explicit flush and, with a positive delay, at
+   * most that long after the first of them that was sent while waiting for a
+   * reply. A negative delay turns batching off and flushes.
+   *
+   * @param delay
+   * @param unit
+   * @throws IOException
+   */
+  public void setBatching(long delay, TimeUnit unit) throws IOException {
+    synchronized (os) {
+      flushDelay = delay < 0 ? -1 : unit.toNanos(delay);
+    }
+    if (delay < 0) {
+      flush();
+    }
+  }
+
+  /**
+   * Write out the commands that are batched.
+   *
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+    if (unflushed) {
+      synchronized (os) {
+        unflushed = false;
+        os.flush();
+      }
+    }
+  }
+
+  /**
+   * Flushes batches that have waited for their delay. One thread serves all
+   * connections.
+   */
+  private static class Flusher {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "redis-protocol-flusher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    static void schedule(final RedisProtocol protocol, long delay) {
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          // Left scheduled through other flushes so there is at most one timer
+          // per delay however often the connection flushes
+          synchronized (protocol.os) {
+            protocol.flushScheduled = false;
+          }
+          try {
+            protocol.flush();
+          } catch (IOException e) {
+            // The reader of the replies fails
+          }
+        }
+      }, delay, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * @return the reads from the socket so far, each a system call
+   */
+  public long getReads() {
+    return reads;
+  }
+
+  /**
+   * @return the writes to the socket so far, each a system call
+   */
+  public long getWrites() {
+    synchronized (os) {
+      return writes;
+    }
+  }
+
   /**
    * Close the input and output streams. Will also disconnect the socket.
    *
    * @throws IOException
    */
   public void close() throws IOException {
-    is.close();
-    os.close();
-    if (socket != null) {
-      socket.close();
+    try {
+      // Sends what is batched
+      os.close();
+    } finally {
+      is.close();
+      if (socket != null) {
+        socket.close();
+      }
     }
   }
 }
@@ -0,0 +1,490 @@
+package redis;
+
+import com.google.common.base.Charsets;
+import redis.reply.AttributeReply;
+import redis.reply.BigNumberReply;
+import redis.reply.BooleanReply;
+import redis.reply.BulkReply;
+import redis.reply.DoubleReply;
+import redis.reply.ErrorReply;
+import redis.reply.IntegerReply;
+import redis.reply.MapReply;
+import redis.reply.MultiBulkReply;
+import redis.reply.NullReply;
+import redis.reply.PushReply;
+import redis.reply.Reply;
+import redis.reply.SetReply;
+import redis.reply.StatusReply;
+import redis.reply.VerbatimReply;
+import redis.util.Encoding;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Reads replies from a stream through one reusable window rather than a byte
+ * at a time. Lines and numbers are scanned in place, bulk values are copied
+ * once into the array that becomes the value and the common statuses are
+ * shared, so nothing is allocated beyond the replies themselves.
+ * <p/>
+ * RESP3 replies are read as their own types. Doubles and booleans are parsed
+ * in place into primitives.
+ * <p/>
+ * Not thread safe, a connection has one.
+ */
+public class ReplyParser {
+  private static final int WINDOW = 64 * 1024;
+  private static final StatusReply[] SHARED = {StatusReply.OK, StatusReply.PONG, StatusReply.QUEUED};
+  private static final byte[][] SHARED_BYTES = {"OK".getBytes(), "PONG".getBytes(), "QUEUED".getBytes()};
+
+  private final InputStream is;
+  private byte[] window;
+  private int position;
+  private int limit;
+
+  /**
+   * @param is unbuffered, the parser buffers
+   */
+  public ReplyParser(InputStream is) {
+    this(is, WINDOW);
+  }
+
+  public ReplyParser(InputStream is, int size) {
+    this.is = is;
+    window = new byte[size];
+  }
+
+  /**
+   * @return bytes that can be read without blocking
+   */
+  public int available() throws IOException {
+    return position < limit ? limit - position : is.available();
+  }
+
+  /**
+   * Wait for the next reply and tell whether it is a push rather than a
+   * reply to a command.
+   */
+  public boolean isPush() throws IOException {
+    if (position == limit) fill();
+    return window[position] == PushReply.MARKER;
+  }
+
+  /**
+   * Wait for a reply.
+   */
+  public Reply read() throws IOException {
+    if (position == limit) fill();
+    int marker = window[position++];
+    switch (marker) {
+      case StatusReply.MARKER:
+        return status();
+      case ErrorReply.MARKER:
+        return new ErrorReply(line());
+      case IntegerReply.MARKER:
+        return new IntegerReply(number());
+      case BulkReply.MARKER:
+        return new BulkReply(bulk(bulkSize()));
+      case MultiBulkReply.MARKER: {
+        long size = number();
+        if (size == -1) {
+          return new MultiBulkReply((Reply[]) null);
+        }
+        return new MultiBulkReply(replies(size));
+      }
+      case NullReply.MARKER:
+        crlf();
+        return NullReply.NULL;
+      case BooleanReply.MARKER:
+        return BooleanReply.valueOf(bool());
+      case DoubleReply.MARKER: {
+        int length = lineLength();
+        double value = Encoding.bytesToDouble(window, position, length);
+        position += length + 2;
+        return new DoubleReply(value);
+      }
+      case BigNumberReply.MARKER:
+        return new BigNumberReply(new BigInteger(line()));
+      case ErrorReply.BLOB_MARKER:
+        return new ErrorReply(new String(bulk(bulkSize()), Charsets.ISO_8859_1));
+      case VerbatimReply.MARKER: {
+        int size = bulkSize();
+        String format = format(size);
+        return new VerbatimReply(format, bulk(size - 4));
+      }
+      case MapReply.MARKER:
+        return new MapReply(replies(number() * 2));
+      case SetReply.MARKER:
+        return new SetReply(replies(number()));
+      case PushReply.MARKER:
+        return new PushReply(replies(number()));
+      case AttributeReply.MARKER: {
+        MapReply attributes = new MapReply(replies(number() * 2));
+        return new AttributeReply(attributes, read());
+      }
+      default:
+        throw new IOException("Unexpected character in stream: " + marker);
+    }
+  }
+
+  private Reply[] replies(long size) throws IOException {
+    if (size > Integer.MAX_VALUE || size < 0) {
+      throw new IllegalArgumentException("Invalid size: " + size);
+    }
+    Reply[] replies = new Reply[(int) size];
+    for (int i = 0; i < replies.length; i++) {
+      replies[i] = read();
+    }
+    return replies;
+  }
+
+  /**
+   * Wait for a reply and hand it to the visitor part by part. Bulk values
+   * are passed from the window, so only one larger than it is allocated.
+   * <p/>
+   * RESP3 replies are handed over as their RESP2 counterparts: a null as a
+   * missing bulk value, a boolean as 1 or 0, a double or big number as the
+   * bulk value of its digits, a verbatim string without its format, the
+   * aggregates as arrays, maps with their keys and values alternating, and
+   * attributes are skipped.
+   */
+  public void read(ReplyVisitor visitor) throws IOException {
+    if (position == limit) fill();
+    int marker = window[position++];
+    switch (marker) {
+      case StatusReply.MARKER:
+        visitor.status(line());
+        break;
+      case ErrorReply.MARKER:
+        visitor.error(line());
+        break;
+      case IntegerReply.MARKER:
+        visitor.integer(number());
+        break;
+      case BulkReply.MARKER:
+        bulk(visitor, bulkSize());
+        break;
+      case MultiBulkReply.MARKER: {
+        long size = number();
+        if (size < -1) {
+          throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        array(visitor, size);
+        break;
+      }
+      case NullReply.MARKER:
+        crlf();
+        visitor.bulk(null, 0, 0);
+        break;
+      case BooleanReply.MARKER:
+        visitor.integer(bool() ? 1 : 0);
+        break;
+      case DoubleReply.MARKER:
+      case BigNumberReply.MARKER: {
+        int length = lineLength();
+        visitor.bulk(window, position, length);
+        position += length + 2;
+        break;
+      }
+      case ErrorReply.BLOB_MARKER:
+        visitor.error(new String(bulk(bulkSize()), Charsets.ISO_8859_1));
+        break;
+      case VerbatimReply.MARKER: {
+        int size = bulkSize();
+        format(size);
+        bulk(visitor, size - 4);
+        break;
+      }
+      case MapReply.MARKER:
+        array(visitor, number() * 2);
+        break;
+      case SetReply.MARKER:
+      case PushReply.MARKER:
+        array(visitor, number());
+        break;
+      case AttributeReply.MARKER:
+        replies(number() * 2);
+        read(visitor);
+        break;
+      default:
+        throw new IOException("Unexpected character in stream: " + marker);
+    }
+  }
+
+  private void bulk(ReplyVisitor visitor, int size) throws IOException {
+    if (size == -1) {
+      visitor.bulk(null, 0, 0);
+    } else if (size + 2 <= window.length) {
+      while (limit - position < size + 2) {
+        more();
+      }
+      visitor.bulk(window, position, size);
+      position += size;
+      crlf();
+    } else {
+      visitor.bulk(large(size), 0, size);
+    }
+  }
+
+  private void array(ReplyVisitor visitor, long size) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid size: " + size);
+    }
+    visitor.arrayStart((int) size);
+    for (long i = 0; i < size; i++) {
+      read(visitor);
+    }
+    visitor.arrayEnd();
+  }
+
+  /**
+   * Wait for a reply and, if it is a bulk value, write it to the stream a
+   * window at a time rather than allocating it.
+   *
+   * @return the length of a bulk value as an IntegerReply, -1 if it is
+   * missing, otherwise the reply
+   */
+  public Reply read(OutputStream os) throws IOException {
+    if (position == limit) fill();
+    if (window[position] == NullReply.MARKER) {
+      position++;
+      crlf();
+      return new IntegerReply(-1);
+    }
+    if (window[position] != BulkReply.MARKER) {
+      return read();
+    }
+    position++;
+    long size = number();
+    if (size < -1) {
+      throw new IllegalArgumentException("Invalid size: " + size);
+    }
+    long remaining = size;
+    while (remaining > 0) {
+      if (position == limit) fill();
+      int length = (int) Math.min(remaining, limit - position);
+      os.write(window, position, length);
+      position += length;
+      remaining -= length;
+    }
+    if (size != -1) {
+      crlf();
+    }
+    return new IntegerReply(size);
+  }
+
+  private StatusReply status() throws IOException {
+    int length = lineLength();
+    for (int i = 0; i < SHARED.length; i++) {
+      byte[] shared = SHARED_BYTES[i];
+      if (shared.length == length && equal(shared, position)) {
+        position += length + 2;
+        return SHARED[i];
+      }
+    }
+    byte[] bytes = Arrays.copyOfRange(window, position, position + length);
+    position += length + 2;
+    return new StatusReply(bytes, Charsets.ISO_8859_1);
+  }
+
+  private String line() throws IOException {
+    int length = lineLength();
+    String line = new String(window, position, length, Charsets.ISO_8859_1);
+    position += length + 2;
+    return line;
+  }
+
+  /**
+   * Make the window hold the whole current line.
+   *
+   * @return the length of the line without its CRLF
+   */
+  private int lineLength() throws IOException {
+    // Scanned so far, from the start of the line
+    int scanned = 0;
+    while (true) {
+      byte[] window = this.window;
+      int limit = this.limit;
+      for (int i = position + scanned; i < limit; i++) {
+        if (window[i] == '\r') {
+          if (i + 1 == limit) {
+            // The LF hasn't arrived
+            break;
+          }
+          if (window[i + 1] != '\n') {
+            throw new IOException("Improper line ending: " + window[i + 1]);
+          }
+          return i - position;
+        }
+      }
+      scanned = Math.max(0, limit - 1 - position);
+      more();
+    }
+  }
+
+  /**
+   * Read a signed ascii integer ending in CRLF.
+   */
+  private long number() throws IOException {
+    boolean negative = false;
+    long number = 0;
+    if (position == limit) fill();
+    if (window[position] == '-') {
+      negative = true;
+      position++;
+    }
+    while (true) {
+      byte[] window = this.window;
+      int limit = this.limit;
+      int i = position;
+      while (i < limit) {
+        int value = window[i++] - '0';
+        if (value >= 0 && value < 10) {
+          number = number * 10 + value;
+        } else if (value == '\r' - '0') {
+          position = i;
+          if (position == limit) fill();
+          if (this.window[position++] != '\n') {
+            throw new IOException("Invalid character in integer");
+          }
+          return negative ? -number : number;
+        } else {
+          throw new IOException("Invalid character in integer");
+        }
+      }
+      position = i;
+      fill();
+    }
+  }
+
+  private byte[] bulk(int size) throws IOException {
+    if (size == -1) {
+      return null;
+    }
+    if (size + 2 > window.length) {
+      return large(size);
+    }
+    // Fits, so gather it in one read with whatever follows
+    while (limit - position < size + 2) {
+      more();
+    }
+    byte[] bytes = Arrays.copyOfRange(window, position, position + size);
+    position += size;
+    crlf();
+    return bytes;
+  }
+
+  /**
+   * @return t or f as a boolean
+   */
+  private boolean bool() throws IOException {
+    if (lineLength() != 1) {
+      throw new IOException("Invalid boolean");
+    }
+    byte value = window[position];
+    position += 3;
+    if (value == 't') return true;
+    if (value == 'f') return false;
+    throw new IOException("Invalid boolean: " + value);
+  }
+
+  /**
+   * Read the format that starts a verbatim string of the size.
+   */
+  private String format(int size) throws IOException {
+    if (size < 4) {
+      throw new IOException("Invalid verbatim string of size " + size);
+    }
+    while (limit - position < 4) {
+      more();
+    }
+    if (window[position + 3] != ':') {
+      throw new IOException("Invalid verbatim string format");
+    }
+    String format = new String(window, position, 3, Charsets.ISO_8859_1);
+    position += 4;
+    return format;
+  }
+
+  /**
+   * @return the size of the bulk value that follows, -1 if it is missing
+   */
+  private int bulkSize() throws IOException {
+    long size = number();
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Java only supports arrays up to " + Integer.MAX_VALUE + " in size");
+    }
+    if (size < -1) {
+      throw new IllegalArgumentException("Invalid size: " + size);
+    }
+    return (int) size;
+  }
+
+  /**
+   * Read a value larger than the window, the rest going straight into it.
+   */
+  private byte[] large(int size) throws IOException {
+    byte[] bytes = new byte[size];
+    int total = Math.min(size, limit - position);
+    System.arraycopy(window, position, bytes, 0, total);
+    position += total;
+    while (total < size) {
+      int read = is.read(bytes, total, size - total);
+      if (read == -1) {
+        throw new IOException("Failed to read enough bytes: " + total);
+      }
+      total += read;
+    }
+    crlf();
+    return bytes;
+  }
+
+  private void crlf() throws IOException {
+    if (position == limit) fill();
+    while (limit - position < 2) more();
+    int cr = window[position++];
+    int lf = window[position++];
+    if (cr != RedisProtocol.CR || lf != RedisProtocol.LF) {
+      throw new IOException("Improper line ending: " + cr + ", " + lf);
+    }
+  }
+
+  private boolean equal(byte[] bytes, int offset) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (window[offset + i] != bytes[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Refill the window once it has been consumed.
+   */
+  private void fill() throws IOException {
+    position = 0;
+    limit = 0;
+    while (limit == 0) more();
+  }
+
+  /**
+   * Read more after what is in the window, moving it to the start or growing
+   * the window for a line longer than it.
+   */
+  private void more() throws IOException {
+    if (position > 0) {
+      System.arraycopy(window, position, window, 0, limit - position);
+      limit -= position;
+      position = 0;
+    } else if (limit == window.length) {
+      window = Arrays.copyOf(window, window.length * 2);
+    }
+    int read = is.read(window, limit, window.length - limit);
+    if (read == -1) {
+      throw new EOFException("Unexpected end of stream");
+    }
+    limit += read;
+  }
+}
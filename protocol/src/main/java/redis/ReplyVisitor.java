@@ -0,0 +1,29 @@
+package redis;
+
+import java.io.IOException;
+
+/**
+ * Called with the parts of a reply as they are read rather than once it is
+ * all in memory, so a multi-bulk reply of any size can be processed in
+ * constant space. A multi-bulk reply is an arrayStart, its elements and an
+ * arrayEnd.
+ */
+public interface ReplyVisitor {
+  void status(String status) throws IOException;
+
+  void error(String error) throws IOException;
+
+  void integer(long integer) throws IOException;
+
+  /**
+   * @param bytes only valid during the call, null for a missing value
+   */
+  void bulk(byte[] bytes, int offset, int length) throws IOException;
+
+  /**
+   * @param size -1 for a missing reply, which has no elements
+   */
+  void arrayStart(int size) throws IOException;
+
+  void arrayEnd() throws IOException;
+}
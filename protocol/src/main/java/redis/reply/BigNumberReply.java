@@ -0,0 +1,29 @@
+package redis.reply;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+
+/**
+ * A RESP3 integer too large for a long.
+ */
+public class BigNumberReply implements Reply<BigInteger> {
+  public static final char MARKER = '(';
+  private final BigInteger value;
+
+  public BigNumberReply(BigInteger value) {
+    this.value = value;
+  }
+
+  @Override
+  public BigInteger data() {
+    return value;
+  }
+
+  @Override
+  public void write(OutputStream os) throws IOException {
+    os.write(MARKER);
+    os.write(value.toString().getBytes());
+    os.write(CRLF);
+  }
+}
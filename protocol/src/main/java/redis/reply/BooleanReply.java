@@ -0,0 +1,38 @@
+package redis.reply;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A RESP3 boolean, one of two shared replies.
+ */
+public class BooleanReply implements Reply<Boolean> {
+  public static final char MARKER = '#';
+  public static final BooleanReply TRUE = new BooleanReply(true);
+  public static final BooleanReply FALSE = new BooleanReply(false);
+  private final boolean value;
+
+  private BooleanReply(boolean value) {
+    this.value = value;
+  }
+
+  public static BooleanReply valueOf(boolean value) {
+    return value ? TRUE : FALSE;
+  }
+
+  public boolean value() {
+    return value;
+  }
+
+  @Override
+  public Boolean data() {
+    return value;
+  }
+
+  @Override
+  public void write(OutputStream os) throws IOException {
+    os.write(MARKER);
+    os.write(value ? 't' : 'f');
+    os.write(CRLF);
+  }
+}
@@ -0,0 +1,34 @@
+package redis.reply;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static redis.util.Encoding.doubleToBytes;
+
+/**
+ * A RESP3 double, read straight from its digits.
+ */
+public class DoubleReply implements Reply<Double> {
+  public static final char MARKER = ',';
+  private final double value;
+
+  public DoubleReply(double value) {
+    this.value = value;
+  }
+
+  public double value() {
+    return value;
+  }
+
+  @Override
+  public Double data() {
+    return value;
+  }
+
+  @Override
+  public void write(OutputStream os) throws IOException {
+    os.write(MARKER);
+    os.write(doubleToBytes(value));
+    os.write(CRLF);
+  }
+}
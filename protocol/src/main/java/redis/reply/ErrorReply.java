@@ -14,6 +14,8 @@ import com.google.common.base.Charsets;
 */
 public class ErrorReply implements Reply<String> {
   public static final char MARKER = '-';
+  // A RESP3 error sent like a bulk value
+  public static final char BLOB_MARKER = '!';
   private static final byte[] ERR = "ERR ".getBytes(Charsets.UTF_8);
   private final String error;
 
@@ -0,0 +1,31 @@
+package redis.reply;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A RESP3 map. Its keys and values alternate in data() as they would in the
+ * array a RESP2 server sends instead.
+ */
+public class MapReply extends MultiBulkReply {
+  public static final char MARKER = '%';
+
+  public MapReply(Reply[] keysAndValues) {
+    super(keysAndValues);
+    if (keysAndValues.length % 2 != 0) {
+      throw new IllegalArgumentException("Odd number of replies");
+    }
+  }
+
+  /**
+   * @return the number of entries
+   */
+  public int size() {
+    return data().length / 2;
+  }
+
+  @Override
+  public void write(OutputStream os) throws IOException {
+    write(os, MARKER, size());
+  }
+}
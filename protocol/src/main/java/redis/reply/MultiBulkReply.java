@@ -52,11 +52,19 @@ public class MultiBulkReply implements Reply<Reply[]> {
 
   @Override
   public void write(OutputStream os) throws IOException {
-    os.write(MARKER);
+    write(os, MARKER, replies == null ? -1 : replies.length);
+  }
+
+  /**
+   * Write the replies after a header, for the RESP3 aggregates that are
+   * arrays with another marker or size.
+   */
+  void write(OutputStream os, char marker, int size) throws IOException {
+    os.write(marker);
     if (replies == null) {
       os.write(NEG_ONE_WITH_CRLF);
     } else {
-      os.write(RedisProtocol.toBytes(replies.length));
+      os.write(RedisProtocol.toBytes(size));
       os.write(CRLF);
       for (Reply reply : replies) {
         reply.write(os);
@@ -0,0 +1,26 @@
+package redis.reply;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The null of RESP3, which takes the place of a missing bulk value or array.
+ */
+public class NullReply implements Reply<Object> {
+  public static final char MARKER = '_';
+  public static final NullReply NULL = new NullReply();
+
+  private NullReply() {
+  }
+
+  @Override
+  public Object data() {
+    return null;
+  }
+
+  @Override
+  public void write(OutputStream os) throws IOException {
+    os.write(MARKER);
+    os.write(CRLF);
+  }
+}
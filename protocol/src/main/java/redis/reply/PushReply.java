@@ -0,0 +1,34 @@
+package redis.reply;
+
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Data the server pushes outside of the replies to commands, such as
+ * messages and invalidations. The first element says what kind it is.
+ */
+public class PushReply extends MultiBulkReply {
+  public static final char MARKER = '>';
+
+  public PushReply(Reply[] replies) {
+    super(replies);
+    if (replies.length == 0) {
+      throw new IllegalArgumentException("A push needs a kind");
+    }
+  }
+
+  /**
+   * @return what kind of push it is, such as message or invalidate
+   */
+  public String kind() {
+    Object kind = data()[0].data();
+    return kind instanceof byte[] ? new String((byte[]) kind, Charsets.UTF_8) : String.valueOf(kind);
+  }
+
+  @Override
+  public void write(OutputStream os) throws IOException {
+    write(os, MARKER, data().length);
+  }
+}
@@ -0,0 +1,20 @@
+package redis.reply;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A RESP3 set, an array whose elements are unique.
+ */
+public class SetReply extends MultiBulkReply {
+  public static final char MARKER = '~';
+
+  public SetReply(Reply[] replies) {
+    super(replies);
+  }
+
+  @Override
+  public void write(OutputStream os) throws IOException {
+    write(os, MARKER, data().length);
+  }
+}
@@ -13,6 +13,10 @@ import java.nio.charset.Charset;
 */
 public class StatusReply implements Reply<String> {
   public static final char MARKER = '+';
+  // Shared by the parser
+  public static final StatusReply OK = new StatusReply("OK");
+  public static final StatusReply PONG = new StatusReply("PONG");
+  public static final StatusReply QUEUED = new StatusReply("QUEUED");
   private final String status;
   private byte[] statusBytes;
 
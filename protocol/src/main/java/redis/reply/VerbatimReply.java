@@ -0,0 +1,39 @@
+package redis.reply;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import redis.RedisProtocol;
+
+/**
+ * A RESP3 bulk value that comes with its format, txt or mkd, so it can be
+ * shown as it is. The format isn't part of the value.
+ */
+public class VerbatimReply extends BulkReply {
+  public static final char MARKER = '=';
+  private final String format;
+
+  public VerbatimReply(String format, byte[] bytes) {
+    super(bytes);
+    if (format.length() != 3) {
+      throw new IllegalArgumentException("Invalid format: " + format);
+    }
+    this.format = format;
+  }
+
+  public String format() {
+    return format;
+  }
+
+  @Override
+  public void write(OutputStream os) throws IOException {
+    byte[] bytes = data();
+    os.write(MARKER);
+    os.write(RedisProtocol.toBytes(bytes.length + 4));
+    os.write(CRLF);
+    os.write(format.getBytes());
+    os.write(':');
+    os.write(bytes);
+    os.write(CRLF);
+  }
+}
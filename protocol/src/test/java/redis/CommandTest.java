@@ -7,9 +7,11 @@ import redis.reply.MultiBulkReply;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
 import static redis.util.Encoding.numToBytes;
 
 /**
@@ -29,6 +31,25 @@ public class CommandTest {
     assertEquals("12345678\r\n", new String(numToBytes(12345678, true)));
   }
 
+  @Test
+  public void testStreamed() throws IOException {
+    byte[] value = new byte[200000];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = (byte) i;
+    }
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    new Command("SET", "key", value).write(expected);
+    ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+    new Command("SET", "key", new Command.Streamed(new ByteArrayInputStream(value), value.length)).write(streamed);
+    assertEquals(new String(expected.toByteArray(), Charsets.ISO_8859_1), new String(streamed.toByteArray(), Charsets.ISO_8859_1));
+    try {
+      new Command("SET", "key", new Command.Streamed(new ByteArrayInputStream(value), value.length + 1)).write(new ByteArrayOutputStream());
+      fail("Stream is short");
+    } catch (EOFException e) {
+      // Expected
+    }
+  }
+
   @Test
   public void benchmark() {
     if (System.getenv().containsKey("CI") || System.getProperty("CI") != null) return;
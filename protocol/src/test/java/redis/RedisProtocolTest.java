@@ -0,0 +1,202 @@
+package redis;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.reply.ErrorReply;
+import redis.reply.MapReply;
+import redis.reply.PushReply;
+import redis.reply.Reply;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Batching commands into fewer writes and negotiating the protocol.
+ */
+public class RedisProtocolTest {
+  private static final byte[] PING = "*1\r\n$4\r\nPING\r\n".getBytes();
+
+  private ServerSocket serverSocket;
+  private RedisProtocol client;
+  private Socket server;
+
+  @Before
+  public void setUp() throws IOException {
+    serverSocket = new ServerSocket(0);
+    client = new RedisProtocol(new Socket("localhost", serverSocket.getLocalPort()));
+    server = serverSocket.accept();
+    server.setSoTimeout(100);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    client.close();
+    server.close();
+    serverSocket.close();
+  }
+
+  @Test
+  public void testBatching() throws Exception {
+    client.setBatching(0, TimeUnit.MILLISECONDS);
+    long writes = client.getWrites();
+    for (int i = 0; i < 3; i++) {
+      client.sendAsync(new Command("PING"));
+    }
+    assertEquals(0, read(server.getInputStream()));
+    // Waiting for the first reply sends them all at once
+    ExecutorService es = Executors.newSingleThreadExecutor();
+    Future<Reply> first = es.submit(new Callable<Reply>() {
+      @Override
+      public Reply call() throws Exception {
+        return client.receive();
+      }
+    });
+    assertEquals(3 * PING.length, read(server.getInputStream()));
+    assertEquals(writes + 1, client.getWrites());
+    server.getOutputStream().write("+PONG\r\n+PONG\r\n+PONG\r\n".getBytes());
+    assertEquals("PONG", first.get().data());
+    es.shutdown();
+    // Replies already buffered don't flush
+    client.sendAsync(new Command("PING"));
+    assertEquals("PONG", client.receive().data());
+    assertEquals("PONG", client.receive().data());
+    assertEquals(0, read(server.getInputStream()));
+    client.flush();
+    assertEquals(PING.length, read(server.getInputStream()));
+
+    // Turning batching off flushes
+    client.sendAsync(new Command("PING"));
+    client.setBatching(-1, TimeUnit.MILLISECONDS);
+    assertEquals(PING.length, read(server.getInputStream()));
+    client.sendAsync(new Command("PING"));
+    assertEquals(PING.length, read(server.getInputStream()));
+
+    // Closing sends what is batched
+    client.setBatching(0, TimeUnit.MILLISECONDS);
+    client.sendAsync(new Command("PING"));
+    client.close();
+    assertEquals(PING.length, read(server.getInputStream()));
+  }
+
+  @Test
+  public void testFlushDelay() throws Exception {
+    client.setBatching(10, TimeUnit.MILLISECONDS);
+    client.sendAsync(new Command("PING"));
+    ExecutorService es = Executors.newSingleThreadExecutor();
+    Future<Reply> first = es.submit(new Callable<Reply>() {
+      @Override
+      public Reply call() throws Exception {
+        return client.receive();
+      }
+    });
+    assertEquals(PING.length, read(server.getInputStream()));
+    Thread.sleep(10);
+    // Sent while the first reply is waited for, so the timer flushes it
+    client.sendAsync(new Command("PING"));
+    assertEquals(PING.length, read(server.getInputStream()));
+    server.getOutputStream().write("+PONG\r\n+PONG\r\n".getBytes());
+    assertEquals("PONG", first.get().data());
+    assertEquals("PONG", client.receive().data());
+    es.shutdown();
+  }
+
+  @Test
+  public void testHello() throws Exception {
+    byte[] hello = "*2\r\n$5\r\nHELLO\r\n$1\r\n3\r\n".getBytes();
+    ExecutorService es = Executors.newSingleThreadExecutor();
+    Callable<Reply> negotiate = new Callable<Reply>() {
+      @Override
+      public Reply call() throws Exception {
+        return client.hello(3);
+      }
+    };
+    // Older servers don't know HELLO and stay on RESP2
+    Future<Reply> reply = es.submit(negotiate);
+    assertEquals(hello.length, read(server.getInputStream()));
+    server.getOutputStream().write("-ERR unknown command 'HELLO'\r\n".getBytes());
+    assertTrue(reply.get() instanceof ErrorReply);
+    assertEquals(2, client.getVersion());
+
+    reply = es.submit(negotiate);
+    assertEquals(hello.length, read(server.getInputStream()));
+    server.getOutputStream().write("%2\r\n$6\r\nserver\r\n$5\r\nredis\r\n$5\r\nproto\r\n:3\r\n".getBytes());
+    MapReply properties = (MapReply) reply.get();
+    assertEquals(2, properties.size());
+    assertEquals("redis", new String((byte[]) properties.data()[1].data()));
+    assertEquals(3, client.getVersion());
+    es.shutdown();
+
+    // Pushes go to the listener rather than being taken for replies
+    final List<PushReply> pushes = new ArrayList<PushReply>();
+    client.setPushListener(new PushListener() {
+      @Override
+      public void pushed(PushReply push) {
+        pushes.add(push);
+      }
+    });
+    client.sendAsync(new Command("PING"));
+    server.getOutputStream().write(">2\r\n$10\r\ninvalidate\r\n*1\r\n$3\r\nkey\r\n+PONG\r\n".getBytes());
+    assertEquals("PONG", client.receive().data());
+    assertEquals(1, pushes.size());
+    assertEquals("invalidate", pushes.get(0).kind());
+  }
+
+  @Test
+  public void testPushBeforeBatchedReply() throws Exception {
+    final List<PushReply> pushes = new ArrayList<PushReply>();
+    client.setPushListener(new PushListener() {
+      @Override
+      public void pushed(PushReply push) {
+        pushes.add(push);
+      }
+    });
+    client.setBatching(0, TimeUnit.MILLISECONDS);
+    // A push is waiting when the reply to a batched command is waited for
+    server.getOutputStream().write(">2\r\n$10\r\ninvalidate\r\n*1\r\n$3\r\nkey\r\n".getBytes());
+    Thread.sleep(50);
+    client.sendAsync(new Command("PING"));
+    ExecutorService es = Executors.newSingleThreadExecutor();
+    Future<Reply> reply = es.submit(new Callable<Reply>() {
+      @Override
+      public Reply call() throws Exception {
+        return client.receive();
+      }
+    });
+    assertEquals(PING.length, read(server.getInputStream()));
+    server.getOutputStream().write("+PONG\r\n".getBytes());
+    assertEquals("PONG", reply.get().data());
+    assertEquals(1, pushes.size());
+    es.shutdown();
+  }
+
+  /**
+   * @return the bytes that arrive before the socket times out
+   */
+  private static int read(InputStream is) throws IOException {
+    int total = 0;
+    byte[] buffer = new byte[1024];
+    try {
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        total += read;
+      }
+    } catch (SocketTimeoutException e) {
+      // Nothing more
+    }
+    return total;
+  }
+}
@@ -0,0 +1,468 @@
+package redis;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+import redis.reply.AttributeReply;
+import redis.reply.BigNumberReply;
+import redis.reply.BooleanReply;
+import redis.reply.BulkReply;
+import redis.reply.DoubleReply;
+import redis.reply.ErrorReply;
+import redis.reply.IntegerReply;
+import redis.reply.MapReply;
+import redis.reply.MultiBulkReply;
+import redis.reply.NullReply;
+import redis.reply.PushReply;
+import redis.reply.Reply;
+import redis.reply.SetReply;
+import redis.reply.StatusReply;
+import redis.reply.VerbatimReply;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the windowed reply parser against the stream parser.
+ */
+public class ReplyParserTest {
+  @Test
+  public void testReplies() throws IOException {
+    String line = Strings.repeat("long status ", 100);
+    byte[] large = new byte[100000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) i;
+    }
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    Reply[] replies = {
+            new StatusReply("OK"),
+            new StatusReply(line),
+            new ErrorReply("ERR " + line),
+            new IntegerReply(-1234567890123L),
+            new IntegerReply(0),
+            new BulkReply("foobar".getBytes()),
+            new BulkReply(new byte[0]),
+            new BulkReply(large),
+            new MultiBulkReply((Reply[]) null),
+            new MultiBulkReply(new Reply[] {
+                    new StatusReply("PONG"),
+                    new MultiBulkReply(new Reply[0]),
+                    new BulkReply("foobar".getBytes()),
+                    new IntegerReply(999)})
+    };
+    for (Reply reply : replies) {
+      reply.write(os);
+    }
+    // A missing value
+    os.write("$-1\r\n".getBytes());
+    byte[] bytes = os.toByteArray();
+    // A window smaller than the lines and values, fed a byte at a time and all at once
+    for (InputStream is : new InputStream[] { trickle(bytes), new ByteArrayInputStream(bytes) }) {
+      ReplyParser parser = new ReplyParser(is, 16);
+      InputStream expected = new ByteArrayInputStream(bytes);
+      for (int i = 0; i <= replies.length; i++) {
+        assertReply(RedisProtocol.receive(expected), parser.read());
+      }
+      assertEquals(0, parser.available());
+      try {
+        parser.read();
+        fail("Should have ended");
+      } catch (EOFException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testByteAtATime() throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new StatusReply("OK").write(os);
+    new BulkReply("foobar".getBytes()).write(os);
+    new MultiBulkReply(new Reply[] { new IntegerReply(1), new BulkReply(new byte[0]) }).write(os);
+    BooleanReply.TRUE.write(os);
+    byte[] bytes = os.toByteArray();
+    // Reads hand over a byte at most and some hand over nothing, so a line
+    // ending arrives in pieces wherever it falls
+    for (int skip = 1; skip <= 3; skip++) {
+      final int every = skip;
+      InputStream is = new FilterInputStream(new ByteArrayInputStream(bytes)) {
+        int reads;
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          return reads++ % every == 1 ? 0 : super.read(b, off, Math.min(len, 1));
+        }
+      };
+      ReplyParser parser = new ReplyParser(is, 16);
+      InputStream expected = new ByteArrayInputStream(bytes);
+      for (int i = 0; i < 4; i++) {
+        assertReply(RedisProtocol.receive(expected), parser.read());
+      }
+    }
+  }
+
+  @Test
+  public void testVisitor() throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new MultiBulkReply(new Reply[] {
+            new StatusReply("OK"),
+            new ErrorReply("ERR"),
+            new IntegerReply(-1),
+            new BulkReply("foobar".getBytes()),
+            new BulkReply(new byte[40]),
+            new MultiBulkReply((Reply[]) null),
+            new MultiBulkReply(new Reply[] { new IntegerReply(2) })}).write(os);
+    os.write("$-1\r\n".getBytes());
+    Recorder visitor = new Recorder();
+    // Values smaller and larger than the window
+    ReplyParser parser = new ReplyParser(trickle(os.toByteArray()), 16);
+    parser.read(visitor);
+    parser.read(visitor);
+    assertEquals("[7+OK-ERR:-1$foobar$" + new String(new byte[40]) + "[-1][1:2]]$null", visitor.toString());
+  }
+
+  @Test
+  public void testResp3() throws IOException {
+    byte[] large = new byte[100];
+    Reply[] replies = {
+            NullReply.NULL,
+            BooleanReply.TRUE,
+            BooleanReply.FALSE,
+            new DoubleReply(3.14),
+            new DoubleReply(-1e300),
+            new DoubleReply(Double.POSITIVE_INFINITY),
+            new BigNumberReply(new BigInteger("3492890328409238509324850943850943825024385")),
+            new VerbatimReply("txt", "Some string".getBytes()),
+            new VerbatimReply("mkd", large),
+            new MapReply(new Reply[] {
+                    new BulkReply("first".getBytes()), new IntegerReply(1),
+                    new BulkReply("second".getBytes()), new SetReply(new Reply[] { new DoubleReply(2.5) })}),
+            new PushReply(new Reply[] { new BulkReply("invalidate".getBytes()),
+                    new MultiBulkReply(new Reply[] { new BulkReply("key".getBytes()) })}),
+            new AttributeReply(new MapReply(new Reply[] { new StatusReply("ttl"), new IntegerReply(3600) }),
+                    new BulkReply("value".getBytes()))
+    };
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    for (Reply reply : replies) {
+      reply.write(os);
+    }
+    os.write("!21\r\nSYNTAX invalid syntax\r\n".getBytes());
+    byte[] bytes = os.toByteArray();
+    for (InputStream is : new InputStream[] { trickle(bytes), new ByteArrayInputStream(bytes) }) {
+      ReplyParser parser = new ReplyParser(is, 16);
+      InputStream expected = new ByteArrayInputStream(bytes);
+      for (Reply reply : replies) {
+        Reply read = parser.read();
+        assertReply(reply, read);
+        assertReply(reply, RedisProtocol.receive(expected));
+      }
+      assertEquals("SYNTAX invalid syntax", ((ErrorReply) parser.read()).data());
+      assertEquals("SYNTAX invalid syntax", RedisProtocol.receive(expected).data());
+    }
+    ReplyParser parser = new ReplyParser(new ByteArrayInputStream(bytes));
+    assertSame(NullReply.NULL, parser.read());
+    assertTrue(((BooleanReply) parser.read()).value());
+    assertSame(BooleanReply.FALSE, parser.read());
+    assertEquals(3.14, ((DoubleReply) parser.read()).value(), 0);
+    parser.read();
+    parser.read();
+    parser.read();
+    VerbatimReply verbatim = (VerbatimReply) parser.read();
+    assertEquals("txt", verbatim.format());
+    assertEquals("Some string", verbatim.asAsciiString());
+    parser.read();
+    // Keys and values alternate as they would in the array of RESP2
+    assertEquals(2, ((MapReply) parser.read()).size());
+    PushReply push = (PushReply) parser.read();
+    assertEquals("invalidate", push.kind());
+    assertTrue(parser.available() > 0);
+
+    // Handed to a visitor as the RESP2 types they stand for
+    parser = new ReplyParser(trickle(bytes), 16);
+    Recorder visitor = new Recorder();
+    for (int i = 0; i <= replies.length; i++) {
+      parser.read(visitor);
+    }
+    assertEquals("$null:1:0$3.14$-1.0E300$inf$3492890328409238509324850943850943825024385$Some string$"
+            + new String(large) + "[4$first:1$second[1$2.5]][2$invalidate[1$key]]$value-SYNTAX invalid syntax",
+            visitor.toString());
+  }
+
+  @Test
+  public void testPush() throws IOException {
+    ReplyParser parser = new ReplyParser(new ByteArrayInputStream(">2\r\n$7\r\nmessage\r\n:1\r\n_\r\n".getBytes()));
+    assertTrue(parser.isPush());
+    assertTrue(parser.read() instanceof PushReply);
+    assertTrue(!parser.isPush());
+    // A missing value streamed
+    assertEquals(-1L, parser.read(new ByteArrayOutputStream()).data());
+  }
+
+  @Test
+  public void testVisitorMemory() throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    int size = 1000000;
+    os.write(("*" + size + "\r\n").getBytes());
+    for (int i = 0; i < size; i++) {
+      new BulkReply(("element:" + i).getBytes()).write(os);
+    }
+    ReplyParser parser = new ReplyParser(new ByteArrayInputStream(os.toByteArray()));
+    final long[] total = new long[1];
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long allocated = threads.getThreadAllocatedBytes(thread);
+    parser.read(new ReplyVisitor() {
+      @Override
+      public void status(String status) {
+      }
+
+      @Override
+      public void error(String error) {
+      }
+
+      @Override
+      public void integer(long integer) {
+      }
+
+      @Override
+      public void bulk(byte[] bytes, int offset, int length) {
+        total[0] += length;
+      }
+
+      @Override
+      public void arrayStart(int size) {
+      }
+
+      @Override
+      public void arrayEnd() {
+      }
+    });
+    allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+    assertEquals(13888890, total[0]);
+    // Nothing per element, where the replies would take tens of megabytes
+    assertTrue("Allocated " + allocated, allocated < 1024 * 1024);
+  }
+
+  @Test
+  public void testStreamed() throws IOException {
+    byte[] large = new byte[200000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) i;
+    }
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new BulkReply(large).write(os);
+    os.write("$-1\r\n".getBytes());
+    new BulkReply(new byte[0]).write(os);
+    new ErrorReply("ERR").write(os);
+    new StatusReply("OK").write(os);
+    for (InputStream is : new InputStream[] { trickle(os.toByteArray()), new ByteArrayInputStream(os.toByteArray()) }) {
+      ReplyParser parser = new ReplyParser(is, 16);
+      ByteArrayOutputStream value = new ByteArrayOutputStream();
+      assertEquals(200000L, parser.read(value).data());
+      assertArrayEquals(large, value.toByteArray());
+      value.reset();
+      assertEquals(-1L, parser.read(value).data());
+      assertEquals(0L, parser.read(value).data());
+      assertEquals(0, value.size());
+      assertEquals("ERR", ((ErrorReply) parser.read(value)).data());
+      // Back in step
+      assertSame(StatusReply.OK, parser.read());
+    }
+  }
+
+  @Test
+  public void testShared() throws IOException {
+    ReplyParser parser = new ReplyParser(new ByteArrayInputStream("+OK\r\n+PONG\r\n+QUEUED\r\n+OKAY\r\n".getBytes()));
+    assertSame(StatusReply.OK, parser.read());
+    assertSame(StatusReply.PONG, parser.read());
+    assertSame(StatusReply.QUEUED, parser.read());
+    assertEquals("OKAY", parser.read().data());
+  }
+
+  @Test
+  public void testInvalid() throws IOException {
+    for (String invalid : new String[] { ":12a\r\n", "$3\r\nfoobar\r\n", "+OK\r\r", "!\r\n" }) {
+      try {
+        new ReplyParser(new ByteArrayInputStream(invalid.getBytes())).read();
+        fail("Should have failed: " + invalid);
+      } catch (IOException e) {
+        // Expected
+      }
+    }
+    // The stream parser is as strict about the RESP3 lines
+    for (String invalid : new String[] { "_x\r\n", "#tt\r\n", "#t\n", ",1.5\n", "(12" }) {
+      try {
+        RedisProtocol.receive(new ByteArrayInputStream(invalid.getBytes()));
+        fail("Should have failed: " + invalid);
+      } catch (IOException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void parserBench() throws IOException {
+    if (System.getenv().containsKey("CI") || System.getProperty("CI") != null) return;
+    ByteArrayOutputStream get = new ByteArrayOutputStream();
+    new BulkReply(Strings.repeat("x", 100).getBytes()).write(get);
+    ByteArrayOutputStream lrange = new ByteArrayOutputStream();
+    Reply[] elements = new Reply[100];
+    for (int i = 0; i < elements.length; i++) {
+      elements[i] = new BulkReply(("element:" + i).getBytes());
+    }
+    new MultiBulkReply(elements).write(lrange);
+    ByteArrayOutputStream hgetall = new ByteArrayOutputStream();
+    Reply[] fields = new Reply[200];
+    for (int i = 0; i < fields.length; i += 2) {
+      fields[i] = new BulkReply(("field:" + i).getBytes());
+      fields[i + 1] = new BulkReply(Strings.repeat("v", 32).getBytes());
+    }
+    new MultiBulkReply(fields).write(hgetall);
+    bench("GET", get.toByteArray(), 1000000);
+    bench("LRANGE 100", lrange.toByteArray(), 50000);
+    bench("HGETALL 100", hgetall.toByteArray(), 25000);
+  }
+
+  private static void bench(String name, byte[] reply, int n) throws IOException {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    for (int round = 0; round < 5; round++) {
+      InputStream is = repeat(reply);
+      long start = System.nanoTime();
+      long allocated = threads.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < n; i++) {
+        RedisProtocol.receive(is);
+      }
+      long stream = System.nanoTime() - start;
+      long streamAllocated = threads.getThreadAllocatedBytes(thread) - allocated;
+      ReplyParser parser = new ReplyParser(repeat(reply));
+      start = System.nanoTime();
+      allocated = threads.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < n; i++) {
+        parser.read();
+      }
+      long window = System.nanoTime() - start;
+      long windowAllocated = threads.getThreadAllocatedBytes(thread) - allocated;
+      System.out.printf("%s: stream %d ns %d bytes, window %d ns %d bytes per reply\n", name,
+              stream / n, streamAllocated / n, window / n, windowAllocated / n);
+    }
+  }
+
+  /**
+   * The reply over and over, buffered the way the socket is.
+   */
+  private static InputStream repeat(final byte[] reply) {
+    final byte[] chunk = new byte[64 * 1024 / reply.length * reply.length];
+    for (int i = 0; i < chunk.length; i += reply.length) {
+      System.arraycopy(reply, 0, chunk, i, reply.length);
+    }
+    return new BufferedInputStream(new InputStream() {
+      int position;
+
+      @Override
+      public int read() throws IOException {
+        if (position == chunk.length) position = 0;
+        return chunk[position++] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (position == chunk.length) position = 0;
+        int read = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk, position, b, off, read);
+        position += read;
+        return read;
+      }
+    });
+  }
+
+  /**
+   * Writes down what it is handed.
+   */
+  private static class Recorder implements ReplyVisitor {
+    private final StringBuilder sb = new StringBuilder();
+
+    @Override
+    public void status(String status) {
+      sb.append("+").append(status);
+    }
+
+    @Override
+    public void error(String error) {
+      sb.append("-").append(error);
+    }
+
+    @Override
+    public void integer(long integer) {
+      sb.append(":").append(integer);
+    }
+
+    @Override
+    public void bulk(byte[] bytes, int offset, int length) {
+      sb.append("$").append(bytes == null ? "null" : new String(bytes, offset, length));
+    }
+
+    @Override
+    public void arrayStart(int size) {
+      sb.append("[").append(size);
+    }
+
+    @Override
+    public void arrayEnd() {
+      sb.append("]");
+    }
+
+    @Override
+    public String toString() {
+      return sb.toString();
+    }
+  }
+
+  private static InputStream trickle(byte[] bytes) {
+    return new FilterInputStream(new ByteArrayInputStream(bytes)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 1));
+      }
+    };
+  }
+
+  private static void assertReply(Reply expected, Reply actual) {
+    assertEquals(expected.getClass(), actual.getClass());
+    Object data = expected.data();
+    if (expected instanceof VerbatimReply) {
+      assertEquals(((VerbatimReply) expected).format(), ((VerbatimReply) actual).format());
+    } else if (expected instanceof AttributeReply) {
+      assertReply(((AttributeReply) expected).attributes(), ((AttributeReply) actual).attributes());
+      assertReply((Reply) data, (Reply) actual.data());
+      return;
+    }
+    if (data instanceof byte[]) {
+      assertArrayEquals((byte[]) data, (byte[]) actual.data());
+    } else if (data instanceof Reply[]) {
+      Reply[] replies = (Reply[]) data;
+      Reply[] actuals = (Reply[]) actual.data();
+      assertEquals(replies.length, actuals.length);
+      for (int i = 0; i < replies.length; i++) {
+        assertReply(replies[i], actuals[i]);
+      }
+    } else if (data == null) {
+      assertNull(actual.data());
+    } else {
+      assertEquals(data, actual.data());
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package redis.util;
+
+/**
+ * A string value kept as 64 bit words for the bit commands. Bytes are packed
+ * big endian so bit n of the string, counting from the most significant bit
+ * of the first byte, is bit 63 - n % 64 of word n / 64. Bits past the length
+ * of the string are always zero and the words grow by half again when a bit
+ * past the end is set, so setting bits at increasing offsets is amortized
+ * constant time.
+ */
+public class Bitmap {
+  /**
+   * Strings are limited to 512 MB.
+   */
+  public static final long MAX_BITS = 1L << 32;
+
+  private static final long[] EMPTY = new long[0];
+
+  private long[] words;
+  private int length;
+  private byte[] bytes;
+
+  public Bitmap() {
+    words = EMPTY;
+  }
+
+  public Bitmap(byte[] bytes) {
+    length = bytes.length;
+    words = new long[(length + 7) >>> 3];
+    int full = length >>> 3;
+    for (int i = 0; i < full; i++) {
+      int b = i << 3;
+      words[i] = (bytes[b] & 0xFFL) << 56 | (bytes[b + 1] & 0xFFL) << 48 | (bytes[b + 2] & 0xFFL) << 40 |
+              (bytes[b + 3] & 0xFFL) << 32 | (bytes[b + 4] & 0xFFL) << 24 | (bytes[b + 5] & 0xFFL) << 16 |
+              (bytes[b + 6] & 0xFFL) << 8 | (bytes[b + 7] & 0xFFL);
+    }
+    for (int b = full << 3; b < length; b++) {
+      words[full] |= (bytes[b] & 0xFFL) << (56 - ((b & 7) << 3));
+    }
+  }
+
+  private Bitmap(long[] words, int length) {
+    this.words = words;
+    this.length = length;
+  }
+
+  /**
+   * @return the length of the string in bytes
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * The bytes of the string, kept until the next bit is written so repeated
+   * reads of a large bitmap don't copy it each time. The array is shared and
+   * must not be changed.
+   */
+  public byte[] bytes() {
+    if (bytes == null) {
+      bytes = toBytes();
+    }
+    return bytes;
+  }
+
+  public byte[] toBytes() {
+    byte[] bytes = new byte[length];
+    int full = length >>> 3;
+    for (int i = 0; i < full; i++) {
+      long word = words[i];
+      int b = i << 3;
+      bytes[b] = (byte) (word >>> 56);
+      bytes[b + 1] = (byte) (word >>> 48);
+      bytes[b + 2] = (byte) (word >>> 40);
+      bytes[b + 3] = (byte) (word >>> 32);
+      bytes[b + 4] = (byte) (word >>> 24);
+      bytes[b + 5] = (byte) (word >>> 16);
+      bytes[b + 6] = (byte) (word >>> 8);
+      bytes[b + 7] = (byte) word;
+    }
+    for (int b = full << 3; b < length; b++) {
+      bytes[b] = (byte) (words[full] >>> (56 - ((b & 7) << 3)));
+    }
+    return bytes;
+  }
+
+  public boolean get(long bit) {
+    int index = (int) (bit >>> 6);
+    return index < words.length && (words[index] & (1L << ~bit)) != 0;
+  }
+
+  /**
+   * Set or clear a bit, growing the string to include it.
+   *
+   * @return the previous value of the bit
+   */
+  public boolean set(long bit, boolean value) {
+    ensure((bit >>> 3) + 1);
+    bytes = null;
+    int index = (int) (bit >>> 6);
+    long mask = 1L << ~bit;
+    boolean previous = (words[index] & mask) != 0;
+    if (value) {
+      words[index] |= mask;
+    } else {
+      words[index] &= ~mask;
+    }
+    return previous;
+  }
+
+  /**
+   * Count the set bits between two byte offsets, inclusive.
+   */
+  public long count(int start, int end) {
+    if (length == 0 || start > end || start >= length) return 0;
+    long from = (long) start << 3;
+    long to = ((long) Math.min(end, length - 1) + 1) << 3;
+    int first = (int) (from >>> 6);
+    int last = (int) ((to - 1) >>> 6);
+    long head = -1L >>> (from & 63);
+    long tail = -1L << (-to & 63);
+    if (first == last) {
+      return Long.bitCount(words[first] & head & tail);
+    }
+    long total = Long.bitCount(words[first] & head);
+    for (int i = first + 1; i < last; i++) {
+      total += Long.bitCount(words[i]);
+    }
+    return total + Long.bitCount(words[last] & tail);
+  }
+
+  /**
+   * Find the first bit with the value between two byte offsets, inclusive.
+   *
+   * @return the bit offset or -1 if there is none
+   */
+  public long position(boolean value, int start, int end) {
+    if (length == 0 || start > end || start >= length) return -1;
+    long from = (long) start << 3;
+    long to = ((long) Math.min(end, length - 1) + 1) << 3;
+    int first = (int) (from >>> 6);
+    int last = (int) ((to - 1) >>> 6);
+    long flip = value ? 0 : -1L;
+    for (int i = first; i <= last; i++) {
+      long word = words[i] ^ flip;
+      if (i == first) word &= -1L >>> (from & 63);
+      if (i == last) word &= -1L << (-to & 63);
+      if (word != 0) {
+        return ((long) i << 6) + Long.numberOfLeadingZeros(word);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Read an integer of up to 64 bits starting at any bit offset. Bits past
+   * the end of the string read as zero.
+   */
+  public long getField(long offset, int bits, boolean signed) {
+    int index = (int) (offset >>> 6);
+    int shift = (int) (offset & 63);
+    long value = word(index) << shift;
+    if (shift + bits > 64) {
+      value |= word(index + 1) >>> (64 - shift);
+    }
+    return signed ? value >> (64 - bits) : value >>> (64 - bits);
+  }
+
+  /**
+   * Write the low bits of the value as an integer of up to 64 bits starting
+   * at any bit offset, growing the string to include it.
+   */
+  public void setField(long offset, int bits, long value) {
+    ensure((offset + bits + 7) >>> 3);
+    bytes = null;
+    int index = (int) (offset >>> 6);
+    int shift = (int) (offset & 63);
+    long mask = -1L << (64 - bits);
+    long aligned = value << (64 - bits);
+    words[index] = (words[index] & ~(mask >>> shift)) | (aligned >>> shift);
+    if (shift + bits > 64) {
+      int spill = 64 - shift;
+      words[index + 1] = (words[index + 1] & ~(mask << spill)) | (aligned << spill);
+    }
+  }
+
+  public static Bitmap and(Bitmap[] sources) {
+    Bitmap result = longest(sources);
+    long[] words = result.words;
+    System.arraycopy(sources[0].words, 0, words, 0, sources[0].used());
+    for (int s = 1; s < sources.length; s++) {
+      long[] source = sources[s].words;
+      int used = sources[s].used();
+      for (int i = 0; i < used; i++) {
+        words[i] &= source[i];
+      }
+      // Shorter strings are padded with zeros
+      for (int i = used; i < words.length; i++) {
+        words[i] = 0;
+      }
+    }
+    return result;
+  }
+
+  public static Bitmap or(Bitmap[] sources) {
+    Bitmap result = longest(sources);
+    long[] words = result.words;
+    for (Bitmap bitmap : sources) {
+      long[] source = bitmap.words;
+      int used = bitmap.used();
+      for (int i = 0; i < used; i++) {
+        words[i] |= source[i];
+      }
+    }
+    return result;
+  }
+
+  public static Bitmap xor(Bitmap[] sources) {
+    Bitmap result = longest(sources);
+    long[] words = result.words;
+    for (Bitmap bitmap : sources) {
+      long[] source = bitmap.words;
+      int used = bitmap.used();
+      for (int i = 0; i < used; i++) {
+        words[i] ^= source[i];
+      }
+    }
+    return result;
+  }
+
+  public static Bitmap not(Bitmap source) {
+    Bitmap result = new Bitmap(new long[source.used()], source.length);
+    long[] words = result.words;
+    for (int i = 0; i < words.length; i++) {
+      words[i] = ~source.words[i];
+    }
+    result.clearTail();
+    return result;
+  }
+
+  private static Bitmap longest(Bitmap[] sources) {
+    int length = 0;
+    for (Bitmap bitmap : sources) {
+      length = Math.max(length, bitmap.length);
+    }
+    return new Bitmap(new long[(length + 7) >>> 3], length);
+  }
+
+  private int used() {
+    return (length + 7) >>> 3;
+  }
+
+  private long word(int index) {
+    return index < words.length ? words[index] : 0;
+  }
+
+  private void ensure(long bytes) {
+    if (bytes <= length) return;
+    if (bytes > MAX_BITS >>> 3) {
+      throw new IllegalArgumentException("Bitmaps are limited to 512 MB");
+    }
+    int needed = (int) ((bytes + 7) >>> 3);
+    if (needed > words.length) {
+      long[] grown = new long[Math.max(needed, Math.min(words.length + (words.length >> 1), (int) (MAX_BITS >>> 6)))];
+      System.arraycopy(words, 0, grown, 0, words.length);
+      words = grown;
+    }
+    length = (int) bytes;
+  }
+
+  private void clearTail() {
+    if ((length & 7) != 0) {
+      words[length >>> 3] &= -1L << ((8 - (length & 7)) << 3);
+    }
+  }
+}
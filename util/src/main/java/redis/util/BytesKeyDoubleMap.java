@@ -0,0 +1,105 @@
+package redis.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from keys to primitive doubles so that aggregating
+ * scores never boxes them. Keys can be added and their values changed but
+ * they cannot be removed.
+ */
+public class BytesKeyDoubleMap {
+  private BytesKey[] keys;
+  private double[] values;
+  private int size;
+
+  public BytesKeyDoubleMap(int expected) {
+    int capacity = 16;
+    while (capacity < expected * 2) {
+      capacity <<= 1;
+    }
+    keys = new BytesKey[capacity];
+    values = new double[capacity];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the index of the key or -1 if it is not in the map
+   */
+  public int indexOf(BytesKey key) {
+    int mask = keys.length - 1;
+    for (int i = hash(key) & mask; keys[i] != null; i = (i + 1) & mask) {
+      if (keys[i].equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public double valueAt(int index) {
+    return values[index];
+  }
+
+  public void setValueAt(int index, double value) {
+    values[index] = value;
+  }
+
+  public void put(BytesKey key, double value) {
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (keys[i] != null) {
+      if (keys[i].equals(key)) {
+        values[i] = value;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size * 2 > keys.length) {
+      grow();
+    }
+  }
+
+  /**
+   * Copy the keys and values out into the start of the given arrays.
+   */
+  public void copyTo(BytesKey[] keys, double[] values) {
+    int j = 0;
+    for (int i = 0; i < this.keys.length; i++) {
+      if (this.keys[i] != null) {
+        keys[j] = this.keys[i];
+        values[j++] = this.values[i];
+      }
+    }
+  }
+
+  private void grow() {
+    BytesKey[] oldKeys = keys;
+    double[] oldValues = values;
+    keys = new BytesKey[oldKeys.length * 2];
+    values = new double[oldValues.length * 2];
+    int mask = keys.length - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldKeys[j] != null) {
+        int i = hash(oldKeys[j]) & mask;
+        while (keys[i] != null) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  /**
+   * BytesKey.hashCode only sums the bytes, which clusters far too much for
+   * linear probing.
+   */
+  private static int hash(BytesKey key) {
+    int h = Arrays.hashCode(key.getBytes()) * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
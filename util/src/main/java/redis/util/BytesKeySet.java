@@ -8,6 +8,16 @@ import java.util.HashSet;
 */
 public class BytesKeySet extends HashSet<BytesKey> {
 
+  public BytesKeySet() {
+  }
+
+  /**
+   * Sized to hold the expected number of members without rehashing.
+   */
+  public BytesKeySet(int expected) {
+    super(Math.max((int) (expected / .75f) + 1, 16));
+  }
+
   public boolean add(byte[] member) {
     return super.add(new BytesKey(member));
   }
@@ -0,0 +1,66 @@
+package redis.util;
+
+/**
+ * CRC16 (XMODEM) as used by Redis Cluster to map keys to one of the 16384
+ * hash slots. If the key contains a non-empty {hashtag} only the tag is hashed
+ * so related keys can be forced into the same slot.
+ */
+public class CRC16 {
+  public static final int SLOTS = 16384;
+
+  private static final int[] TABLE = new int[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      int crc = i << 8;
+      for (int j = 0; j < 8; j++) {
+        crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+      }
+      TABLE[i] = crc & 0xFFFF;
+    }
+  }
+
+  public static int crc16(byte[] bytes) {
+    return crc16(bytes, 0, bytes.length);
+  }
+
+  public static int crc16(byte[] bytes, int offset, int length) {
+    int crc = 0;
+    for (int i = offset; i < offset + length; i++) {
+      crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ bytes[i]) & 0xFF]) & 0xFFFF;
+    }
+    return crc;
+  }
+
+  /**
+   * The hash slot for a key, honoring {hashtag}s.
+   */
+  public static int slot(byte[] key) {
+    return crc16(hashed(key)) & (SLOTS - 1);
+  }
+
+  /**
+   * The part of a key that is hashed to place it, for the cluster slots and
+   * for client side sharding alike.
+   *
+   * @return the hashtag of the key if it has one, otherwise the key
+   */
+  public static byte[] hashed(byte[] key) {
+    for (int open = 0; open < key.length; open++) {
+      if (key[open] == '{') {
+        for (int close = open + 1; close < key.length; close++) {
+          if (key[close] == '}') {
+            if (close == open + 1) {
+              return key;
+            }
+            byte[] tag = new byte[close - open - 1];
+            System.arraycopy(key, open + 1, tag, 0, tag.length);
+            return tag;
+          }
+        }
+        return key;
+      }
+    }
+    return key;
+  }
+}
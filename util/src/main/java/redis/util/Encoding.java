@@ -71,6 +71,98 @@ public class Encoding {
     return bytes;
   }
 
+  private static final byte[] INF = "inf".getBytes();
+  private static final byte[] POS_INF = "+inf".getBytes();
+  private static final byte[] NEG_INF = "-inf".getBytes();
+  private static final byte[] NAN = "nan".getBytes();
+  // Every power of ten up to 10^22 is exact as a double
+  private static final double[] POWERS = new double[23];
+
+  static {
+    POWERS[0] = 1;
+    for (int i = 1; i < POWERS.length; i++) {
+      POWERS[i] = POWERS[i - 1] * 10;
+    }
+  }
+
+  /**
+   * Writes a double the way RESP3 does, integral values without a fraction.
+   */
+  public static byte[] doubleToBytes(double value) {
+    if (Double.isNaN(value)) {
+      return NAN;
+    } else if (Double.isInfinite(value)) {
+      return value > 0 ? INF : NEG_INF;
+    }
+    long integral = (long) value;
+    if (integral == value && Math.abs(integral) < 1000000000000000L
+            && (integral != 0 || 1 / value > 0)) {
+      return numToBytes(integral, false);
+    }
+    return Double.toString(value).getBytes();
+  }
+
+  /**
+   * Reads a double written the way RESP3 does. Up to 15 digits and no
+   * exponent are converted exactly without making a string.
+   */
+  public static double bytesToDouble(byte[] bytes, int offset, int length) {
+    if (length == 0) {
+      throw new IllegalArgumentException("value is not a valid float");
+    }
+    int position = offset;
+    int end = offset + length;
+    boolean negative = bytes[position] == '-';
+    if (negative || bytes[position] == '+') {
+      position++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fraction = -1;
+    for (; position < end; position++) {
+      int value = bytes[position] - '0';
+      if (value >= 0 && value < 10) {
+        mantissa = mantissa * 10 + value;
+        digits++;
+        if (fraction >= 0) {
+          fraction++;
+        }
+      } else if (bytes[position] == '.' && fraction == -1) {
+        fraction = 0;
+      } else {
+        break;
+      }
+    }
+    if (position == end && digits > 0 && digits <= 15) {
+      double value = fraction > 0 ? mantissa / POWERS[fraction] : mantissa;
+      return negative ? -value : value;
+    }
+    if (equals(bytes, offset, length, INF) || equals(bytes, offset, length, POS_INF)) {
+      return Double.POSITIVE_INFINITY;
+    } else if (equals(bytes, offset, length, NEG_INF)) {
+      return Double.NEGATIVE_INFINITY;
+    } else if (equals(bytes, offset, length, NAN)) {
+      return Double.NaN;
+    }
+    try {
+      return Double.parseDouble(new String(bytes, offset, length));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("value is not a valid float");
+    }
+  }
+
+  private static boolean equals(byte[] bytes, int offset, int length, byte[] expected) {
+    if (length != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (bytes[offset + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Reads a number from a byte array.
    * @param bytes
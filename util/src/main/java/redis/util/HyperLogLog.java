@@ -0,0 +1,500 @@
+package redis.util;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog cardinality estimator stored in a single byte[] using the same
+ * layout as Redis so that the value is an ordinary string to every other
+ * command:
+ * <p/>
+ * "HYLL", encoding, 3 unused bytes, cached cardinality (8 bytes, little endian,
+ * the high bit of the last byte set when stale), then the registers.
+ * <p/>
+ * There are 16384 registers of 6 bits giving a standard error of 0.81%. The
+ * dense encoding packs them into 12 KB. Small counters use the sparse
+ * encoding, a run length encoding of the registers, until it grows past
+ * SPARSE_MAX_BYTES or a register doesn't fit:
+ * <pre>
+ * 00xxxxxx          ZERO: 1 to 64 registers set to 0
+ * 01xxxxxx yyyyyyyy XZERO: 1 to 16384 registers set to 0
+ * 1vvvvvxx          VAL: 1 to 4 registers set to 1 to 32
+ * </pre>
+ */
+public class HyperLogLog {
+  public static final int P = 14;
+  public static final int REGISTERS = 1 << P;
+  public static final int HEADER = 16;
+  public static final int DENSE_SIZE = HEADER + (REGISTERS * 6 + 7) / 8;
+  public static final int SPARSE_MAX_BYTES = 3000;
+
+  private static final int Q = 64 - P;
+  private static final byte[] MAGIC = {'H', 'Y', 'L', 'L'};
+  private static final int DENSE = 0;
+  private static final int SPARSE = 1;
+  private static final int REGISTER_MAX = 63;
+  private static final int VAL_MAX_VALUE = 32;
+  private static final int VAL_MAX_LEN = 4;
+  private static final int ZERO_MAX_LEN = 64;
+  private static final int XZERO_MAX_LEN = 16384;
+  private static final int STALE = 0x80;
+  private static final double ALPHA_INF = 0.721347520444481703680;
+  private static final long SEED = 0xadc83b19L;
+
+  private byte[] bytes;
+
+  /**
+   * An empty counter in the sparse encoding.
+   */
+  public HyperLogLog() {
+    bytes = new byte[HEADER + 2];
+    System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+    bytes[4] = SPARSE;
+    xzero(bytes, HEADER, REGISTERS);
+  }
+
+  private HyperLogLog(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Use an existing string value as a counter.
+   *
+   * @throws IllegalArgumentException if it isn't a valid counter
+   */
+  public static HyperLogLog wrap(byte[] bytes) {
+    if (!isHyperLogLog(bytes)) {
+      throw new IllegalArgumentException("Not a valid HyperLogLog string value");
+    }
+    return new HyperLogLog(bytes);
+  }
+
+  public static boolean isHyperLogLog(byte[] bytes) {
+    if (bytes.length < HEADER) return false;
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (bytes[i] != MAGIC[i]) return false;
+    }
+    return bytes[4] == SPARSE ? isValidSparse(bytes) : bytes[4] == DENSE && bytes.length == DENSE_SIZE;
+  }
+
+  /**
+   * The opcodes must be complete and cover every register exactly once so the
+   * readers never walk off the end or past the last register.
+   */
+  private static boolean isValidSparse(byte[] bytes) {
+    int index = 0;
+    int p = HEADER;
+    while (p < bytes.length) {
+      int op = bytes[p] & 0xFF;
+      if ((op & 0xC0) == 0) {
+        index += (op & 0x3F) + 1;
+        p++;
+      } else if ((op & 0xC0) == 0x40) {
+        if (p + 1 >= bytes.length) return false;
+        index += (((op & 0x3F) << 8) | (bytes[p + 1] & 0xFF)) + 1;
+        p += 2;
+      } else {
+        index += (op & 3) + 1;
+        p++;
+      }
+      if (index > REGISTERS) return false;
+    }
+    return index == REGISTERS;
+  }
+
+  /**
+   * A dense counter from one register per byte.
+   */
+  public static HyperLogLog fromRegisters(byte[] registers) {
+    byte[] bytes = new byte[DENSE_SIZE];
+    System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+    bytes[4] = DENSE;
+    for (int i = 0; i < REGISTERS; i++) {
+      setDense(bytes, i, registers[i]);
+    }
+    bytes[15] |= STALE;
+    return new HyperLogLog(bytes);
+  }
+
+  /**
+   * The current encoding. Adding elements may replace the array.
+   */
+  public byte[] bytes() {
+    return bytes;
+  }
+
+  public boolean isSparse() {
+    return bytes[4] == SPARSE;
+  }
+
+  /**
+   * @return whether a register changed and the cardinality may have changed
+   */
+  public boolean add(byte[] element) {
+    long hash = murmurHash64A(element, 0, element.length, SEED);
+    int index = (int) (hash & (REGISTERS - 1));
+    int count = Long.numberOfTrailingZeros((hash >>> P) | (1L << Q)) + 1;
+    boolean changed;
+    if (bytes[4] == SPARSE) {
+      changed = setSparse(index, count);
+    } else {
+      changed = setDenseMax(bytes, index, count);
+    }
+    if (changed) {
+      bytes[15] |= STALE;
+    }
+    return changed;
+  }
+
+  /**
+   * The estimated cardinality, cached in the header until the next change.
+   */
+  public long count() {
+    if ((bytes[15] & STALE) == 0) {
+      long cached = 0;
+      for (int i = 15; i >= 8; i--) {
+        cached = (cached << 8) | (bytes[i] & 0xFF);
+      }
+      return cached;
+    }
+    int[] histogram = new int[64];
+    histogram(histogram);
+    long count = estimate(histogram);
+    for (int i = 8; i < 16; i++) {
+      bytes[i] = (byte) (count >>> ((i - 8) * 8));
+    }
+    return count;
+  }
+
+  /**
+   * Merge the registers into registers held one per byte by keeping the
+   * maximum of each.
+   */
+  public void mergeInto(byte[] registers) {
+    if (bytes[4] == DENSE) {
+      for (int i = 0, j = HEADER; i < REGISTERS; i += 4, j += 3) {
+        int word = (bytes[j] & 0xFF) | (bytes[j + 1] & 0xFF) << 8 | (bytes[j + 2] & 0xFF) << 16;
+        for (int k = 0; k < 4; k++) {
+          byte value = (byte) ((word >>> (k * 6)) & REGISTER_MAX);
+          if (value > registers[i + k]) {
+            registers[i + k] = value;
+          }
+        }
+      }
+    } else {
+      int index = 0;
+      for (int p = HEADER; p < bytes.length; ) {
+        int op = bytes[p] & 0xFF;
+        if ((op & 0xC0) == 0) {
+          index += (op & 0x3F) + 1;
+          p++;
+        } else if ((op & 0xC0) == 0x40) {
+          index += (((op & 0x3F) << 8) | (bytes[p + 1] & 0xFF)) + 1;
+          p += 2;
+        } else {
+          byte value = (byte) (((op >>> 2) & 0x1F) + 1);
+          for (int end = index + (op & 3) + 1; index < end; index++) {
+            if (value > registers[index]) {
+              registers[index] = value;
+            }
+          }
+          p++;
+        }
+      }
+    }
+  }
+
+  /**
+   * The estimated cardinality of registers held one per byte.
+   */
+  public static long count(byte[] registers) {
+    int[] histogram = new int[64];
+    for (byte register : registers) {
+      histogram[register]++;
+    }
+    return estimate(histogram);
+  }
+
+  private void histogram(int[] histogram) {
+    if (bytes[4] == DENSE) {
+      // Four registers in every three bytes
+      for (int j = HEADER; j < DENSE_SIZE; j += 3) {
+        int word = (bytes[j] & 0xFF) | (bytes[j + 1] & 0xFF) << 8 | (bytes[j + 2] & 0xFF) << 16;
+        histogram[word & REGISTER_MAX]++;
+        histogram[(word >>> 6) & REGISTER_MAX]++;
+        histogram[(word >>> 12) & REGISTER_MAX]++;
+        histogram[(word >>> 18) & REGISTER_MAX]++;
+      }
+    } else {
+      for (int p = HEADER; p < bytes.length; ) {
+        int op = bytes[p] & 0xFF;
+        if ((op & 0xC0) == 0) {
+          histogram[0] += (op & 0x3F) + 1;
+          p++;
+        } else if ((op & 0xC0) == 0x40) {
+          histogram[0] += (((op & 0x3F) << 8) | (bytes[p + 1] & 0xFF)) + 1;
+          p += 2;
+        } else {
+          histogram[((op >>> 2) & 0x1F) + 1] += (op & 3) + 1;
+          p++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Ertl's improved raw estimator, which needs neither bias correction nor a
+   * switch to linear counting for small cardinalities.
+   */
+  private static long estimate(int[] histogram) {
+    double m = REGISTERS;
+    double z = m * tau((m - histogram[Q + 1]) / m);
+    for (int j = Q; j >= 1; j--) {
+      z += histogram[j];
+      z *= 0.5;
+    }
+    z += m * sigma(histogram[0] / m);
+    return Math.round(ALPHA_INF * m * m / z);
+  }
+
+  private static double sigma(double x) {
+    if (x == 1) return Double.POSITIVE_INFINITY;
+    double zPrime;
+    double y = 1;
+    double z = x;
+    do {
+      x *= x;
+      zPrime = z;
+      z += x * y;
+      y += y;
+    } while (zPrime != z);
+    return z;
+  }
+
+  private static double tau(double x) {
+    if (x == 0 || x == 1) return 0;
+    double zPrime;
+    double y = 1;
+    double z = 1 - x;
+    do {
+      x = Math.sqrt(x);
+      zPrime = z;
+      y *= 0.5;
+      z -= (1 - x) * (1 - x) * y;
+    } while (zPrime != z);
+    return z / 3;
+  }
+
+  private static int getDense(byte[] bytes, int index) {
+    int bit = index * 6;
+    int b = HEADER + (bit >>> 3);
+    int shift = bit & 7;
+    int word = bytes[b] & 0xFF;
+    if (shift > 2) {
+      word |= (bytes[b + 1] & 0xFF) << 8;
+    }
+    return (word >>> shift) & REGISTER_MAX;
+  }
+
+  private static void setDense(byte[] bytes, int index, int value) {
+    int bit = index * 6;
+    int b = HEADER + (bit >>> 3);
+    int shift = bit & 7;
+    bytes[b] = (byte) ((bytes[b] & ~(REGISTER_MAX << shift)) | (value << shift));
+    if (shift > 2) {
+      int high = 8 - shift;
+      bytes[b + 1] = (byte) ((bytes[b + 1] & ~(REGISTER_MAX >>> high)) | (value >>> high));
+    }
+  }
+
+  private static boolean setDenseMax(byte[] bytes, int index, int count) {
+    if (getDense(bytes, index) >= count) return false;
+    setDense(bytes, index, count);
+    return true;
+  }
+
+  private boolean setSparse(int index, int count) {
+    if (count > VAL_MAX_VALUE) {
+      toDense();
+      return setDenseMax(bytes, index, count);
+    }
+    // Find the opcode that covers the register
+    int p = HEADER;
+    int prev = -1;
+    int first = 0;
+    int op;
+    int span;
+    int length;
+    while (true) {
+      if (p >= bytes.length) {
+        throw new IllegalStateException("Corrupt sparse HyperLogLog");
+      }
+      op = bytes[p] & 0xFF;
+      if ((op & 0xC0) == 0) {
+        span = (op & 0x3F) + 1;
+        length = 1;
+      } else if ((op & 0xC0) == 0x40) {
+        span = (((op & 0x3F) << 8) | (bytes[p + 1] & 0xFF)) + 1;
+        length = 2;
+      } else {
+        span = (op & 3) + 1;
+        length = 1;
+      }
+      if (index < first + span) break;
+      prev = p;
+      p += length;
+      first += span;
+    }
+    boolean isVal = (op & 0x80) != 0;
+    int value = isVal ? ((op >>> 2) & 0x1F) + 1 : 0;
+    if (value >= count) {
+      return false;
+    }
+    if (span == 1) {
+      // Replace a single register in place
+      bytes[p] = val(count, 1);
+    } else {
+      // Split the run around the register
+      byte[] seq = new byte[5];
+      int n = 0;
+      int before = index - first;
+      int after = first + span - 1 - index;
+      if (before > 0) {
+        n = run(seq, n, value, before);
+      }
+      seq[n++] = val(count, 1);
+      if (after > 0) {
+        n = run(seq, n, value, after);
+      }
+      int size = bytes.length - length + n;
+      if (size > SPARSE_MAX_BYTES) {
+        toDense();
+        return setDenseMax(bytes, index, count);
+      }
+      byte[] grown = new byte[size];
+      System.arraycopy(bytes, 0, grown, 0, p);
+      System.arraycopy(seq, 0, grown, p, n);
+      System.arraycopy(bytes, p + length, grown, p + n, bytes.length - p - length);
+      bytes = grown;
+    }
+    merge(prev == -1 ? p : prev);
+    return true;
+  }
+
+  /**
+   * Join neighbouring VAL opcodes with the same value near a change.
+   */
+  private void merge(int p) {
+    int end = bytes.length;
+    for (int scanned = 0; scanned < 5 && p < end; scanned++) {
+      int op = bytes[p] & 0xFF;
+      if ((op & 0xC0) == 0x40) {
+        p += 2;
+        continue;
+      }
+      if ((op & 0x80) != 0 && p + 1 < end) {
+        int next = bytes[p + 1] & 0xFF;
+        if ((next & 0x80) != 0 && ((op ^ next) & 0x7C) == 0) {
+          int len = (op & 3) + (next & 3) + 2;
+          if (len <= VAL_MAX_LEN) {
+            bytes[p] = val(((op >>> 2) & 0x1F) + 1, len);
+            System.arraycopy(bytes, p + 2, bytes, p + 1, end - p - 2);
+            end--;
+            // Look at the merged opcode again
+            continue;
+          }
+        }
+      }
+      p++;
+    }
+    if (end != bytes.length) {
+      bytes = Arrays.copyOf(bytes, end);
+    }
+  }
+
+  private void toDense() {
+    byte[] dense = new byte[DENSE_SIZE];
+    System.arraycopy(bytes, 0, dense, 0, HEADER);
+    dense[4] = DENSE;
+    int index = 0;
+    for (int p = HEADER; p < bytes.length; ) {
+      int op = bytes[p] & 0xFF;
+      if ((op & 0xC0) == 0) {
+        index += (op & 0x3F) + 1;
+        p++;
+      } else if ((op & 0xC0) == 0x40) {
+        index += (((op & 0x3F) << 8) | (bytes[p + 1] & 0xFF)) + 1;
+        p += 2;
+      } else {
+        int value = ((op >>> 2) & 0x1F) + 1;
+        for (int end = index + (op & 3) + 1; index < end; index++) {
+          setDense(dense, index, value);
+        }
+        p++;
+      }
+    }
+    bytes = dense;
+  }
+
+  private static int run(byte[] seq, int n, int value, int len) {
+    if (value != 0) {
+      seq[n++] = val(value, len);
+    } else if (len <= ZERO_MAX_LEN) {
+      seq[n++] = (byte) (len - 1);
+    } else {
+      xzero(seq, n, len);
+      n += 2;
+    }
+    return n;
+  }
+
+  private static byte val(int value, int len) {
+    return (byte) (0x80 | ((value - 1) << 2) | (len - 1));
+  }
+
+  private static void xzero(byte[] bytes, int p, int len) {
+    assert len <= XZERO_MAX_LEN;
+    bytes[p] = (byte) (0x40 | ((len - 1) >>> 8));
+    bytes[p + 1] = (byte) (len - 1);
+  }
+
+  /**
+   * MurmurHash2, 64-bit version by Austin Appleby, reading little endian.
+   */
+  static long murmurHash64A(byte[] key, int offset, int len, long seed) {
+    final long m = 0xc6a4a7935bd1e995L;
+    final int r = 47;
+    long h = seed ^ (len * m);
+    int end = offset + (len & ~7);
+    for (int i = offset; i < end; i += 8) {
+      long k = (key[i] & 0xFFL) | (key[i + 1] & 0xFFL) << 8 | (key[i + 2] & 0xFFL) << 16 |
+              (key[i + 3] & 0xFFL) << 24 | (key[i + 4] & 0xFFL) << 32 | (key[i + 5] & 0xFFL) << 40 |
+              (key[i + 6] & 0xFFL) << 48 | (key[i + 7] & 0xFFL) << 56;
+      k *= m;
+      k ^= k >>> r;
+      k *= m;
+      h ^= k;
+      h *= m;
+    }
+    switch (len & 7) {
+      case 7:
+        h ^= (key[end + 6] & 0xFFL) << 48;
+      case 6:
+        h ^= (key[end + 5] & 0xFFL) << 40;
+      case 5:
+        h ^= (key[end + 4] & 0xFFL) << 32;
+      case 4:
+        h ^= (key[end + 3] & 0xFFL) << 24;
+      case 3:
+        h ^= (key[end + 2] & 0xFFL) << 16;
+      case 2:
+        h ^= (key[end + 1] & 0xFFL) << 8;
+      case 1:
+        h ^= key[end] & 0xFFL;
+        h *= m;
+    }
+    h ^= h >>> r;
+    h *= m;
+    h ^= h >>> r;
+    return h;
+  }
+}
@@ -0,0 +1,107 @@
+package redis.util;
+
+/**
+ * Sorts an array of indexes into parallel arrays, so values can be kept as
+ * primitives and nothing is boxed to compare them. Sorting can be limited to
+ * a window of positions: partitions that fall entirely outside the window are
+ * left unsorted, which makes a small window close to linear time.
+ */
+public abstract class IndexSort {
+  private static final int INSERTION = 16;
+
+  /**
+   * Compare the values at two indexes.
+   */
+  protected abstract int compare(int a, int b);
+
+  /**
+   * @return the indexes 0 through size - 1 in order
+   */
+  public static int[] identity(int size) {
+    int[] index = new int[size];
+    for (int i = 0; i < size; i++) {
+      index[i] = i;
+    }
+    return index;
+  }
+
+  public void sort(int[] index) {
+    sort(index, 0, index.length);
+  }
+
+  /**
+   * Put the positions from inclusive to exclusive of the index in their
+   * sorted order. Other positions hold the remaining indexes in no
+   * particular order.
+   */
+  public void sort(int[] index, int from, int to) {
+    if (from < to) {
+      sort(index, 0, index.length - 1, from, to - 1);
+    }
+  }
+
+  private void sort(int[] index, int lo, int hi, int from, int to) {
+    while (hi - lo >= INSERTION) {
+      int split = partition(index, lo, hi);
+      // Only descend into the sides that overlap the window
+      boolean left = from <= split;
+      boolean right = to > split;
+      if (left && right) {
+        // Recurse into the smaller side so the stack stays logarithmic
+        if (split - lo < hi - split) {
+          sort(index, lo, split, from, to);
+          lo = split + 1;
+        } else {
+          sort(index, split + 1, hi, from, to);
+          hi = split;
+        }
+      } else if (left) {
+        hi = split;
+      } else {
+        lo = split + 1;
+      }
+    }
+    for (int i = lo + 1; i <= hi; i++) {
+      int value = index[i];
+      int j = i - 1;
+      while (j >= lo && compare(index[j], value) > 0) {
+        index[j + 1] = index[j];
+        j--;
+      }
+      index[j + 1] = value;
+    }
+  }
+
+  /**
+   * Hoare partition around the median of the first, middle and last values.
+   *
+   * @return the last position of the lower side
+   */
+  private int partition(int[] index, int lo, int hi) {
+    int mid = (lo + hi) >>> 1;
+    if (compare(index[mid], index[lo]) < 0) swap(index, lo, mid);
+    if (compare(index[hi], index[lo]) < 0) swap(index, lo, hi);
+    if (compare(index[hi], index[mid]) < 0) swap(index, mid, hi);
+    int pivot = index[mid];
+    int i = lo - 1;
+    int j = hi + 1;
+    while (true) {
+      do {
+        i++;
+      } while (compare(index[i], pivot) < 0);
+      do {
+        j--;
+      } while (compare(index[j], pivot) > 0);
+      if (i >= j) {
+        return j;
+      }
+      swap(index, i, j);
+    }
+  }
+
+  private static void swap(int[] index, int a, int b) {
+    int tmp = index[a];
+    index[a] = index[b];
+    index[b] = tmp;
+  }
+}
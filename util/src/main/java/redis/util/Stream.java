@@ -0,0 +1,318 @@
+package redis.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * An append only log of entries ordered by id. Entries are packed into
+ * blocks of up to BLOCK_BYTES or BLOCK_ENTRIES, each found through a tree
+ * keyed by the id of its first entry. Within a block ids are stored as
+ * varint deltas from that first id, and an entry with the same fields as
+ * the first entry of its block only stores its values. Reading a range
+ * finds the first block in O(log n) and then decodes forward.
+ */
+public class Stream {
+  public static final int BLOCK_BYTES = 4096;
+  public static final int BLOCK_ENTRIES = 100;
+
+  private final TreeMap<StreamId, Block> blocks = new TreeMap<StreamId, Block>();
+  private StreamId last = StreamId.MIN;
+  private long length;
+
+  public static class Entry {
+    private final StreamId id;
+    private final byte[][] fields;
+
+    public Entry(StreamId id, byte[][] fields) {
+      this.id = id;
+      this.fields = fields;
+    }
+
+    public StreamId getId() {
+      return id;
+    }
+
+    /**
+     * @return alternating field names and values
+     */
+    public byte[][] getFields() {
+      return fields;
+    }
+  }
+
+  private static class Block {
+    final StreamId master;
+    // The field names of the first entry
+    final byte[][] names;
+    byte[] bytes = new byte[64];
+    // The first live entry, entries before it have been trimmed
+    int start;
+    int end;
+    int count;
+    int added;
+
+    Block(StreamId master, byte[][] fields) {
+      this.master = master;
+      names = new byte[fields.length / 2][];
+      for (int i = 0; i < names.length; i++) {
+        names[i] = fields[i * 2];
+      }
+    }
+
+    Block(Block block, boolean share) {
+      master = block.master;
+      names = block.names;
+      bytes = share ? block.bytes : Arrays.copyOf(block.bytes, block.bytes.length);
+      start = block.start;
+      end = block.end;
+      count = block.count;
+      added = block.added;
+    }
+  }
+
+  /**
+   * A copy that changes independently of this stream. Only the last block is
+   * still appended to, the others share their bytes.
+   */
+  public Stream copy() {
+    Stream stream = new Stream();
+    Block tail = blocks.isEmpty() ? null : blocks.lastEntry().getValue();
+    for (Map.Entry<StreamId, Block> entry : blocks.entrySet()) {
+      stream.blocks.put(entry.getKey(), new Block(entry.getValue(), entry.getValue() != tail));
+    }
+    stream.last = last;
+    stream.length = length;
+    return stream;
+  }
+
+  public long length() {
+    return length;
+  }
+
+  public StreamId lastId() {
+    return last;
+  }
+
+  /**
+   * The last id survives trimming and is restored along with the entries.
+   */
+  public void setLastId(StreamId id) {
+    if (id.compareTo(last) > 0) {
+      last = id;
+    }
+  }
+
+  /**
+   * @return the id an entry added at the given millisecond would get, or
+   *         null if the stream has run out of ids
+   */
+  public StreamId nextId(long millis) {
+    if (millis > last.getMillis()) {
+      return new StreamId(millis, 0);
+    }
+    return last.next();
+  }
+
+  /**
+   * Append an entry.
+   *
+   * @param fields alternating field names and values
+   * @throws IllegalArgumentException if the id is not after the last id
+   */
+  public void add(StreamId id, byte[][] fields) {
+    if (id.compareTo(last) <= 0) {
+      throw new IllegalArgumentException("The ID specified in XADD is equal or smaller than the target stream top item");
+    }
+    Map.Entry<StreamId, Block> tail = blocks.lastEntry();
+    Block block = tail == null ? null : tail.getValue();
+    if (block == null || block.end >= BLOCK_BYTES || block.added >= BLOCK_ENTRIES) {
+      if (block != null) {
+        // Full blocks are never written again
+        block.bytes = Arrays.copyOf(block.bytes, block.end);
+      }
+      block = new Block(id, fields);
+      blocks.put(id, block);
+    }
+    long millis = id.getMillis() - block.master.getMillis();
+    boolean same = sameNames(block.names, fields);
+    int size = varintSize(millis) + varintSize(millis == 0 ? id.getSequence() - block.master.getSequence() : id.getSequence())
+            + varintSize(fields.length);
+    for (int i = same ? 1 : 0; i < fields.length; i += same ? 2 : 1) {
+      size += varintSize(fields[i].length) + fields[i].length;
+    }
+    if (block.end + size > block.bytes.length) {
+      block.bytes = Arrays.copyOf(block.bytes, Math.max(block.end + size, block.bytes.length * 2));
+    }
+    int position = writeVarint(block.bytes, block.end, millis);
+    position = writeVarint(block.bytes, position, millis == 0 ? id.getSequence() - block.master.getSequence() : id.getSequence());
+    position = writeVarint(block.bytes, position, fields.length | (same ? 1 : 0));
+    for (int i = same ? 1 : 0; i < fields.length; i += same ? 2 : 1) {
+      position = writeVarint(block.bytes, position, fields[i].length);
+      System.arraycopy(fields[i], 0, block.bytes, position, fields[i].length);
+      position += fields[i].length;
+    }
+    block.end = position;
+    block.count++;
+    block.added++;
+    length++;
+    last = id;
+  }
+
+  /**
+   * Entries with ids between start and end inclusive.
+   *
+   * @param count   at most this many entries, 0 for all of them
+   * @param reverse from the end to the start
+   */
+  public List<Entry> range(StreamId start, StreamId end, int count, boolean reverse) {
+    List<Entry> entries = new ArrayList<Entry>();
+    if (start.compareTo(end) > 0 || length == 0) {
+      return entries;
+    }
+    if (reverse) {
+      int[] offsets = new int[BLOCK_ENTRIES];
+      for (Block block : blocks.headMap(end, true).descendingMap().values()) {
+        // Entries can only be decoded forwards
+        int n = 0;
+        for (int position = block.start; position < block.end; position = skip(block, position)) {
+          offsets[n++] = position;
+        }
+        for (int i = n - 1; i >= 0; i--) {
+          StreamId id = readId(block, offsets[i]);
+          if (id.compareTo(end) > 0) continue;
+          if (id.compareTo(start) < 0) return entries;
+          entries.add(read(block, offsets[i], id));
+          if (entries.size() == count) return entries;
+        }
+      }
+      return entries;
+    }
+    StreamId first = blocks.floorKey(start);
+    NavigableMap<StreamId, Block> tail = first == null ? blocks : blocks.tailMap(first, true);
+    for (Block block : tail.values()) {
+      if (block.master.compareTo(end) > 0) break;
+      for (int position = block.start; position < block.end; position = skip(block, position)) {
+        StreamId id = readId(block, position);
+        if (id.compareTo(start) < 0) continue;
+        if (id.compareTo(end) > 0) return entries;
+        entries.add(read(block, position, id));
+        if (entries.size() == count) return entries;
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Remove the oldest entries until at most maxlen are left. Approximate
+   * trimming only removes whole blocks so it may leave a few more.
+   *
+   * @return the number of entries removed
+   */
+  public long trim(long maxlen, boolean approximate) {
+    long removed = 0;
+    while (!blocks.isEmpty() && length - blocks.firstEntry().getValue().count >= maxlen) {
+      Block block = blocks.pollFirstEntry().getValue();
+      length -= block.count;
+      removed += block.count;
+    }
+    if (!approximate && length > maxlen) {
+      Block block = blocks.firstEntry().getValue();
+      while (length > maxlen) {
+        block.start = skip(block, block.start);
+        block.count--;
+        length--;
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  private static boolean sameNames(byte[][] names, byte[][] fields) {
+    if (names.length * 2 != fields.length) return false;
+    for (int i = 0; i < names.length; i++) {
+      if (!Arrays.equals(names[i], fields[i * 2])) return false;
+    }
+    return true;
+  }
+
+  private static StreamId readId(Block block, int position) {
+    long[] value = new long[1];
+    position = readVarint(block.bytes, position, value);
+    long millis = value[0];
+    readVarint(block.bytes, position, value);
+    if (millis == 0) {
+      return new StreamId(block.master.getMillis(), block.master.getSequence() + value[0]);
+    }
+    return new StreamId(block.master.getMillis() + millis, value[0]);
+  }
+
+  private static Entry read(Block block, int position, StreamId id) {
+    long[] value = new long[1];
+    position = readVarint(block.bytes, position, value);
+    position = readVarint(block.bytes, position, value);
+    position = readVarint(block.bytes, position, value);
+    boolean same = (value[0] & 1) != 0;
+    byte[][] fields = new byte[(int) (value[0] & ~1)][];
+    for (int i = 0; i < fields.length; i++) {
+      if (same && (i & 1) == 0) {
+        fields[i] = block.names[i / 2];
+        continue;
+      }
+      position = readVarint(block.bytes, position, value);
+      fields[i] = Arrays.copyOfRange(block.bytes, position, position + (int) value[0]);
+      position += (int) value[0];
+    }
+    return new Entry(id, fields);
+  }
+
+  /**
+   * @return the position of the entry after the one at position
+   */
+  private static int skip(Block block, int position) {
+    long[] value = new long[1];
+    position = readVarint(block.bytes, position, value);
+    position = readVarint(block.bytes, position, value);
+    position = readVarint(block.bytes, position, value);
+    boolean same = (value[0] & 1) != 0;
+    int fields = (int) (value[0] & ~1);
+    for (int i = same ? 1 : 0; i < fields; i += same ? 2 : 1) {
+      position = readVarint(block.bytes, position, value);
+      position += (int) value[0];
+    }
+    return position;
+  }
+
+  private static int varintSize(long value) {
+    int size = 1;
+    while ((value >>>= 7) != 0) {
+      size++;
+    }
+    return size;
+  }
+
+  private static int writeVarint(byte[] bytes, int position, long value) {
+    while ((value & ~0x7FL) != 0) {
+      bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes[position++] = (byte) value;
+    return position;
+  }
+
+  private static int readVarint(byte[] bytes, int position, long[] value) {
+    long result = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = bytes[position++];
+      result |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    value[0] = result;
+    return position;
+  }
+}
@@ -0,0 +1,94 @@
+package redis.util;
+
+import com.google.common.base.Charsets;
+
+/**
+ * The id of a stream entry: a millisecond timestamp and a sequence number
+ * for entries added within the same millisecond.
+ */
+public class StreamId implements Comparable<StreamId> {
+  public static final StreamId MIN = new StreamId(0, 0);
+  public static final StreamId MAX = new StreamId(Long.MAX_VALUE, Long.MAX_VALUE);
+
+  private final long millis;
+  private final long sequence;
+
+  public StreamId(long millis, long sequence) {
+    this.millis = millis;
+    this.sequence = sequence;
+  }
+
+  /**
+   * Parse ms-seq or just ms.
+   *
+   * @param sequence the sequence number when it is left out
+   * @throws IllegalArgumentException if it is not a valid id
+   */
+  public static StreamId parse(byte[] bytes, long sequence) {
+    String id = new String(bytes, Charsets.US_ASCII);
+    int dash = id.indexOf('-');
+    try {
+      long millis = Long.parseLong(dash == -1 ? id : id.substring(0, dash));
+      if (dash != -1) {
+        sequence = Long.parseLong(id.substring(dash + 1));
+      }
+      if (millis >= 0 && sequence >= 0 && id.charAt(0) != '+' && (dash == -1 || id.charAt(dash + 1) != '+')) {
+        return new StreamId(millis, sequence);
+      }
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    throw new IllegalArgumentException("Invalid stream ID specified as stream command argument");
+  }
+
+  public long getMillis() {
+    return millis;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @return the smallest id after this one or null if there is none
+   */
+  public StreamId next() {
+    if (sequence < Long.MAX_VALUE) return new StreamId(millis, sequence + 1);
+    if (millis < Long.MAX_VALUE) return new StreamId(millis + 1, 0);
+    return null;
+  }
+
+  /**
+   * @return the largest id before this one or null if there is none
+   */
+  public StreamId previous() {
+    if (sequence > 0) return new StreamId(millis, sequence - 1);
+    if (millis > 0) return new StreamId(millis - 1, Long.MAX_VALUE);
+    return null;
+  }
+
+  public byte[] getBytes() {
+    return toString().getBytes(Charsets.US_ASCII);
+  }
+
+  @Override
+  public int compareTo(StreamId o) {
+    if (millis != o.millis) return millis < o.millis ? -1 : 1;
+    return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof StreamId && ((StreamId) o).millis == millis && ((StreamId) o).sequence == sequence;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (millis ^ (millis >>> 32)) * 31 + (int) (sequence ^ (sequence >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return millis + "-" + sequence;
+  }
+}
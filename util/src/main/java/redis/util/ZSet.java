@@ -25,6 +25,44 @@ public class ZSet implements Iterable<ZSetEntry> {
   public ZSet() {
   }
 
+  /**
+   * Build a sorted set from distinct members with one sort at the end
+   * rather than inserting them in order one at a time. Equal scores are
+   * ordered by member.
+   */
+  public static ZSet of(final BytesKey[] keys, final double[] scores, int size) {
+    int[] index = IndexSort.identity(size);
+    new IndexSort() {
+      @Override
+      protected int compare(int a, int b) {
+        double diff = scores[a] - scores[b];
+        return diff < 0 ? -1 : diff > 0 ? 1 : keys[a].compareTo(keys[b]);
+      }
+    }.sort(index);
+    ZSet zset = new ZSet();
+    zset.list = new ArrayList<ZSetEntry>(size);
+    for (int i : index) {
+      ZSetEntry entry = new ZSetEntry(keys[i], scores[i]);
+      zset.map.put(entry.getKey(), entry);
+      zset.list.add(entry);
+    }
+    return zset;
+  }
+
+  /**
+   * A copy with entries of its own, since scores are incremented in place.
+   */
+  public ZSet copy() {
+    ZSet zset = new ZSet();
+    zset.list = new ArrayList<ZSetEntry>(list.size());
+    for (ZSetEntry entry : list) {
+      ZSetEntry copied = new ZSetEntry(entry.getKey(), entry.getScore());
+      zset.map.put(copied.getKey(), copied);
+      zset.list.add(copied);
+    }
+    return zset;
+  }
+
   public int size() {
     return list.size();
   }
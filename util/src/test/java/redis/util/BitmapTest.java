@@ -0,0 +1,220 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks the word level operations against byte at a time versions.
+ */
+public class BitmapTest {
+
+  private final Random random = new Random(1337);
+
+  @Test
+  public void testBits() {
+    Bitmap bitmap = new Bitmap();
+    assertEquals(0, bitmap.length());
+    assertFalse(bitmap.set(7, true));
+    assertEquals(1, bitmap.length());
+    assertTrue(Arrays.equals(new byte[]{1}, bitmap.toBytes()));
+    assertTrue(bitmap.set(7, true));
+    assertTrue(bitmap.get(7));
+    assertFalse(bitmap.get(6));
+    assertFalse(bitmap.get(1000));
+    // Growing keeps the exact length
+    bitmap.set(100, true);
+    assertEquals(13, bitmap.length());
+    assertEquals(2, bitmap.count(0, 12));
+    assertTrue(bitmap.set(100, false));
+    assertEquals(13, bitmap.length());
+
+    byte[] bytes = randomBytes(1001);
+    assertTrue(Arrays.equals(bytes, new Bitmap(bytes).toBytes()));
+  }
+
+  @Test
+  public void testBytes() {
+    Bitmap bitmap = new Bitmap(randomBytes(1001));
+    // Reads share the bytes until a bit is written
+    byte[] bytes = bitmap.bytes();
+    assertSame(bytes, bitmap.bytes());
+    assertTrue(Arrays.equals(bytes, bitmap.toBytes()));
+    bitmap.set(8100, true);
+    assertNotSame(bytes, bitmap.bytes());
+    assertTrue(Arrays.equals(bitmap.toBytes(), bitmap.bytes()));
+    bytes = bitmap.bytes();
+    bitmap.setField(3, 16, 0xABCD);
+    assertNotSame(bytes, bitmap.bytes());
+    assertTrue(Arrays.equals(bitmap.toBytes(), bitmap.bytes()));
+  }
+
+  @Test
+  public void testCountAndPosition() {
+    for (int length : new int[]{1, 7, 8, 9, 63, 64, 65, 1000}) {
+      byte[] bytes = randomBytes(length);
+      Bitmap bitmap = new Bitmap(bytes);
+      for (int i = 0; i < 200; i++) {
+        int start = random.nextInt(length);
+        int end = start + random.nextInt(length - start);
+        assertEquals(count(bytes, start, end), bitmap.count(start, end));
+        assertEquals(position(bytes, true, start, end), bitmap.position(true, start, end));
+        assertEquals(position(bytes, false, start, end), bitmap.position(false, start, end));
+      }
+    }
+    byte[] ones = new byte[20];
+    Arrays.fill(ones, (byte) 0xFF);
+    assertEquals(-1, new Bitmap(ones).position(false, 0, 19));
+    assertEquals(-1, new Bitmap(new byte[20]).position(true, 0, 19));
+    assertEquals(80, new Bitmap(new byte[20]).position(false, 10, 19));
+  }
+
+  @Test
+  public void testFields() {
+    byte[] bytes = randomBytes(64);
+    Bitmap bitmap = new Bitmap(bytes);
+    for (int i = 0; i < 1000; i++) {
+      int bits = 1 + random.nextInt(64);
+      long offset = random.nextInt(64 * 8 - bits);
+      assertEquals(field(bytes, offset, bits, false), bitmap.getField(offset, bits, false));
+      assertEquals(field(bytes, offset, bits, true), bitmap.getField(offset, bits, true));
+      long value = random.nextLong();
+      bitmap.setField(offset, bits, value);
+      for (int b = 0; b < bits; b++) {
+        long bit = offset + b;
+        boolean set = ((value >>> (bits - 1 - b)) & 1) != 0;
+        if (set) {
+          bytes[(int) (bit >>> 3)] |= 0x80 >>> (bit & 7);
+        } else {
+          bytes[(int) (bit >>> 3)] &= ~(0x80 >>> (bit & 7));
+        }
+      }
+      assertTrue(Arrays.equals(bytes, bitmap.toBytes()));
+    }
+    // Past the end reads zero and writing grows the string
+    Bitmap empty = new Bitmap();
+    assertEquals(0, empty.getField(1000, 64, true));
+    empty.setField(1000, 8, -1);
+    assertEquals(126, empty.length());
+    assertEquals(255, empty.getField(1000, 8, false));
+    assertEquals(-1, empty.getField(1000, 8, true));
+  }
+
+  @Test
+  public void testOperations() {
+    byte[] a = randomBytes(37);
+    byte[] b = randomBytes(20);
+    byte[] c = randomBytes(50);
+    Bitmap[] sources = {new Bitmap(a), new Bitmap(b), new Bitmap(c)};
+    byte[] and = new byte[50];
+    byte[] or = new byte[50];
+    byte[] xor = new byte[50];
+    for (int i = 0; i < 50; i++) {
+      int x = i < a.length ? a[i] : 0;
+      int y = i < b.length ? b[i] : 0;
+      int z = c[i];
+      and[i] = (byte) (x & y & z);
+      or[i] = (byte) (x | y | z);
+      xor[i] = (byte) (x ^ y ^ z);
+    }
+    assertTrue(Arrays.equals(and, Bitmap.and(sources).toBytes()));
+    assertTrue(Arrays.equals(or, Bitmap.or(sources).toBytes()));
+    assertTrue(Arrays.equals(xor, Bitmap.xor(sources).toBytes()));
+    Bitmap not = Bitmap.not(sources[0]);
+    assertEquals(37, not.length());
+    for (int i = 0; i < a.length; i++) {
+      assertEquals((byte) ~a[i], not.toBytes()[i]);
+    }
+    // Nothing leaks past the end
+    assertEquals(37 * 8 - new Bitmap(a).count(0, 36), not.count(0, 36));
+    not.set(37 * 8 + 70, false);
+    assertEquals(0, not.count(37, not.length() - 1));
+  }
+
+  @Test
+  public void benchmark() {
+    if (System.getenv().containsKey("CI") || System.getProperty("CI") != null) return;
+    for (int mb = 1; mb <= 512; mb *= 8) {
+      int length = mb * 1024 * 1024;
+      // The sources, the result and the byte[] copy
+      if (Runtime.getRuntime().maxMemory() < 4L * length + (64 << 20)) {
+        System.out.println("Skipping " + mb + " MB bitmaps, not enough heap");
+        break;
+      }
+      byte[] bytes = randomBytes(length);
+      Bitmap bitmap = new Bitmap(bytes);
+      Bitmap other = new Bitmap(bytes);
+      long start = System.nanoTime();
+      long count = 0;
+      for (int i = 0; i < 10; i++) {
+        count += bitmap.count(0, length - 1);
+      }
+      report(mb, "BITCOUNT", start, 10, count);
+      start = System.nanoTime();
+      for (int i = 0; i < 10; i++) {
+        count += Bitmap.xor(new Bitmap[]{bitmap, other}).length();
+      }
+      report(mb, "BITOP XOR", start, 10, count);
+      start = System.nanoTime();
+      for (int i = 0; i < 10; i++) {
+        count += Bitmap.and(new Bitmap[]{bitmap, Bitmap.not(other)}).position(true, 0, length - 1);
+      }
+      report(mb, "BITOP NOT+AND, BITPOS", start, 10, count);
+      start = System.nanoTime();
+      Bitmap growing = new Bitmap();
+      for (long bit = 0; bit < length * 8L; bit += 64) {
+        growing.set(bit, true);
+      }
+      report(mb, "SETBIT every 64 bits", start, 1, growing.length());
+      start = System.nanoTime();
+      for (long offset = 0; offset + 13 < length * 8L; offset += 13) {
+        count += bitmap.getField(offset, 13, false);
+      }
+      report(mb, "BITFIELD GET u13", start, 1, count);
+    }
+  }
+
+  private static void report(int mb, String name, long start, int runs, long ignored) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(name + " on " + mb + " MB: " + (long) (mb * runs / seconds) + " MB/s");
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static long count(byte[] bytes, int start, int end) {
+    long total = 0;
+    for (int i = start; i <= end; i++) {
+      total += Integer.bitCount(bytes[i] & 0xFF);
+    }
+    return total;
+  }
+
+  private static long position(byte[] bytes, boolean value, int start, int end) {
+    for (long bit = start * 8L; bit < (end + 1) * 8L; bit++) {
+      if (((bytes[(int) (bit >>> 3)] & (0x80 >>> (bit & 7))) != 0) == value) {
+        return bit;
+      }
+    }
+    return -1;
+  }
+
+  private static long field(byte[] bytes, long offset, int bits, boolean signed) {
+    long value = 0;
+    for (int b = 0; b < bits; b++) {
+      long bit = offset + b;
+      value = (value << 1) | ((bytes[(int) (bit >>> 3)] >>> (7 - (bit & 7))) & 1);
+    }
+    return signed && bits < 64 ? (value << (64 - bits)) >> (64 - bits) : value;
+  }
+}
@@ -0,0 +1,44 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class BytesKeyDoubleMapTest {
+
+  @Test
+  public void testMap() {
+    BytesKeyDoubleMap map = new BytesKeyDoubleMap(0);
+    Map<BytesKey, Double> expected = new HashMap<BytesKey, Double>();
+    Random random = new Random(1337);
+    for (int i = 0; i < 100000; i++) {
+      // Anagrams have the same BytesKey hashCode
+      BytesKey key = new BytesKey(("member:" + random.nextInt(20000)).getBytes());
+      int index = map.indexOf(key);
+      Double current = expected.get(key);
+      if (current == null) {
+        assertEquals(-1, index);
+        map.put(key, i);
+        expected.put(key, (double) i);
+      } else {
+        assertEquals(current, map.valueAt(index));
+        map.setValueAt(index, current + i);
+        expected.put(key, current + i);
+      }
+    }
+    assertEquals(expected.size(), map.size());
+    BytesKey[] keys = new BytesKey[map.size()];
+    double[] values = new double[map.size()];
+    map.copyTo(keys, values);
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(expected.get(keys[i]), values[i]);
+    }
+    map.put(keys[0], -1);
+    assertEquals(expected.size(), map.size());
+    assertEquals(-1.0, map.valueAt(map.indexOf(keys[0])));
+  }
+}
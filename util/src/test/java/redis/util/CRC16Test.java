@@ -0,0 +1,33 @@
+package redis.util;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class CRC16Test {
+
+  @Test
+  public void testChecksum() {
+    assertEquals(0x31C3, CRC16.crc16("123456789".getBytes()));
+  }
+
+  @Test
+  public void testSlots() {
+    assertEquals(12182, CRC16.slot("foo".getBytes()));
+    assertEquals(5061, CRC16.slot("bar".getBytes()));
+    assertEquals(CRC16.slot("user1000".getBytes()), CRC16.slot("{user1000}.following".getBytes()));
+    assertEquals(CRC16.slot("{user1000}.followers".getBytes()), CRC16.slot("{user1000}.following".getBytes()));
+    // Empty and unterminated tags hash the whole key
+    assertEquals(CRC16.crc16("foo{}{bar}".getBytes()) & 16383, CRC16.slot("foo{}{bar}".getBytes()));
+    assertEquals(CRC16.crc16("foo{bar".getBytes()) & 16383, CRC16.slot("foo{bar".getBytes()));
+    assertEquals(CRC16.slot("zap".getBytes()), CRC16.slot("foo{zap}bar{baz}".getBytes()));
+  }
+
+  @Test
+  public void testHashed() {
+    assertEquals("user1", new String(CRC16.hashed("{user1}.name".getBytes())));
+    assertEquals("user1", new String(CRC16.hashed("name{user1}{x}".getBytes())));
+    assertEquals("{}user1", new String(CRC16.hashed("{}user1".getBytes())));
+    assertEquals("{user1", new String(CRC16.hashed("{user1".getBytes())));
+  }
+}
@@ -1,5 +1,41 @@
 package redis.util;
 
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class EncodingTest {
+  @Test
+  public void testDoubles() {
+    String[] written = {"0", "1", "-1", "3.14", "-2.5", "1.0E-20", "1.7976931348623157E308",
+            "123456789012345", "0.1", "inf", "-inf", "nan"};
+    double[] values = {0, 1, -1, 3.14, -2.5, 1e-20, Double.MAX_VALUE, 123456789012345d, 0.1,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN};
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(written[i], new String(Encoding.doubleToBytes(values[i])));
+      byte[] bytes = ("x" + written[i] + "x").getBytes();
+      assertEquals(values[i], Encoding.bytesToDouble(bytes, 1, bytes.length - 2), 0);
+    }
+    assertEquals("-0.0", new String(Encoding.doubleToBytes(-0d)));
+    assertTrue(1 / Encoding.bytesToDouble("-0".getBytes(), 0, 2) < 0);
+    assertEquals(Double.POSITIVE_INFINITY, Encoding.bytesToDouble("+inf".getBytes(), 0, 4), 0);
 
+    // Exact whichever way they are read
+    for (int i = 0; i < 100000; i++) {
+      double value = Math.round(Math.random() * 1e12) / 1e4;
+      byte[] bytes = Double.toString(value).getBytes();
+      assertEquals(value, Encoding.bytesToDouble(bytes, 0, bytes.length), 0);
+      bytes = Encoding.doubleToBytes(value);
+      assertEquals(value, Encoding.bytesToDouble(bytes, 0, bytes.length), 0);
+    }
+    assertEquals(0.1 + 0.2, Encoding.bytesToDouble("0.30000000000000004".getBytes(), 0, 19), 0);
+    try {
+      Encoding.bytesToDouble("1.2.3".getBytes(), 0, 5);
+      fail("Should not parse");
+    } catch (IllegalArgumentException e) {
+      assertEquals("value is not a valid float", e.getMessage());
+    }
+  }
 }
@@ -0,0 +1,120 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class HyperLogLogTest {
+
+  @Test
+  public void testEncoding() {
+    HyperLogLog hll = new HyperLogLog();
+    assertTrue(hll.isSparse());
+    assertEquals(HyperLogLog.HEADER + 2, hll.bytes().length);
+    assertEquals(0, hll.count());
+    assertTrue(HyperLogLog.isHyperLogLog(hll.bytes()));
+    assertFalse(HyperLogLog.isHyperLogLog("HYLL".getBytes()));
+    try {
+      HyperLogLog.wrap("not a counter".getBytes());
+      fail("Not a counter");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+
+    assertTrue(hll.add("a".getBytes()));
+    assertFalse(hll.add("a".getBytes()));
+    assertEquals(1, hll.count());
+    // Small counters stay small until they outgrow the sparse encoding
+    for (int i = 0; i < 100; i++) {
+      hll.add(("element" + i).getBytes());
+    }
+    assertTrue(hll.isSparse());
+    assertTrue(hll.bytes().length < 400);
+    byte[] sparse = new byte[HyperLogLog.REGISTERS];
+    hll.mergeInto(sparse);
+    for (int i = 100; i < 5000; i++) {
+      hll.add(("element" + i).getBytes());
+    }
+    assertFalse(hll.isSparse());
+    assertEquals(HyperLogLog.DENSE_SIZE, hll.bytes().length);
+
+    // The dense encoding holds the same registers
+    HyperLogLog dense = HyperLogLog.fromRegisters(sparse);
+    byte[] registers = new byte[HyperLogLog.REGISTERS];
+    dense.mergeInto(registers);
+    for (int i = 0; i < registers.length; i++) {
+      assertEquals(sparse[i], registers[i]);
+    }
+    assertEquals(HyperLogLog.count(sparse), dense.count());
+  }
+
+  @Test
+  public void testCorruptSparse() {
+    byte[] bytes = new HyperLogLog().bytes();
+    // A truncated XZERO
+    assertFalse(HyperLogLog.isHyperLogLog(Arrays.copyOf(bytes, HyperLogLog.HEADER + 1)));
+    // Too few registers
+    byte[] shorter = bytes.clone();
+    shorter[HyperLogLog.HEADER + 1]--;
+    assertFalse(HyperLogLog.isHyperLogLog(shorter));
+    // Too many registers
+    byte[] longer = Arrays.copyOf(bytes, HyperLogLog.HEADER + 3);
+    longer[HyperLogLog.HEADER + 2] = (byte) 0x80;
+    assertFalse(HyperLogLog.isHyperLogLog(longer));
+    // Trading a zero for a register set to 1 keeps the count right
+    shorter = Arrays.copyOf(shorter, HyperLogLog.HEADER + 3);
+    shorter[HyperLogLog.HEADER + 2] = (byte) 0x80;
+    assertTrue(HyperLogLog.isHyperLogLog(shorter));
+  }
+
+  @Test
+  public void testAccuracy() {
+    HyperLogLog hll = new HyperLogLog();
+    int added = 0;
+    for (int target : new int[]{10, 100, 1000, 10000, 100000, 1000000}) {
+      for (; added < target; added++) {
+        hll.add(("element:" + added).getBytes());
+      }
+      long count = hll.count();
+      // Several standard errors
+      assertTrue(target + " was " + count, Math.abs(count - target) <= Math.max(1, target * 0.03));
+    }
+  }
+
+  @Test
+  public void testCachedCount() {
+    HyperLogLog hll = new HyperLogLog();
+    for (int i = 0; i < 1000; i++) {
+      hll.add(String.valueOf(i).getBytes());
+    }
+    long count = hll.count();
+    // A wrapped copy of the bytes reads the cached cardinality
+    assertEquals(count, HyperLogLog.wrap(hll.bytes().clone()).count());
+    hll.add("another".getBytes());
+    assertTrue(hll.count() >= count);
+  }
+
+  @Test
+  public void testMerge() {
+    HyperLogLog a = new HyperLogLog();
+    HyperLogLog b = new HyperLogLog();
+    for (int i = 0; i < 20000; i++) {
+      a.add(("a" + i).getBytes());
+      b.add(("b" + i).getBytes());
+      if (i % 2 == 0) {
+        b.add(("a" + i).getBytes());
+      }
+    }
+    byte[] registers = new byte[HyperLogLog.REGISTERS];
+    a.mergeInto(registers);
+    b.mergeInto(registers);
+    long count = HyperLogLog.count(registers);
+    assertTrue(String.valueOf(count), Math.abs(count - 40000) < 40000 * 0.03);
+    assertEquals(count, HyperLogLog.fromRegisters(registers).count());
+  }
+}
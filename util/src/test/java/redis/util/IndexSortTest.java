@@ -0,0 +1,121 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class IndexSortTest {
+
+  private final Random random = new Random(1337);
+
+  @Test
+  public void testSort() {
+    for (int size : new int[]{0, 1, 2, 15, 16, 17, 100, 10000}) {
+      // Few distinct values so there are plenty of ties
+      final double[] scores = new double[size];
+      for (int i = 0; i < size; i++) {
+        scores[i] = random.nextInt(Math.max(1, size / 4));
+      }
+      double[] sorted = scores.clone();
+      Arrays.sort(sorted);
+      IndexSort sort = new IndexSort() {
+        @Override
+        protected int compare(int a, int b) {
+          return scores[a] < scores[b] ? -1 : scores[a] > scores[b] ? 1 : 0;
+        }
+      };
+      int[] index = IndexSort.identity(size);
+      sort.sort(index);
+      for (int i = 0; i < size; i++) {
+        assertEquals(sorted[i], scores[index[i]]);
+      }
+
+      // Windows anywhere in the array
+      for (int n = 0; n < 20 && size > 0; n++) {
+        int from = random.nextInt(size);
+        int to = from + 1 + random.nextInt(Math.min(size - from, 50));
+        index = IndexSort.identity(size);
+        sort.sort(index, from, to);
+        for (int i = from; i < to; i++) {
+          assertEquals(sorted[i], scores[index[i]]);
+        }
+        // Still a permutation
+        int[] all = index.clone();
+        Arrays.sort(all);
+        assertTrue(Arrays.equals(IndexSort.identity(size), all));
+      }
+    }
+  }
+
+  @Test
+  public void testSortedInput() {
+    final int[] values = new int[100000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i / 3;
+    }
+    IndexSort descending = new IndexSort() {
+      @Override
+      protected int compare(int a, int b) {
+        return values[b] - values[a];
+      }
+    };
+    int[] index = IndexSort.identity(values.length);
+    descending.sort(index, 0, 10);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(values[values.length - 1 - i], values[index[i]]);
+    }
+    descending.sort(index);
+    for (int i = 1; i < index.length; i++) {
+      assertTrue(values[index[i - 1]] >= values[index[i]]);
+    }
+  }
+
+  @Test
+  public void testAdversary() throws Exception {
+    // McIlroy's adversary fixes values as the sort compares them so every
+    // partition leaves nearly everything on the lower side
+    final int size = 20000;
+    final int[] values = new int[size];
+    Arrays.fill(values, size);
+    final IndexSort sort = new IndexSort() {
+      private int solid;
+      private int candidate = -1;
+
+      @Override
+      protected int compare(int a, int b) {
+        if (values[a] == size && values[b] == size) {
+          values[a == candidate ? a : b] = solid++;
+        }
+        if (values[a] == size) {
+          candidate = a;
+        } else if (values[b] == size) {
+          candidate = b;
+        }
+        return values[b] - values[a];
+      }
+    };
+    final int[] index = IndexSort.identity(size);
+    final Throwable[] failure = new Throwable[1];
+    // A small stack only fits the sort if it recurses into the smaller side
+    Thread thread = new Thread(null, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sort.sort(index);
+        } catch (Throwable t) {
+          failure[0] = t;
+        }
+      }
+    }, "sort", 64 * 1024);
+    thread.start();
+    thread.join();
+    assertEquals(null, failure[0]);
+    for (int i = 1; i < size; i++) {
+      assertTrue(values[index[i - 1]] >= values[index[i]]);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+public class StreamTest {
+
+  private static byte[][] fields(String... strings) {
+    byte[][] fields = new byte[strings.length][];
+    for (int i = 0; i < strings.length; i++) {
+      fields[i] = strings[i].getBytes();
+    }
+    return fields;
+  }
+
+  private static String toString(List<Stream.Entry> entries) {
+    StringBuilder sb = new StringBuilder();
+    for (Stream.Entry entry : entries) {
+      if (sb.length() > 0) sb.append(" ");
+      sb.append(entry.getId()).append("[");
+      byte[][] fields = entry.getFields();
+      for (int i = 0; i < fields.length; i++) {
+        if (i > 0) sb.append(",");
+        sb.append(new String(fields[i]));
+      }
+      sb.append("]");
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void testIds() {
+    assertEquals(new StreamId(5, 0), StreamId.parse("5".getBytes(), 0));
+    assertEquals(new StreamId(5, Long.MAX_VALUE), StreamId.parse("5".getBytes(), Long.MAX_VALUE));
+    assertEquals(new StreamId(5, 3), StreamId.parse("5-3".getBytes(), 0));
+    assertEquals("5-4", new StreamId(5, 3).next().toString());
+    assertEquals("4-" + Long.MAX_VALUE, new StreamId(5, 0).previous().toString());
+    assertNull(StreamId.MIN.previous());
+    assertNull(StreamId.MAX.next());
+    for (String invalid : new String[]{"", "-", "a", "5-", "-5", "5--1", "+5", "5-+1"}) {
+      try {
+        StreamId.parse(invalid.getBytes(), 0);
+        fail(invalid);
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testAdd() {
+    Stream stream = new Stream();
+    assertEquals("1000-0", stream.nextId(1000).toString());
+    stream.add(new StreamId(1000, 0), fields("a", "1"));
+    assertEquals("1000-1", stream.nextId(1000).toString());
+    // The clock going backwards does not go back in the stream
+    assertEquals("1000-1", stream.nextId(999).toString());
+    stream.add(stream.nextId(1000), fields("a", "2"));
+    stream.add(new StreamId(2000, 0), fields("b", "3", "c", "4"));
+    try {
+      stream.add(new StreamId(2000, 0), fields("a", "5"));
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    assertEquals(3, stream.length());
+    assertEquals("2000-0", stream.lastId().toString());
+    assertEquals("1000-0[a,1] 1000-1[a,2] 2000-0[b,3,c,4]", toString(stream.range(StreamId.MIN, StreamId.MAX, 0, false)));
+  }
+
+  @Test
+  public void testRange() {
+    Stream stream = new Stream();
+    // Enough for many blocks with a mix of field layouts
+    for (int i = 0; i < 1000; i++) {
+      stream.add(new StreamId(i / 3 + 1, i % 3), i % 7 == 0 ? fields("x", "" + i) : fields("n", "" + i, "v", "" + i * 2));
+    }
+    List<Stream.Entry> all = stream.range(StreamId.MIN, StreamId.MAX, 0, false);
+    assertEquals(1000, all.size());
+    for (int i = 0; i < 1000; i++) {
+      Stream.Entry entry = all.get(i);
+      assertEquals(new StreamId(i / 3 + 1, i % 3), entry.getId());
+      assertEquals(i % 7 == 0 ? "x" : "n", new String(entry.getFields()[0]));
+      assertEquals("" + i, new String(entry.getFields()[1]));
+    }
+    assertEquals(1000, stream.range(StreamId.MIN, StreamId.MAX, 0, true).size());
+    assertEquals("101-2[n,302,v,604] 102-0[n,303,v,606]", toString(stream.range(new StreamId(101, 2), new StreamId(102, 0), 0, false)));
+    assertEquals("102-0[n,303,v,606] 101-2[n,302,v,604]", toString(stream.range(new StreamId(101, 2), new StreamId(102, 0), 0, true)));
+    assertEquals("201-0[n,600,v,1200] 201-1[n,601,v,1202]", toString(stream.range(new StreamId(201, 0), StreamId.MAX, 2, false)));
+    assertEquals("334-0[n,999,v,1998] 333-2[n,998,v,1996]", toString(stream.range(StreamId.MIN, StreamId.MAX, 2, true)));
+    assertEquals("", toString(stream.range(new StreamId(501, 0), StreamId.MAX, 0, false)));
+    assertEquals("", toString(stream.range(new StreamId(2, 0), new StreamId(1, 0), 0, false)));
+  }
+
+  @Test
+  public void testTrim() {
+    Stream stream = new Stream();
+    for (int i = 1; i <= 1000; i++) {
+      stream.add(new StreamId(i, 0), fields("f", "" + i));
+    }
+    // Only whole blocks go when trimming approximately
+    long removed = stream.trim(950, true);
+    assertEquals(1000 - removed, stream.length());
+    assertEquals(true, stream.length() >= 950 && stream.length() < 950 + Stream.BLOCK_ENTRIES);
+    assertEquals(100 - removed, stream.trim(900, false));
+    assertEquals(900, stream.length());
+    assertEquals("101-0[f,101]", toString(stream.range(StreamId.MIN, StreamId.MAX, 1, false)));
+    assertEquals("101-0[f,101]", toString(stream.range(StreamId.MIN, new StreamId(101, 0), 0, true)));
+    assertEquals(900, stream.trim(0, false));
+    assertEquals(0, stream.length());
+    assertEquals("", toString(stream.range(StreamId.MIN, StreamId.MAX, 0, false)));
+    // The last id is kept so new entries still have to come after it
+    assertEquals("1000-0", stream.lastId().toString());
+    stream.add(stream.nextId(0), fields("f", "x"));
+    assertEquals("1000-1[f,x]", toString(stream.range(StreamId.MIN, StreamId.MAX, 0, false)));
+  }
+
+  @Test
+  public void testCopy() {
+    Stream stream = new Stream();
+    for (int i = 1; i <= 250; i++) {
+      stream.add(new StreamId(i, 0), fields("field", "value" + i));
+    }
+    Stream copy = stream.copy();
+    stream.add(new StreamId(251, 0), fields("field", "value251"));
+    stream.trim(10, false);
+    copy.add(new StreamId(300, 0), fields("other", "value"));
+    assertEquals(10, stream.length());
+    assertEquals("251-0[field,value251]", toString(stream.range(new StreamId(251, 0), StreamId.MAX, 0, false)));
+    assertEquals(251, copy.length());
+    assertEquals("1-0[field,value1]", toString(copy.range(StreamId.MIN, StreamId.MAX, 1, false)));
+    assertEquals("250-0[field,value250] 300-0[other,value]",
+            toString(copy.range(new StreamId(250, 0), StreamId.MAX, 0, false)));
+  }
+}
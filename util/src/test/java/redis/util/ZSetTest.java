@@ -62,7 +62,38 @@ public class ZSetTest {
     }
   }
 
+  @Test
+  public void testOf() {
+    BytesKey[] keys = {THREE, ONE, TWO, new BytesKey("also two".getBytes())};
+    double[] scores = {3, 1, 2, 2};
+    ZSet zs = ZSet.of(keys, scores, 4);
+    assertEquals(4, zs.size());
+    Iterator<ZSetEntry> i = zs.iterator();
+    assertEquals(ONE, i.next().getKey());
+    assertEquals("also two", i.next().getKey().toString());
+    assertEquals(TWO, i.next().getKey());
+    assertEquals(THREE, i.next().getKey());
+    assertEquals(2.0, zs.get(TWO).getScore());
+    // Still works as a normal sorted set
+    zs.add(new BytesKey("zero".getBytes()), 0);
+    assertEquals("zero", zs.iterator().next().getKey().toString());
+    assertEquals(0, ZSet.of(keys, scores, 0).size());
+  }
+
   private void println(Object o) {
     System.out.println(String.valueOf(o));
   }
+
+  @Test
+  public void testCopy() {
+    ZSet zs = new ZSet();
+    zs.add(ONE, 1);
+    zs.add(TWO, 2);
+    ZSet copy = zs.copy();
+    zs.get(ONE).increment(5);
+    zs.add(THREE, 3);
+    assertEquals(2, copy.size());
+    assertEquals(1.0, copy.get(ONE).getScore());
+    assertEquals(ONE, copy.iterator().next().getKey());
+  }
 }